@@ -35,6 +35,8 @@ import com.orangelabs.rcs.ri.messaging.TestMessagingApi;
 import com.orangelabs.rcs.ri.service.TestServiceApi;
 import com.orangelabs.rcs.ri.session.TestMultimediaSessionApi;
 import com.orangelabs.rcs.ri.sharing.TestSharingApi;
+import com.orangelabs.rcs.ri.sharing.video.media.NetworkRessourceManager;
+import com.orangelabs.rcs.ri.utils.Registry;
 
 /**
  * RI application
@@ -42,10 +44,26 @@ import com.orangelabs.rcs.ri.sharing.TestSharingApi;
  * @author Jean-Marc AUFFRET
  */
 public class RI extends ListActivity {
+	/**
+	 * Registry key of the first RTP port of the media sessions
+	 */
+	public static final String REGISTRY_RTP_PORT_MIN = "RtpPortMin";
+
+	/**
+	 * Registry key of the last RTP port of the media sessions
+	 */
+	public static final String REGISTRY_RTP_PORT_MAX = "RtpPortMax";
+
     @Override
     public void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
         
+        // Set the RTP port range, kept as is while sessions hold ports
+        Registry registry = new Registry(this);
+        NetworkRessourceManager.setRtpPortRange(
+        		registry.readInteger(REGISTRY_RTP_PORT_MIN, NetworkRessourceManager.DEFAULT_LOCAL_RTP_PORT_BASE),
+        		registry.readInteger(REGISTRY_RTP_PORT_MAX, NetworkRessourceManager.DEFAULT_LOCAL_RTP_PORT_MAX));
+
 		// Set title
         setTitle(getString(R.string.app_name));
 
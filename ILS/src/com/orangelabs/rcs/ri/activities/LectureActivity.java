@@ -1,6 +1,12 @@
 package com.orangelabs.rcs.ri.activities;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import android.app.Activity;
 import android.app.Dialog;
@@ -35,12 +41,63 @@ import com.orangelabs.rcs.core.ims.protocol.rtp.format.video.CameraOptions;
 import com.orangelabs.rcs.core.ims.protocol.rtp.format.video.Orientation;
 import com.orangelabs.rcs.ri.R;
 import com.orangelabs.rcs.ri.sharing.video.InitiateVideoSharing;
+import com.orangelabs.rcs.ri.sharing.video.media.BroadcastVideoPlayer;
+import com.orangelabs.rcs.ri.sharing.video.media.CaptureTimeExtension;
+import com.orangelabs.rcs.ri.sharing.video.media.FileVideoPlayer;
+import com.orangelabs.rcs.ri.sharing.video.media.MediaStats;
+import com.orangelabs.rcs.ri.sharing.video.media.MulticastGroup;
 import com.orangelabs.rcs.ri.sharing.video.media.MyVideoPlayer;
+import com.orangelabs.rcs.ri.sharing.video.media.NetworkRessourceManager;
+import com.orangelabs.rcs.ri.sharing.video.media.StreamRecorder;
+import com.orangelabs.rcs.ri.sharing.video.media.UlpFec;
 import com.orangelabs.rcs.ri.sharing.video.media.VideoSurfaceView;
 import com.orangelabs.rcs.ri.utils.Utils;
 
 public class LectureActivity extends Activity implements JoynServiceListener,
 		SurfaceHolder.Callback {
+	/**
+	 * Intent extra: contacts of the lecture (string array)
+	 */
+	public final static String EXTRA_CONTACTS = "contacts";
+
+	/**
+	 * Intent extra: send the lecture to a LAN multicast group (boolean)
+	 */
+	public final static String EXTRA_MULTICAST = "multicast";
+
+	/**
+	 * Intent extra: encode simulcast layers for the recipients (boolean)
+	 */
+	public final static String EXTRA_SIMULCAST = "simulcast";
+
+	/**
+	 * Intent extra: path of a pre-recorded H264 clip (Annex B or MP4) to
+	 * play instead of the camera, for a single contact (string)
+	 */
+	public final static String EXTRA_FILE = "file";
+
+	/**
+	 * Intent extra: record the lecture and dump the media pipeline stats in
+	 * the application storage (boolean, disabled by default)
+	 */
+	public final static String EXTRA_RECORD = "record";
+
+	/**
+	 * Directory of the lecture recordings in the application storage
+	 */
+	public final static String RECORDINGS_DIRECTORY = "lectures";
+
+	/**
+	 * Period of the dump of the media pipeline stats next to the recording,
+	 * in milliseconds
+	 */
+	private final static long STATS_DUMP_PERIOD = 10000L;
+
+	/**
+	 * Default contact of the lecture
+	 */
+	private final static String DEFAULT_CONTACT = "Rcs Karim";
+
 	/**
 	 * UI handler
 	 */
@@ -62,10 +119,30 @@ public class LectureActivity extends Activity implements JoynServiceListener,
 	private MyVideoSharingListener vshListener = new MyVideoSharingListener();
 
 	/**
-	 * Video player
+	 * Video player, shared encoder in broadcast mode
 	 */
 	private MyVideoPlayer videoPlayer = null;
 
+	/**
+	 * Video player of a pre-recorded clip or null
+	 */
+	private FileVideoPlayer filePlayer = null;
+
+	/**
+	 * Multicast group of the lecture or null
+	 */
+	private MulticastGroup multicastGroup = null;
+
+	/**
+	 * Recorder of the lecture
+	 */
+	private StreamRecorder recorder = null;
+
+	/**
+	 * Recipients of the broadcast
+	 */
+	private CopyOnWriteArrayList<RecipientSharingListener> recipients = new CopyOnWriteArrayList<RecipientSharingListener>();
+
 	/**
 	 * Camera of the device
 	 */
@@ -152,8 +229,23 @@ public class LectureActivity extends Activity implements JoynServiceListener,
 
 		// Connect API
 		vshApi.connect();
-		remoteContact = "Rcs Karim";
-		invite(remoteContact);
+		String[] contacts = getIntent().getStringArrayExtra(EXTRA_CONTACTS);
+		if ((contacts == null) || (contacts.length == 0)) {
+			contacts = new String[] { DEFAULT_CONTACT };
+		}
+		if (contacts.length > 1) {
+			// One capture and one encoder for all the recipients, the
+			// sockets of all the recipient sessions are read by the
+			// single selector thread
+			if (getIntent().getBooleanExtra(EXTRA_MULTICAST, false)) {
+				multicastGroup = MulticastGroup.create(NetworkRessourceManager
+						.generateLocalRtpPort());
+			}
+			broadcast(contacts);
+		} else {
+			remoteContact = contacts[0];
+			invite(remoteContact);
+		}
 	}
 
 	@Override
@@ -179,6 +271,12 @@ public class LectureActivity extends Activity implements JoynServiceListener,
 				e.printStackTrace();
 			}
 		}
+		for (RecipientSharingListener recipient : recipients) {
+			recipient.removeListener();
+		}
+
+		// Close the recording
+		stopRecording();
 
 		// Disconnect API
 		vshApi.disconnect();
@@ -293,6 +391,147 @@ public class LectureActivity extends Activity implements JoynServiceListener,
 		}
 	};
 
+	/**
+	 * Video sharing event listener of a broadcast recipient: a failed
+	 * recipient is dropped without stopping the lecture for the others
+	 */
+	private class RecipientSharingListener extends VideoSharingListener {
+		/**
+		 * Remote contact
+		 */
+		private final String contact;
+
+		/**
+		 * Video sharing
+		 */
+		private volatile VideoSharing sharing = null;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param contact
+		 *            Remote contact
+		 */
+		public RecipientSharingListener(String contact) {
+			this.contact = contact;
+		}
+
+		/**
+		 * Set the video sharing
+		 * 
+		 * @param sharing
+		 *            Video sharing
+		 */
+		public void setSharing(VideoSharing sharing) {
+			this.sharing = sharing;
+		}
+
+		/**
+		 * Remove the listener from the video sharing
+		 */
+		public void removeListener() {
+			try {
+				if (sharing != null) {
+					sharing.removeEventListener(this);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+
+		/**
+		 * Abort the video sharing
+		 */
+		public void abort() {
+			try {
+				if (sharing != null) {
+					sharing.removeEventListener(this);
+					sharing.abortSharing();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+			sharing = null;
+		}
+
+		// Sharing started
+		public void onSharingStarted() {
+			handler.post(new Runnable() {
+				public void run() {
+					// Hide progress dialog
+					hideProgressDialog();
+				}
+			});
+		}
+
+		// Sharing aborted
+		public void onSharingAborted() {
+			handler.post(new Runnable() {
+				public void run() {
+					removeRecipient(RecipientSharingListener.this,
+							getString(R.string.label_sharing_aborted));
+				}
+			});
+		}
+
+		// Sharing error
+		public void onSharingError(final int error) {
+			handler.post(new Runnable() {
+				public void run() {
+					if (error == VideoSharing.Error.INVITATION_DECLINED) {
+						removeRecipient(RecipientSharingListener.this,
+								getString(R.string.label_sharing_declined));
+					} else {
+						removeRecipient(RecipientSharingListener.this,
+								getString(R.string.label_sharing_failed, error));
+					}
+				}
+			});
+		}
+	};
+
+	/**
+	 * Remove a recipient of the broadcast, the lecture ends with the last one
+	 * 
+	 * @param recipient
+	 *            Recipient
+	 * @param message
+	 *            Message to display
+	 */
+	private void removeRecipient(RecipientSharingListener recipient,
+			String message) {
+		if (!recipients.remove(recipient)) {
+			// Already removed
+			return;
+		}
+		recipient.removeListener();
+		if (recipients.isEmpty()) {
+			// Release the camera and the shared encoder
+			closeCamera();
+			closeBroadcastEncoder();
+
+			// Hide progress dialog
+			hideProgressDialog();
+
+			// Display session status
+			Utils.showMessageAndExit(LectureActivity.this, message);
+		} else {
+			Toast.makeText(LectureActivity.this,
+					recipient.contact + ": " + message, Toast.LENGTH_SHORT)
+					.show();
+		}
+	}
+
+	/**
+	 * Stop and close the shared encoder of a broadcast
+	 */
+	private void closeBroadcastEncoder() {
+		if (videoPlayer != null) {
+			videoPlayer.stop();
+			videoPlayer.close();
+		}
+	}
+
 	/**
 	 * Quit the session
 	 */
@@ -300,6 +539,9 @@ public class LectureActivity extends Activity implements JoynServiceListener,
 		// Release the camera
 		closeCamera();
 
+		// Close the recording
+		stopRecording();
+
 		// Stop the sharing
 		try {
 			if (videoSharing != null) {
@@ -311,6 +553,15 @@ public class LectureActivity extends Activity implements JoynServiceListener,
 		}
 		videoSharing = null;
 
+		// Stop the broadcast
+		if (!recipients.isEmpty()) {
+			for (RecipientSharingListener recipient : recipients) {
+				recipient.abort();
+			}
+			recipients.clear();
+			closeBroadcastEncoder();
+		}
+
 		// Exit activity
 		finish();
 	}
@@ -344,7 +595,6 @@ public class LectureActivity extends Activity implements JoynServiceListener,
 			videoView.setAspectRatio(videoWidth, videoHeight);
 
 			// Start camera
-			camera.setPreviewCallback(videoPlayer);
 			startCameraPreview();
 		}
 	}
@@ -354,6 +604,9 @@ public class LectureActivity extends Activity implements JoynServiceListener,
 	 */
 	private synchronized void closeCamera() {
 		if (camera != null) {
+			if (videoPlayer != null) {
+				videoPlayer.detachCamera();
+			}
 			camera.setPreviewCallback(null);
 			if (cameraPreviewRunning) {
 				cameraPreviewRunning = false;
@@ -431,6 +684,9 @@ public class LectureActivity extends Activity implements JoynServiceListener,
 
 			// Set camera parameters
 			camera.setParameters(p);
+
+			// Capture into preallocated preview buffers
+			videoPlayer.attachCamera(camera);
 			try {
 				camera.setPreviewDisplay(videoView.getHolder());
 				camera.startPreview();
@@ -550,8 +806,20 @@ public class LectureActivity extends Activity implements JoynServiceListener,
 		Thread thread = new Thread() {
 			public void run() {
 				try {
-					// Create the video player
+					String clip = getIntent().getStringExtra(EXTRA_FILE);
+					if (clip != null) {
+						// Stream the clip as it is, no camera and no encoder
+						filePlayer = new FileVideoPlayer(new File(clip));
+						videoSharing = vshApi.shareVideo(remoteContact,
+								filePlayer, vshListener);
+						return;
+					}
+
+					// Create the video player, stamping the capture time of
+					// each frame for the latency probe of the renderer
 					videoPlayer = new MyVideoPlayer();
+					videoPlayer.setCaptureTimeHeaderId(CaptureTimeExtension.DEFAULT_HEADER_ID);
+					startRecording();
 
 					// Start the camera
 					openCamera();
@@ -598,4 +866,160 @@ public class LectureActivity extends Activity implements JoynServiceListener,
 		dialBtn.setVisibility(View.GONE);
 	}
 
+	/**
+	 * Broadcast the lecture: the video is captured and encoded once, then sent
+	 * to each contact through its own video sharing
+	 * 
+	 * @param contacts
+	 *            Remote contacts
+	 */
+	private void broadcast(final String[] contacts) {
+		// Check if the service is available
+		boolean registered = false;
+		try {
+			if ((vshApi != null) && vshApi.isServiceRegistered()) {
+				registered = true;
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		if (!registered) {
+			Utils.showMessage(LectureActivity.this,
+					getString(R.string.label_service_not_available));
+			return;
+		}
+
+		Thread thread = new Thread() {
+			public void run() {
+				try {
+					// Create the shared encoder
+					videoPlayer = new MyVideoPlayer();
+					if ((multicastGroup == null)
+							&& getIntent().getBooleanExtra(EXTRA_SIMULCAST, false)) {
+						// Capture at the size of the largest layer
+						videoPlayer.setSimulcast(true);
+						videoWidth = H264Config.VGA_WIDTH;
+						videoHeight = H264Config.VGA_HEIGHT;
+					}
+
+					// Start the camera and the encoder
+					openCamera();
+					if (multicastGroup != null) {
+						// The group is protected by FEC, the packets lost by
+						// a recipient are repaired over its own sharing
+						videoPlayer.setFec(UlpFec.Protection.LOW, true);
+						videoPlayer.openMulticast(videoPlayer.getCodec(),
+								multicastGroup);
+					} else {
+						videoPlayer.openEncoder(videoPlayer.getCodec());
+					}
+					startRecording();
+					videoPlayer.start();
+				} catch (Exception e) {
+					e.printStackTrace();
+					handler.post(new Runnable() {
+						public void run() {
+							hideProgressDialog();
+							Utils.showMessageAndExit(LectureActivity.this,
+									getString(R.string.label_invitation_failed));
+						}
+					});
+					return;
+				}
+
+				// Initiate a sharing per contact
+				for (int i = 0; i < contacts.length; i++) {
+					RecipientSharingListener recipient = new RecipientSharingListener(
+							contacts[i]);
+					recipients.add(recipient);
+					try {
+						// The group is offered in the invitation
+						BroadcastVideoPlayer player = new BroadcastVideoPlayer(
+								videoPlayer, multicastGroup != null);
+						player.setFec(UlpFec.Protection.LOW, true);
+						recipient.setSharing(vshApi.shareVideo(contacts[i],
+								player, recipient));
+					} catch (Exception e) {
+						e.printStackTrace();
+						final RecipientSharingListener failed = recipient;
+						handler.post(new Runnable() {
+							public void run() {
+								removeRecipient(failed,
+										getString(R.string.label_invitation_failed));
+							}
+						});
+					}
+				}
+			}
+		};
+		thread.start();
+
+		// Display a progress dialog
+		progressDialog = Utils.showProgressDialog(LectureActivity.this,
+				getString(R.string.label_command_in_progress));
+		progressDialog.setOnCancelListener(new OnCancelListener() {
+			public void onCancel(DialogInterface dialog) {
+				Toast.makeText(LectureActivity.this,
+						getString(R.string.label_sharing_cancelled),
+						Toast.LENGTH_SHORT).show();
+				quitSession();
+			}
+		});
+
+		// Display video view
+		videoView.setVisibility(View.VISIBLE);
+
+		// Hide buttons
+		Button inviteBtn = (Button) findViewById(R.id.invite_btn);
+		inviteBtn.setVisibility(View.GONE);
+		Button dialBtn = (Button) findViewById(R.id.dial_btn);
+		dialBtn.setVisibility(View.GONE);
+	}
+
+	/**
+	 * Record the encoded lecture in the application storage, if requested
+	 * by the intent
+	 */
+	private synchronized void startRecording() {
+		if ((recorder != null) || (videoPlayer == null)
+				|| !getIntent().getBooleanExtra(EXTRA_RECORD, false)) {
+			return;
+		}
+		File dir = getExternalFilesDir(RECORDINGS_DIRECTORY);
+		if (dir == null) {
+			// Storage not available
+			return;
+		}
+		String name = "lecture-"
+				+ new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US)
+						.format(new Date());
+		StreamRecorder streamRecorder = new StreamRecorder(dir, name, 0);
+		try {
+			streamRecorder.start();
+			videoPlayer.addFrameSink(streamRecorder);
+			recorder = streamRecorder;
+
+			// Dump the pipeline latencies of the lecture next to it
+			MediaStats.reset();
+			MediaStats.startDump(new File(dir, name + "-stats.txt"),
+					STATS_DUMP_PERIOD);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Stop the recording of the lecture
+	 */
+	private synchronized void stopRecording() {
+		if (recorder != null) {
+			if (videoPlayer != null) {
+				videoPlayer.removeFrameSink(recorder);
+			}
+			recorder.stop();
+			recorder = null;
+			MediaStats.stopDump();
+		}
+	}
+
 }
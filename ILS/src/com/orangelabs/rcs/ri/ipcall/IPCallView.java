@@ -27,6 +27,7 @@ import android.content.pm.ActivityInfo;
 import android.os.Bundle;
 import android.os.Handler;
 import android.view.KeyEvent;
+import android.view.SurfaceHolder;
 import android.view.View;
 import android.widget.Button;
 import android.widget.CompoundButton;
@@ -45,6 +46,7 @@ import com.gsma.services.rcs.ipcall.IPCallService;
 import com.orangelabs.rcs.ri.R;
 import com.orangelabs.rcs.ri.ipcall.media.MyIPCallPlayer;
 import com.orangelabs.rcs.ri.ipcall.media.MyIPCallRenderer;
+import com.orangelabs.rcs.ri.sharing.video.media.VideoSurfaceView;
 import com.orangelabs.rcs.ri.utils.Utils;
 
 /**
@@ -113,6 +115,11 @@ public class IPCallView extends Activity implements JoynServiceListener {
 	 */
 	private MyIPCallRenderer renderer = null;
 
+    /**
+     * Video surface view of the call
+     */
+    private VideoSurfaceView videoView = null;
+
 	/**
 	 * Progress dialog
 	 */
@@ -133,6 +140,12 @@ public class IPCallView extends Activity implements JoynServiceListener {
         Button hangupBtn = (Button)findViewById(R.id.hangup_btn);
         hangupBtn.setOnClickListener(btnHangupListener);
 
+        // Set the video view of the call
+        videoView = (VideoSurfaceView)findViewById(R.id.video_view);
+        SurfaceHolder surface = videoView.getHolder();
+        surface.setType(SurfaceHolder.SURFACE_TYPE_PUSH_BUFFERS);
+        surface.setKeepScreenOn(true);
+
         // Instanciate API
         ipcallApi = new IPCallService(getApplicationContext(), this);
         
@@ -163,7 +176,7 @@ public class IPCallView extends Activity implements JoynServiceListener {
     	try {
     		// Instanciate player and renderer
     		player = new MyIPCallPlayer();
-    		renderer = new MyIPCallRenderer();
+    		renderer = new MyIPCallRenderer(player, videoView);
 
     		// Accept the invitation
 			call.acceptInvitation(player, renderer);
@@ -312,7 +325,7 @@ public class IPCallView extends Activity implements JoynServiceListener {
     	try {
     		// Instanciate player and renderer
     		player = new MyIPCallPlayer();
-    		renderer = new MyIPCallRenderer();
+    		renderer = new MyIPCallRenderer(player, videoView);
     		
 			// Initiate session
     		if (video) {
@@ -0,0 +1,428 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.orangelabs.rcs.ri.ipcall.media;
+
+/**
+ * Adaptive jitter buffer of the received voice frames. The frames are kept
+ * in preallocated slots indexed by sequence number and read one at a time
+ * by the playout thread, at the pace of the audio output. The target depth
+ * follows the measured interarrival jitter: the buffer is filled again to
+ * it on an underrun, and drops a frame when it holds more than needed, so the
+ * delay stays as low as the network allows. A lost frame is concealed by
+ * repeating the previous one with a decreasing gain.
+ * <p>
+ * The payloads are G.711 mu-law, one byte per sample.
+ */
+public class AudioJitterBuffer {
+    /**
+     * Number of slots, about a second of 20 ms frames
+     */
+    private static final int SLOTS = 64;
+
+    /**
+     * Largest frame in samples, one byte of payload per sample
+     */
+    public static final int MAX_FRAME_SAMPLES = 480;
+
+    /**
+     * Minimum target depth in frames
+     */
+    private static final int MIN_TARGET_FRAMES = 2;
+
+    /**
+     * Maximum target depth in frames
+     */
+    private static final int MAX_TARGET_FRAMES = 6;
+
+    /**
+     * Frames held beyond the target depth before one is dropped
+     */
+    private static final int DROP_MARGIN = 2;
+
+    /**
+     * Number of frames concealed before silence
+     */
+    private static final int MAX_CONCEALED = 3;
+
+    /**
+     * Clock rate in Hz
+     */
+    private final int clockRate;
+
+    /**
+     * Payloads
+     */
+    private final byte[][] payloads = new byte[SLOTS][MAX_FRAME_SAMPLES];
+
+    /**
+     * Lengths of the payloads
+     */
+    private final int[] lengths = new int[SLOTS];
+
+    /**
+     * Sequence numbers of the frames, -1 if the slot is empty
+     */
+    private final int[] seqs = new int[SLOTS];
+
+    /**
+     * RTP timestamps of the frames
+     */
+    private final long[] timestamps = new long[SLOTS];
+
+    /**
+     * Last played samples, for the concealment
+     */
+    private final short[] lastFrame = new short[MAX_FRAME_SAMPLES];
+
+    /**
+     * Number of samples per frame
+     */
+    private int frameSamples;
+
+    /**
+     * Sequence number of the next frame to play, -1 before the first frame
+     */
+    private int nextSeq = -1;
+
+    /**
+     * Highest received sequence number
+     */
+    private int highestSeq = -1;
+
+    /**
+     * Playout started, the buffer being filled to its target depth
+     */
+    private boolean playing = false;
+
+    /**
+     * Consecutive concealed frames
+     */
+    private int concealed = 0;
+
+    /**
+     * Transit time of the last frame in clock units, to measure the jitter
+     */
+    private long lastTransit = Long.MIN_VALUE;
+
+    /**
+     * Interarrival jitter in clock units (RFC 3550)
+     */
+    private double jitter = 0.0;
+
+    /**
+     * RTP timestamp of the last played frame, -1 before the first frame
+     */
+    private long playoutTimestamp = -1L;
+
+    /**
+     * Number of played frames
+     */
+    private volatile long playedCount = 0L;
+
+    /**
+     * Number of concealed frames
+     */
+    private volatile long concealedCount = 0L;
+
+    /**
+     * Number of frames received after their playout
+     */
+    private volatile long lateCount = 0L;
+
+    /**
+     * Number of frames dropped to reduce the delay
+     */
+    private volatile long droppedCount = 0L;
+
+    /**
+     * Number of reads with no frame to play
+     */
+    private volatile long underrunCount = 0L;
+
+    /**
+     * Constructor
+     *
+     * @param clockRate Clock rate in Hz
+     * @param frameDuration Default frame duration in milliseconds
+     */
+    public AudioJitterBuffer(int clockRate, int frameDuration) {
+        this.clockRate = clockRate;
+        this.frameSamples = clockRate * frameDuration / 1000;
+        for (int i = 0; i < SLOTS; i++) {
+            seqs[i] = -1;
+        }
+    }
+
+    /**
+     * Add a received frame
+     *
+     * @param seq RTP sequence number
+     * @param timestamp RTP timestamp
+     * @param data Buffer
+     * @param offset Offset of the payload
+     * @param length Length of the payload
+     * @param arrivalTime Arrival time in milliseconds
+     * @return False if the frame has been dropped
+     */
+    public synchronized boolean put(int seq, long timestamp, byte[] data, int offset, int length, long arrivalTime) {
+        if ((length <= 0) || (length > MAX_FRAME_SAMPLES)) {
+            return false;
+        }
+        if (nextSeq < 0) {
+            nextSeq = seq;
+            highestSeq = seq;
+        }
+        int ahead = (short)(seq - nextSeq);
+        if ((ahead >= SLOTS) || (ahead < -SLOTS)) {
+            // New stream or long break: start again from this frame
+            reset();
+            nextSeq = seq;
+            highestSeq = seq;
+            ahead = 0;
+        }
+        if (ahead < 0) {
+            if (playing || (playoutTimestamp >= 0)) {
+                // Its turn has passed, even if refilling after an underrun
+                lateCount++;
+                return false;
+            }
+            // Reordered before the first frame is played
+            nextSeq = seq;
+        }
+
+        int index = seq & (SLOTS - 1);
+        System.arraycopy(data, offset, payloads[index], 0, length);
+        lengths[index] = length;
+        seqs[index] = seq;
+        timestamps[index] = timestamp;
+        if ((short)(seq - highestSeq) > 0) {
+            highestSeq = seq;
+        }
+        frameSamples = length;
+
+        // Interarrival jitter
+        long transit = arrivalTime * clockRate / 1000L - timestamp;
+        if (lastTransit != Long.MIN_VALUE) {
+            double d = Math.abs(transit - lastTransit);
+            jitter += (d - jitter) / 16.0;
+        }
+        lastTransit = transit;
+        return true;
+    }
+
+    /**
+     * Read the next frame to play. Called by the playout thread once per
+     * frame, the audio output giving the pace.
+     *
+     * @param pcm Buffer of the samples, of {@link #MAX_FRAME_SAMPLES}
+     * @return Number of samples
+     */
+    public synchronized int read(short[] pcm) {
+        int samples = frameSamples;
+        if (!playing) {
+            if ((nextSeq < 0) || (getBufferedFrames() < getTargetFrames())) {
+                fillSilence(pcm, samples);
+                return samples;
+            }
+            playing = true;
+        }
+
+        // Too much delay: drop the oldest frame
+        if (getBufferedFrames() > getTargetFrames() + DROP_MARGIN) {
+            seqs[nextSeq & (SLOTS - 1)] = -1;
+            nextSeq = (nextSeq + 1) & 0xffff;
+            droppedCount++;
+        }
+
+        int index = nextSeq & (SLOTS - 1);
+        if (seqs[index] == nextSeq) {
+            samples = lengths[index];
+            PcmuCodec.decode(payloads[index], 0, samples, pcm, 0);
+            System.arraycopy(pcm, 0, lastFrame, 0, samples);
+            seqs[index] = -1;
+            playoutTimestamp = timestamps[index];
+            nextSeq = (nextSeq + 1) & 0xffff;
+            concealed = 0;
+            playedCount++;
+        } else {
+            if (getBufferedFrames() > 0) {
+                // Lost frame: a later one is already there
+                nextSeq = (nextSeq + 1) & 0xffff;
+                if (playoutTimestamp >= 0) {
+                    playoutTimestamp = (playoutTimestamp + samples) & 0xffffffffL;
+                }
+            } else {
+                // Underrun: the frame may still come, fill the buffer to
+                // its target depth again
+                underrunCount++;
+                playing = false;
+            }
+            conceal(pcm, samples);
+            concealedCount++;
+        }
+        return samples;
+    }
+
+    /**
+     * Conceal a missing frame
+     *
+     * @param pcm Buffer of the samples
+     * @param samples Number of samples
+     */
+    private void conceal(short[] pcm, int samples) {
+        concealed++;
+        if (concealed > MAX_CONCEALED) {
+            fillSilence(pcm, samples);
+            return;
+        }
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = (short)(lastFrame[i] >> concealed);
+        }
+    }
+
+    /**
+     * Fill a frame with silence
+     *
+     * @param pcm Buffer of the samples
+     * @param samples Number of samples
+     */
+    private static void fillSilence(short[] pcm, int samples) {
+        for (int i = 0; i < samples; i++) {
+            pcm[i] = 0;
+        }
+    }
+
+    /**
+     * Empty the buffer, the playout starts again once filled
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < SLOTS; i++) {
+            seqs[i] = -1;
+        }
+        nextSeq = -1;
+        highestSeq = -1;
+        playing = false;
+        concealed = 0;
+        lastTransit = Long.MIN_VALUE;
+        playoutTimestamp = -1L;
+    }
+
+    /**
+     * Returns the number of frames from the next one to play to the last
+     * received one
+     *
+     * @return Number of frames
+     */
+    private int getBufferedFrames() {
+        if (nextSeq < 0) {
+            return 0;
+        }
+        return Math.max((short)(highestSeq - nextSeq) + 1, 0);
+    }
+
+    /**
+     * Returns the target depth, from the measured jitter
+     *
+     * @return Number of frames
+     */
+    private int getTargetFrames() {
+        int frames = (int)Math.ceil(2.0 * jitter / frameSamples) + 1;
+        return Math.min(Math.max(frames, MIN_TARGET_FRAMES), MAX_TARGET_FRAMES);
+    }
+
+    /**
+     * Returns the current delay of the buffer
+     *
+     * @return Delay in milliseconds
+     */
+    public synchronized long getDelay() {
+        return getBufferedFrames() * frameSamples * 1000L / clockRate;
+    }
+
+    /**
+     * Returns the target delay of the buffer
+     *
+     * @return Delay in milliseconds
+     */
+    public synchronized long getTargetDelay() {
+        return getTargetFrames() * frameSamples * 1000L / clockRate;
+    }
+
+    /**
+     * Returns the interarrival jitter
+     *
+     * @return Jitter in milliseconds
+     */
+    public synchronized long getJitter() {
+        return (long)(jitter * 1000.0 / clockRate);
+    }
+
+    /**
+     * Returns the RTP timestamp of the last played frame
+     *
+     * @return Timestamp or -1 before the first frame
+     */
+    public synchronized long getPlayoutTimestamp() {
+        return playoutTimestamp;
+    }
+
+    /**
+     * Returns the number of played frames
+     *
+     * @return Count
+     */
+    public long getPlayedCount() {
+        return playedCount;
+    }
+
+    /**
+     * Returns the number of concealed frames
+     *
+     * @return Count
+     */
+    public long getConcealedCount() {
+        return concealedCount;
+    }
+
+    /**
+     * Returns the number of frames received after their playout
+     *
+     * @return Count
+     */
+    public long getLateCount() {
+        return lateCount;
+    }
+
+    /**
+     * Returns the number of frames dropped to reduce the delay
+     *
+     * @return Count
+     */
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+
+    /**
+     * Returns the number of reads with no frame to play
+     *
+     * @return Count
+     */
+    public long getUnderrunCount() {
+        return underrunCount;
+    }
+}
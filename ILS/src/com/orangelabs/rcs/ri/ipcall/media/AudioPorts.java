@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.ipcall.media;
+
+import java.io.IOException;
+
+import com.orangelabs.rcs.ri.sharing.video.media.DatagramConnection;
+import com.orangelabs.rcs.ri.sharing.video.media.NetworkRessourceManager;
+import com.orangelabs.rcs.ri.sharing.video.media.PortLease;
+
+/**
+ * Audio RTP/RTCP ports of an IP call, shared by the player and the renderer
+ * so that the audio is sent from the port it is received on, as negotiated
+ * once for the call. The connections are opened by the first of them and
+ * closed, with the ports released, by the last one.
+ */
+class AudioPorts {
+    /**
+     * Receive timeout of the connections in milliseconds, so that the
+     * receive threads see the end of the call
+     */
+    private static final int RECEIVE_TIMEOUT = 500;
+
+    /**
+     * Lease of the ports, null if no port was available or once released
+     */
+    private PortLease lease = null;
+
+    /**
+     * Local RTP port, -1 if no port was available
+     */
+    private final int rtpPort;
+
+    /**
+     * RTP connection
+     */
+    private DatagramConnection rtpConnection = null;
+
+    /**
+     * RTCP connection
+     */
+    private DatagramConnection rtcpConnection = null;
+
+    /**
+     * Number of users which have opened the connections
+     */
+    private int users = 0;
+
+    /**
+     * Constructor, reserves the ports
+     */
+    public AudioPorts() {
+        int port;
+        try {
+            lease = NetworkRessourceManager.allocateRtpPorts();
+            port = lease.getRtpPort();
+        } catch (IOException e) {
+            port = -1;
+        }
+        this.rtpPort = port;
+    }
+
+    /**
+     * Returns the local RTP port
+     *
+     * @return Port or -1 if no port was available
+     */
+    public int getRtpPort() {
+        return rtpPort;
+    }
+
+    /**
+     * Returns the lease of the ports
+     *
+     * @return Lease or null if no port was available or once released
+     */
+    public synchronized PortLease getPortLease() {
+        return lease;
+    }
+
+    /**
+     * Open the connections to the remote, if not opened yet by the other
+     * user. The ports are released if they can't be opened.
+     *
+     * @param remoteHost Remote host
+     * @param remotePort Remote RTP port
+     * @throws IOException if the connections can't be opened
+     */
+    public synchronized void open(String remoteHost, int remotePort) throws IOException {
+        if (users == 0) {
+            try {
+                rtpConnection = NetworkRessourceManager.createDatagramConnection(RECEIVE_TIMEOUT);
+                rtpConnection.open(rtpPort);
+                rtpConnection.connect(remoteHost, remotePort);
+                if (lease != null) {
+                    rtcpConnection = NetworkRessourceManager.createDatagramConnection(RECEIVE_TIMEOUT);
+                    rtcpConnection.open(lease.getRtcpPort());
+                    rtcpConnection.connect(remoteHost, remotePort + 1);
+                }
+            } catch (IOException e) {
+                closeConnections();
+                releaseLease();
+                throw e;
+            }
+        }
+        users++;
+    }
+
+    /**
+     * Returns the RTP connection
+     *
+     * @return Connection or null if not opened
+     */
+    public synchronized DatagramConnection getRtpConnection() {
+        return rtpConnection;
+    }
+
+    /**
+     * Returns the RTCP connection
+     *
+     * @return Connection or null if not opened or no port was available
+     */
+    public synchronized DatagramConnection getRtcpConnection() {
+        return rtcpConnection;
+    }
+
+    /**
+     * Close the connections opened by a user, and release the ports once
+     * the last user has closed them
+     */
+    public synchronized void close() {
+        if (users > 0) {
+            users--;
+        }
+        if (users == 0) {
+            closeConnections();
+            releaseLease();
+        }
+    }
+
+    /**
+     * Release the reserved ports
+     */
+    private void releaseLease() {
+        if (lease != null) {
+            lease.release();
+            lease = null;
+        }
+    }
+
+    /**
+     * Close the connections
+     */
+    private void closeConnections() {
+        if (rtpConnection != null) {
+            try {
+                rtpConnection.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+            rtpConnection = null;
+        }
+        if (rtcpConnection != null) {
+            try {
+                rtcpConnection.close();
+            } catch (IOException e) {
+                // Nothing to do
+            }
+            rtcpConnection = null;
+        }
+    }
+}
@@ -17,28 +17,91 @@
  ******************************************************************************/
 package com.orangelabs.rcs.ri.ipcall.media;
 
+import java.io.IOException;
+import java.util.Iterator;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
 import com.gsma.services.rcs.ipcall.AudioCodec;
+import com.gsma.services.rcs.ipcall.IIPCallPlayerListener;
 import com.gsma.services.rcs.ipcall.IPCallPlayer;
 import com.gsma.services.rcs.ipcall.VideoCodec;
 import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.H264Config;
 import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.JavaPacketizer;
 import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.profiles.H264Profile1b;
+import com.orangelabs.rcs.core.ims.protocol.rtp.format.audio.PcmuAudioFormat;
 import com.orangelabs.rcs.core.ims.protocol.rtp.format.video.H264VideoFormat;
+import com.orangelabs.rcs.ri.sharing.video.media.DatagramConnection;
+import com.orangelabs.rcs.ri.sharing.video.media.LipSync;
 import com.orangelabs.rcs.ri.sharing.video.media.NetworkRessourceManager;
+import com.orangelabs.rcs.ri.utils.LogUtils;
 
 /**
- * IP call player 
+ * IP call player: the voice is captured in 20 ms frames, encoded in G.711
+ * mu-law and sent in RTP packets on the local audio port. The capture
+ * thread runs at the urgent audio priority and works on preallocated
+ * buffers, so that the capture adds little more than a frame of delay.
+ * RTCP sender reports are sent on the audio RTCP port, so that the remote
+ * renderer can synchronize the video on the audio.
  */
 public class MyIPCallPlayer extends IPCallPlayer {
+    /**
+     * Sample rate in Hz
+     */
+    public static final int SAMPLE_RATE = 8000;
+
+    /**
+     * Frame duration in milliseconds
+     */
+    public static final int FRAME_DURATION = 20;
+
+    /**
+     * Number of samples per frame
+     */
+    private static final int FRAME_SAMPLES = SAMPLE_RATE * FRAME_DURATION / 1000;
+
+    /**
+     * Size of the RTP header
+     */
+    private static final int RTP_HEADER_SIZE = 12;
+
+    /**
+     * Number of frames of the capture buffer
+     */
+    private static final int CAPTURE_BUFFER_FRAMES = 4;
+
+    /**
+     * Interval between two sender reports in milliseconds, the first one is
+     * sent with the first frame
+     */
+    private static final long REPORT_INTERVAL = 5000L;
+
+    /**
+     * API level of the voice communication audio source
+     */
+    private static final int VOICE_COMMUNICATION_API = 11;
+
+    /**
+     * The log tag for this class
+     */
+    private static final String LOGTAG = LogUtils.getTag(MyIPCallPlayer.class.getSimpleName());
+
 	/**
 	 * Audio codec
 	 */
 	private AudioCodec audiocodec;
 	
-	/**
-	 * Local RTP port for audio
-	 */
-	private int localAudioRtpPort;
+    /**
+     * Local audio RTP/RTCP ports, shared with the renderer of the call
+     */
+    private final AudioPorts audioPorts = new AudioPorts();
 
 	/**
 	 * Video codec
@@ -54,16 +117,58 @@ public class MyIPCallPlayer extends IPCallPlayer {
 	 * Is video activated
 	 */
 	private boolean video = false;
-	
+
+    /**
+     * Is player opened
+     */
+    private boolean opened = false;
+
+    /**
+     * Is player started
+     */
+    private volatile boolean started = false;
+
+    /**
+     * Audio RTP connection
+     */
+    private DatagramConnection audioConnection = null;
+
+    /**
+     * Audio RTCP connection
+     */
+    private DatagramConnection rtcpConnection = null;
+
+    /**
+     * Capture thread
+     */
+    private CaptureThread captureThread = null;
+
+    /**
+     * SSRC of the audio stream
+     */
+    private final long ssrc = (long)(Math.random() * 0xffffffffL);
+
+    /**
+     * Sequence number of the next audio packet
+     */
+    private int seqNumber = (int)(Math.random() * 0xffff);
+
+    /**
+     * RTP timestamp of the next audio frame
+     */
+    private long timestamp = (long)(Math.random() * 0xffffffffL);
+
+    /**
+     * Number of sent audio packets
+     */
+    private volatile long sentPackets = 0L;
+
     /**
      * Constructor
      */
     public MyIPCallPlayer() {
-    	// Set the local RTP port for audio
-        localAudioRtpPort = NetworkRessourceManager.generateLocalRtpPort();
-
         // Set the default audio codec
-    	audiocodec = new AudioCodec("AMR", 97, 8000, "");
+    	audiocodec = new AudioCodec(PcmuAudioFormat.ENCODING, PcmuAudioFormat.PAYLOAD, SAMPLE_RATE, "");
     	
     	// Set the local RTP port for video
         localVideoRtpPort = NetworkRessourceManager.generateLocalRtpPort();
@@ -78,43 +183,131 @@ public class MyIPCallPlayer extends IPCallPlayer {
             H264Config.QCIF_HEIGHT,
 			H264Config.CODEC_PARAM_PROFILEID + "=" + H264Profile1b.BASELINE_PROFILE_ID + ";" + H264Config.CODEC_PARAM_PACKETIZATIONMODE + "=" + JavaPacketizer.H264_ENABLED_PACKETIZATION_MODE);
     }
-	
-	public void open(AudioCodec audiocodec, VideoCodec videocodec, String remoteHost, int remoteAudioPort, int remoteVideoPort) {
-		// TODO
+
+    /**
+     * Opens the player and prepares the audio RTP session
+     *
+     * @param audiocodec Audio codec
+     * @param videocodec Video codec
+     * @param remoteHost Remote RTP host
+     * @param remoteAudioPort Remote audio RTP port
+     * @param remoteVideoPort Remote video RTP port
+     */
+	public synchronized void open(AudioCodec audiocodec, VideoCodec videocodec, String remoteHost, int remoteAudioPort, int remoteVideoPort) {
+        if (opened) {
+            // Already opened
+            return;
+        }
 		this.audiocodec = audiocodec;
 		this.videocodec = videocodec;
+
+        // Init the RTP layer, on the reserved ports
+        try {
+            audioPorts.open(remoteHost, remoteAudioPort);
+            audioConnection = audioPorts.getRtpConnection();
+            rtcpConnection = audioPorts.getRtcpConnection();
+        } catch (IOException e) {
+            if (LogUtils.isActive) {
+                Log.e(LOGTAG, "Can't open the audio RTP session", e);
+            }
+            notifyPlayerEventError(IPCallPlayer.Error.NETWORK_FAILURE);
+            return;
+        }
+
+        // Player is opened
+        opened = true;
+        notifyPlayerEventOpened();
 	}
 
-	public void start() {
-		// TODO
+    /**
+     * Starts the player
+     */
+	public synchronized void start() {
+        if (!opened || started) {
+            return;
+        }
+
+        // Start the capture
+        started = true;
+        captureThread = new CaptureThread();
+        captureThread.start();
+        notifyPlayerEventStarted();
 	}
 
-	public void stop() {
-		// TODO
+    /**
+     * Stops the player
+     */
+	public synchronized void stop() {
+        if (!started) {
+            return;
+        }
+
+        // Stop the capture
+        started = false;
+        try {
+            captureThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        captureThread = null;
+        notifyPlayerEventStopped();
 	}
 	
-	public void close() {
-		// TODO
+    /**
+     * Closes the player
+     */
+	public synchronized void close() {
+        if (!opened) {
+            return;
+        }
+        stop();
+
+        // Close the RTP layer, the ports are released with the renderer
+        closeConnection();
+
+        // Player is closed
+        opened = false;
+        notifyPlayerEventClosed();
+
+        // Remove all listeners
+        removeAllEventListeners();
 	}
 
+    /**
+     * Close the audio RTP and RTCP connections, once the renderer has also
+     * closed them
+     */
+    private void closeConnection() {
+        audioConnection = null;
+        rtcpConnection = null;
+        audioPorts.close();
+    }
+
+    /**
+     * Returns the local audio ports, to be shared with the renderer of the
+     * call
+     *
+     * @return Audio ports
+     */
+    AudioPorts getAudioPorts() {
+        return audioPorts;
+    }
+
 	public AudioCodec getAudioCodec() {
 		return audiocodec;
 	}
 
 	public int getLocalAudioRtpPort() {
-		// TODO
-		return 5000;
+		return audioPorts.getRtpPort();
 	}
 
 	public int getLocalVideoRtpPort() {
-		// TODO
-		return 5002;
+		return localVideoRtpPort;
 	}
 
 	public AudioCodec[] getSupportedAudioCodecs() {
-		// TODO
 		AudioCodec[] codecs = {
-			new AudioCodec("AMR", 97, 8000, "")
+			new AudioCodec(PcmuAudioFormat.ENCODING, PcmuAudioFormat.PAYLOAD, SAMPLE_RATE, "")
 		};
 		return codecs;
 	}
@@ -158,4 +351,229 @@ public class MyIPCallPlayer extends IPCallPlayer {
 	public void setVideoActivation(boolean video) {
 		this.video = video;
 	}
+
+    /**
+     * Returns the number of sent audio packets
+     *
+     * @return Count
+     */
+    public long getSentPacketCount() {
+        return sentPackets;
+    }
+
+    /**
+     * Build the RTP packet of a frame in place
+     *
+     * @param packet Packet buffer, the payload is already written
+     * @param marker Marker bit, set on the first packet of a talkspurt
+     */
+    private void writeHeader(byte[] packet, boolean marker) {
+        packet[0] = (byte)0x80;
+        packet[1] = (byte)((marker ? 0x80 : 0) | (audiocodec.getPayloadType() & 0x7f));
+        packet[2] = (byte)(seqNumber >> 8);
+        packet[3] = (byte)seqNumber;
+        packet[4] = (byte)(timestamp >> 24);
+        packet[5] = (byte)(timestamp >> 16);
+        packet[6] = (byte)(timestamp >> 8);
+        packet[7] = (byte)timestamp;
+        packet[8] = (byte)(ssrc >> 24);
+        packet[9] = (byte)(ssrc >> 16);
+        packet[10] = (byte)(ssrc >> 8);
+        packet[11] = (byte)ssrc;
+        seqNumber = (seqNumber + 1) & 0xffff;
+        timestamp = (timestamp + FRAME_SAMPLES) & 0xffffffffL;
+    }
+
+    /**
+     * Send a sender report, mapping the end of the last captured frame to
+     * the current wall clock time. A lost report is not an error: the next
+     * one replaces it.
+     *
+     * @param report Report buffer
+     */
+    private void sendReport(byte[] report) {
+        DatagramConnection connection = rtcpConnection;
+        if (connection == null) {
+            return;
+        }
+        long packets = sentPackets;
+        int length = LipSync.writeSenderReport(report, ssrc, System.currentTimeMillis(), timestamp,
+                packets, packets * FRAME_SAMPLES);
+        try {
+            connection.send(report, 0, length);
+        } catch (IOException e) {
+            if (LogUtils.isActive) {
+                Log.w(LOGTAG, "Can't send the audio sender report", e);
+            }
+        }
+    }
+
+    /**
+     * Notify player event started
+     */
+    private void notifyPlayerEventStarted() {
+        try {
+            Iterator<IIPCallPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerStarted();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify player event stopped
+     */
+    private void notifyPlayerEventStopped() {
+        try {
+            Iterator<IIPCallPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerStopped();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify player event opened
+     */
+    private void notifyPlayerEventOpened() {
+        try {
+            Iterator<IIPCallPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerOpened();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify player event closed
+     */
+    private void notifyPlayerEventClosed() {
+        try {
+            Iterator<IIPCallPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerClosed();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify player event error
+     *
+     * @param error Error code
+     */
+    private void notifyPlayerEventError(int error) {
+        try {
+            Iterator<IIPCallPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerError(error);
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Thread capturing, encoding and sending the voice frames
+     */
+    private class CaptureThread extends Thread {
+        /**
+         * Samples of the current frame
+         */
+        private final short[] pcm = new short[FRAME_SAMPLES];
+
+        /**
+         * RTP packet of the current frame
+         */
+        private final byte[] packet = new byte[RTP_HEADER_SIZE + FRAME_SAMPLES];
+
+        /**
+         * RTCP sender report
+         */
+        private final byte[] report = new byte[LipSync.SENDER_REPORT_SIZE];
+
+        /**
+         * Constructor
+         */
+        public CaptureThread() {
+            super("IPCallAudioCapture");
+        }
+
+        /**
+         * Background processing
+         */
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+            int source = (Build.VERSION.SDK_INT >= VOICE_COMMUNICATION_API) ?
+                    MediaRecorder.AudioSource.VOICE_COMMUNICATION : MediaRecorder.AudioSource.MIC;
+            int bufferSize = Math.max(AudioRecord.getMinBufferSize(SAMPLE_RATE,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT),
+                    CAPTURE_BUFFER_FRAMES * FRAME_SAMPLES * 2);
+            AudioRecord recorder = new AudioRecord(source, SAMPLE_RATE,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize);
+            if (recorder.getState() != AudioRecord.STATE_INITIALIZED) {
+                if (LogUtils.isActive) {
+                    Log.e(LOGTAG, "Can't open the microphone");
+                }
+                recorder.release();
+                notifyPlayerEventError(IPCallPlayer.Error.INTERNAL_ERROR);
+                return;
+            }
+
+            try {
+                recorder.startRecording();
+                boolean marker = true;
+                long lastReport = 0L;
+                while (started) {
+                    // Read a full frame
+                    int read = 0;
+                    while (started && (read < FRAME_SAMPLES)) {
+                        int n = recorder.read(pcm, read, FRAME_SAMPLES - read);
+                        if (n < 0) {
+                            throw new IOException("Microphone read error " + n);
+                        }
+                        read += n;
+                    }
+                    if (read < FRAME_SAMPLES) {
+                        break;
+                    }
+
+                    // Encode and send it
+                    PcmuCodec.encode(pcm, 0, FRAME_SAMPLES, packet, RTP_HEADER_SIZE);
+                    writeHeader(packet, marker);
+                    marker = false;
+                    DatagramConnection connection = audioConnection;
+                    if (connection != null) {
+                        connection.send(packet, 0, packet.length);
+                        sentPackets++;
+                    }
+
+                    // Map the RTP clock to the wall clock for the receiver
+                    long now = SystemClock.elapsedRealtime();
+                    if ((lastReport == 0L) || (now - lastReport >= REPORT_INTERVAL)) {
+                        sendReport(report);
+                        lastReport = now;
+                    }
+                }
+            } catch (IOException e) {
+                if (started) {
+                    if (LogUtils.isActive) {
+                        Log.e(LOGTAG, "Audio capture aborted", e);
+                    }
+                    notifyPlayerEventError(IPCallPlayer.Error.NETWORK_FAILURE);
+                }
+            } finally {
+                recorder.stop();
+                recorder.release();
+            }
+        }
+    }
 }
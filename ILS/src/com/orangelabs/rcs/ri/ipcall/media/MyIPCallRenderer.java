@@ -17,28 +17,78 @@
  ******************************************************************************/
 package com.orangelabs.rcs.ri.ipcall.media;
 
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Process;
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
 import com.gsma.services.rcs.ipcall.AudioCodec;
+import com.gsma.services.rcs.ipcall.IIPCallRendererListener;
 import com.gsma.services.rcs.ipcall.IPCallRenderer;
 import com.gsma.services.rcs.ipcall.VideoCodec;
 import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.H264Config;
 import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.JavaPacketizer;
 import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.profiles.H264Profile1b;
+import com.orangelabs.rcs.core.ims.protocol.rtp.format.audio.PcmuAudioFormat;
 import com.orangelabs.rcs.core.ims.protocol.rtp.format.video.H264VideoFormat;
+import com.orangelabs.rcs.ri.sharing.video.media.DatagramConnection;
+import com.orangelabs.rcs.ri.sharing.video.media.LipSync;
+import com.orangelabs.rcs.ri.sharing.video.media.MyVideoRenderer;
 import com.orangelabs.rcs.ri.sharing.video.media.NetworkRessourceManager;
+import com.orangelabs.rcs.ri.sharing.video.media.PortLease;
+import com.orangelabs.rcs.ri.sharing.video.media.VideoSurfaceView;
+import com.orangelabs.rcs.ri.utils.LogUtils;
 
 /**
- * IP call renderer 
+ * IP call renderer: the RTP packets received on the local audio port go
+ * through an adaptive jitter buffer and are played out by a streaming
+ * audio track. The receive and playout threads run at the urgent audio
+ * priority and work on preallocated buffers; the playout is paced by the
+ * audio output, so the jitter buffer is the only queue of the path.
+ * <p>
+ * The audio output is the master clock of the call: the sender reports
+ * received on the audio RTCP port and the played frames drive a
+ * {@link LipSync}. When built with a surface view, the renderer also
+ * displays the call video with a {@link MyVideoRenderer} which shares this
+ * synchronization, so the frames are held or dropped against the audio.
  */
 public class MyIPCallRenderer extends IPCallRenderer {
+    /**
+     * Size of the RTP header
+     */
+    private static final int RTP_HEADER_SIZE = 12;
+
+    /**
+     * Largest received datagram
+     */
+    private static final int MAX_PACKET_SIZE = 1500;
+
+    /**
+     * Number of frames of the playout buffer
+     */
+    private static final int PLAYOUT_BUFFER_FRAMES = 2;
+
+    /**
+     * The log tag for this class
+     */
+    private static final String LOGTAG = LogUtils.getTag(MyIPCallRenderer.class.getSimpleName());
+
 	/**
 	 * Audio codec
 	 */
 	private AudioCodec audiocodec;
 	
-	/**
-	 * Local RTP port for audio
-	 */
-	private int localAudioRtpPort;
+    /**
+     * Local audio RTP/RTCP ports, shared with the player of the call
+     */
+    private final AudioPorts audioPorts;
 
 	/**
 	 * Video codec
@@ -55,15 +105,102 @@ public class MyIPCallRenderer extends IPCallRenderer {
 	 */
 	private boolean video = false;
 
+    /**
+     * Is renderer opened
+     */
+    private boolean opened = false;
+
+    /**
+     * Is renderer started
+     */
+    private volatile boolean started = false;
+
+    /**
+     * Audio RTP connection
+     */
+    private DatagramConnection audioConnection = null;
+
+    /**
+     * Jitter buffer of the audio frames
+     */
+    private final AudioJitterBuffer jitterBuffer = new AudioJitterBuffer(MyIPCallPlayer.SAMPLE_RATE,
+            MyIPCallPlayer.FRAME_DURATION);
+
+    /**
+     * Synchronization of the video on the audio
+     */
+    private final LipSync lipSync = new LipSync(MyIPCallPlayer.SAMPLE_RATE, H264Config.CLOCK_RATE);
+
+    /**
+     * Renderer of the call video, null for an audio only renderer
+     */
+    private MyVideoRenderer videoRenderer = null;
+
+    /**
+     * Audio RTCP connection
+     */
+    private DatagramConnection rtcpConnection = null;
+
+    /**
+     * Receive thread
+     */
+    private ReceiveThread receiveThread = null;
+
+    /**
+     * RTCP receive thread
+     */
+    private RtcpThread rtcpThread = null;
+
+    /**
+     * Playout thread
+     */
+    private PlayoutThread playoutThread = null;
+
+    /**
+     * Number of received audio packets
+     */
+    private volatile long receivedPackets = 0L;
+
     /**
      * Constructor
      */
     public MyIPCallRenderer() {
-    	// Set the local RTP port for audio
-        localAudioRtpPort = NetworkRessourceManager.generateLocalRtpPort();
+        this(new AudioPorts(), null);
+    }
+
+    /**
+     * Constructor of a renderer displaying the call video
+     *
+     * @param videoView Surface view of the call video
+     */
+    public MyIPCallRenderer(VideoSurfaceView videoView) {
+        this(new AudioPorts(), videoView);
+    }
+
+    /**
+     * Constructor of a renderer receiving the audio on the ports the player
+     * of the call sends it from
+     *
+     * @param player Player of the call
+     * @param videoView Surface view of the call video, or null for an audio
+     *            only renderer
+     */
+    public MyIPCallRenderer(MyIPCallPlayer player, VideoSurfaceView videoView) {
+        this(player.getAudioPorts(), videoView);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param audioPorts Local audio ports
+     * @param videoView Surface view of the call video, or null for an audio
+     *            only renderer
+     */
+    private MyIPCallRenderer(AudioPorts audioPorts, VideoSurfaceView videoView) {
+        this.audioPorts = audioPorts;
 
         // Set the default audio codec
-    	audiocodec = new AudioCodec("AMR", 97, 8000, "");
+    	audiocodec = new AudioCodec(PcmuAudioFormat.ENCODING, PcmuAudioFormat.PAYLOAD, MyIPCallPlayer.SAMPLE_RATE, "");
     	
     	// Set the local RTP port for video
         localVideoRtpPort = NetworkRessourceManager.generateLocalRtpPort();
@@ -77,45 +214,183 @@ public class MyIPCallRenderer extends IPCallRenderer {
             H264Config.QCIF_WIDTH, 
             H264Config.QCIF_HEIGHT,
 			H264Config.CODEC_PARAM_PROFILEID + "=" + H264Profile1b.BASELINE_PROFILE_ID + ";" + H264Config.CODEC_PARAM_PACKETIZATIONMODE + "=" + JavaPacketizer.H264_ENABLED_PACKETIZATION_MODE);
+
+        // The video is received on the port of the video renderer, and
+        // synchronized on the audio playout
+        if (videoView != null) {
+            videoRenderer = new MyVideoRenderer(videoView);
+            videoRenderer.setLipSync(lipSync);
+            localVideoRtpPort = videoRenderer.getLocalRtpPort();
+        }
     }
 
-    public void open(AudioCodec audiocodec, VideoCodec videocodec, String remoteHost, int remoteAudioPort, int remoteVideoPort) {
-		// TODO
+    /**
+     * Opens the renderer and prepares the audio RTP session, and the video
+     * one when the renderer displays the call video
+     *
+     * @param audiocodec Audio codec
+     * @param videocodec Video codec
+     * @param remoteHost Remote RTP host
+     * @param remoteAudioPort Remote audio RTP port
+     * @param remoteVideoPort Remote video RTP port
+     */
+    public synchronized void open(AudioCodec audiocodec, VideoCodec videocodec, String remoteHost, int remoteAudioPort, int remoteVideoPort) {
+        if (opened) {
+            // Already opened
+            return;
+        }
 		this.audiocodec = audiocodec;
 		this.videocodec = videocodec;
+
+        // Init the RTP layer, on the reserved ports
+        try {
+            audioPorts.open(remoteHost, remoteAudioPort);
+            audioConnection = audioPorts.getRtpConnection();
+            rtcpConnection = audioPorts.getRtcpConnection();
+
+            // The sender reports are read by the port lease observer
+            lipSync.reset();
+            PortLease lease = audioPorts.getPortLease();
+            if (lease != null) {
+                lease.setReceiveObserver(lease.getRtcpPort(), lipSync.getAudioClock());
+            }
+        } catch (IOException e) {
+            if (LogUtils.isActive) {
+                Log.e(LOGTAG, "Can't open the audio RTP session", e);
+            }
+            notifyRendererEventError(IPCallRenderer.Error.NETWORK_FAILURE);
+            return;
+        }
+
+        // Open the video renderer, on the same playout clock
+        if ((videoRenderer != null) && (videocodec != null) && (remoteVideoPort > 0)) {
+            videoRenderer.open(toVideoSharingCodec(videocodec), remoteHost, remoteVideoPort);
+        }
+
+        // Renderer is opened
+        opened = true;
+        notifyRendererEventOpened();
 	}
 
-	public void start() {
-		// TODO
+    /**
+     * Returns the video sharing codec of an IP call video codec, as expected
+     * by the video renderer
+     *
+     * @param codec IP call video codec
+     * @return Video sharing codec
+     */
+    private static com.gsma.services.rcs.vsh.VideoCodec toVideoSharingCodec(VideoCodec codec) {
+        return new com.gsma.services.rcs.vsh.VideoCodec(codec.getEncoding(),
+                codec.getPayloadType(),
+                codec.getClockRate(),
+                codec.getFrameRate(),
+                codec.getBitRate(),
+                codec.getVideoWidth(),
+                codec.getVideoHeight(),
+                codec.getParameters());
+    }
+
+    /**
+     * Starts the renderer
+     */
+	public synchronized void start() {
+        if (!opened || started) {
+            return;
+        }
+
+        // Start the reception and the playout
+        started = true;
+        jitterBuffer.reset();
+        receiveThread = new ReceiveThread();
+        receiveThread.start();
+        rtcpThread = new RtcpThread();
+        rtcpThread.start();
+        playoutThread = new PlayoutThread();
+        playoutThread.start();
+        if (videoRenderer != null) {
+            videoRenderer.start();
+        }
+        notifyRendererEventStarted();
 	}
 
-	public void stop() {
-		// TODO
+    /**
+     * Stops the renderer
+     */
+	public synchronized void stop() {
+        if (!started) {
+            return;
+        }
+
+        // Stop the reception and the playout
+        started = false;
+        if (videoRenderer != null) {
+            videoRenderer.stop();
+        }
+        try {
+            receiveThread.join();
+            rtcpThread.join();
+            playoutThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        receiveThread = null;
+        rtcpThread = null;
+        playoutThread = null;
+        notifyRendererEventStopped();
 	}
 
-	public void close() {
-		// TODO
+    /**
+     * Closes the renderer
+     */
+	public synchronized void close() {
+        if (!opened) {
+            return;
+        }
+        stop();
+
+        // Close the RTP layer
+        closeConnection();
+        if (videoRenderer != null) {
+            videoRenderer.close();
+        }
+
+        // Renderer is closed
+        opened = false;
+        notifyRendererEventClosed();
+
+        // Remove all listeners
+        removeAllEventListeners();
 	}
 
+    /**
+     * Close the audio RTP and RTCP connections, once the player has also
+     * closed them
+     */
+    private void closeConnection() {
+        PortLease lease = audioPorts.getPortLease();
+        if (lease != null) {
+            lease.setReceiveObserver(lease.getRtcpPort(), null);
+        }
+        audioConnection = null;
+        rtcpConnection = null;
+        audioPorts.close();
+    }
+
 	public int getLocalAudioRtpPort() {
-		// TODO
-		return 5000;
+		return audioPorts.getRtpPort();
 	}
 
 	public AudioCodec getAudioCodec() {
-		// TODO
 		return audiocodec;
 	}
 
 	public int getLocalVideoRtpPort() {
-		// TODO
-		return 5002;
+		return localVideoRtpPort;
 	}
 
 	public AudioCodec[] getSupportedAudioCodecs() {
-		// TODO
 		AudioCodec[] codecs = {
-			new AudioCodec("AMR", 97, 8000, "")
+			new AudioCodec(PcmuAudioFormat.ENCODING, PcmuAudioFormat.PAYLOAD, MyIPCallPlayer.SAMPLE_RATE, "")
 		};
 		return codecs;
 	}
@@ -159,4 +434,281 @@ public class MyIPCallRenderer extends IPCallRenderer {
 	public void setVideoActivation(boolean video) {
 		this.video = video;
 	}
+
+    /**
+     * Returns the jitter buffer, which holds the playout statistics
+     *
+     * @return Jitter buffer
+     */
+    public AudioJitterBuffer getJitterBuffer() {
+        return jitterBuffer;
+    }
+
+    /**
+     * Returns the synchronization of the video on the audio, to be set on
+     * the video renderer of the call
+     *
+     * @return Synchronization, which holds the A/V offset
+     */
+    public LipSync getLipSync() {
+        return lipSync;
+    }
+
+    /**
+     * Returns the number of received audio packets
+     *
+     * @return Count
+     */
+    public long getReceivedPacketCount() {
+        return receivedPackets;
+    }
+
+    /**
+     * Add a received RTP packet to the jitter buffer
+     *
+     * @param packet Buffer
+     * @param length Length of the packet
+     * @param arrivalTime Arrival time in milliseconds
+     */
+    private void received(byte[] packet, int length, long arrivalTime) {
+        if ((length < RTP_HEADER_SIZE) || ((packet[0] & 0xc0) != 0x80)
+                || ((packet[1] & 0x7f) != audiocodec.getPayloadType())) {
+            // Not an audio packet, e.g. a keep-alive
+            return;
+        }
+        int pos = RTP_HEADER_SIZE + (packet[0] & 0x0f) * 4;
+        if (((packet[0] & 0x10) != 0) && (pos + 4 <= length)) {
+            pos += 4 + (((packet[pos + 2] & 0xff) << 8) | (packet[pos + 3] & 0xff)) * 4;
+        }
+        if ((packet[0] & 0x20) != 0) {
+            // Padding
+            length -= packet[length - 1] & 0xff;
+        }
+        if (pos >= length) {
+            return;
+        }
+        int seq = ((packet[2] & 0xff) << 8) | (packet[3] & 0xff);
+        long timestamp = ((long)(packet[4] & 0xff) << 24) | ((packet[5] & 0xff) << 16)
+                | ((packet[6] & 0xff) << 8) | (packet[7] & 0xff);
+        receivedPackets++;
+        jitterBuffer.put(seq, timestamp, packet, pos, length - pos, arrivalTime);
+    }
+
+    /**
+     * Notify renderer event started
+     */
+    private void notifyRendererEventStarted() {
+        try {
+            Iterator<IIPCallRendererListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onRendererStarted();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify renderer event stopped
+     */
+    private void notifyRendererEventStopped() {
+        try {
+            Iterator<IIPCallRendererListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onRendererStopped();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify renderer event opened
+     */
+    private void notifyRendererEventOpened() {
+        try {
+            Iterator<IIPCallRendererListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onRendererOpened();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify renderer event closed
+     */
+    private void notifyRendererEventClosed() {
+        try {
+            Iterator<IIPCallRendererListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onRendererClosed();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify renderer event error
+     *
+     * @param error Error code
+     */
+    private void notifyRendererEventError(int error) {
+        try {
+            Iterator<IIPCallRendererListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onRendererError(error);
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Thread receiving the audio RTP packets
+     */
+    private class ReceiveThread extends Thread {
+        /**
+         * Received datagram
+         */
+        private final byte[] packet = new byte[MAX_PACKET_SIZE];
+
+        /**
+         * Constructor
+         */
+        public ReceiveThread() {
+            super("IPCallAudioReceiver");
+        }
+
+        /**
+         * Background processing
+         */
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+            while (started) {
+                DatagramConnection connection = audioConnection;
+                if (connection == null) {
+                    break;
+                }
+                try {
+                    int length = connection.receive(packet, 0, packet.length);
+                    received(packet, length, SystemClock.elapsedRealtime());
+                } catch (InterruptedIOException e) {
+                    // Receive timeout
+                } catch (IOException e) {
+                    if (started) {
+                        if (LogUtils.isActive) {
+                            Log.e(LOGTAG, "Audio reception aborted", e);
+                        }
+                        notifyRendererEventError(IPCallRenderer.Error.NETWORK_FAILURE);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Thread receiving the audio RTCP packets, which are handed to the
+     * port lease observer by the connection
+     */
+    private class RtcpThread extends Thread {
+        /**
+         * Received datagram
+         */
+        private final byte[] packet = new byte[MAX_PACKET_SIZE];
+
+        /**
+         * Constructor
+         */
+        public RtcpThread() {
+            super("IPCallAudioRtcp");
+        }
+
+        /**
+         * Background processing
+         */
+        public void run() {
+            while (started) {
+                DatagramConnection connection = rtcpConnection;
+                if (connection == null) {
+                    break;
+                }
+                try {
+                    connection.receive(packet, 0, packet.length);
+                } catch (InterruptedIOException e) {
+                    // Receive timeout
+                } catch (IOException e) {
+                    if (started && LogUtils.isActive) {
+                        Log.w(LOGTAG, "Audio RTCP reception aborted", e);
+                    }
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Thread playing out the audio frames, at the pace of the audio output
+     */
+    private class PlayoutThread extends Thread {
+        /**
+         * Samples of the current frame
+         */
+        private final short[] pcm = new short[AudioJitterBuffer.MAX_FRAME_SAMPLES];
+
+        /**
+         * Constructor
+         */
+        public PlayoutThread() {
+            super("IPCallAudioPlayout");
+        }
+
+        /**
+         * Background processing
+         */
+        public void run() {
+            Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+            int frameBytes = MyIPCallPlayer.SAMPLE_RATE * MyIPCallPlayer.FRAME_DURATION / 1000 * 2;
+            int bufferSize = Math.max(AudioTrack.getMinBufferSize(MyIPCallPlayer.SAMPLE_RATE,
+                    AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT),
+                    PLAYOUT_BUFFER_FRAMES * frameBytes);
+            AudioTrack track = new AudioTrack(AudioManager.STREAM_VOICE_CALL, MyIPCallPlayer.SAMPLE_RATE,
+                    AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT, bufferSize,
+                    AudioTrack.MODE_STREAM);
+            if (track.getState() != AudioTrack.STATE_INITIALIZED) {
+                if (LogUtils.isActive) {
+                    Log.e(LOGTAG, "Can't open the audio output");
+                }
+                track.release();
+                notifyRendererEventError(IPCallRenderer.Error.INTERNAL_ERROR);
+                return;
+            }
+
+            // A written frame is heard once the output buffer is played
+            long outputDelay = bufferSize / 2 * 1000L / MyIPCallPlayer.SAMPLE_RATE;
+            try {
+                track.play();
+                long playedTimestamp = -1L;
+                while (started) {
+                    // Blocks while the output buffer is full
+                    int samples = jitterBuffer.read(pcm);
+                    track.write(pcm, 0, samples);
+
+                    // Update the playout clock, unless nothing new is played
+                    long timestamp = jitterBuffer.getPlayoutTimestamp();
+                    if ((timestamp >= 0) && (timestamp != playedTimestamp)) {
+                        lipSync.audioPlayed(timestamp, outputDelay);
+                        playedTimestamp = timestamp;
+                    }
+                }
+            } finally {
+                track.stop();
+                track.release();
+            }
+        }
+    }
 }
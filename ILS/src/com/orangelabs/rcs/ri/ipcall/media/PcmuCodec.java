@@ -0,0 +1,124 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package com.orangelabs.rcs.ri.ipcall.media;
+
+/**
+ * G.711 mu-law codec (PCMU, RTP payload type 0): each 16-bit sample is
+ * compressed to one byte. The codec is stateless and works in place on
+ * caller buffers, so the audio path never allocates.
+ */
+public class PcmuCodec {
+    /**
+     * Bias added to the magnitude before compression
+     */
+    private static final int BIAS = 0x84;
+
+    /**
+     * Largest magnitude which can be compressed
+     */
+    private static final int CLIP = 32635;
+
+    /**
+     * Exponent of a biased magnitude, indexed by its bits 7 to 14
+     */
+    private static final byte[] EXPONENTS = new byte[256];
+
+    /**
+     * Decoded samples, indexed by the compressed byte
+     */
+    private static final short[] SAMPLES = new short[256];
+
+    static {
+        for (int i = 2; i < 256; i++) {
+            EXPONENTS[i] = (byte)(EXPONENTS[i >> 1] + 1);
+        }
+        for (int i = 0; i < 256; i++) {
+            int ulaw = ~i & 0xff;
+            int exponent = (ulaw >> 4) & 0x07;
+            int sample = ((((ulaw & 0x0f) << 3) + BIAS) << exponent) - BIAS;
+            SAMPLES[i] = (short)(((ulaw & 0x80) != 0) ? -sample : sample);
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    private PcmuCodec() {
+    }
+
+    /**
+     * Compress a sample
+     *
+     * @param pcm 16-bit linear sample
+     * @return Compressed byte
+     */
+    public static byte encode(short pcm) {
+        int sample = pcm;
+        int sign = (sample >> 8) & 0x80;
+        if (sign != 0) {
+            sample = -sample;
+        }
+        if (sample > CLIP) {
+            sample = CLIP;
+        }
+        sample += BIAS;
+        int exponent = EXPONENTS[(sample >> 7) & 0xff];
+        int mantissa = (sample >> (exponent + 3)) & 0x0f;
+        return (byte)~(sign | (exponent << 4) | mantissa);
+    }
+
+    /**
+     * Expand a compressed byte
+     *
+     * @param ulaw Compressed byte
+     * @return 16-bit linear sample
+     */
+    public static short decode(byte ulaw) {
+        return SAMPLES[ulaw & 0xff];
+    }
+
+    /**
+     * Compress samples
+     *
+     * @param pcm Linear samples
+     * @param pcmOffset Offset of the first sample
+     * @param count Number of samples
+     * @param out Compressed bytes, one per sample
+     * @param outOffset Offset of the first byte
+     */
+    public static void encode(short[] pcm, int pcmOffset, int count, byte[] out, int outOffset) {
+        for (int i = 0; i < count; i++) {
+            out[outOffset + i] = encode(pcm[pcmOffset + i]);
+        }
+    }
+
+    /**
+     * Expand compressed bytes
+     *
+     * @param data Compressed bytes
+     * @param offset Offset of the first byte
+     * @param count Number of bytes
+     * @param pcm Linear samples, one per byte
+     * @param pcmOffset Offset of the first sample
+     */
+    public static void decode(byte[] data, int offset, int count, short[] pcm, int pcmOffset) {
+        for (int i = 0; i < count; i++) {
+            pcm[pcmOffset + i] = SAMPLES[data[offset + i] & 0xff];
+        }
+    }
+}
@@ -461,7 +461,6 @@ public class InitiateVideoSharing extends Activity implements JoynServiceListene
             videoView.setAspectRatio(videoWidth, videoHeight);
 
             // Start camera
-            camera.setPreviewCallback(videoPlayer);
             startCameraPreview();
         }
     }    
@@ -471,6 +470,9 @@ public class InitiateVideoSharing extends Activity implements JoynServiceListene
      */
     private synchronized void closeCamera() {
 	    if (camera != null) {
+	        if (videoPlayer != null) {
+	            videoPlayer.detachCamera();
+	        }
 	        camera.setPreviewCallback(null);
 	        if (cameraPreviewRunning) {
 	            cameraPreviewRunning = false;
@@ -547,6 +549,9 @@ public class InitiateVideoSharing extends Activity implements JoynServiceListene
 
             // Set camera parameters
             camera.setParameters(p);
+
+            // Capture into preallocated preview buffers
+            videoPlayer.attachCamera(camera);
             try {
                 camera.setPreviewDisplay(videoView.getHolder());
                 camera.startPreview();
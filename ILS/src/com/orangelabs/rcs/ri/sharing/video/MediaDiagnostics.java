@@ -0,0 +1,135 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video;
+
+import java.io.File;
+import java.io.IOException;
+
+import android.app.Activity;
+import android.content.pm.ActivityInfo;
+import android.os.Bundle;
+import android.os.Handler;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import com.orangelabs.rcs.ri.R;
+import com.orangelabs.rcs.ri.sharing.video.media.MediaStats;
+import com.orangelabs.rcs.ri.utils.Utils;
+
+/**
+ * Latencies of the stages of the video pipeline and its counters, refreshed
+ * every second
+ */
+public class MediaDiagnostics extends Activity {
+	/**
+	 * Refresh period in milliseconds
+	 */
+	private static final long REFRESH_PERIOD = 1000L;
+
+	/**
+	 * Name of the dump file in the application storage
+	 */
+	private static final String DUMP_FILE = "media-stats.txt";
+
+	/**
+	 * UI handler
+	 */
+	private final Handler handler = new Handler();
+
+	/**
+	 * Report view
+	 */
+	private TextView reportView;
+
+	/**
+	 * Refresh task
+	 */
+	private final Runnable refresh = new Runnable() {
+		public void run() {
+			reportView.setText(MediaStats.getReport());
+			handler.postDelayed(this, REFRESH_PERIOD);
+		}
+	};
+
+	@Override
+	public void onCreate(Bundle savedInstanceState) {
+		super.onCreate(savedInstanceState);
+
+		// Set layout
+		setRequestedOrientation(ActivityInfo.SCREEN_ORIENTATION_PORTRAIT);
+		setContentView(R.layout.video_sharing_diagnostics);
+
+		// Set title
+		setTitle(R.string.menu_media_diagnostics);
+
+		reportView = (TextView)findViewById(R.id.report);
+	}
+
+	@Override
+	protected void onResume() {
+		super.onResume();
+
+		// Start refreshing
+		handler.post(refresh);
+	}
+
+	@Override
+	protected void onPause() {
+		super.onPause();
+
+		// Stop refreshing
+		handler.removeCallbacks(refresh);
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu) {
+		MenuInflater inflater=new MenuInflater(getApplicationContext());
+		inflater.inflate(R.menu.menu_media_diagnostics, menu);
+
+		return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item) {
+		switch (item.getItemId()) {
+			case R.id.menu_reset_stats:
+				MediaStats.reset();
+				reportView.setText(MediaStats.getReport());
+				break;
+
+			case R.id.menu_dump_stats:
+				File dir = getExternalFilesDir(null);
+				if (dir == null) {
+					Utils.showMessage(this, getString(R.string.label_dump_failed));
+					break;
+				}
+				File file = new File(dir, DUMP_FILE);
+				try {
+					MediaStats.dump(file);
+					Utils.showMessage(this, getString(R.string.label_stats_dumped, file.getPath()));
+				} catch (IOException e) {
+					Utils.showMessage(this, getString(R.string.label_dump_failed));
+				}
+				break;
+		}
+		return true;
+	}
+}
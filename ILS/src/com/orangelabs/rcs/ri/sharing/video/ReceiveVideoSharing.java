@@ -42,6 +42,9 @@ import com.gsma.services.rcs.vsh.VideoSharingListener;
 import com.gsma.services.rcs.vsh.VideoSharingService;
 import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.H264Config;
 import com.orangelabs.rcs.ri.R;
+import com.orangelabs.rcs.ri.sharing.video.media.CaptureTimeExtension;
+import com.orangelabs.rcs.ri.sharing.video.media.CodecParameters;
+import com.orangelabs.rcs.ri.sharing.video.media.MulticastGroup;
 import com.orangelabs.rcs.ri.sharing.video.media.MyVideoRenderer;
 import com.orangelabs.rcs.ri.sharing.video.media.VideoSurfaceView;
 import com.orangelabs.rcs.ri.utils.Utils;
@@ -137,6 +140,7 @@ public class ReceiveVideoSharing extends Activity implements JoynServiceListener
 
         // Instanciate the renderer
         videoRenderer = new MyVideoRenderer(videoView);
+        videoRenderer.setCaptureTimeHeaderId(CaptureTimeExtension.DEFAULT_HEADER_ID);
 
 		// Instanciate API
         vshApi = new VideoSharingService(getApplicationContext(), this);
@@ -216,6 +220,14 @@ public class ReceiveVideoSharing extends Activity implements JoynServiceListener
 	 */
 	private void acceptInvitation() {
     	try {
+    		// Receive the video from the multicast group of a lecture, if the
+    		// invitation offers one. Otherwise, or if the group ports are not
+    		// available, the sender relays the video over the session.
+    		MulticastGroup group = CodecParameters.getMulticastGroup(videoSharing.getVideoCodec());
+    		if (group != null) {
+    			videoRenderer.joinMulticastGroup(group);
+    		}
+
     		// Accept the invitation
     		videoSharing.acceptInvitation(videoRenderer);
     	} catch(Exception e) {
@@ -44,7 +44,8 @@ public class TestVideoSharingApi extends ListActivity {
         // Set items
         String[] items = {
     		getString(R.string.menu_initiate_video_sharing),
-    		getString(R.string.menu_video_sharing_log)
+    		getString(R.string.menu_video_sharing_log),
+    		getString(R.string.menu_media_diagnostics)
         };
         setListAdapter(new ArrayAdapter<String>(this, android.R.layout.simple_list_item_1, items));
     }
@@ -59,6 +60,10 @@ public class TestVideoSharingApi extends ListActivity {
 	        case 1:
 	        	startActivity(new Intent(this, VideoSharingList.class));
                 break;            
+
+	        case 2:
+	        	startActivity(new Intent(this, MediaDiagnostics.class));
+                break;
         }
     }
 }
@@ -39,6 +39,41 @@ public class AndroidDatagramConnection implements DatagramConnection {
      */
     private DatagramPacket packet = null;
 
+    /**
+     * Datagram Packet used to receive into caller buffers
+     */
+    private DatagramPacket userPacket = null;
+
+    /**
+     * Datagram Packet reused to send data
+     */
+    private DatagramPacket sendPacket = null;
+
+    /**
+     * Last remote host used to send data
+     */
+    private String remoteHost = null;
+
+    /**
+     * Resolved address of the last remote host
+     */
+    private InetAddress remoteAddress = null;
+
+    /**
+     * Connected flag
+     */
+    private boolean connected = false;
+
+    /**
+     * Port lease the socket has been taken from
+     */
+    private PortLease lease = null;
+
+    /**
+     * Port taken from the lease
+     */
+    private int leasePort = 0;
+
     /**
      * Connection timeout
      */
@@ -50,6 +85,8 @@ public class AndroidDatagramConnection implements DatagramConnection {
 	public AndroidDatagramConnection() {
         packet = new DatagramPacket(new byte[DatagramConnection.DEFAULT_DATAGRAM_SIZE],
                 DatagramConnection.DEFAULT_DATAGRAM_SIZE);
+        userPacket = new DatagramPacket(new byte[0], 0);
+        sendPacket = new DatagramPacket(new byte[0], 0);
 	}
 
     /**
@@ -79,8 +116,19 @@ public class AndroidDatagramConnection implements DatagramConnection {
 	 * @throws IOException
 	 */
 	public void open(int port) throws IOException {
-		connection = new DatagramSocket(port);
+		// Use the socket already bound by the port lease, if any
+		lease = NetworkRessourceManager.getPortLease(port);
+		if (lease != null) {
+			connection = lease.takeSocket(port);
+			leasePort = port;
+		}
+		if (connection == null) {
+			connection = new DatagramSocket(port);
+		}
         connection.setSoTimeout(timeout);
+		if (lease != null) {
+			lease.opened(port, this);
+		}
 	}
 
 	/**
@@ -90,10 +138,58 @@ public class AndroidDatagramConnection implements DatagramConnection {
 	 */
 	public void close() throws IOException {
 		if (connection != null) {
+			int port = connection.getLocalPort();
 			connection.close();
 			connection = null;
+			connected = false;
+			if (lease != null) {
+				lease.closed(port);
+				lease = null;
+			}
+		}
+	}
+
+	/**
+	 * Bind the connection to a peer
+	 *
+	 * @param remoteAddr Remote address
+	 * @param remotePort Remote port
+	 * @throws IOException
+	 */
+	public void connect(String remoteAddr, int remotePort) throws IOException {
+		if (connection != null) {
+			synchronized(sendPacket) {
+				InetAddress address = resolve(remoteAddr);
+				connection.connect(address, remotePort);
+				sendPacket.setAddress(address);
+				sendPacket.setPort(remotePort);
+				connected = true;
+			}
+		} else {
+			throw new IOException("Connection not openned");
 		}
 	}
+
+	/**
+	 * Unbind the connection from its peer
+	 */
+	public void disconnect() {
+		if (connection != null) {
+			synchronized(sendPacket) {
+				connection.disconnect();
+				connected = false;
+			}
+		}
+	}
+
+	/**
+	 * Is the connection bound to a peer
+	 *
+	 * @return Boolean
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
 	
 	/**
 	 * Receive data with a specific buffer size
@@ -103,18 +199,91 @@ public class AndroidDatagramConnection implements DatagramConnection {
 	 */
 	public byte[] receive() throws IOException {
 		if (connection != null) {
-            packet.setLength(DatagramConnection.DEFAULT_DATAGRAM_SIZE);
-            connection.receive(packet);
-
-            int packetLength = packet.getLength();
+            PortLease l = lease;
+            int packetLength;
+            byte[] injected = (l != null) ? l.pollInjected(leasePort) : null;
+            if (injected != null) {
+                // Handed back by a receive filter, not a network datagram
+                packetLength = Math.min(injected.length, packet.getData().length);
+                System.arraycopy(injected, 0, packet.getData(), 0, packetLength);
+            } else {
+                packet.setLength(DatagramConnection.DEFAULT_DATAGRAM_SIZE);
+                connection.receive(packet);
+                packetLength = packet.getLength();
+                MediaStats.datagramReceived(packetLength);
+                if (l != null) {
+                    l.arrived(leasePort);
+                }
+            }
+            if (l != null) {
+                packetLength = l.filtered(leasePort, packet.getData(), 0, packetLength);
+            }
             byte[] data = new byte[packetLength];
             System.arraycopy(packet.getData(), 0, data, 0, packetLength);
+            if (l != null) {
+                l.received(leasePort, data, 0, packetLength);
+            }
 			return data;
 		} else {
 			throw new IOException("Connection not openned");
 		}
 	}
 
+	/**
+	 * Receive data into a caller buffer
+	 *
+	 * @param buffer Destination buffer
+	 * @param offset Offset in the buffer
+	 * @param length Maximum number of bytes to receive
+	 * @return Number of bytes received
+	 * @throws IOException
+	 */
+	public int receive(byte[] buffer, int offset, int length) throws IOException {
+		if (connection != null) {
+			PortLease l = lease;
+			int received;
+			byte[] injected = (l != null) ? l.pollInjected(leasePort) : null;
+			if (injected != null) {
+				// Handed back by a receive filter, not a network datagram
+				received = Math.min(injected.length, length);
+				System.arraycopy(injected, 0, buffer, offset, received);
+			} else {
+				userPacket.setData(buffer, offset, length);
+				connection.receive(userPacket);
+				received = userPacket.getLength();
+				MediaStats.datagramReceived(received);
+				if (l != null) {
+					l.arrived(leasePort);
+				}
+			}
+			if (l != null) {
+				received = l.filtered(leasePort, buffer, offset, received);
+				l.received(leasePort, buffer, offset, received);
+			}
+			return received;
+		} else {
+			throw new IOException("Connection not openned");
+		}
+	}
+
+	/**
+	 * Receive data into a buffer taken from a pool
+	 *
+	 * @param pool Packet buffer pool
+	 * @return Packet buffer
+	 * @throws IOException
+	 */
+	public PacketBuffer receive(PacketBufferPool pool) throws IOException {
+		PacketBuffer buffer = pool.acquire();
+		try {
+			buffer.setLength(receive(buffer.getData(), 0, buffer.getCapacity()));
+			return buffer;
+		} catch (IOException e) {
+			buffer.release();
+			throw e;
+		}
+	}
+
 	/**
 	 * Send data
 	 * 
@@ -128,14 +297,126 @@ public class AndroidDatagramConnection implements DatagramConnection {
 			return;
 		}
 		
+		PortLease l = lease;
+		if (l != null) {
+			data = l.filterOutgoing(leasePort, data);
+			if (data == null) {
+				// Taken over by a send filter
+				return;
+			}
+		}
+		sendDirect(remoteAddr, remotePort, data, 0, data.length);
+	}
+
+	/**
+	 * Send data without applying the send filters
+	 *
+	 * @param remoteAddr Remote address
+	 * @param remotePort Remote port
+	 * @param data Data as byte array
+	 * @param offset Offset of the data
+	 * @param length Length of the data
+	 * @throws IOException
+	 */
+	public void sendDirect(String remoteAddr, int remotePort, byte[] data, int offset, int length) throws IOException {
 		if (connection != null) {
-			InetAddress address = InetAddress.getByName(remoteAddr);
-			DatagramPacket packet = new DatagramPacket(data, data.length, address, remotePort);
-			connection.send(packet);
+			synchronized(sendPacket) {
+				if (connected) {
+					checkPeer(remoteAddr, remotePort);
+				} else {
+					sendPacket.setAddress(resolve(remoteAddr));
+					sendPacket.setPort(remotePort);
+				}
+				sendPacket.setData(data, offset, length);
+				transmit();
+			}
 		} else {
 			throw new IOException("Connection not openned");
 		}
 	}
+
+	/**
+	 * Check that a destination is the connected peer. Called with the send
+	 * packet locked.
+	 *
+	 * @param remoteAddr Remote address
+	 * @param remotePort Remote port
+	 * @throws IOException if the destination is not the peer
+	 */
+	private void checkPeer(String remoteAddr, int remotePort) throws IOException {
+		if ((remotePort != sendPacket.getPort()) || !resolve(remoteAddr).equals(sendPacket.getAddress())) {
+			throw new IOException("Destination " + remoteAddr + ":" + remotePort + " is not the connected peer");
+		}
+	}
+
+	/**
+	 * Send data to the connected peer
+	 *
+	 * @param data Data as byte array
+	 * @param offset Offset of the data
+	 * @param length Length of the data
+	 * @throws IOException
+	 */
+	public void send(byte[] data, int offset, int length) throws IOException {
+		if (connected) {
+			synchronized(sendPacket) {
+				sendPacket.setData(data, offset, length);
+				transmit();
+			}
+		} else {
+			throw new IOException("Connection not connected");
+		}
+	}
+
+	/**
+	 * Send several datagrams to the connected peer in one call
+	 *
+	 * @param packets Datagrams, each one starting at offset 0
+	 * @param lengths Length of each datagram
+	 * @param count Number of datagrams to send
+	 * @throws IOException
+	 */
+	public void send(byte[][] packets, int[] lengths, int count) throws IOException {
+		if (connected) {
+			synchronized(sendPacket) {
+				for (int i = 0; i < count; i++) {
+					sendPacket.setData(packets[i], 0, lengths[i]);
+					transmit();
+				}
+			}
+		} else {
+			throw new IOException("Connection not connected");
+		}
+	}
+
+	/**
+	 * Send the send packet, timing the socket call. Called with the send
+	 * packet locked.
+	 *
+	 * @throws IOException
+	 */
+	private void transmit() throws IOException {
+		long start = System.nanoTime();
+		connection.send(sendPacket);
+		MediaStats.recordSince(MediaStats.Stage.SOCKET_SEND, start);
+		MediaStats.count(MediaStats.Counter.PACKETS_SENT);
+		MediaStats.count(MediaStats.Counter.BYTES_SENT, sendPacket.getLength());
+	}
+
+	/**
+	 * Resolve a remote host, the last result is cached
+	 *
+	 * @param remoteAddr Remote address
+	 * @return Address
+	 * @throws IOException
+	 */
+	private InetAddress resolve(String remoteAddr) throws IOException {
+		if ((remoteAddress == null) || !remoteAddr.equals(remoteHost)) {
+			remoteAddress = InetAddress.getByName(remoteAddr);
+			remoteHost = remoteAddr;
+		}
+		return remoteAddress;
+	}
 	
 	/**
 	 * Returns the local address
@@ -0,0 +1,417 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.orangelabs.rcs.ri.utils.LogUtils;
+
+/**
+ * Congestion controller of the video encoder. It consumes the RTCP reception
+ * reports of the remote receiver and moves the encoder along a ladder of
+ * operating points. Stepping down is fast, stepping up requires a run of
+ * clean reports and a hold time which grows each time an increase has to be
+ * reverted.
+ */
+public class BitrateController implements RtcpFeedbackReceiver.Listener {
+    /**
+     * Encoder operating point
+     */
+    public static class OperatingPoint {
+        /**
+         * Bit rate in bits per second
+         */
+        private final int bitRate;
+
+        /**
+         * Frame rate
+         */
+        private final int frameRate;
+
+        /**
+         * Frame width
+         */
+        private final int width;
+
+        /**
+         * Frame height
+         */
+        private final int height;
+
+        /**
+         * Constructor
+         *
+         * @param bitRate Bit rate
+         * @param frameRate Frame rate
+         * @param width Frame width
+         * @param height Frame height
+         */
+        public OperatingPoint(int bitRate, int frameRate, int width, int height) {
+            this.bitRate = bitRate;
+            this.frameRate = frameRate;
+            this.width = width;
+            this.height = height;
+        }
+
+        /**
+         * Returns the bit rate
+         *
+         * @return Bits per second
+         */
+        public int getBitRate() {
+            return bitRate;
+        }
+
+        /**
+         * Returns the frame rate
+         *
+         * @return Frames per second
+         */
+        public int getFrameRate() {
+            return frameRate;
+        }
+
+        /**
+         * Returns the frame width
+         *
+         * @return Width
+         */
+        public int getWidth() {
+            return width;
+        }
+
+        /**
+         * Returns the frame height
+         *
+         * @return Height
+         */
+        public int getHeight() {
+            return height;
+        }
+
+        @Override
+        public String toString() {
+            return bitRate + "bps " + frameRate + "fps " + width + "x" + height;
+        }
+    }
+
+    /**
+     * The log tag for this class
+     */
+    private static final String LOGTAG = LogUtils.getTag(BitrateController.class.getSimpleName());
+
+    /**
+     * Loss above which a report is congested, in 1/256 (10%)
+     */
+    private static final int LOSS_HIGH = 26;
+
+    /**
+     * Loss above which a single report steps down, in 1/256 (25%)
+     */
+    private static final int LOSS_SEVERE = 64;
+
+    /**
+     * Loss below which a report is clean, in 1/256 (2%)
+     */
+    private static final int LOSS_LOW = 5;
+
+    /**
+     * Jitter above which a report is congested, in milliseconds
+     */
+    private static final int JITTER_HIGH = 150;
+
+    /**
+     * Jitter below which a report is clean, in milliseconds
+     */
+    private static final int JITTER_LOW = 50;
+
+    /**
+     * Number of consecutive congested reports to step down
+     */
+    private static final int DOWN_REPORTS = 2;
+
+    /**
+     * Number of consecutive clean reports to step up
+     */
+    private static final int UP_REPORTS = 3;
+
+    /**
+     * Initial hold time after a step down before stepping up, in milliseconds
+     */
+    private static final long MIN_HOLD_TIME = 10000L;
+
+    /**
+     * Maximum hold time, in milliseconds
+     */
+    private static final long MAX_HOLD_TIME = 80000L;
+
+    /**
+     * Operating points, from the best to the lowest
+     */
+    private final OperatingPoint[] ladder;
+
+    /**
+     * RTP clock rate
+     */
+    private final int clockRate;
+
+    /**
+     * Current ladder index
+     */
+    private volatile int level = 0;
+
+    /**
+     * Number of consecutive congested reports
+     */
+    private int congestedReports = 0;
+
+    /**
+     * Number of consecutive clean reports
+     */
+    private int cleanReports = 0;
+
+    /**
+     * Time of the last step
+     */
+    private long lastChange = 0L;
+
+    /**
+     * True if the last step was a step up
+     */
+    private boolean lastStepUp = false;
+
+    /**
+     * Current hold time
+     */
+    private long holdTime = MIN_HOLD_TIME;
+
+    /**
+     * Last reported fraction lost, in 1/256
+     */
+    private volatile int lastFractionLost = 0;
+
+    /**
+     * Last reported jitter in milliseconds
+     */
+    private volatile long lastJitter = 0L;
+
+    /**
+     * Last round trip time in milliseconds
+     */
+    private volatile long lastRtt = -1L;
+
+    /**
+     * Constructor
+     *
+     * @param ladder Operating points, from the best to the lowest
+     * @param clockRate RTP clock rate
+     */
+    public BitrateController(OperatingPoint[] ladder, int clockRate) {
+        if ((ladder == null) || (ladder.length == 0)) {
+            throw new IllegalArgumentException("Empty ladder");
+        }
+        this.ladder = ladder;
+        this.clockRate = clockRate;
+    }
+
+    /**
+     * Build the default ladder of a codec: bit rate first, then frame rate,
+     * then resolution
+     *
+     * @param bitRate Nominal bit rate
+     * @param frameRate Nominal frame rate
+     * @param width Nominal width
+     * @param height Nominal height
+     * @return Operating points
+     */
+    public static OperatingPoint[] createLadder(int bitRate, int frameRate, int width, int height) {
+        return new OperatingPoint[] {
+                new OperatingPoint(bitRate, frameRate, width, height),
+                new OperatingPoint(bitRate * 3 / 4, frameRate, width, height),
+                new OperatingPoint(bitRate / 2, Math.max(1, frameRate * 2 / 3), width, height),
+                new OperatingPoint(bitRate * 3 / 8, Math.max(1, frameRate / 2),
+                        scale(width, 3, 4), scale(height, 3, 4)),
+                new OperatingPoint(bitRate / 4, Math.max(1, frameRate / 2),
+                        scale(width, 1, 2), scale(height, 1, 2))
+        };
+    }
+
+    /**
+     * Scale a dimension, rounded down to a multiple of a macroblock
+     *
+     * @param size Dimension
+     * @param num Numerator
+     * @param den Denominator
+     * @return Scaled dimension
+     */
+    private static int scale(int size, int num, int den) {
+        return Math.max(16, ((size * num / den) / 16) * 16);
+    }
+
+    /**
+     * Returns the current operating point
+     *
+     * @return Operating point
+     */
+    public OperatingPoint getOperatingPoint() {
+        return ladder[level];
+    }
+
+    /**
+     * Returns the current ladder index, 0 being the best operating point
+     *
+     * @return Index
+     */
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * Returns the last reported fraction lost
+     *
+     * @return Fraction lost in 1/256
+     */
+    public int getFractionLost() {
+        return lastFractionLost;
+    }
+
+    /**
+     * Returns the last reported jitter
+     *
+     * @return Milliseconds
+     */
+    public long getJitter() {
+        return lastJitter;
+    }
+
+    /**
+     * Returns the last round trip time
+     *
+     * @return Milliseconds, -1 if unknown
+     */
+    public long getRoundTripTime() {
+        return lastRtt;
+    }
+
+    /**
+     * A reception report has been received
+     *
+     * @param ssrc SSRC of the reported source
+     * @param fractionLost Fraction of packets lost, in 1/256
+     * @param cumulativeLost Cumulative number of packets lost
+     * @param jitter Interarrival jitter in RTP timestamp units
+     * @param rtt Round trip time in milliseconds, -1 if unknown
+     */
+    public synchronized void onReceptionReport(long ssrc, int fractionLost, int cumulativeLost, long jitter, long rtt) {
+        long jitterMs = jitter * 1000 / clockRate;
+        lastFractionLost = fractionLost;
+        lastJitter = jitterMs;
+        if (rtt >= 0) {
+            lastRtt = rtt;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        if ((fractionLost > LOSS_HIGH) || (jitterMs > JITTER_HIGH)) {
+            cleanReports = 0;
+            congestedReports++;
+            if ((fractionLost > LOSS_SEVERE) || (congestedReports >= DOWN_REPORTS)) {
+                stepDown(now);
+            }
+        } else if ((fractionLost < LOSS_LOW) && (jitterMs < JITTER_LOW)) {
+            congestedReports = 0;
+            cleanReports++;
+            if ((cleanReports >= UP_REPORTS) && (now - lastChange >= holdTime)) {
+                stepUp(now);
+            }
+        } else {
+            // In between: hold the current operating point
+            congestedReports = 0;
+            cleanReports = 0;
+        }
+    }
+
+    /**
+     * A keyframe has been requested, nothing to do for the bit rate
+     *
+     * @param ssrc SSRC of the media source
+     */
+    public void onKeyFrameRequest(long ssrc) {
+    }
+
+    /**
+     * Lost packets have been reported, the loss is taken from the reception
+     * reports
+     *
+     * @param ssrc SSRC of the media source
+     * @param sequenceNumbers Sequence numbers of the lost packets
+     */
+    public void onNack(long ssrc, int[] sequenceNumbers) {
+    }
+
+    /**
+     * The receiver has joined the multicast group, not used
+     *
+     * @param ssrc SSRC of the receiver
+     */
+    public void onGroupJoined(long ssrc) {
+    }
+
+    /**
+     * Move to the next lower operating point
+     *
+     * @param now Current time
+     */
+    private void stepDown(long now) {
+        congestedReports = 0;
+        cleanReports = 0;
+        if (level == ladder.length - 1) {
+            return;
+        }
+        if (lastStepUp && (now - lastChange < holdTime)) {
+            // The last increase did not hold: probe less often
+            holdTime = Math.min(holdTime * 2, MAX_HOLD_TIME);
+        }
+        level++;
+        lastChange = now;
+        lastStepUp = false;
+        if (LogUtils.isActive) {
+            Log.w(LOGTAG, "Congestion, step down to " + ladder[level]);
+        }
+    }
+
+    /**
+     * Move to the next higher operating point
+     *
+     * @param now Current time
+     */
+    private void stepUp(long now) {
+        cleanReports = 0;
+        if (level == 0) {
+            holdTime = MIN_HOLD_TIME;
+            return;
+        }
+        level--;
+        lastChange = now;
+        lastStepUp = true;
+        if (LogUtils.isActive) {
+            Log.w(LOGTAG, "Network clear, step up to " + ladder[level]);
+        }
+    }
+}
@@ -0,0 +1,1095 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.gsma.services.rcs.vsh.IVideoPlayerListener;
+import com.gsma.services.rcs.vsh.VideoCodec;
+import com.gsma.services.rcs.vsh.VideoPlayer;
+import com.orangelabs.rcs.core.ims.protocol.rtp.VideoRtpSender;
+import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.H264Config;
+import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.JavaPacketizer;
+import com.orangelabs.rcs.core.ims.protocol.rtp.format.video.H264VideoFormat;
+import com.orangelabs.rcs.core.ims.protocol.rtp.format.video.VideoOrientation;
+import com.orangelabs.rcs.core.ims.protocol.rtp.media.MediaException;
+import com.orangelabs.rcs.core.ims.protocol.rtp.media.MediaInput;
+import com.orangelabs.rcs.core.ims.protocol.rtp.media.VideoSample;
+import com.orangelabs.rcs.core.ims.protocol.rtp.stream.RtpStreamListener;
+import com.orangelabs.rcs.ri.utils.LogUtils;
+
+/**
+ * Video player of one recipient of a broadcast. It has no camera and no
+ * encoder: it sends the frames encoded once by a shared encoder player
+ * through its own RTP session and send queue. A recipient which can't keep
+ * up loses its oldest frames and waits for the next IDR frame, the shared
+ * encoder is never blocked and forces at most one keyframe per interval for
+ * all the lagging recipients.
+ * <p>
+ * When the shared encoder sends the video to a multicast group, the player
+ * sends no video of its own: the group is offered in the codec parameters,
+ * and the RTP session is kept as the unicast feedback and repair channel of
+ * the recipient. The packets sent to the group are relayed over the session
+ * until the recipient reports that it receives the group, and the packets
+ * it reports lost are retransmitted over the session from the history of
+ * the shared encoder.
+ * <p>
+ * When the shared encoder encodes simulcast layers, the recipient subscribes
+ * to the largest layer its link carries: a congestion controller fed by its
+ * own RTCP reports picks the layer, and the player switches to another
+ * layer at the first IDR frame of that layer only.
+ * <p>
+ * A recipient joining a running broadcast first receives the current group
+ * of pictures of the encoder, paced above the layer bit rate, so it decodes
+ * at once instead of waiting for the next keyframe.
+ */
+public class BroadcastVideoPlayer extends VideoPlayer implements RtpStreamListener, MyVideoPlayer.FrameSink {
+    /**
+     * Send queue size in frames
+     */
+    private static final int SEND_QUEUE_SIZE = 64;
+
+    /**
+     * Rate of the replay of the cached group of pictures, as a multiple of
+     * the layer bit rate
+     */
+    private static final int BURST_RATE_FACTOR = 2;
+
+    /**
+     * Minimum rate of the replay of the cached group of pictures in bits/s
+     */
+    private static final int MIN_BURST_RATE = 128000;
+
+    /**
+     * Share of the layer bit rate allowed to the retransmissions, as a divisor
+     */
+    private static final int RETRANSMIT_RATE_DIVISOR = 4;
+
+    /**
+     * The log tag for this class
+     */
+    private static final String LOGTAG = LogUtils.getTag(BroadcastVideoPlayer.class.getSimpleName());
+
+    /**
+     * Shared encoder
+     */
+    private final MyVideoPlayer encoder;
+
+    /**
+     * The video is received from the multicast group of the encoder
+     */
+    private final boolean multicast;
+
+    /**
+     * Is player opened
+     */
+    private boolean opened = false;
+
+    /**
+     * Is player started
+     */
+    private volatile boolean started = false;
+
+    /**
+     * Local RTP port
+     */
+    private int localRtpPort;
+
+    /**
+     * Lease of the local RTP/RTCP ports
+     */
+    private PortLease portLease = null;
+
+    /**
+     * Remote host
+     */
+    private String remoteHost = null;
+
+    /**
+     * Remote RTP port
+     */
+    private int remotePort = -1;
+
+    /**
+     * RTP sender session
+     */
+    private VideoRtpSender rtpSender = null;
+
+    /**
+     * RTP media input
+     */
+    private RecipientRtpInput rtpInput = null;
+
+    /**
+     * RTCP feedback receiver
+     */
+    private RtcpFeedbackReceiver rtcpFeedback = null;
+
+    /**
+     * RTCP feedback listener: keyframe requests go to the shared encoder
+     */
+    private final RtcpFeedbackReceiver.Listener rtcpListener = new RtcpFeedbackReceiver.Listener() {
+        public void onReceptionReport(long ssrc, int fractionLost, int cumulativeLost, long jitter, long rtt) {
+            lastFractionLost = fractionLost;
+            PacketHistory history = packetHistory;
+            if (history != null) {
+                history.setRoundTripTime(rtt);
+            }
+            UlpFec.Encoder fec = fecEncoder;
+            if (fec != null) {
+                fec.onReceptionReport(fractionLost);
+            }
+        }
+
+        public void onKeyFrameRequest(long ssrc) {
+            encoder.requestSinkKeyFrame(layer);
+        }
+
+        public void onNack(long ssrc, int[] sequenceNumbers) {
+            PortLease lease = portLease;
+            if (multicast) {
+                // The packets sent to the group are remembered by the shared
+                // encoder, the recipient gets them over its own session
+                PacketHistory history = encoder.getPacketHistory();
+                if (retransmissionEnabled && (history != null) && (lease != null)) {
+                    history.retransmit(sequenceNumbers, lease, remoteHost, remotePort);
+                }
+            } else {
+                PacketHistory history = packetHistory;
+                if (history != null) {
+                    history.retransmit(sequenceNumbers);
+                }
+            }
+        }
+
+        public void onGroupJoined(long ssrc) {
+            GroupRelay relay = encoder.getGroupRelay();
+            PortLease lease = portLease;
+            if (multicast && (relay != null) && (lease != null) && relay.removeRecipient(lease)) {
+                if (LogUtils.isActive) {
+                    Log.i(LOGTAG, "Recipient " + remoteHost + " receives the multicast group");
+                }
+            }
+        }
+    };
+
+    /**
+     * Last fraction lost reported by the recipient, in 1/256
+     */
+    private volatile int lastFractionLost = 0;
+
+    /**
+     * Pacing of the packets sent to the recipient
+     */
+    private boolean pacingEnabled = true;
+
+    /**
+     * Pacer of the sent packets, null if the packets are not paced
+     */
+    private volatile PacketPacer packetPacer = null;
+
+    /**
+     * Retransmission of the packets reported lost by the recipient
+     */
+    private boolean retransmissionEnabled = true;
+
+    /**
+     * History of the packets sent to the recipient, null if they are not
+     * retransmitted or if the video is received from the multicast group
+     */
+    private volatile PacketHistory packetHistory = null;
+
+    /**
+     * Initial FEC protection level, null if FEC is disabled
+     */
+    private UlpFec.Protection fecProtection = null;
+
+    /**
+     * Adapt the FEC protection level to the reported loss
+     */
+    private boolean fecAdaptive = false;
+
+    /**
+     * FEC encoder, null if FEC is disabled
+     */
+    private volatile UlpFec.Encoder fecEncoder = null;
+
+    /**
+     * Codecs of the layers of the shared encoder, from the base layer
+     */
+    private VideoCodec[] layerCodecs;
+
+    /**
+     * Negotiated codec
+     */
+    private VideoCodec videoCodec = null;
+
+    /**
+     * Largest layer allowed by the negotiated codec
+     */
+    private int maxLayer = 0;
+
+    /**
+     * Layer selection from the RTCP reports of the recipient, one operating
+     * point per layer from the largest one
+     */
+    private BitrateController layerController = null;
+
+    /**
+     * Layer currently sent
+     */
+    private volatile int layer = 0;
+
+    /**
+     * Number of layer switches
+     */
+    private volatile int layerSwitches = 0;
+
+    /**
+     * Time the recipient joined the broadcast
+     */
+    private long joinTime = 0L;
+
+    /**
+     * Time from the join to the first IDR frame sent, or -1
+     */
+    private volatile long timeToFirstFrame = -1L;
+
+    /**
+     * Constructor
+     *
+     * @param encoder Shared encoder player
+     */
+    public BroadcastVideoPlayer(MyVideoPlayer encoder) {
+        this(encoder, false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param encoder Shared encoder player
+     * @param multicast True if the encoder sends the video to a multicast group
+     */
+    public BroadcastVideoPlayer(MyVideoPlayer encoder, boolean multicast) {
+        this.encoder = encoder;
+        this.multicast = multicast;
+        this.layerCodecs = multicast ? new VideoCodec[] { encoder.getCodec() } : encoder.getLayerCodecs();
+
+        // Set the local RTP port
+        reservePort();
+    }
+
+    /**
+     * Returns the local RTP port
+     *
+     * @return Port
+     */
+    public int getLocalRtpPort() {
+        return localRtpPort;
+    }
+
+    /**
+     * Returns the list of codecs supported by the player: the codecs of the
+     * layers of the shared encoder, from the largest one, offering the FEC
+     * packets if enabled and the multicast group the video is sent to
+     *
+     * @return List of codecs
+     */
+    public VideoCodec[] getSupportedCodecs() {
+        // The FEC packets of a multicast group are sent by the shared encoder
+        boolean fec = multicast ? (encoder.getFecEncoder() != null) : (fecProtection != null);
+        MulticastGroup group = multicast ? encoder.getMulticastGroup() : null;
+        VideoCodec[] list = new VideoCodec[layerCodecs.length];
+        for (int i = 0; i < list.length; i++) {
+            VideoCodec codec = layerCodecs[layerCodecs.length - 1 - i];
+            if (fec) {
+                codec = CodecParameters.withFec(codec);
+            }
+            if (group != null) {
+                codec = CodecParameters.withMulticastGroup(codec, group);
+            }
+            list[i] = codec;
+        }
+        return list;
+    }
+
+    /**
+     * Returns the current codec
+     *
+     * @return Codec
+     */
+    public VideoCodec getCodec() {
+        if (videoCodec != null) {
+            return videoCodec;
+        }
+        return layerCodecs[layerCodecs.length - 1];
+    }
+
+    /**
+     * Opens the player
+     *
+     * @param codec Video codec
+     * @param remoteHost Remote RTP host
+     * @param remotePort Remote RTP port
+     */
+    public synchronized void open(VideoCodec codec, String remoteHost, int remotePort) {
+        if (opened) {
+            // Already opened
+            return;
+        }
+
+        // The negotiated codec is the largest layer the recipient may receive
+        videoCodec = codec;
+        maxLayer = 0;
+        for (int i = 0; i < layerCodecs.length; i++) {
+            if ((layerCodecs[i].getVideoWidth() <= codec.getVideoWidth())
+                    && (layerCodecs[i].getVideoHeight() <= codec.getVideoHeight())) {
+                maxLayer = i;
+            }
+        }
+        BitrateController.OperatingPoint[] ladder = new BitrateController.OperatingPoint[maxLayer + 1];
+        for (int i = 0; i <= maxLayer; i++) {
+            VideoCodec layerCodec = layerCodecs[maxLayer - i];
+            ladder[i] = new BitrateController.OperatingPoint(layerCodec.getBitRate(),
+                    layerCodec.getFrameRate(), layerCodec.getVideoWidth(), layerCodec.getVideoHeight());
+        }
+        layerController = new BitrateController(ladder, H264Config.CLOCK_RATE);
+        layer = maxLayer;
+
+        // Init the RTP layer
+        this.remoteHost = remoteHost;
+        this.remotePort = remotePort;
+        try {
+            rtcpFeedback = new RtcpFeedbackReceiver();
+            rtcpFeedback.addListener(rtcpListener);
+            rtcpFeedback.addListener(layerController);
+            if (portLease != null) {
+                portLease.setReceiveObserver(portLease.getRtcpPort(), rtcpFeedback);
+            }
+            rtpSender = new VideoRtpSender(new H264VideoFormat(), localRtpPort);
+            rtpInput = new RecipientRtpInput();
+            rtpInput.open();
+            rtpSender.prepareSession(rtpInput, remoteHost, remotePort, this);
+            if (portLease != null) {
+                // The RTP and RTCP packets of the stack, the relayed packets
+                // and the repairs leave from connected sockets
+                portLease.connect(remoteHost, remotePort);
+            }
+            if (pacingEnabled && !multicast && (portLease != null)) {
+                // First filter: the FEC encoder sees the packets as paced
+                packetPacer = new PacketPacer();
+                packetPacer.setTargetBitRate(layerCodecs[layer].getBitRate());
+                packetPacer.attach(portLease, remoteHost, remotePort);
+                packetPacer.addBypass(portLease.getRtcpPort());
+            }
+            if (retransmissionEnabled && !multicast && (portLease != null)) {
+                // Remembered as paced, retransmitted from the RTP port of
+                // the session
+                packetHistory = new PacketHistory();
+                packetHistory.setMaxRate(layerCodecs[layer].getBitRate() / RETRANSMIT_RATE_DIVISOR);
+                packetHistory.setPacer(packetPacer);
+                packetHistory.attach(portLease, remoteHost, remotePort);
+            }
+            if ((fecProtection != null) && !multicast && (portLease != null)
+                    && CodecParameters.isFecNegotiated(codec)) {
+                // Only sent to a recipient which has accepted them, the
+                // multicast group is protected by the shared encoder
+                fecEncoder = new UlpFec.Encoder(fecProtection, fecAdaptive);
+                fecEncoder.setPacer(packetPacer);
+                fecEncoder.attach(portLease, remoteHost, remotePort);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            detachFilters();
+            if (rtpInput != null) {
+                rtpInput.close();
+                rtpInput = null;
+            }
+            if (rtpSender != null) {
+                rtpSender.stopSession();
+                rtpSender = null;
+            }
+            releasePort();
+            notifyPlayerEventError(VideoPlayer.Error.INTERNAL_ERROR);
+            return;
+        }
+
+        // Player is opened
+        opened = true;
+        notifyPlayerEventOpened();
+    }
+
+    /**
+     * Stop pacing, remembering and protecting the sent packets
+     */
+    private void detachFilters() {
+        if (packetPacer != null) {
+            packetPacer.detach();
+            packetPacer = null;
+        }
+        if (packetHistory != null) {
+            packetHistory.detach();
+            packetHistory = null;
+        }
+        if (fecEncoder != null) {
+            fecEncoder.detach();
+            fecEncoder = null;
+        }
+    }
+
+    /**
+     * Closes the player
+     */
+    public synchronized void close() {
+        if (!opened) {
+            // Already closed
+            return;
+        }
+        stop();
+
+        // Close the RTP layer
+        if (portLease != null) {
+            portLease.setReceiveObserver(portLease.getRtcpPort(), null);
+        }
+        rtpInput.close();
+
+        // The pacer drains its queue on the connection of the session
+        detachFilters();
+        rtpSender.stopSession();
+        releasePort();
+
+        // Player is closed
+        opened = false;
+        notifyPlayerEventClosed();
+
+        // Remove all listeners
+        removeAllEventListeners();
+    }
+
+    /**
+     * Starts the player
+     */
+    public synchronized void start() {
+        if (!opened) {
+            // Player not opened
+            return;
+        }
+
+        if (started) {
+            // Already started
+            return;
+        }
+
+        // Join the broadcast, the recipient needs an IDR frame to start: the
+        // cached group of pictures is replayed first, if any
+        started = true;
+        joinTime = SystemClock.elapsedRealtime();
+        timeToFirstFrame = -1L;
+        boolean cached = false;
+        if (!multicast) {
+            GopCache cache = encoder.getGopCache();
+            synchronized (cache) {
+                List<VideoSample> frames = cache.getFrames(layer);
+                rtpInput.startBurst(frames, layerCodecs[layer].getBitRate());
+                encoder.addFrameSink(this);
+                cached = !frames.isEmpty();
+            }
+        }
+        if (!cached) {
+            encoder.requestKeyFrame(layer);
+        }
+
+        // The packets sent to the group reach the recipient over its session
+        // until it reports that it receives the group
+        GroupRelay relay = multicast ? encoder.getGroupRelay() : null;
+        if ((relay != null) && (portLease != null)) {
+            relay.addRecipient(portLease, remoteHost, remotePort);
+        }
+
+        // Start RTP layer
+        rtpSender.startSession();
+        notifyPlayerEventStarted();
+    }
+
+    /**
+     * Stops the player
+     */
+    public synchronized void stop() {
+        if (!started) {
+            // Already stopped
+            return;
+        }
+
+        // Leave the broadcast
+        encoder.removeFrameSink(this);
+        GroupRelay relay = multicast ? encoder.getGroupRelay() : null;
+        if ((relay != null) && (portLease != null)) {
+            relay.removeRecipient(portLease);
+        }
+        started = false;
+        notifyPlayerEventStopped();
+    }
+
+    /**
+     * Add an encoded NAL unit. Called from the encoding thread of the shared
+     * encoder.
+     *
+     * @param layer Simulcast layer
+     * @param data NAL unit
+     * @param timestamp RTP timestamp
+     * @param orientation Video orientation or null
+     */
+    public void addFrame(int layer, byte[] data, long timestamp, VideoOrientation orientation) {
+        RecipientRtpInput input = rtpInput;
+        if (started && (input != null)) {
+            input.addFrame(layer, data, timestamp, orientation);
+        }
+    }
+
+    /**
+     * Returns the layer currently sent
+     *
+     * @return Layer index, 0 for the base layer
+     */
+    public int getLayer() {
+        return layer;
+    }
+
+    /**
+     * Returns the number of layer switches
+     *
+     * @return Count
+     */
+    public int getLayerSwitchCount() {
+        return layerSwitches;
+    }
+
+    /**
+     * Returns the layer fitting the link of the recipient
+     *
+     * @return Layer index
+     */
+    private int getTargetLayer() {
+        BitrateController controller = layerController;
+        if (controller == null) {
+            return layer;
+        }
+        return maxLayer - controller.getLevel();
+    }
+
+    /**
+     * Returns the number of frames dropped for this recipient
+     *
+     * @return Count
+     */
+    public long getDroppedFrames() {
+        RecipientRtpInput input = rtpInput;
+        return (input != null) ? input.getDroppedFrames() : 0L;
+    }
+
+    /**
+     * Returns the time from the join to the first IDR frame sent to the
+     * recipient
+     *
+     * @return Time in milliseconds or -1 if no IDR frame has been sent yet
+     */
+    public long getTimeToFirstFrame() {
+        return timeToFirstFrame;
+    }
+
+    /**
+     * Returns the last fraction lost reported by the recipient
+     *
+     * @return Fraction lost in 1/256
+     */
+    public int getFractionLost() {
+        return lastFractionLost;
+    }
+
+    /**
+     * Enable or disable the pacing of the packets sent to the recipient,
+     * enabled by default. Not used when the video is received from the
+     * multicast group. Must be set before the player is opened.
+     *
+     * @param enabled Enabled flag
+     */
+    public void setPacing(boolean enabled) {
+        this.pacingEnabled = enabled;
+    }
+
+    /**
+     * Returns the pacer of the packets sent to the recipient
+     *
+     * @return Pacer or null if the packets are not paced
+     */
+    public PacketPacer getPacketPacer() {
+        return packetPacer;
+    }
+
+    /**
+     * Enable or disable the retransmission of the packets reported lost by
+     * the recipient, enabled by default. When the video is received from the
+     * multicast group, the packets are retransmitted from the history of the
+     * shared encoder. Must be set before the player is opened.
+     *
+     * @param enabled Enabled flag
+     */
+    public void setRetransmission(boolean enabled) {
+        this.retransmissionEnabled = enabled;
+    }
+
+    /**
+     * Returns the history of the packets sent to the recipient, which holds
+     * the retransmission statistics
+     *
+     * @return History or null if the packets are not retransmitted or if the
+     *         video is received from the multicast group
+     */
+    public PacketHistory getPacketHistory() {
+        return packetHistory;
+    }
+
+    /**
+     * Enable the FEC protection of the packets sent to the recipient,
+     * disabled by default. The FEC packets are offered in the codec
+     * parameters and only sent if the recipient has accepted them. Not used
+     * when the video is received from the multicast group. Must be set
+     * before the player is opened.
+     *
+     * @param protection Initial protection level, null to disable FEC
+     * @param adaptive Adapt the protection level to the reported loss
+     */
+    public void setFec(UlpFec.Protection protection, boolean adaptive) {
+        this.fecProtection = protection;
+        this.fecAdaptive = adaptive;
+    }
+
+    /**
+     * Returns the FEC encoder, which holds the FEC statistics
+     *
+     * @return Encoder or null if FEC is disabled
+     */
+    public UlpFec.Encoder getFecEncoder() {
+        return fecEncoder;
+    }
+
+    /**
+     * Is the video received from the multicast group of the encoder
+     *
+     * @return Boolean
+     */
+    public boolean isMulticast() {
+        return multicast;
+    }
+
+    /**
+     * Is player opened
+     *
+     * @return Boolean
+     */
+    public boolean isOpened() {
+        return opened;
+    }
+
+    /**
+     * Is player started
+     *
+     * @return Boolean
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Notify RTP aborted
+     */
+    public void rtpStreamAborted() {
+        notifyPlayerEventError(VideoPlayer.Error.NETWORK_FAILURE);
+    }
+
+    /**
+     * Reserve the local RTP/RTCP ports. The ports stay bound until the RTP
+     * stack opens them. The sockets of the recipient sessions are read by
+     * the shared selector thread.
+     */
+    private void reservePort() {
+        if (portLease == null) {
+            try {
+                portLease = NetworkRessourceManager.allocateRtpPorts(true);
+                localRtpPort = portLease.getRtpPort();
+            } catch (IOException e) {
+                localRtpPort = -1;
+            }
+        }
+    }
+
+    /**
+     * Release the reserved ports which have not been opened by the RTP stack
+     */
+    private void releasePort() {
+        if (portLease != null) {
+            portLease.release();
+            portLease = null;
+        }
+    }
+
+    /**
+     * Notify player event started
+     */
+    private void notifyPlayerEventStarted() {
+        try {
+            Iterator<IVideoPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerStarted();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify player event stopped
+     */
+    private void notifyPlayerEventStopped() {
+        try {
+            Iterator<IVideoPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerStopped();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify player event opened
+     */
+    private void notifyPlayerEventOpened() {
+        try {
+            Iterator<IVideoPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerOpened();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify player event closed
+     */
+    private void notifyPlayerEventClosed() {
+        try {
+            Iterator<IVideoPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerClosed();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify player event error
+     */
+    private void notifyPlayerEventError(int error) {
+        try {
+            Iterator<IVideoPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerError(error);
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Media RTP input of a recipient
+     */
+    private class RecipientRtpInput implements MediaInput {
+        /**
+         * Frames to send
+         */
+        private FifoBuffer fifo = null;
+
+        /**
+         * Dropped count of the queue when last checked
+         */
+        private long lastDropped = 0L;
+
+        /**
+         * Waiting for an IDR frame after a drop
+         */
+        private boolean resync = false;
+
+        /**
+         * Number of frames skipped while waiting for an IDR frame
+         */
+        private volatile long skipped = 0L;
+
+        /**
+         * Layer a keyframe has been requested on for a switch, or -1
+         */
+        private int requestedLayer = -1;
+
+        /**
+         * Layer of the pending parameter sets, or -1
+         */
+        private int pendingLayer = -1;
+
+        /**
+         * Last SPS of the target layer
+         */
+        private byte[] pendingSps = null;
+
+        /**
+         * Last PPS of the target layer
+         */
+        private byte[] pendingPps = null;
+
+        /**
+         * Cached group of pictures to send before the live frames, or null
+         */
+        private volatile List<VideoSample> burst = null;
+
+        /**
+         * Next cached NAL unit to send
+         */
+        private int burstIndex = 0;
+
+        /**
+         * Rate of the replay in bits/s
+         */
+        private int burstRate = MIN_BURST_RATE;
+
+        /**
+         * Earliest send time of the next cached NAL unit on the monotonic
+         * clock, in nanoseconds
+         */
+        private long nextBurstTime = 0L;
+
+        /**
+         * Add a new video frame. Called from the encoding thread, never
+         * blocks.
+         *
+         * @param frameLayer Simulcast layer of the frame
+         * @param data Data
+         * @param timestamp Timestamp
+         * @param videoOrientation Video orientation
+         */
+        public void addFrame(int frameLayer, byte[] data, long timestamp, VideoOrientation videoOrientation) {
+            FifoBuffer queue = fifo;
+            if (queue == null) {
+                return;
+            }
+            int target = getTargetLayer();
+            if ((target != layer) && (frameLayer == target)) {
+                // Switch to the target layer at its next IDR frame, with
+                // parameter sets of that layer only
+                if (pendingLayer != target) {
+                    pendingLayer = target;
+                    pendingSps = null;
+                    pendingPps = null;
+                }
+                int type = MyVideoPlayer.getNalType(data);
+                if (type == JavaPacketizer.AVC_NALTYPE_SPS) {
+                    pendingSps = data;
+                    return;
+                } else if (type == JavaPacketizer.AVC_NALTYPE_PPS) {
+                    pendingPps = data;
+                    return;
+                } else if ((type != MyVideoPlayer.AVC_NALTYPE_IDR) || (pendingSps == null) || (pendingPps == null)) {
+                    if (requestedLayer != target) {
+                        requestedLayer = target;
+                        encoder.requestSinkKeyFrame(target);
+                    }
+                    return;
+                }
+                layer = target;
+                layerSwitches++;
+                PacketPacer pacer = packetPacer;
+                if (pacer != null) {
+                    pacer.setTargetBitRate(layerCodecs[layer].getBitRate());
+                }
+                PacketHistory history = packetHistory;
+                if (history != null) {
+                    history.setMaxRate(layerCodecs[layer].getBitRate() / RETRANSMIT_RATE_DIVISOR);
+                }
+                requestedLayer = -1;
+                resync = false;
+                queue.addObject(new VideoSample(pendingSps, timestamp, null));
+                queue.addObject(new VideoSample(pendingPps, timestamp, null));
+                pendingSps = null;
+                pendingPps = null;
+                pendingLayer = -1;
+            }
+            if (frameLayer != layer) {
+                return;
+            }
+            long dropped = queue.getDroppedCount();
+            if (dropped != lastDropped) {
+                // The recipient is too slow: frames after the drop can't be
+                // decoded until the next IDR frame, requested along with
+                // the other lagging recipients
+                lastDropped = dropped;
+                resync = true;
+                encoder.requestSinkKeyFrame(layer);
+            }
+            if (resync) {
+                int type = MyVideoPlayer.getNalType(data);
+                if (type == MyVideoPlayer.AVC_NALTYPE_IDR) {
+                    resync = false;
+                } else if ((type != JavaPacketizer.AVC_NALTYPE_SPS) && (type != JavaPacketizer.AVC_NALTYPE_PPS)) {
+                    skipped++;
+                    return;
+                }
+            }
+            queue.addObject(new VideoSample(data, timestamp, videoOrientation));
+        }
+
+        /**
+         * Send a cached group of pictures before the live frames. Called
+         * before the RTP session starts.
+         *
+         * @param frames Cached NAL units, starting with the parameter sets
+         * @param bitRate Bit rate of the layer
+         */
+        public void startBurst(List<VideoSample> frames, int bitRate) {
+            burstIndex = 0;
+            burstRate = Math.max(MIN_BURST_RATE, bitRate * BURST_RATE_FACTOR);
+            nextBurstTime = System.nanoTime();
+            if (!frames.isEmpty()) {
+                // The live frames follow the cached ones, no resync needed
+                FifoBuffer queue = fifo;
+                if (queue != null) {
+                    lastDropped = queue.getDroppedCount();
+                }
+                resync = false;
+                burst = frames;
+            }
+        }
+
+        /**
+         * Returns the next cached NAL unit, paced so that the burst does not
+         * overflow the link of the recipient
+         *
+         * @return Media sample or null at the end of the burst
+         */
+        private VideoSample nextBurstSample() {
+            List<VideoSample> frames = burst;
+            if (frames == null) {
+                return null;
+            }
+            if (burstIndex >= frames.size()) {
+                burst = null;
+                return null;
+            }
+            VideoSample cached = frames.get(burstIndex++);
+            long wait = nextBurstTime - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            nextBurstTime = Math.max(nextBurstTime, System.nanoTime())
+                    + cached.getLength() * 8L * 1000000000L / burstRate;
+
+            // Cached samples are shared by the recipients
+            return new VideoSample(cached.getData(), cached.getTimeStamp(), cached.getVideoOrientation());
+        }
+
+        /**
+         * Record the time to the first frame
+         *
+         * @param sample Sample about to be sent or null
+         * @return Sample
+         */
+        private VideoSample sent(VideoSample sample) {
+            if ((sample != null) && (timeToFirstFrame < 0) && (MyVideoPlayer.getNalType(sample.getData()) == MyVideoPlayer.AVC_NALTYPE_IDR)) {
+                timeToFirstFrame = SystemClock.elapsedRealtime() - joinTime;
+                if (LogUtils.isActive) {
+                    Log.i(LOGTAG, "Time to first frame " + timeToFirstFrame + " ms");
+                }
+            }
+            return sample;
+        }
+
+        /**
+         * Returns the number of frames dropped or skipped
+         *
+         * @return Count
+         */
+        public long getDroppedFrames() {
+            FifoBuffer queue = fifo;
+            return skipped + ((queue != null) ? queue.getDroppedCount() : 0L);
+        }
+
+        /**
+         * Open the player
+         */
+        public void open() {
+            // Frames are only produced by the encoding thread
+            fifo = new FifoBuffer(SEND_QUEUE_SIZE, RingBuffer.OverflowPolicy.DROP_OLDEST, true);
+            lastDropped = 0L;
+            resync = true;
+            burst = null;
+        }
+
+        /**
+         * Close the player
+         */
+        public void close() {
+            if (fifo != null) {
+                fifo.close();
+                fifo = null;
+            }
+        }
+
+        /**
+         * Read a media sample (blocking method)
+         *
+         * @return Media sample
+         * @throws MediaException
+         */
+        public VideoSample readSample() throws MediaException {
+            try {
+                VideoSample cached = nextBurstSample();
+                if (cached != null) {
+                    return sent(cached);
+                }
+                FifoBuffer queue = fifo;
+                if (queue != null) {
+                    return sent((VideoSample)queue.getObject());
+                } else {
+                    throw new MediaException("Media input not opened");
+                }
+            } catch (Exception e) {
+                throw new MediaException("Can't read media sample");
+            }
+        }
+    }
+}
@@ -0,0 +1,657 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+/**
+ * Capture-time RTP header extension, used to measure the latency of each
+ * frame from the camera of the sender to the screen of the receiver.
+ * <p>
+ * The sender stamps the last packet of each frame with the capture time of
+ * the frame as a 64-bit NTP timestamp, in a one-byte header extension
+ * element (RFC 5285). It also rewrites its RTCP sender reports with the
+ * NTP time and the matching RTP timestamp of its capture clock, so that a
+ * receiver can map any RTP timestamp to NTP. The receiver reads and strips
+ * the element before the RTP stack parses the packet, and uses the sender
+ * reports to detect a sender clock running ahead of its own.
+ */
+public class CaptureTimeExtension {
+    /**
+     * Default extension element id
+     */
+    public static final int DEFAULT_HEADER_ID = 3;
+
+    /**
+     * One-byte header extension profile
+     */
+    private static final int ONE_BYTE_PROFILE = 0xBEDE;
+
+    /**
+     * RTCP sender report packet type
+     */
+    private static final int RTCP_SR = 200;
+
+    /**
+     * Seconds from 1900 to 1970
+     */
+    private static final long NTP_EPOCH_OFFSET = 2208988800L;
+
+    /**
+     * Number of remembered frames
+     */
+    private static final int HISTORY_SIZE = 64;
+
+    /**
+     * Constructor
+     */
+    private CaptureTimeExtension() {
+    }
+
+    /**
+     * Convert a wall clock time to a NTP timestamp
+     *
+     * @param millis Milliseconds since 1970
+     * @return NTP timestamp
+     */
+    public static long toNtp(long millis) {
+        long seconds = millis / 1000L + NTP_EPOCH_OFFSET;
+        long fraction = ((millis % 1000L) << 32) / 1000L;
+        return (seconds << 32) | fraction;
+    }
+
+    /**
+     * Convert a NTP timestamp to a wall clock time
+     *
+     * @param ntp NTP timestamp
+     * @return Milliseconds since 1970
+     */
+    public static long toMillis(long ntp) {
+        long seconds = (ntp >>> 32) - NTP_EPOCH_OFFSET;
+        long fraction = ntp & 0xffffffffL;
+        return seconds * 1000L + ((fraction * 1000L + 0x80000000L) >>> 32);
+    }
+
+    /**
+     * Returns the RTP timestamp of a packet
+     *
+     * @param data Buffer
+     * @param offset Offset of the packet
+     * @return Timestamp
+     */
+    static long getTimestamp(byte[] data, int offset) {
+        return readInt(data, offset + 4);
+    }
+
+    /**
+     * Returns the offset of the header extension of a RTP packet
+     *
+     * @param data Buffer
+     * @param offset Offset of the packet
+     * @param length Length of the packet
+     * @return Offset of the extension or -1 if the packet has no one-byte
+     *         header extension
+     */
+    private static int extensionOffset(byte[] data, int offset, int length) {
+        if ((length < 12) || ((data[offset] & 0xc0) != 0x80) || ((data[offset] & 0x10) == 0)) {
+            return -1;
+        }
+        int ext = offset + 12 + (data[offset] & 0x0f) * 4;
+        if ((ext + 4 > offset + length) || (readShort(data, ext) != ONE_BYTE_PROFILE)
+                || (ext + 4 + readShort(data, ext + 2) * 4 > offset + length)) {
+            return -1;
+        }
+        return ext;
+    }
+
+    /**
+     * Returns the offset of an element in a one-byte header extension
+     *
+     * @param data Buffer
+     * @param ext Offset of the extension
+     * @param headerId Element id
+     * @return Offset of the element or -1
+     */
+    private static int findElement(byte[] data, int ext, int headerId) {
+        int pos = ext + 4;
+        int end = pos + readShort(data, ext + 2) * 4;
+        while (pos < end) {
+            int b = data[pos] & 0xff;
+            if (b == 0) {
+                // Padding
+                pos++;
+                continue;
+            }
+            int id = b >> 4;
+            if (id == 15) {
+                break;
+            }
+            if (id == headerId) {
+                return pos;
+            }
+            pos += 2 + (b & 0x0f);
+        }
+        return -1;
+    }
+
+    /**
+     * Read the capture time of a RTP packet
+     *
+     * @param data Buffer
+     * @param offset Offset of the packet
+     * @param length Length of the packet
+     * @param headerId Element id
+     * @return NTP timestamp or 0 if the packet is not stamped
+     */
+    public static long read(byte[] data, int offset, int length, int headerId) {
+        int ext = extensionOffset(data, offset, length);
+        if (ext < 0) {
+            return 0L;
+        }
+        int element = findElement(data, ext, headerId);
+        if ((element < 0) || ((data[element] & 0x0f) != 7)) {
+            return 0L;
+        }
+        return (readInt(data, element + 1) << 32) | readInt(data, element + 5);
+    }
+
+    /**
+     * Add the capture time to a RTP packet. The other elements of an
+     * existing one-byte header extension are kept.
+     *
+     * @param packet RTP packet
+     * @param headerId Element id
+     * @param ntp Capture time as NTP timestamp
+     * @return New packet, or the packet itself if it can't be stamped
+     */
+    public static byte[] write(byte[] packet, int headerId, long ntp) {
+        if ((packet.length < 12) || ((packet[0] & 0xc0) != 0x80)) {
+            return packet;
+        }
+        int header = 12 + (packet[0] & 0x0f) * 4;
+        int payload = header;
+        byte[] elements = new byte[0];
+        if ((packet[0] & 0x10) != 0) {
+            int ext = extensionOffset(packet, 0, packet.length);
+            if ((ext < 0) || (findElement(packet, ext, headerId) >= 0)) {
+                // Unknown extension profile, or already stamped
+                return packet;
+            }
+            int words = readShort(packet, ext + 2);
+            payload = ext + 4 + words * 4;
+            elements = compact(packet, ext + 4, payload);
+        }
+        if (payload > packet.length) {
+            return packet;
+        }
+
+        int used = elements.length + 9;
+        int words = (used + 3) / 4;
+        byte[] result = new byte[header + 4 + words * 4 + packet.length - payload];
+        System.arraycopy(packet, 0, result, 0, header);
+        result[0] |= 0x10;
+        int pos = header;
+        result[pos++] = (byte)(ONE_BYTE_PROFILE >> 8);
+        result[pos++] = (byte)ONE_BYTE_PROFILE;
+        result[pos++] = (byte)(words >> 8);
+        result[pos++] = (byte)words;
+        System.arraycopy(elements, 0, result, pos, elements.length);
+        pos += elements.length;
+        result[pos++] = (byte)((headerId << 4) | 7);
+        writeInt(result, pos, ntp >>> 32);
+        writeInt(result, pos + 4, ntp);
+        System.arraycopy(packet, payload, result, header + 4 + words * 4, packet.length - payload);
+        return result;
+    }
+
+    /**
+     * Remove the capture time element of a RTP packet in place. The header
+     * extension is removed if no other element is left.
+     *
+     * @param data Buffer
+     * @param offset Offset of the packet
+     * @param length Length of the packet
+     * @param headerId Element id
+     * @return New length of the packet
+     */
+    public static int strip(byte[] data, int offset, int length, int headerId) {
+        int ext = extensionOffset(data, offset, length);
+        if ((ext < 0) || (findElement(data, ext, headerId) < 0)) {
+            return length;
+        }
+        int start = ext + 4;
+        int payload = start + readShort(data, ext + 2) * 4;
+
+        // Keep the other elements
+        byte[] kept = new byte[payload - start];
+        int n = 0;
+        int pos = start;
+        while (pos < payload) {
+            int b = data[pos] & 0xff;
+            if (b == 0) {
+                pos++;
+                continue;
+            }
+            if ((b >> 4) == 15) {
+                break;
+            }
+            int size = 2 + (b & 0x0f);
+            if ((b >> 4) != headerId) {
+                System.arraycopy(data, pos, kept, n, size);
+                n += size;
+            }
+            pos += size;
+        }
+
+        int end = offset + length;
+        if (n == 0) {
+            // No element left: no header extension
+            data[offset] &= ~0x10;
+            System.arraycopy(data, payload, data, ext, end - payload);
+            return length - (payload - ext);
+        }
+        int words = (n + 3) / 4;
+        System.arraycopy(kept, 0, data, start, n);
+        for (int i = start + n; i < start + words * 4; i++) {
+            data[i] = 0;
+        }
+        data[ext + 2] = (byte)(words >> 8);
+        data[ext + 3] = (byte)words;
+        System.arraycopy(data, payload, data, start + words * 4, end - payload);
+        return length - (payload - (start + words * 4));
+    }
+
+    /**
+     * Returns the elements of a one-byte header extension without padding
+     *
+     * @param data Buffer
+     * @param start Start of the elements
+     * @param end End of the elements
+     * @return Elements
+     */
+    private static byte[] compact(byte[] data, int start, int end) {
+        byte[] out = new byte[end - start];
+        int n = 0;
+        int pos = start;
+        while (pos < end) {
+            int b = data[pos] & 0xff;
+            if (b == 0) {
+                pos++;
+                continue;
+            }
+            if ((b >> 4) == 15) {
+                break;
+            }
+            int size = Math.min(2 + (b & 0x0f), end - pos);
+            System.arraycopy(data, pos, out, n, size);
+            n += size;
+            pos += size;
+        }
+        byte[] result = new byte[n];
+        System.arraycopy(out, 0, result, 0, n);
+        return result;
+    }
+
+    /**
+     * Read an unsigned 16-bit value
+     *
+     * @param data Buffer
+     * @param pos Offset
+     * @return Value
+     */
+    private static int readShort(byte[] data, int pos) {
+        return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+    }
+
+    /**
+     * Read an unsigned 32-bit value
+     *
+     * @param data Buffer
+     * @param pos Offset
+     * @return Value
+     */
+    private static long readInt(byte[] data, int pos) {
+        return ((long)(data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+                | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+    }
+
+    /**
+     * Write a 32-bit value
+     *
+     * @param data Buffer
+     * @param pos Offset
+     * @param value Value, only the low 32 bits are written
+     */
+    private static void writeInt(byte[] data, int pos, long value) {
+        data[pos] = (byte)(value >> 24);
+        data[pos + 1] = (byte)(value >> 16);
+        data[pos + 2] = (byte)(value >> 8);
+        data[pos + 3] = (byte)value;
+    }
+
+    /**
+     * Sender side: stamps the last packet of each frame with its capture
+     * time and rewrites the RTCP sender reports with the capture clock
+     */
+    public static class Stamper {
+        /**
+         * Element id
+         */
+        private final int headerId;
+
+        /**
+         * Capture clock of the frames
+         */
+        private final FrameScheduler clock;
+
+        /**
+         * RTP timestamps of the last frames
+         */
+        private final long[] timestamps = new long[HISTORY_SIZE];
+
+        /**
+         * Capture times of the last frames, as NTP timestamps
+         */
+        private final long[] captureTimes = new long[HISTORY_SIZE];
+
+        /**
+         * Number of recorded frames
+         */
+        private int count = 0;
+
+        /**
+         * Port lease of the stamped session
+         */
+        private PortLease lease = null;
+
+        /**
+         * Filter of the RTP packets
+         */
+        private final PortLease.SendFilter rtpFilter = new PortLease.SendFilter() {
+            public byte[] filter(byte[] data) {
+                return stamp(data);
+            }
+        };
+
+        /**
+         * Filter of the RTCP packets
+         */
+        private final PortLease.SendFilter rtcpFilter = new PortLease.SendFilter() {
+            public byte[] filter(byte[] data) {
+                rewriteSenderReports(data);
+                return data;
+            }
+        };
+
+        /**
+         * Constructor
+         *
+         * @param headerId Element id
+         * @param clock Capture clock of the frames
+         */
+        public Stamper(int headerId, FrameScheduler clock) {
+            this.headerId = headerId;
+            this.clock = clock;
+        }
+
+        /**
+         * Stamp the RTP and RTCP packets sent from the ports of a session
+         *
+         * @param lease Port lease of the media session
+         */
+        public void attach(PortLease lease) {
+            this.lease = lease;
+            lease.addSendFilter(lease.getRtpPort(), rtpFilter);
+            lease.addSendFilter(lease.getRtcpPort(), rtcpFilter);
+        }
+
+        /**
+         * Stop stamping the packets
+         */
+        public void detach() {
+            PortLease l = lease;
+            if (l != null) {
+                l.removeSendFilter(rtpFilter);
+                l.removeSendFilter(rtcpFilter);
+            }
+            lease = null;
+        }
+
+        /**
+         * Record the capture time of a frame. Called from the encoding thread.
+         *
+         * @param timestamp RTP timestamp of the frame
+         * @param captureTime Capture time on the monotonic clock, in
+         *            nanoseconds
+         */
+        public synchronized void frameCaptured(long timestamp, long captureTime) {
+            long millis = System.currentTimeMillis() - (FrameScheduler.now() - captureTime) / 1000000L;
+            int index = count % HISTORY_SIZE;
+            timestamps[index] = timestamp & 0xffffffffL;
+            captureTimes[index] = toNtp(millis);
+            count++;
+        }
+
+        /**
+         * Returns the capture time of a frame
+         *
+         * @param timestamp RTP timestamp
+         * @return NTP timestamp or 0 if unknown
+         */
+        private synchronized long getCaptureTime(long timestamp) {
+            for (int i = 0; i < Math.min(count, HISTORY_SIZE); i++) {
+                int index = (count - 1 - i) % HISTORY_SIZE;
+                if (timestamps[index] == timestamp) {
+                    return captureTimes[index];
+                }
+            }
+            return 0L;
+        }
+
+        /**
+         * Stamp the last packet of a frame
+         *
+         * @param packet RTP packet
+         * @return Packet to send
+         */
+        private byte[] stamp(byte[] packet) {
+            if ((packet.length < 12) || ((packet[1] & 0x80) == 0)) {
+                // Not the last packet of a frame
+                return packet;
+            }
+            long captureTime = getCaptureTime(getTimestamp(packet, 0));
+            if (captureTime == 0) {
+                return packet;
+            }
+            return write(packet, headerId, captureTime);
+        }
+
+        /**
+         * Write the NTP time and the RTP timestamp of the capture clock into
+         * the sender reports of a RTCP compound packet
+         *
+         * @param data RTCP packet
+         */
+        private void rewriteSenderReports(byte[] data) {
+            int pos = 0;
+            while (pos + 4 <= data.length) {
+                int size = (readShort(data, pos + 2) + 1) * 4;
+                if (((data[pos + 1] & 0xff) == RTCP_SR) && (size >= 28) && (pos + 28 <= data.length)) {
+                    long now = FrameScheduler.now();
+                    long ntp = toNtp(System.currentTimeMillis());
+                    writeInt(data, pos + 8, ntp >>> 32);
+                    writeInt(data, pos + 12, ntp);
+                    writeInt(data, pos + 16, clock.getRtpTimestamp(now));
+                }
+                pos += size;
+            }
+        }
+    }
+
+    /**
+     * Receiver side: reads and strips the capture time of the received
+     * frames, and maps the RTP timestamps to NTP from the sender reports
+     */
+    public static class Reader implements PortLease.ReceiveFilter, PortLease.ReceiveObserver {
+        /**
+         * Number of sender reports the clock check is made on
+         */
+        private static final int REPORT_WINDOW = 8;
+
+        /**
+         * Element id
+         */
+        private final int headerId;
+
+        /**
+         * Clock rate of the RTP timestamps
+         */
+        private final int clockRate;
+
+        /**
+         * RTP timestamps of the last frames
+         */
+        private final long[] timestamps = new long[HISTORY_SIZE];
+
+        /**
+         * Capture times of the last frames, as NTP timestamps
+         */
+        private final long[] captureTimes = new long[HISTORY_SIZE];
+
+        /**
+         * Number of recorded frames
+         */
+        private int count = 0;
+
+        /**
+         * NTP time of the last sender report
+         */
+        private long reportNtp = 0L;
+
+        /**
+         * RTP timestamp of the last sender report
+         */
+        private long reportTimestamp = 0L;
+
+        /**
+         * Transit times of the last sender reports, from the sender clock to
+         * the local clock, in milliseconds
+         */
+        private final long[] transits = new long[REPORT_WINDOW];
+
+        /**
+         * Number of received sender reports
+         */
+        private int reports = 0;
+
+        /**
+         * Constructor
+         *
+         * @param headerId Element id
+         * @param clockRate Clock rate of the RTP timestamps
+         */
+        public Reader(int headerId, int clockRate) {
+            this.headerId = headerId;
+            this.clockRate = clockRate;
+        }
+
+        /**
+         * Read and strip the capture time of a received RTP packet
+         *
+         * @param data Buffer
+         * @param offset Offset of the packet
+         * @param length Length of the packet
+         * @return New length of the packet
+         */
+        public int filter(byte[] data, int offset, int length) {
+            long captureTime = read(data, offset, length, headerId);
+            if (captureTime == 0) {
+                return length;
+            }
+            synchronized (this) {
+                int index = count % HISTORY_SIZE;
+                timestamps[index] = getTimestamp(data, offset);
+                captureTimes[index] = captureTime;
+                count++;
+            }
+            return strip(data, offset, length, headerId);
+        }
+
+        /**
+         * Read the sender reports of a received RTCP packet
+         *
+         * @param data Buffer
+         * @param offset Offset of the packet
+         * @param length Length of the packet
+         */
+        public void onReceived(byte[] data, int offset, int length) {
+            long now = System.currentTimeMillis();
+            int pos = offset;
+            int end = offset + length;
+            while (pos + 4 <= end) {
+                int size = (readShort(data, pos + 2) + 1) * 4;
+                if (((data[pos + 1] & 0xff) == RTCP_SR) && (pos + 20 <= end)) {
+                    long ntp = (readInt(data, pos + 8) << 32) | readInt(data, pos + 12);
+                    synchronized (this) {
+                        reportNtp = ntp;
+                        reportTimestamp = readInt(data, pos + 16);
+                        transits[reports % REPORT_WINDOW] = now - toMillis(ntp);
+                        reports++;
+                    }
+                }
+                pos += size;
+            }
+        }
+
+        /**
+         * Returns the capture time of a frame on the local wall clock. The
+         * capture time comes from the header extension, or else from the
+         * mapping of the last sender report. Both clocks are assumed to be
+         * synchronized, unless the sender reports arrive before they are
+         * sent: the capture time is then moved back by the advance of the
+         * sender clock.
+         *
+         * @param timestamp RTP timestamp of the frame
+         * @return Milliseconds since 1970 or -1 if unknown
+         */
+        public synchronized long getCaptureTime(long timestamp) {
+            timestamp &= 0xffffffffL;
+            long ntp = 0L;
+            for (int i = 0; i < Math.min(count, HISTORY_SIZE); i++) {
+                int index = (count - 1 - i) % HISTORY_SIZE;
+                if (timestamps[index] == timestamp) {
+                    ntp = captureTimes[index];
+                    break;
+                }
+            }
+            long millis;
+            if (ntp != 0) {
+                millis = toMillis(ntp);
+            } else if (reportNtp != 0) {
+                int elapsed = (int)(timestamp - reportTimestamp);
+                millis = toMillis(reportNtp) + elapsed * 1000L / clockRate;
+            } else {
+                return -1L;
+            }
+            long minTransit = 0L;
+            for (int i = 0; i < Math.min(reports, REPORT_WINDOW); i++) {
+                minTransit = Math.min(minTransit, transits[i]);
+            }
+            return millis + minTransit;
+        }
+    }
+}
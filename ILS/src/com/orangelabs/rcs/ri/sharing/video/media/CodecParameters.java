@@ -0,0 +1,196 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import com.gsma.services.rcs.vsh.VideoCodec;
+
+/**
+ * Extension parameters of the video codec, carried in the format parameters
+ * of the session description next to the profile and the packetization
+ * mode. They negotiate the features which change what is sent on the media
+ * port, so that a receiver which doesn't know them never gets packets it
+ * can't handle: a receiver ignores an unknown parameter and doesn't answer
+ * it.
+ */
+public class CodecParameters {
+    /**
+     * FEC packets sent on the media port, the value is their payload type
+     */
+    public static final String FEC = "x-ils-fec";
+
+    /**
+     * Multicast group the video is sent to, the value is the group address,
+     * port and time to live as "address:port/ttl". The video sharing stays
+     * the unicast feedback and repair channel of the receiver.
+     */
+    public static final String MULTICAST = "x-ils-multicast";
+
+    /**
+     * Separator of the parameters
+     */
+    private static final char SEPARATOR = ';';
+
+    /**
+     * Constructor
+     */
+    private CodecParameters() {
+    }
+
+    /**
+     * Returns the value of a parameter
+     *
+     * @param params Format parameters, may be null
+     * @param name Parameter name
+     * @return Value or null if the parameter is absent
+     */
+    public static String getValue(String params, String name) {
+        if (params == null) {
+            return null;
+        }
+        int start = 0;
+        while (start < params.length()) {
+            int end = params.indexOf(SEPARATOR, start);
+            if (end < 0) {
+                end = params.length();
+            }
+            String param = params.substring(start, end).trim();
+            int equal = param.indexOf('=');
+            String key = (equal < 0) ? param : param.substring(0, equal).trim();
+            if (key.equalsIgnoreCase(name)) {
+                return (equal < 0) ? "" : param.substring(equal + 1).trim();
+            }
+            start = end + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a codec with a parameter added or replaced
+     *
+     * @param codec Codec
+     * @param name Parameter name
+     * @param value Parameter value
+     * @return New codec
+     */
+    public static VideoCodec withParameter(VideoCodec codec, String name, String value) {
+        String params = withoutParameter(codec.getParameters(), name);
+        String param = name + "=" + value;
+        params = ((params == null) || (params.length() == 0)) ? param : params + SEPARATOR + param;
+        return new VideoCodec(codec.getEncoding(), codec.getPayloadType(), codec.getClockRate(),
+                codec.getFrameRate(), codec.getBitRate(), codec.getVideoWidth(), codec.getVideoHeight(),
+                params);
+    }
+
+    /**
+     * Remove a parameter
+     *
+     * @param params Format parameters, may be null
+     * @param name Parameter name
+     * @return Format parameters without the parameter
+     */
+    private static String withoutParameter(String params, String name) {
+        if ((params == null) || (getValue(params, name) == null)) {
+            return params;
+        }
+        StringBuilder result = new StringBuilder();
+        int start = 0;
+        while (start < params.length()) {
+            int end = params.indexOf(SEPARATOR, start);
+            if (end < 0) {
+                end = params.length();
+            }
+            String param = params.substring(start, end).trim();
+            int equal = param.indexOf('=');
+            String key = (equal < 0) ? param : param.substring(0, equal).trim();
+            if ((param.length() > 0) && !key.equalsIgnoreCase(name)) {
+                if (result.length() > 0) {
+                    result.append(SEPARATOR);
+                }
+                result.append(param);
+            }
+            start = end + 1;
+        }
+        return result.toString();
+    }
+
+    /**
+     * Returns a codec offering or accepting the FEC packets
+     *
+     * @param codec Codec
+     * @return New codec
+     */
+    public static VideoCodec withFec(VideoCodec codec) {
+        return withParameter(codec, FEC, String.valueOf(UlpFec.PAYLOAD_TYPE));
+    }
+
+    /**
+     * Returns a codec inviting the receiver to a multicast group
+     *
+     * @param codec Codec
+     * @param group Multicast group
+     * @return New codec
+     */
+    public static VideoCodec withMulticastGroup(VideoCodec codec, MulticastGroup group) {
+        return withParameter(codec, MULTICAST, group.getAddress() + ":" + group.getPort() + "/"
+                + group.getTimeToLive());
+    }
+
+    /**
+     * Returns the multicast group a codec invites the receiver to
+     *
+     * @param codec Offered codec, may be null
+     * @return Group or null if the video is sent in unicast or the group is
+     *         not valid
+     */
+    public static MulticastGroup getMulticastGroup(VideoCodec codec) {
+        if (codec == null) {
+            return null;
+        }
+        String value = getValue(codec.getParameters(), MULTICAST);
+        if (value == null) {
+            return null;
+        }
+        for (int i = 0; i < value.length(); i++) {
+            // A literal address only, the remote is not trusted with a
+            // host name to resolve
+            char c = value.charAt(i);
+            if ((Character.digit(c, 16) < 0) && (c != '.') && (c != ':') && (c != '/')) {
+                return null;
+            }
+        }
+        int slash = value.lastIndexOf('/');
+        String descriptor = MulticastGroup.SCHEME + ((slash < 0) ? value
+                : value.substring(0, slash) + ";ttl=" + value.substring(slash + 1));
+        return MulticastGroup.parse(descriptor);
+    }
+
+    /**
+     * Are the FEC packets negotiated by a codec, with the payload type used
+     * by the FEC encoder and decoder
+     *
+     * @param codec Negotiated codec, may be null
+     * @return Boolean
+     */
+    public static boolean isFecNegotiated(VideoCodec codec) {
+        if (codec == null) {
+            return false;
+        }
+        return String.valueOf(UlpFec.PAYLOAD_TYPE).equals(getValue(codec.getParameters(), FEC));
+    }
+}
@@ -54,23 +54,110 @@ public interface DatagramConnection {
 	public void close() throws IOException;
 	
 	/**
-	 * Send data
+	 * Send data. Once the connection is bound to a peer, the destination
+	 * must be the peer.
 	 * 
 	 * @param remoteAddr Remote address
 	 * @param remotePort Remote port
 	 * @param data Data as byte array
-	 * @throws IOException
+	 * @throws IOException if the data can't be sent, or the destination is
+	 *         not the peer of a bound connection
 	 */
 	public void send(String remoteAddr, int remotePort, byte[] data) throws IOException;
+
+	/**
+	 * Send data without applying the send filters. Used by the filters to
+	 * send the datagrams they produce, e.g. retransmissions or FEC, from the
+	 * socket of the media session. Once the connection is bound to a peer,
+	 * the destination must be the peer.
+	 *
+	 * @param remoteAddr Remote address
+	 * @param remotePort Remote port
+	 * @param data Data as byte array
+	 * @param offset Offset of the data
+	 * @param length Length of the data
+	 * @throws IOException if the data can't be sent, or the destination is
+	 *         not the peer of a bound connection
+	 */
+	public void sendDirect(String remoteAddr, int remotePort, byte[] data, int offset, int length) throws IOException;
+
+	/**
+	 * Bind the connection to a peer. The address is resolved once and the
+	 * socket is connected, so the kernel no longer looks up the route of
+	 * each packet. Once connected only datagrams from the peer are received.
+	 * 
+	 * @param remoteAddr Remote address
+	 * @param remotePort Remote port
+	 * @throws IOException
+	 */
+	public void connect(String remoteAddr, int remotePort) throws IOException;
+
+	/**
+	 * Unbind the connection from its peer
+	 */
+	public void disconnect();
+
+	/**
+	 * Is the connection bound to a peer
+	 * 
+	 * @return Boolean
+	 */
+	public boolean isConnected();
+
+	/**
+	 * Send data to the connected peer
+	 * 
+	 * @param data Data as byte array
+	 * @param offset Offset of the data
+	 * @param length Length of the data
+	 * @throws IOException
+	 */
+	public void send(byte[] data, int offset, int length) throws IOException;
+
+	/**
+	 * Send several datagrams to the connected peer in one call, e.g. all the
+	 * RTP fragments of an access unit
+	 * 
+	 * @param packets Datagrams, each one starting at offset 0
+	 * @param lengths Length of each datagram
+	 * @param count Number of datagrams to send
+	 * @throws IOException
+	 */
+	public void send(byte[][] packets, int[] lengths, int count) throws IOException;
 	
 	/**
-	 * Receive data
+	 * Receive data. Each call allocates a new array, prefer the buffer
+	 * variants on the media path. The RTP and RTCP receivers of the media
+	 * library still receive through this method: the array is the packet
+	 * handed to the library, which keeps it until parsed, so it can't be
+	 * reused.
 	 * 
 	 * @return Byte array
 	 * @throws IOException
 	 */
 	public byte[] receive() throws IOException;
 
+	/**
+	 * Receive data into a caller buffer
+	 * 
+	 * @param buffer Destination buffer
+	 * @param offset Offset in the buffer
+	 * @param length Maximum number of bytes to receive
+	 * @return Number of bytes received
+	 * @throws IOException
+	 */
+	public int receive(byte[] buffer, int offset, int length) throws IOException;
+
+	/**
+	 * Receive data into a buffer taken from a pool. The caller must release
+	 * the returned buffer.
+	 * 
+	 * @param pool Packet buffer pool
+	 * @return Packet buffer
+	 * @throws IOException
+	 */
+	public PacketBuffer receive(PacketBufferPool pool) throws IOException;
+
 	/**
 	 * Returns the local address
 	 * 
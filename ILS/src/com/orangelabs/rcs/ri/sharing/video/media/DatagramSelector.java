@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.IOException;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.util.Log;
+
+import com.orangelabs.rcs.ri.utils.LogUtils;
+
+/**
+ * Process-wide selector multiplexing every NIO datagram connection. A single
+ * thread reads all the RTP and RTCP sockets into the receive queues of the
+ * connections. The reader threads of the RTP stack still wait on those
+ * queues, one per connection, but no thread is blocked in a socket call and
+ * a connection with a listener needs no reader thread at all.
+ */
+public class DatagramSelector implements Runnable {
+    /**
+     * Maximum number of datagrams read from one channel before serving the others
+     */
+    private static final int MAX_READS_PER_CHANNEL = 16;
+
+    /**
+     * Log tag
+     */
+    private static final String LOGTAG = LogUtils.getTag(DatagramSelector.class.getSimpleName());
+
+    /**
+     * Singleton instance
+     */
+    private static DatagramSelector instance = null;
+
+    /**
+     * Selector
+     */
+    private final Selector selector;
+
+    /**
+     * Connections waiting to be registered by the selector thread
+     */
+    private final ConcurrentLinkedQueue<NioDatagramConnection> pending = new ConcurrentLinkedQueue<NioDatagramConnection>();
+
+    /**
+     * Read buffer shared by all the channels
+     */
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(DatagramConnection.DEFAULT_DATAGRAM_SIZE);
+
+    /**
+     * Selector thread
+     */
+    private final Thread thread;
+
+    /**
+     * Returns the selector, starting its thread on first use
+     *
+     * @return Selector
+     * @throws IOException
+     */
+    public static synchronized DatagramSelector getInstance() throws IOException {
+        if ((instance == null) || !instance.selector.isOpen()) {
+            instance = new DatagramSelector();
+        }
+        return instance;
+    }
+
+    /**
+     * Constructor
+     *
+     * @throws IOException
+     */
+    private DatagramSelector() throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "DatagramSelector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Register a connection, its channel must be in non-blocking mode
+     *
+     * @param connection Connection
+     */
+    void register(NioDatagramConnection connection) {
+        pending.add(connection);
+        selector.wakeup();
+    }
+
+    /**
+     * Unregister a connection
+     *
+     * @param connection Connection
+     */
+    void unregister(NioDatagramConnection connection) {
+        SelectionKey key = connection.getChannel().keyFor(selector);
+        if (key != null) {
+            key.cancel();
+        }
+        selector.wakeup();
+    }
+
+    /**
+     * Selector loop, until the selector is closed
+     */
+    public void run() {
+        while (selector.isOpen()) {
+            try {
+                selector.select();
+                registerPending();
+
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid() && key.isReadable()) {
+                        read(key);
+                    }
+                }
+            } catch (ClosedSelectorException e) {
+                break;
+            } catch (Exception e) {
+                if (LogUtils.isActive) {
+                    Log.e(LOGTAG, "Selector loop error", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Register the pending connections
+     */
+    private void registerPending() {
+        NioDatagramConnection connection;
+        while ((connection = pending.poll()) != null) {
+            DatagramChannel channel = connection.getChannel();
+            if (channel.isOpen()) {
+                try {
+                    channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    if (LogUtils.isActive) {
+                        Log.e(LOGTAG, "Can't register channel", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the datagrams available on a channel
+     *
+     * @param key Selection key
+     */
+    private void read(SelectionKey key) {
+        NioDatagramConnection connection = (NioDatagramConnection)key.attachment();
+        DatagramChannel channel = (DatagramChannel)key.channel();
+        try {
+            for (int i = 0; i < MAX_READS_PER_CHANNEL; i++) {
+                readBuffer.clear();
+                if (channel.receive(readBuffer) == null) {
+                    break;
+                }
+                readBuffer.flip();
+                connection.onDatagram(readBuffer);
+            }
+        } catch (PortUnreachableException e) {
+            // ICMP error of a previous send on a connected channel, the
+            // peer may not listen yet: the channel stays registered
+            if (LogUtils.isActive) {
+                Log.w(LOGTAG, "Remote port unreachable");
+            }
+        } catch (IOException e) {
+            key.cancel();
+            connection.onError(e);
+        }
+    }
+}
@@ -21,30 +21,97 @@ package com.orangelabs.rcs.ri.sharing.video.media;
 import java.util.Vector;
 
 /**
- * FIFO buffer
+ * FIFO buffer. The default buffer is unbounded and can be reused once
+ * closed, as expected by the media library. A buffer created with a
+ * capacity is backed by a lock-free ring buffer and applies its overflow
+ * policy when full, its close is final.
  * 
  * @author Jean-Marc AUFFRET
  */
 public class FifoBuffer {
 	/**
-	 * Number of objects in the buffer
+	 * Default capacity of a bounded buffer
+	 */
+	public static final int DEFAULT_CAPACITY = 256;
+
+	/**
+	 * Ring buffer of objects, null for an unbounded buffer
+	 */
+	private final RingBuffer<Object> ring;
+
+	/**
+	 * Objects of an unbounded buffer
+	 */
+	private final Vector<Object> fifo;
+
+	/**
+	 * Number of objects in an unbounded buffer
 	 */
 	private int nbObjects = 0;
 
 	/**
-	 * Buffer of objects
+	 * Highest number of objects seen in an unbounded buffer
 	 */
-	private Vector<Object> fifo = new Vector<Object>();
+	private int highWaterMark = 0;
+
+	/**
+	 * Constructor of an unbounded buffer
+	 */
+	public FifoBuffer() {
+		ring = null;
+		fifo = new Vector<Object>();
+	}
+
+	/**
+	 * Constructor of a bounded buffer
+	 *
+	 * @param capacity Capacity
+	 * @param policy Overflow policy
+	 * @param singleProducer True if only one thread adds objects
+	 */
+	public FifoBuffer(int capacity, RingBuffer.OverflowPolicy policy, boolean singleProducer) {
+		if (singleProducer) {
+			ring = new SpscRingBuffer<Object>(capacity, policy);
+		} else {
+			ring = new MpscRingBuffer<Object>(capacity, policy);
+		}
+		fifo = null;
+	}
 
 	/**
 	 * Add an object in the buffer
 	 *
 	 * @param obj Message
 	 */
-	public synchronized void addObject(Object obj) {
-		fifo.addElement(obj);
-		nbObjects++;
-		notifyAll();
+	public void addObject(Object obj) {
+		if (ring != null) {
+			ring.offer(obj);
+			return;
+		}
+		synchronized(this) {
+			fifo.addElement(obj);
+			nbObjects++;
+			if (nbObjects > highWaterMark) {
+				highWaterMark = nbObjects;
+			}
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Add an object in the buffer, waiting for a free slot if the overflow
+	 * policy is BLOCK
+	 *
+	 * @param obj Message
+	 * @param timeout Timeout
+	 * @return True if the object has been added
+	 */
+	public boolean addObject(Object obj, int timeout) {
+		if (ring != null) {
+			return ring.offer(obj, timeout);
+		}
+		addObject(obj);
+		return true;
 	}
 
 	/**
@@ -52,22 +119,11 @@ public class FifoBuffer {
 	 * 
 	 * @return Object
 	 */
-	public synchronized Object getObject() {
-		Object obj = null;
-		if (nbObjects == 0) {
-			try {
-				wait();
-			} catch (InterruptedException e) {
-				// Nothing to do
-			}
+	public Object getObject() {
+		if (ring != null) {
+			return ring.take(0);
 		}
-		if (nbObjects != 0) {
-			obj = fifo.elementAt(0);
-			fifo.removeElementAt(0);
-			nbObjects--;
-			notifyAll();
-		}
-		return obj;
+		return pollObject(0);
 	}
 
 	/**
@@ -77,7 +133,20 @@ public class FifoBuffer {
 	 * @param timeout Timeout
 	 * @return Message
 	 */
-	public synchronized Object getObject(int timeout) {
+	public Object getObject(int timeout) {
+		if (ring != null) {
+			return ring.take(timeout);
+		}
+		return pollObject(timeout);
+	}
+
+	/**
+	 * Read an object in an unbounded buffer, waiting once if it is empty
+	 *
+	 * @param timeout Timeout, 0 to wait until notified
+	 * @return Object or null
+	 */
+	private synchronized Object pollObject(int timeout) {
 		Object obj = null;
 		if (nbObjects == 0) {
 			try {
@@ -98,17 +167,36 @@ public class FifoBuffer {
 	/**
 	 * Close the buffer
 	 */
-	public synchronized void close() {
-		// Free the semaphore
-		this.notifyAll();
+	public void close() {
+		if (ring != null) {
+			// Free the waiting reader
+			ring.close();
+			return;
+		}
+		synchronized(this) {
+			// Free the semaphore
+			notifyAll();
+		}
 	}
 
+    /**
+     * Is the buffer closed, an unbounded buffer never is
+     *
+     * @return Boolean
+     */
+    public boolean isClosed() {
+        return (ring != null) && ring.isClosed();
+    }
+
     /**
      * Get FIFO size
      *
      * @return size of the FIFO
      */
     public int size() {
+        if (ring != null) {
+            return ring.size();
+        }
         return fifo.size();
     }
 
@@ -118,12 +206,44 @@ public class FifoBuffer {
      * @return size of the FIFO
      */
     public void clean(int size) {
-        if (fifo.size() > size) {
-            while (size > 0) {
-                fifo.removeElementAt(0);
-                nbObjects--;
-                size--;
+        if (ring != null) {
+            if (ring.size() > size) {
+                ring.discard(size);
             }
+            return;
+        }
+        synchronized(this) {
+            if (fifo.size() > size) {
+                while (size > 0) {
+                    fifo.removeElementAt(0);
+                    nbObjects--;
+                    size--;
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of dropped objects, always 0 for an unbounded buffer
+     *
+     * @return Count
+     */
+    public long getDroppedCount() {
+        if (ring != null) {
+            return ring.getDroppedCount();
+        }
+        return 0L;
+    }
+
+    /**
+     * Get the highest number of objects seen in the buffer
+     *
+     * @return Count
+     */
+    public int getHighWaterMark() {
+        if (ring != null) {
+            return ring.getHighWaterMark();
         }
+        return highWaterMark;
     }
 }
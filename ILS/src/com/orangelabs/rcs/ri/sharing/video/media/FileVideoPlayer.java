@@ -0,0 +1,606 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+
+import android.os.RemoteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.gsma.services.rcs.vsh.IVideoPlayerListener;
+import com.gsma.services.rcs.vsh.VideoCodec;
+import com.gsma.services.rcs.vsh.VideoPlayer;
+import com.orangelabs.rcs.core.ims.protocol.rtp.VideoRtpSender;
+import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.H264Config;
+import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.JavaPacketizer;
+import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.profiles.H264Profile1b;
+import com.orangelabs.rcs.core.ims.protocol.rtp.format.video.H264VideoFormat;
+import com.orangelabs.rcs.core.ims.protocol.rtp.media.MediaException;
+import com.orangelabs.rcs.core.ims.protocol.rtp.media.MediaInput;
+import com.orangelabs.rcs.core.ims.protocol.rtp.media.VideoSample;
+import com.orangelabs.rcs.core.ims.protocol.rtp.stream.RtpStreamListener;
+import com.orangelabs.rcs.ri.utils.LogUtils;
+
+/**
+ * Video player of a pre-recorded H264 file. The samples are read from the
+ * memory-mapped file and packetized as they are, at the pace given by their
+ * timestamps: there is no camera and no encoder, so the stream costs almost
+ * no CPU. The file must be encoded with a codec the remote accepts.
+ */
+public class FileVideoPlayer extends VideoPlayer implements RtpStreamListener {
+    /**
+     * Send queue size in NAL units
+     */
+    private static final int SEND_QUEUE_SIZE = 128;
+
+    /**
+     * Maximum wait of the pacing thread for room in the send queue, in
+     * milliseconds
+     */
+    private static final int SEND_QUEUE_TIMEOUT = 500;
+
+    /**
+     * The log tag for this class
+     */
+    private static final String LOGTAG = LogUtils.getTag(FileVideoPlayer.class.getSimpleName());
+
+    /**
+     * Video file
+     */
+    private final File file;
+
+    /**
+     * Codec of the video file
+     */
+    private final VideoCodec videoCodec;
+
+    /**
+     * File reader
+     */
+    private VideoFileReader reader = null;
+
+    /**
+     * Restart from the beginning at the end of the file
+     */
+    private volatile boolean loop = false;
+
+    /**
+     * Sample to start from, or -1 to go on
+     */
+    private volatile int seekSample = -1;
+
+    /**
+     * Is player opened
+     */
+    private boolean opened = false;
+
+    /**
+     * Is player started
+     */
+    private volatile boolean started = false;
+
+    /**
+     * Local RTP port
+     */
+    private int localRtpPort;
+
+    /**
+     * Lease of the local RTP/RTCP ports
+     */
+    private PortLease portLease = null;
+
+    /**
+     * RTP sender session
+     */
+    private VideoRtpSender rtpSender = null;
+
+    /**
+     * RTP media input
+     */
+    private FileRtpInput rtpInput = null;
+
+    /**
+     * Pacing thread
+     */
+    private PacingThread pacingThread = null;
+
+    /**
+     * Constructor. The file is assumed to be QCIF, as sent by the camera
+     * player.
+     *
+     * @param file Annex B or MP4 file
+     */
+    public FileVideoPlayer(File file) {
+        this(file, new VideoCodec(H264Config.CODEC_NAME,
+                H264VideoFormat.PAYLOAD,
+                H264Config.CLOCK_RATE,
+                15,
+                96000,
+                H264Config.QCIF_WIDTH,
+                H264Config.QCIF_HEIGHT,
+                H264Config.CODEC_PARAM_PROFILEID + "=" + H264Profile1b.BASELINE_PROFILE_ID + ";" + H264Config.CODEC_PARAM_PACKETIZATIONMODE + "=" + JavaPacketizer.H264_ENABLED_PACKETIZATION_MODE));
+    }
+
+    /**
+     * Constructor
+     *
+     * @param file Annex B or MP4 file
+     * @param codec Codec of the file
+     */
+    public FileVideoPlayer(File file, VideoCodec codec) {
+        this.file = file;
+        this.videoCodec = codec;
+
+        // Set the local RTP port
+        reservePort();
+    }
+
+    /**
+     * Returns the local RTP port
+     *
+     * @return Port
+     */
+    public int getLocalRtpPort() {
+        return localRtpPort;
+    }
+
+    /**
+     * Returns the list of codecs supported by the player: the codec of the file
+     *
+     * @return List of codecs
+     */
+    public VideoCodec[] getSupportedCodecs() {
+        return new VideoCodec[] { videoCodec };
+    }
+
+    /**
+     * Returns the current codec
+     *
+     * @return Codec
+     */
+    public VideoCodec getCodec() {
+        return videoCodec;
+    }
+
+    /**
+     * Restart from the beginning at the end of the file
+     *
+     * @param loop Loop flag
+     */
+    public void setLoop(boolean loop) {
+        this.loop = loop;
+    }
+
+    /**
+     * Returns the duration of the file
+     *
+     * @return Duration in milliseconds or 0 if the player is not opened
+     */
+    public long getDuration() {
+        VideoFileReader fileReader = reader;
+        return (fileReader != null) ? fileReader.getDuration() : 0L;
+    }
+
+    /**
+     * Go to a position. Playing starts again from the keyframe preceding
+     * the position.
+     *
+     * @param position Position in milliseconds
+     */
+    public void seekTo(long position) {
+        VideoFileReader fileReader = reader;
+        if (fileReader != null) {
+            seekSample = fileReader.findKeyFrame(position);
+        }
+    }
+
+    /**
+     * Opens the player
+     *
+     * @param codec Video codec
+     * @param remoteHost Remote RTP host
+     * @param remotePort Remote RTP port
+     */
+    public synchronized void open(VideoCodec codec, String remoteHost, int remotePort) {
+        if (opened) {
+            // Already opened
+            return;
+        }
+
+        // Map the video file
+        try {
+            reader = VideoFileReader.open(file);
+        } catch (IOException e) {
+            if (LogUtils.isActive) {
+                Log.w(LOGTAG, "Can't read " + file, e);
+            }
+            releasePort();
+            notifyPlayerEventError(VideoPlayer.Error.INTERNAL_ERROR);
+            return;
+        }
+
+        // Init the RTP layer
+        try {
+            rtpSender = new VideoRtpSender(new H264VideoFormat(), localRtpPort);
+            rtpInput = new FileRtpInput();
+            rtpInput.open();
+            rtpSender.prepareSession(rtpInput, remoteHost, remotePort, this);
+            if (portLease != null) {
+                // The RTP and RTCP packets of the stack leave from connected
+                // sockets
+                portLease.connect(remoteHost, remotePort);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            if (rtpInput != null) {
+                rtpInput.close();
+                rtpInput = null;
+            }
+            if (rtpSender != null) {
+                rtpSender.stopSession();
+                rtpSender = null;
+            }
+            reader = null;
+            releasePort();
+            notifyPlayerEventError(VideoPlayer.Error.INTERNAL_ERROR);
+            return;
+        }
+
+        // Player is opened
+        opened = true;
+        notifyPlayerEventOpened();
+    }
+
+    /**
+     * Closes the player
+     */
+    public synchronized void close() {
+        if (!opened) {
+            // Already closed
+            return;
+        }
+        stop();
+
+        // Close the RTP layer
+        rtpInput.close();
+        rtpSender.stopSession();
+        releasePort();
+        reader = null;
+
+        // Player is closed
+        opened = false;
+        notifyPlayerEventClosed();
+
+        // Remove all listeners
+        removeAllEventListeners();
+    }
+
+    /**
+     * Starts the player
+     */
+    public synchronized void start() {
+        if (!opened) {
+            // Player not opened
+            return;
+        }
+
+        if (started) {
+            // Already started
+            return;
+        }
+
+        // Start RTP layer
+        rtpSender.startSession();
+
+        // Start reading the file
+        started = true;
+        pacingThread = new PacingThread(reader);
+        pacingThread.start();
+        notifyPlayerEventStarted();
+    }
+
+    /**
+     * Stops the player
+     */
+    public synchronized void stop() {
+        if (!started) {
+            // Already stopped
+            return;
+        }
+
+        // Stop reading the file
+        started = false;
+        pacingThread.interrupt();
+        try {
+            pacingThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        pacingThread = null;
+        notifyPlayerEventStopped();
+    }
+
+    /**
+     * Is player opened
+     *
+     * @return Boolean
+     */
+    public boolean isOpened() {
+        return opened;
+    }
+
+    /**
+     * Is player started
+     *
+     * @return Boolean
+     */
+    public boolean isStarted() {
+        return started;
+    }
+
+    /**
+     * Notify RTP aborted
+     */
+    public void rtpStreamAborted() {
+        notifyPlayerEventError(VideoPlayer.Error.NETWORK_FAILURE);
+    }
+
+    /**
+     * Reserve the local RTP/RTCP ports. The ports stay bound until the RTP
+     * stack opens them.
+     */
+    private void reservePort() {
+        if (portLease == null) {
+            try {
+                portLease = NetworkRessourceManager.allocateRtpPorts();
+                localRtpPort = portLease.getRtpPort();
+            } catch (IOException e) {
+                localRtpPort = -1;
+            }
+        }
+    }
+
+    /**
+     * Release the reserved ports which have not been opened by the RTP stack
+     */
+    private void releasePort() {
+        if (portLease != null) {
+            portLease.release();
+            portLease = null;
+        }
+    }
+
+    /**
+     * Notify player event started
+     */
+    private void notifyPlayerEventStarted() {
+        try {
+            Iterator<IVideoPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerStarted();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify player event stopped
+     */
+    private void notifyPlayerEventStopped() {
+        try {
+            Iterator<IVideoPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerStopped();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify player event opened
+     */
+    private void notifyPlayerEventOpened() {
+        try {
+            Iterator<IVideoPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerOpened();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify player event closed
+     */
+    private void notifyPlayerEventClosed() {
+        try {
+            Iterator<IVideoPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerClosed();
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Notify player event error
+     */
+    private void notifyPlayerEventError(int error) {
+        try {
+            Iterator<IVideoPlayerListener> ite = getEventListeners().iterator();
+            while (ite.hasNext()) {
+                ite.next().onPlayerError(error);
+            }
+        } catch(RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Thread releasing the samples of the file when their time has come
+     */
+    private class PacingThread extends Thread {
+        /**
+         * File reader
+         */
+        private final VideoFileReader fileReader;
+
+        /**
+         * Constructor
+         *
+         * @param fileReader File reader
+         */
+        public PacingThread(VideoFileReader fileReader) {
+            super("VideoFilePlayer");
+            this.fileReader = fileReader;
+        }
+
+        /**
+         * Background processing
+         */
+        public void run() {
+            int count = fileReader.getSampleCount();
+            long frameInterval = H264Config.CLOCK_RATE / videoCodec.getFrameRate();
+
+            // RTP timestamp and uptime of the first sample of the current run
+            long baseTimestamp = 0L;
+            long baseTime = SystemClock.uptimeMillis();
+            long lastTimestamp = -frameInterval;
+            int sample = 0;
+            long firstTimestamp = fileReader.getTimestamp(0);
+            while (started) {
+                int seek = seekSample;
+                if (seek >= 0) {
+                    seekSample = -1;
+                    sample = seek;
+                    baseTimestamp = lastTimestamp + frameInterval;
+                    baseTime = SystemClock.uptimeMillis();
+                    firstTimestamp = fileReader.getTimestamp(sample);
+                } else if (sample >= count) {
+                    if (!loop) {
+                        break;
+                    }
+                    // Timestamps go on increasing from one run to the next
+                    sample = 0;
+                    baseTimestamp = lastTimestamp + frameInterval;
+                    baseTime = SystemClock.uptimeMillis() + frameInterval * 1000 / H264Config.CLOCK_RATE;
+                    firstTimestamp = fileReader.getTimestamp(0);
+                }
+
+                // Wait for the time of the sample
+                long offset = fileReader.getTimestamp(sample) - firstTimestamp;
+                long delay = baseTime + offset * 1000 / H264Config.CLOCK_RATE - SystemClock.uptimeMillis();
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(delay);
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                    if (seekSample >= 0) {
+                        continue;
+                    }
+                }
+
+                // Samples are sent in decoding order, stamped with their
+                // presentation time
+                long timestamp = baseTimestamp + offset;
+                long presentation = timestamp + fileReader.getCompositionOffset(sample);
+                List<byte[]> nals = fileReader.getNalUnits(sample);
+                for (int i = 0; i < nals.size(); i++) {
+                    if (!rtpInput.addFrame(nals.get(i), presentation)) {
+                        break;
+                    }
+                }
+                lastTimestamp = timestamp;
+                sample++;
+            }
+        }
+    }
+
+    /**
+     * Media RTP input of the file
+     */
+    private static class FileRtpInput implements MediaInput {
+        /**
+         * NAL units to send
+         */
+        private FifoBuffer fifo = null;
+
+        /**
+         * Add a NAL unit. Called from the pacing thread, waits if the RTP
+         * layer is late.
+         *
+         * @param data NAL unit
+         * @param timestamp Timestamp
+         * @return False if the NAL unit has not been queued
+         */
+        public boolean addFrame(byte[] data, long timestamp) {
+            FifoBuffer queue = fifo;
+            if (queue == null) {
+                return false;
+            }
+            return queue.addObject(new VideoSample(data, timestamp, null), SEND_QUEUE_TIMEOUT);
+        }
+
+        /**
+         * Open the player
+         */
+        public void open() {
+            // NAL units are only produced by the pacing thread
+            fifo = new FifoBuffer(SEND_QUEUE_SIZE, RingBuffer.OverflowPolicy.BLOCK, true);
+        }
+
+        /**
+         * Close the player
+         */
+        public void close() {
+            if (fifo != null) {
+                fifo.close();
+                fifo = null;
+            }
+        }
+
+        /**
+         * Read a media sample (blocking method)
+         *
+         * @return Media sample
+         * @throws MediaException
+         */
+        public VideoSample readSample() throws MediaException {
+            try {
+                FifoBuffer queue = fifo;
+                if (queue != null) {
+                    return (VideoSample)queue.getObject();
+                } else {
+                    throw new MediaException("Media input not opened");
+                }
+            } catch (Exception e) {
+                throw new MediaException("Can't read media sample");
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+/**
+ * Frame scheduler of the encoding thread. Frame slots are computed from a
+ * monotonic clock origin, so the cadence does not drift with sleep
+ * inaccuracy or wall clock adjustments. When the encoder falls behind, the
+ * missed slots are skipped instead of being encoded in a burst.
+ */
+public class FrameScheduler {
+    /**
+     * Nanoseconds per second
+     */
+    private static final long NANOS_PER_SECOND = 1000000000L;
+
+    /**
+     * Interval between two frames in nanoseconds
+     */
+    private long interval;
+
+    /**
+     * RTP clock rate
+     */
+    private final int clockRate;
+
+    /**
+     * Clock origin of the RTP timestamps
+     */
+    private long origin = 0L;
+
+    /**
+     * Clock origin of the frame slots
+     */
+    private long slotOrigin = 0L;
+
+    /**
+     * Index of the next frame slot
+     */
+    private long slot = 0L;
+
+    /**
+     * Last RTP timestamp
+     */
+    private long lastTimestamp = -1L;
+
+    /**
+     * Number of captured frames
+     */
+    private volatile long captured = 0L;
+
+    /**
+     * Number of encoded frames
+     */
+    private volatile long encoded = 0L;
+
+    /**
+     * Number of skipped frame slots
+     */
+    private volatile long skipped = 0L;
+
+    /**
+     * Number of frames encoded after the end of their slot
+     */
+    private volatile long late = 0L;
+
+    /**
+     * Constructor
+     *
+     * @param frameRate Frame rate
+     * @param clockRate RTP clock rate
+     */
+    public FrameScheduler(int frameRate, int clockRate) {
+        this.interval = NANOS_PER_SECOND / Math.max(1, frameRate);
+        this.clockRate = clockRate;
+        start();
+    }
+
+    /**
+     * Returns the current time of the monotonic clock
+     *
+     * @return Nanoseconds
+     */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Reset the clock origin and the counters
+     */
+    public synchronized void start() {
+        origin = now();
+        slotOrigin = origin;
+        slot = 0L;
+        lastTimestamp = -1L;
+        captured = 0L;
+        encoded = 0L;
+        skipped = 0L;
+        late = 0L;
+    }
+
+    /**
+     * Wait for the beginning of the next frame slot. Slots already over are
+     * skipped.
+     *
+     * @throws InterruptedException
+     */
+    public void awaitNextFrame() throws InterruptedException {
+        long deadline;
+        synchronized (this) {
+            long current = now();
+            deadline = slotOrigin + slot * interval;
+            long behind = current - deadline;
+            if (behind > interval) {
+                // The previous frame overran its slot: skip the missed slots
+                long missed = behind / interval;
+                late++;
+                skipped += missed;
+                slot += missed;
+                deadline = slotOrigin + slot * interval;
+            }
+            slot++;
+        }
+        long wait = deadline - now();
+        if (wait > 0) {
+            Thread.sleep(wait / 1000000L, (int)(wait % 1000000L));
+        }
+    }
+
+    /**
+     * Change the frame rate. The slots restart from now, RTP timestamps keep
+     * their origin.
+     *
+     * @param frameRate Frame rate
+     */
+    public synchronized void setFrameRate(int frameRate) {
+        interval = NANOS_PER_SECOND / Math.max(1, frameRate);
+        slotOrigin = now();
+        slot = 0L;
+    }
+
+    /**
+     * Convert a capture time into a RTP timestamp. Timestamps are strictly
+     * increasing.
+     *
+     * @param captureTime Capture time on the monotonic clock
+     * @return RTP timestamp
+     */
+    public synchronized long toRtpTimestamp(long captureTime) {
+        long timestamp = ((captureTime - origin) / 1000L) * clockRate / 1000000L;
+        if (timestamp <= lastTimestamp) {
+            timestamp = lastTimestamp + 1;
+        }
+        lastTimestamp = timestamp;
+        return timestamp;
+    }
+
+    /**
+     * Returns the RTP timestamp of a time of the capture clock, without
+     * updating the timestamp of the last frame
+     *
+     * @param time Time on the monotonic clock in nanoseconds
+     * @return RTP timestamp
+     */
+    public synchronized long getRtpTimestamp(long time) {
+        return ((time - origin) / 1000L) * clockRate / 1000000L;
+    }
+
+    /**
+     * A frame has been captured
+     */
+    public void frameCaptured() {
+        captured++;
+    }
+
+    /**
+     * A frame has been encoded
+     */
+    public void frameEncoded() {
+        encoded++;
+    }
+
+    /**
+     * Returns the interval between two frames
+     *
+     * @return Nanoseconds
+     */
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the number of captured frames
+     *
+     * @return Count
+     */
+    public long getCapturedFrames() {
+        return captured;
+    }
+
+    /**
+     * Returns the number of encoded frames
+     *
+     * @return Count
+     */
+    public long getEncodedFrames() {
+        return encoded;
+    }
+
+    /**
+     * Returns the number of frame slots skipped because the encoder was late
+     *
+     * @return Count
+     */
+    public long getSkippedFrames() {
+        return skipped;
+    }
+
+    /**
+     * Returns the number of frames encoded after the end of their slot
+     *
+     * @return Count
+     */
+    public long getLateFrames() {
+        return late;
+    }
+}
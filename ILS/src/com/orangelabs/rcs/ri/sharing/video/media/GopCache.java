@@ -0,0 +1,206 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.JavaPacketizer;
+import com.orangelabs.rcs.core.ims.protocol.rtp.format.video.VideoOrientation;
+import com.orangelabs.rcs.core.ims.protocol.rtp.media.VideoSample;
+
+/**
+ * Cache of the current group of pictures of each simulcast layer: the
+ * parameter sets, the last IDR frame and the frames following it. A late
+ * joiner replays it to decode the stream at once instead of waiting for the
+ * next keyframe.
+ * <p>
+ * Each added NAL unit gets a sequence number. The encoder adds the frames
+ * under the cache lock and feeds its sinks after releasing it: a sink which
+ * takes a snapshot and notes the sequence number under the same lock only
+ * gets the frames numbered after it, so it gets every frame exactly once.
+ */
+public class GopCache {
+    /**
+     * Default maximum number of cached NAL units per layer
+     */
+    public static final int DEFAULT_MAX_NAL_UNITS = 256;
+
+    /**
+     * Default maximum number of cached bytes per layer
+     */
+    public static final int DEFAULT_MAX_BYTES = 512 * 1024;
+
+    /**
+     * Maximum number of cached NAL units per layer
+     */
+    private final int maxNalUnits;
+
+    /**
+     * Maximum number of cached bytes per layer
+     */
+    private final int maxBytes;
+
+    /**
+     * Cached group of each layer
+     */
+    private final List<Group> groups = new ArrayList<Group>();
+
+    /**
+     * Sequence number of the last added NAL unit
+     */
+    private long sequence = 0L;
+
+    /**
+     * Constructor
+     */
+    public GopCache() {
+        this(DEFAULT_MAX_NAL_UNITS, DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxNalUnits Maximum number of cached NAL units per layer
+     * @param maxBytes Maximum number of cached bytes per layer
+     */
+    public GopCache(int maxNalUnits, int maxBytes) {
+        this.maxNalUnits = maxNalUnits;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Add an encoded NAL unit. A group longer than the limits is dropped
+     * until the next IDR frame.
+     *
+     * @param layer Simulcast layer
+     * @param data NAL unit
+     * @param timestamp RTP timestamp
+     * @param orientation Video orientation or null
+     * @return Sequence number of the NAL unit
+     */
+    public synchronized long add(int layer, byte[] data, long timestamp, VideoOrientation orientation) {
+        sequence++;
+        while (groups.size() <= layer) {
+            groups.add(new Group());
+        }
+        Group group = groups.get(layer);
+        VideoSample sample = new VideoSample(data, timestamp, orientation);
+        int type = MyVideoPlayer.getNalType(data);
+        if (type == JavaPacketizer.AVC_NALTYPE_SPS) {
+            group.sps = sample;
+        } else if (type == JavaPacketizer.AVC_NALTYPE_PPS) {
+            group.pps = sample;
+        }
+        if (type == MyVideoPlayer.AVC_NALTYPE_IDR) {
+            // A new group starts with the parameter sets of its IDR frame
+            group.frames.clear();
+            group.bytes = 0;
+            if ((group.sps == null) || (group.pps == null)) {
+                return sequence;
+            }
+            group.append(group.sps);
+            group.append(group.pps);
+            group.append(sample);
+        } else if (!group.frames.isEmpty()) {
+            group.append(sample);
+            if ((group.frames.size() > maxNalUnits) || (group.bytes > maxBytes)) {
+                group.frames.clear();
+                group.bytes = 0;
+            }
+        }
+        return sequence;
+    }
+
+    /**
+     * Returns the sequence number of the last added NAL unit
+     *
+     * @return Sequence number
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Returns the cached group of a layer, starting with its parameter sets
+     * and IDR frame
+     *
+     * @param layer Simulcast layer
+     * @return NAL units, empty if no decodable group is cached
+     */
+    public synchronized List<VideoSample> getFrames(int layer) {
+        if (layer >= groups.size()) {
+            return Collections.emptyList();
+        }
+        return new ArrayList<VideoSample>(groups.get(layer).frames);
+    }
+
+    /**
+     * Returns the number of cached bytes of a layer
+     *
+     * @param layer Simulcast layer
+     * @return Bytes
+     */
+    public synchronized int getSize(int layer) {
+        return (layer < groups.size()) ? groups.get(layer).bytes : 0;
+    }
+
+    /**
+     * Clear the cache, e.g. when the encoder restarts
+     */
+    public synchronized void clear() {
+        groups.clear();
+    }
+
+    /**
+     * Cached group of a layer
+     */
+    private static class Group {
+        /**
+         * Last SPS
+         */
+        private VideoSample sps = null;
+
+        /**
+         * Last PPS
+         */
+        private VideoSample pps = null;
+
+        /**
+         * NAL units from the parameter sets of the last IDR frame
+         */
+        private final List<VideoSample> frames = new ArrayList<VideoSample>();
+
+        /**
+         * Size of the NAL units
+         */
+        private int bytes = 0;
+
+        /**
+         * Append a NAL unit
+         *
+         * @param sample NAL unit
+         */
+        private void append(VideoSample sample) {
+            frames.add(sample);
+            bytes += sample.getLength();
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Relay of the RTP packets sent to a multicast group to the recipients which
+ * have not joined it yet, e.g. while their join is on its way or when the
+ * network does not route the group to them. A copy of each packet is sent
+ * over the unicast session of every such recipient, from the RTP port of
+ * that session, and the recipient is removed once it reports that it
+ * receives the group.
+ * <p>
+ * The relay must be the last send filter of the RTP port of the group
+ * session, so that it sends the packets as they leave for the group. The
+ * FEC packets and the retransmissions, sent by the earlier filters, are not
+ * relayed.
+ */
+public class GroupRelay implements PortLease.SendFilter {
+    /**
+     * Recipient which has not joined the group
+     */
+    private static class Recipient {
+        /**
+         * Port lease of the unicast session of the recipient
+         */
+        private final PortLease lease;
+
+        /**
+         * Host of the recipient
+         */
+        private final String host;
+
+        /**
+         * RTP port of the recipient
+         */
+        private final int port;
+
+        /**
+         * Constructor
+         *
+         * @param lease Port lease of the unicast session
+         * @param host Host
+         * @param port RTP port
+         */
+        public Recipient(PortLease lease, String host, int port) {
+            this.lease = lease;
+            this.host = host;
+            this.port = port;
+        }
+    }
+
+    /**
+     * Recipients the packets are relayed to
+     */
+    private final CopyOnWriteArrayList<Recipient> recipients = new CopyOnWriteArrayList<Recipient>();
+
+    /**
+     * Port lease of the group session, null if detached
+     */
+    private volatile PortLease lease = null;
+
+    /**
+     * Number of relayed packets
+     */
+    private volatile long relayed = 0L;
+
+    /**
+     * Relay the packets sent to the group
+     *
+     * @param lease Port lease of the group session
+     */
+    public void attach(PortLease lease) {
+        this.lease = lease;
+        lease.addSendFilter(lease.getRtpPort(), this);
+    }
+
+    /**
+     * Stop relaying the packets
+     */
+    public void detach() {
+        PortLease l = lease;
+        if (l != null) {
+            l.removeSendFilter(this);
+        }
+        lease = null;
+        recipients.clear();
+    }
+
+    /**
+     * Relay the packets to a recipient until it joins the group
+     *
+     * @param lease Port lease of the unicast session of the recipient, whose
+     *            RTP port must be opened
+     * @param host Host of the recipient
+     * @param port RTP port of the recipient
+     */
+    public void addRecipient(PortLease lease, String host, int port) {
+        removeRecipient(lease);
+        recipients.add(new Recipient(lease, host, port));
+    }
+
+    /**
+     * Stop relaying the packets to a recipient
+     *
+     * @param lease Port lease of the unicast session of the recipient
+     * @return True if the packets were relayed to the recipient
+     */
+    public boolean removeRecipient(PortLease lease) {
+        for (Recipient recipient : recipients) {
+            if (recipient.lease == lease) {
+                return recipients.remove(recipient);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of recipients the packets are relayed to
+     *
+     * @return Count
+     */
+    public int getRecipientCount() {
+        return recipients.size();
+    }
+
+    /**
+     * Returns the number of relayed packets
+     *
+     * @return Count
+     */
+    public long getRelayedCount() {
+        return relayed;
+    }
+
+    /**
+     * Relay a packet sent to the group
+     *
+     * @param data RTP packet
+     * @return The packet unchanged
+     */
+    public byte[] filter(byte[] data) {
+        for (Recipient recipient : recipients) {
+            DatagramConnection conn = recipient.lease.getConnection(recipient.lease.getRtpPort());
+            if (conn == null) {
+                continue;
+            }
+            try {
+                conn.sendDirect(recipient.host, recipient.port, data, 0, data.length);
+                relayed++;
+            } catch (IOException e) {
+                // Packet lost for this recipient
+            }
+        }
+        return data;
+    }
+}
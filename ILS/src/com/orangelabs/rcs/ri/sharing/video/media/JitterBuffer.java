@@ -0,0 +1,579 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+import com.orangelabs.rcs.core.ims.protocol.rtp.format.video.VideoOrientation;
+
+/**
+ * Jitter buffer of the video renderer. Samples are kept in RTP timestamp
+ * then sequence number order, and released at their playout time: the
+ * sender clock mapped to the local clock, plus a playout delay which
+ * follows the measured interarrival jitter. When the video is synchronized
+ * on an audio stream, a sample ahead of the audio is further held until the
+ * audio catches up. Samples received after a later one has already been
+ * played are dropped, as well as non reference frames whose deadline has
+ * passed.
+ */
+public class JitterBuffer {
+    /**
+     * Buffered sample
+     */
+    public static class Entry {
+        /**
+         * Data
+         */
+        private final byte[] data;
+
+        /**
+         * RTP timestamp
+         */
+        private final long timestamp;
+
+        /**
+         * RTP sequence number
+         */
+        private final long seqNumber;
+
+        /**
+         * Video orientation, may be null
+         */
+        private final VideoOrientation orientation;
+
+        /**
+         * Arrival time in milliseconds
+         */
+        private final long arrivalTime;
+
+        /**
+         * Held past its playout time to wait for the audio
+         */
+        private boolean held = false;
+
+        /**
+         * Constructor
+         *
+         * @param data Data
+         * @param timestamp RTP timestamp
+         * @param seqNumber RTP sequence number
+         * @param orientation Video orientation
+         * @param arrivalTime Arrival time
+         */
+        private Entry(byte[] data, long timestamp, long seqNumber, VideoOrientation orientation, long arrivalTime) {
+            this.data = data;
+            this.timestamp = timestamp;
+            this.seqNumber = seqNumber;
+            this.orientation = orientation;
+            this.arrivalTime = arrivalTime;
+        }
+
+        /**
+         * Returns the data
+         *
+         * @return Data
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * Returns the RTP timestamp
+         *
+         * @return Timestamp
+         */
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        /**
+         * Returns the video orientation
+         *
+         * @return Orientation or null
+         */
+        public VideoOrientation getOrientation() {
+            return orientation;
+        }
+
+        /**
+         * Returns the arrival time
+         *
+         * @return Milliseconds
+         */
+        public long getArrivalTime() {
+            return arrivalTime;
+        }
+    }
+
+    /**
+     * Default maximum number of buffered samples
+     */
+    public static final int DEFAULT_CAPACITY = 64;
+
+    /**
+     * Minimum playout delay in milliseconds
+     */
+    private static final long MIN_DELAY = 20L;
+
+    /**
+     * Maximum playout delay in milliseconds
+     */
+    private static final long MAX_DELAY = 500L;
+
+    /**
+     * Jitter multiplier of the playout delay
+     */
+    private static final int JITTER_FACTOR = 3;
+
+    /**
+     * Gap in milliseconds after which the clock mapping is reset
+     */
+    private static final long RESYNC_GAP = 2000L;
+
+    /**
+     * Half range of the RTP timestamps, for wrap around comparisons
+     */
+    private static final long TIMESTAMP_HALF_RANGE = 0x80000000L;
+
+    /**
+     * Half range of the RTP sequence numbers
+     */
+    private static final long SEQ_HALF_RANGE = 0x8000L;
+
+    /**
+     * Samples in playout order
+     */
+    private final LinkedList<Entry> entries = new LinkedList<Entry>();
+
+    /**
+     * Maximum number of buffered samples
+     */
+    private final int capacity;
+
+    /**
+     * RTP clock rate
+     */
+    private final int clockRate;
+
+    /**
+     * Smallest observed transit offset (arrival minus media time), in
+     * milliseconds. It maps the sender clock on the local clock.
+     */
+    private long offset = 0L;
+
+    /**
+     * Extended timestamp of the first sample
+     */
+    private long baseTimestamp = -1L;
+
+    /**
+     * Last received timestamp
+     */
+    private long lastTimestamp = -1L;
+
+    /**
+     * Extended value of the last received timestamp
+     */
+    private long lastExtended = 0L;
+
+    /**
+     * Arrival time of the last received sample
+     */
+    private long lastArrival = 0L;
+
+    /**
+     * Interarrival jitter in milliseconds (RFC 3550), scaled by 16
+     */
+    private long jitter16 = 0L;
+
+    /**
+     * Timestamp of the last played sample, -1 if none
+     */
+    private long lastPlayed = -1L;
+
+    /**
+     * Current playout delay
+     */
+    private long delay = MIN_DELAY;
+
+    /**
+     * Synchronization on the audio, null if the samples are released at
+     * their playout time
+     */
+    private volatile LipSync lipSync = null;
+
+    /**
+     * Closed flag
+     */
+    private boolean closed = false;
+
+    /**
+     * Number of samples received after a later one has been played
+     */
+    private long lateDrops = 0L;
+
+    /**
+     * Number of non reference samples dropped after their deadline
+     */
+    private long deadlineDrops = 0L;
+
+    /**
+     * Number of samples dropped because the buffer was full
+     */
+    private long overflowDrops = 0L;
+
+    /**
+     * Number of new clock mappings after a gap in the reception
+     */
+    private long resyncs = 0L;
+
+    /**
+     * Highest number of buffered samples
+     */
+    private int maxDepth = 0;
+
+    /**
+     * Constructor
+     *
+     * @param clockRate RTP clock rate
+     */
+    public JitterBuffer(int clockRate) {
+        this(clockRate, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param clockRate RTP clock rate
+     * @param capacity Maximum number of buffered samples
+     */
+    public JitterBuffer(int clockRate, int capacity) {
+        this.clockRate = clockRate;
+        this.capacity = capacity;
+    }
+
+    /**
+     * Add a received sample
+     *
+     * @param data Data
+     * @param timestamp RTP timestamp
+     * @param seqNumber RTP sequence number
+     * @param orientation Video orientation
+     */
+    public synchronized void put(byte[] data, long timestamp, long seqNumber, VideoOrientation orientation) {
+        if (closed) {
+            return;
+        }
+        long now = FrameScheduler.now() / 1000000L;
+        Entry entry = new Entry(data, timestamp, seqNumber, orientation, now);
+        if (isResync(now)) {
+            // The sender may have restarted with a new timestamp base, the
+            // played position of the old mapping no longer applies
+            lastPlayed = -1L;
+            if (lastTimestamp >= 0) {
+                resyncs++;
+            }
+        }
+        if ((lastPlayed >= 0) && (compareTimestamps(timestamp, lastPlayed) < 0)) {
+            // A later sample has already been played
+            lateDrops++;
+            return;
+        }
+        updateClock(timestamp, now);
+
+        // Insert in timestamp then sequence number order, from the tail as
+        // samples are mostly received in order
+        ListIterator<Entry> it = entries.listIterator(entries.size());
+        while (it.hasPrevious()) {
+            Entry previous = it.previous();
+            if (compare(previous, entry) <= 0) {
+                it.next();
+                break;
+            }
+        }
+        it.add(entry);
+
+        if (entries.size() > capacity) {
+            entries.removeFirst();
+            overflowDrops++;
+        }
+        if (entries.size() > maxDepth) {
+            maxDepth = entries.size();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Wait for the next sample to play
+     *
+     * @return Entry or null if the buffer has been closed
+     * @throws InterruptedException
+     */
+    public synchronized Entry take() throws InterruptedException {
+        while (!closed) {
+            if (entries.isEmpty()) {
+                wait();
+                continue;
+            }
+            Entry head = entries.getFirst();
+            long now = FrameScheduler.now() / 1000000L;
+            long playout = getPlayoutTime(head);
+            if (now < playout) {
+                // Wait for the playout time or for an earlier sample
+                wait(playout - now);
+                continue;
+            }
+            LipSync sync = lipSync;
+            long hold = (sync != null) ? sync.getHold(head.timestamp) : 0L;
+            if (hold > 0) {
+                // Ahead of the audio: wait for the playout clock of the call
+                if (!head.held) {
+                    head.held = true;
+                    sync.frameHeld();
+                }
+                wait(hold);
+                continue;
+            }
+            entries.removeFirst();
+            lastPlayed = head.timestamp;
+            if (!head.held && (now - playout > delay) && !isReference(head.data)
+                    && !entries.isEmpty() && (entries.getFirst().timestamp != head.timestamp)) {
+                // Too late to be useful and nothing depends on it
+                deadlineDrops++;
+                continue;
+            }
+            return head;
+        }
+        return null;
+    }
+
+    /**
+     * Set the synchronization on the audio: the samples ahead of the audio
+     * are held past their playout time
+     *
+     * @param lipSync Synchronization or null
+     */
+    public void setLipSync(LipSync lipSync) {
+        this.lipSync = lipSync;
+    }
+
+    /**
+     * Close the buffer and release the waiting thread
+     */
+    public synchronized void close() {
+        closed = true;
+        entries.clear();
+        notifyAll();
+    }
+
+    /**
+     * Returns the current number of buffered samples
+     *
+     * @return Depth
+     */
+    public synchronized int getDepth() {
+        return entries.size();
+    }
+
+    /**
+     * Returns the highest number of buffered samples
+     *
+     * @return Depth
+     */
+    public synchronized int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Returns the current playout delay
+     *
+     * @return Milliseconds
+     */
+    public synchronized long getPlayoutDelay() {
+        return delay;
+    }
+
+    /**
+     * Returns the interarrival jitter
+     *
+     * @return Milliseconds
+     */
+    public synchronized long getJitter() {
+        return jitter16 / 16;
+    }
+
+    /**
+     * Returns the number of samples dropped because they arrived too late
+     *
+     * @return Count
+     */
+    public synchronized long getLateDrops() {
+        return lateDrops + deadlineDrops;
+    }
+
+    /**
+     * Returns the number of new clock mappings after a gap in the reception,
+     * the samples of the gap are lost and the decoder needs a keyframe
+     *
+     * @return Count
+     */
+    public synchronized long getResyncCount() {
+        return resyncs;
+    }
+
+    /**
+     * Returns the number of samples dropped because the buffer was full
+     *
+     * @return Count
+     */
+    public synchronized long getOverflowDrops() {
+        return overflowDrops;
+    }
+
+    /**
+     * Is a new clock mapping needed for a sample arriving now
+     *
+     * @param now Arrival time
+     * @return True for the first sample or after a gap
+     */
+    private boolean isResync(long now) {
+        return (lastTimestamp < 0) || (now - lastArrival > RESYNC_GAP);
+    }
+
+    /**
+     * Update the clock mapping, the jitter and the playout delay
+     *
+     * @param timestamp RTP timestamp
+     * @param now Arrival time
+     */
+    private void updateClock(long timestamp, long now) {
+        if (isResync(now)) {
+            // First sample or restart after a gap: new clock mapping
+            baseTimestamp = timestamp;
+            lastExtended = timestamp;
+            offset = now;
+            jitter16 = 0;
+        } else {
+            long extended = lastExtended + signedDelta(timestamp, lastTimestamp);
+            long transitDelta = (now - lastArrival) - (extended - lastExtended) * 1000 / clockRate;
+            jitter16 += Math.abs(transitDelta) - (jitter16 / 16);
+            if (extended > lastExtended) {
+                lastExtended = extended;
+            }
+
+            // Keep the smallest transit to follow the sender clock
+            long transit = now - mediaTime(extended);
+            if (transit < offset) {
+                offset = transit;
+            }
+        }
+        lastTimestamp = timestamp;
+        lastArrival = now;
+
+        long target = Math.max(MIN_DELAY, Math.min(MAX_DELAY, JITTER_FACTOR * jitter16 / 16));
+        // Grow at once, shrink slowly to avoid playout gaps
+        if (target > delay) {
+            delay = target;
+        } else {
+            delay -= (delay - target) / 8;
+        }
+    }
+
+    /**
+     * Returns the local playout time of a sample
+     *
+     * @param entry Entry
+     * @return Milliseconds
+     */
+    private long getPlayoutTime(Entry entry) {
+        if (baseTimestamp < 0) {
+            return entry.arrivalTime;
+        }
+        long extended = lastExtended + signedDelta(entry.timestamp, lastTimestamp);
+        return offset + mediaTime(extended) + delay;
+    }
+
+    /**
+     * Returns the media time of an extended timestamp since the first sample
+     *
+     * @param extended Extended timestamp
+     * @return Milliseconds
+     */
+    private long mediaTime(long extended) {
+        return (extended - baseTimestamp) * 1000 / clockRate;
+    }
+
+    /**
+     * Compare two entries in playout order
+     *
+     * @param a First entry
+     * @param b Second entry
+     * @return Negative, zero or positive
+     */
+    private static int compare(Entry a, Entry b) {
+        int c = compareTimestamps(a.timestamp, b.timestamp);
+        if (c != 0) {
+            return c;
+        }
+        long d = (a.seqNumber - b.seqNumber) & 0xffffL;
+        if (d == 0) {
+            return 0;
+        }
+        return (d < SEQ_HALF_RANGE) ? 1 : -1;
+    }
+
+    /**
+     * Compare two RTP timestamps, taking the wrap around into account
+     *
+     * @param a First timestamp
+     * @param b Second timestamp
+     * @return Negative, zero or positive
+     */
+    private static int compareTimestamps(long a, long b) {
+        long d = signedDelta(a, b);
+        return (d < 0) ? -1 : ((d > 0) ? 1 : 0);
+    }
+
+    /**
+     * Returns the signed difference of two RTP timestamps
+     *
+     * @param a First timestamp
+     * @param b Second timestamp
+     * @return a - b
+     */
+    private static long signedDelta(long a, long b) {
+        long d = (a - b) & 0xffffffffL;
+        return (d < TIMESTAMP_HALF_RANGE) ? d : d - 0x100000000L;
+    }
+
+    /**
+     * Is the NAL unit used as a reference (nal_ref_idc not null)
+     *
+     * @param nal NAL unit, with or without start code
+     * @return Boolean
+     */
+    private static boolean isReference(byte[] nal) {
+        int pos = 0;
+        if ((nal.length > 4) && (nal[0] == 0) && (nal[1] == 0)) {
+            pos = (nal[2] == 1) ? 3 : 4;
+        }
+        return (nal.length <= pos) || ((nal[pos] & 0x60) != 0);
+    }
+}
@@ -0,0 +1,188 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with log-linear buckets, as in HDR
+ * histograms: each power of two is split in 16 linear sub-buckets, so a
+ * value is known within about 6% from a microsecond to over a minute in a
+ * fixed array. Recording costs a few atomic increments and never allocates.
+ */
+public class LatencyHistogram {
+    /**
+     * Number of bits of the linear sub-buckets
+     */
+    private static final int SUB_BUCKET_BITS = 4;
+
+    /**
+     * Number of sub-buckets of each power of two
+     */
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    /**
+     * Highest trackable power of two, in microseconds (2^26 us, about 67 s)
+     */
+    private static final int MAX_EXPONENT = 26;
+
+    /**
+     * Number of buckets
+     */
+    private static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    /**
+     * Bucket counts
+     */
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+    /**
+     * Number of recorded values
+     */
+    private final AtomicLong count = new AtomicLong(0);
+
+    /**
+     * Sum of the recorded values
+     */
+    private final AtomicLong sum = new AtomicLong(0);
+
+    /**
+     * Highest recorded value
+     */
+    private final AtomicLong max = new AtomicLong(0);
+
+    /**
+     * Record a latency
+     *
+     * @param micros Latency in microseconds, negative values are ignored
+     */
+    public void record(long micros) {
+        if (micros < 0) {
+            return;
+        }
+        counts.incrementAndGet(indexOf(micros));
+        count.incrementAndGet();
+        sum.addAndGet(micros);
+        long current = max.get();
+        while ((micros > current) && !max.compareAndSet(current, micros)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * Returns the number of recorded values
+     *
+     * @return Count
+     */
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Returns the mean of the recorded values
+     *
+     * @return Mean in microseconds
+     */
+    public long getMean() {
+        long n = count.get();
+        return (n > 0) ? sum.get() / n : 0L;
+    }
+
+    /**
+     * Returns the highest recorded value
+     *
+     * @return Maximum in microseconds
+     */
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Returns the value below which a percentage of the recorded values
+     * fall, to the precision of a bucket
+     *
+     * @param percentile Percentile from 0 to 100
+     * @return Value in microseconds, the upper bound of its bucket
+     */
+    public long getPercentile(double percentile) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            total += counts.get(i);
+        }
+        if (total == 0) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long)Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(upperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Reset the histogram. Values recorded meanwhile may be partly lost.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        count.set(0);
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Returns the bucket of a value
+     *
+     * @param value Value
+     * @return Bucket index
+     */
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int shift = exponent - SUB_BUCKET_BITS;
+        int sub = (int)(value >>> shift) - SUB_BUCKETS;
+        return (shift + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * Returns the highest value of a bucket
+     *
+     * @param index Bucket index
+     * @return Value
+     */
+    private static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = index / SUB_BUCKETS - 1;
+        long sub = (index % SUB_BUCKETS) + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,523 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+/**
+ * Audio/video synchronization. Each stream maps its RTP timestamps to the
+ * NTP time of the sender from the RTCP sender reports (RFC 3550, section
+ * 6.4.1). The audio output is the master clock: the audio renderer reports
+ * the RTP timestamp it is playing, and each video frame is compared to it
+ * on the common NTP time line. A frame ahead of the audio by more than the
+ * tolerance is held in the jitter buffer, a frame behind by more than the
+ * tolerance is not displayed.
+ * <p>
+ * Both streams must be sent by the same device, so that their sender
+ * reports share the same NTP clock.
+ */
+public class LipSync {
+    /**
+     * Tolerated offset between audio and video in milliseconds
+     */
+    public static final long MAX_OFFSET = 80L;
+
+    /**
+     * Larger offsets in milliseconds come from a wrong mapping, e.g. a sender
+     * restarted, and are not corrected so that the video never freezes
+     */
+    private static final long MAX_CORRECTION = 1000L;
+
+    /**
+     * Maximum number of consecutive frames not displayed, the next late
+     * frame is displayed anyway so that the video keeps moving
+     */
+    private static final int MAX_CONSECUTIVE_DROPS = 4;
+
+    /**
+     * Age in milliseconds of the last played audio frame after which the
+     * audio clock is stale, e.g. the audio is stopped
+     */
+    private static final long AUDIO_TIMEOUT = 1000L;
+
+    /**
+     * RTCP sender report packet type
+     */
+    private static final int RTCP_SR = 200;
+
+    /**
+     * Size of a sender report without report block
+     */
+    public static final int SENDER_REPORT_SIZE = 28;
+
+    /**
+     * Clock of a stream, from the RTP timestamps to the NTP time of the
+     * sender. The mapping starts from the last sender report. The clock rate
+     * is measured on the sender reports of the last window, to compensate
+     * for a sender whose RTP clock drifts from its NTP clock (e.g. an audio
+     * clock off by some hundred ppm).
+     */
+    public static class StreamClock implements PortLease.ReceiveObserver {
+        /**
+         * Number of sender reports the clock rate is measured on
+         */
+        private static final int REPORT_WINDOW = 8;
+
+        /**
+         * Minimum time span in milliseconds of the sender reports to
+         * measure the clock rate
+         */
+        private static final long MIN_SKEW_SPAN = 10000L;
+
+        /**
+         * Maximum accepted skew, larger values come from a broken sender
+         */
+        private static final double MAX_SKEW = 0.001;
+
+        /**
+         * Nominal clock rate in Hz
+         */
+        private final int clockRate;
+
+        /**
+         * NTP times of the last sender reports in milliseconds since 1970
+         */
+        private final long[] reportTimes = new long[REPORT_WINDOW];
+
+        /**
+         * RTP timestamps of the last sender reports, unwrapped
+         */
+        private final long[] reportTimestamps = new long[REPORT_WINDOW];
+
+        /**
+         * Number of sender reports since the last reset
+         */
+        private int reports = 0;
+
+        /**
+         * Clock rate in ticks per millisecond
+         */
+        private double rate;
+
+        /**
+         * Constructor
+         *
+         * @param clockRate Nominal clock rate in Hz
+         */
+        public StreamClock(int clockRate) {
+            this.clockRate = clockRate;
+            this.rate = clockRate / 1000.0;
+        }
+
+        /**
+         * Read the sender reports of a received RTCP packet
+         *
+         * @param data Buffer
+         * @param offset Offset of the packet
+         * @param length Length of the packet
+         */
+        public void onReceived(byte[] data, int offset, int length) {
+            int pos = offset;
+            int end = offset + length;
+            while (pos + 4 <= end) {
+                int size = (readShort(data, pos + 2) + 1) * 4;
+                if (((data[pos + 1] & 0xff) == RTCP_SR) && (pos + 20 <= end)) {
+                    long ntp = (readInt(data, pos + 8) << 32) | readInt(data, pos + 12);
+                    onSenderReport(CaptureTimeExtension.toMillis(ntp), readInt(data, pos + 16));
+                }
+                pos += size;
+            }
+        }
+
+        /**
+         * Add a sender report
+         *
+         * @param ntpTime NTP time in milliseconds since 1970
+         * @param timestamp RTP timestamp
+         */
+        public synchronized void onSenderReport(long ntpTime, long timestamp) {
+            if (reports > 0) {
+                int last = (reports - 1) % REPORT_WINDOW;
+                if (ntpTime <= reportTimes[last]) {
+                    // Sender clock moved back, start again
+                    reset();
+                } else {
+                    timestamp = reportTimestamps[last] + (int)(timestamp - reportTimestamps[last]);
+                }
+            }
+            int index = reports % REPORT_WINDOW;
+            reportTimes[index] = ntpTime;
+            reportTimestamps[index] = timestamp;
+            reports++;
+
+            // Measure the clock rate from the oldest report of the window
+            int oldest = (reports > REPORT_WINDOW) ? reports % REPORT_WINDOW : 0;
+            long span = ntpTime - reportTimes[oldest];
+            if (span >= MIN_SKEW_SPAN) {
+                double measured = (double)(timestamp - reportTimestamps[oldest]) / span;
+                if (Math.abs(measured * 1000.0 / clockRate - 1.0) <= MAX_SKEW) {
+                    rate = measured;
+                }
+            }
+        }
+
+        /**
+         * Convert a RTP timestamp to the NTP time of the sender
+         *
+         * @param timestamp RTP timestamp
+         * @return Milliseconds since 1970 or -1 if no sender report has been
+         *         received
+         */
+        public synchronized long toNtpTime(long timestamp) {
+            if (reports == 0) {
+                return -1L;
+            }
+            int last = (reports - 1) % REPORT_WINDOW;
+            int elapsed = (int)(timestamp - reportTimestamps[last]);
+            return reportTimes[last] + Math.round(elapsed / rate);
+        }
+
+        /**
+         * Returns the skew of the RTP clock from the NTP clock of the sender
+         *
+         * @return Parts per million, positive if the RTP clock runs fast
+         */
+        public synchronized double getSkew() {
+            return (rate * 1000.0 / clockRate - 1.0) * 1000000.0;
+        }
+
+        /**
+         * Returns the number of sender reports since the last reset
+         *
+         * @return Count
+         */
+        public synchronized int getReportCount() {
+            return reports;
+        }
+
+        /**
+         * Forget the sender reports
+         */
+        public synchronized void reset() {
+            reports = 0;
+            rate = clockRate / 1000.0;
+        }
+    }
+
+    /**
+     * Clock of the audio stream
+     */
+    private final StreamClock audioClock;
+
+    /**
+     * Clock of the video stream
+     */
+    private final StreamClock videoClock;
+
+    /**
+     * NTP time in milliseconds of the audio heard at the last update, -1 if
+     * unknown
+     */
+    private long audioTime = -1L;
+
+    /**
+     * Local monotonic time in milliseconds of the last update of the audio
+     * time
+     */
+    private long audioUpdate = 0L;
+
+    /**
+     * Offset of the last video frame from the audio in milliseconds,
+     * positive if the video is ahead
+     */
+    private volatile long avOffset = 0L;
+
+    /**
+     * Is the offset measured
+     */
+    private volatile boolean synchronizedStreams = false;
+
+    /**
+     * Number of consecutive frames not displayed
+     */
+    private int consecutiveDrops = 0;
+
+    /**
+     * Number of held frames
+     */
+    private volatile long heldFrames = 0L;
+
+    /**
+     * Number of frames not displayed
+     */
+    private volatile long droppedFrames = 0L;
+
+    /**
+     * Constructor
+     *
+     * @param audioClockRate Clock rate of the audio stream in Hz
+     * @param videoClockRate Clock rate of the video stream in Hz
+     */
+    public LipSync(int audioClockRate, int videoClockRate) {
+        audioClock = new StreamClock(audioClockRate);
+        videoClock = new StreamClock(videoClockRate);
+    }
+
+    /**
+     * Returns the clock of the audio stream, to be fed with the RTCP packets
+     * of the audio stream
+     *
+     * @return Clock
+     */
+    public StreamClock getAudioClock() {
+        return audioClock;
+    }
+
+    /**
+     * Returns the clock of the video stream, to be fed with the RTCP packets
+     * of the video stream
+     *
+     * @return Clock
+     */
+    public StreamClock getVideoClock() {
+        return videoClock;
+    }
+
+    /**
+     * An audio frame has been handed to the audio output. Called from the
+     * playout thread.
+     *
+     * @param timestamp RTP timestamp of the frame
+     * @param outputDelay Delay in milliseconds of the audio output before the
+     *        frame is heard
+     */
+    public void audioPlayed(long timestamp, long outputDelay) {
+        long ntpTime = audioClock.toNtpTime(timestamp);
+        if (ntpTime < 0) {
+            return;
+        }
+        synchronized (this) {
+            audioTime = ntpTime - outputDelay;
+            audioUpdate = now();
+        }
+    }
+
+    /**
+     * Returns the NTP time of the audio heard now, the common playout clock
+     * of the streams
+     *
+     * @return Milliseconds since 1970 on the sender clock or -1 if unknown
+     */
+    public synchronized long getPlayoutTime() {
+        if (audioTime < 0) {
+            return -1L;
+        }
+        long elapsed = now() - audioUpdate;
+        if (elapsed > AUDIO_TIMEOUT) {
+            return -1L;
+        }
+        return audioTime + elapsed;
+    }
+
+    /**
+     * Returns how long a video frame has to wait for the audio. Called by
+     * the jitter buffer once the playout time of the frame is reached.
+     *
+     * @param timestamp RTP timestamp of the frame
+     * @return Time in milliseconds, 0 if the frame is not ahead of the audio
+     *         by more than the tolerance or if the offset is unknown
+     */
+    public long getHold(long timestamp) {
+        long videoTime = videoClock.toNtpTime(timestamp);
+        long playoutTime = getPlayoutTime();
+        if ((videoTime < 0) || (playoutTime < 0)) {
+            return 0L;
+        }
+        long offset = videoTime - playoutTime;
+        if ((offset > MAX_OFFSET) && (offset <= MAX_CORRECTION)) {
+            return offset;
+        }
+        return 0L;
+    }
+
+    /**
+     * A video frame has been held in the jitter buffer to wait for the audio
+     */
+    void frameHeld() {
+        heldFrames++;
+        MediaStats.count(MediaStats.Counter.FRAMES_SYNC_HELD);
+    }
+
+    /**
+     * Synchronize a decoded video frame on the audio. Called from the
+     * decoding thread just before the frame is displayed, the frames ahead
+     * of the audio having been held by the jitter buffer.
+     *
+     * @param timestamp RTP timestamp of the frame
+     * @return False if the frame is behind the audio and is not to be
+     *         displayed
+     */
+    public boolean synchronize(long timestamp) {
+        long videoTime = videoClock.toNtpTime(timestamp);
+        long playoutTime = getPlayoutTime();
+        if ((videoTime < 0) || (playoutTime < 0)) {
+            synchronizedStreams = false;
+            consecutiveDrops = 0;
+            return true;
+        }
+        long offset = videoTime - playoutTime;
+        avOffset = offset;
+        synchronizedStreams = true;
+        if (Math.abs(offset) > MAX_CORRECTION) {
+            consecutiveDrops = 0;
+            return true;
+        }
+        if ((offset < -MAX_OFFSET) && (consecutiveDrops < MAX_CONSECUTIVE_DROPS)) {
+            consecutiveDrops++;
+            droppedFrames++;
+            MediaStats.count(MediaStats.Counter.FRAMES_SYNC_DROPPED);
+            return false;
+        }
+        consecutiveDrops = 0;
+        return true;
+    }
+
+    /**
+     * Returns the offset of the last video frame from the audio, before it
+     * is corrected
+     *
+     * @return Milliseconds, positive if the video is ahead of the audio
+     */
+    public long getAvOffset() {
+        return avOffset;
+    }
+
+    /**
+     * Is the offset of the last video frame measured, i.e. both streams
+     * have sender reports and the audio is playing
+     *
+     * @return Boolean
+     */
+    public boolean isSynchronized() {
+        return synchronizedStreams;
+    }
+
+    /**
+     * Returns the number of video frames held to wait for the audio
+     *
+     * @return Count
+     */
+    public long getHeldFrames() {
+        return heldFrames;
+    }
+
+    /**
+     * Returns the number of video frames not displayed to catch up with
+     * the audio
+     *
+     * @return Count
+     */
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Forget the sender reports and the audio time, e.g. on a new session
+     */
+    public void reset() {
+        audioClock.reset();
+        videoClock.reset();
+        synchronized (this) {
+            audioTime = -1L;
+        }
+        synchronizedStreams = false;
+        avOffset = 0L;
+    }
+
+    /**
+     * Write a RTCP sender report with no report block
+     *
+     * @param data Buffer of at least {@link #SENDER_REPORT_SIZE} bytes
+     * @param ssrc SSRC of the sender
+     * @param ntpTime NTP time of the report in milliseconds since 1970
+     * @param timestamp RTP timestamp matching the NTP time
+     * @param packets Number of sent RTP packets
+     * @param octets Number of sent payload octets
+     * @return Length of the report
+     */
+    public static int writeSenderReport(byte[] data, long ssrc, long ntpTime, long timestamp,
+            long packets, long octets) {
+        long ntp = CaptureTimeExtension.toNtp(ntpTime);
+        data[0] = (byte)0x80;
+        data[1] = (byte)RTCP_SR;
+        data[2] = 0;
+        data[3] = (byte)(SENDER_REPORT_SIZE / 4 - 1);
+        writeInt(data, 4, ssrc);
+        writeInt(data, 8, ntp >>> 32);
+        writeInt(data, 12, ntp);
+        writeInt(data, 16, timestamp);
+        writeInt(data, 20, packets);
+        writeInt(data, 24, octets);
+        return SENDER_REPORT_SIZE;
+    }
+
+    /**
+     * Returns the local monotonic time
+     *
+     * @return Milliseconds
+     */
+    private static long now() {
+        return FrameScheduler.now() / 1000000L;
+    }
+
+    /**
+     * Read an unsigned 16-bit value
+     *
+     * @param data Buffer
+     * @param pos Offset
+     * @return Value
+     */
+    private static int readShort(byte[] data, int pos) {
+        return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+    }
+
+    /**
+     * Read an unsigned 32-bit value
+     *
+     * @param data Buffer
+     * @param pos Offset
+     * @return Value
+     */
+    private static long readInt(byte[] data, int pos) {
+        return ((long)(data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+                | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+    }
+
+    /**
+     * Write a 32-bit value
+     *
+     * @param data Buffer
+     * @param pos Offset
+     * @param value Value, only the low 32 bits are written
+     */
+    private static void writeInt(byte[] data, int pos, long value) {
+        data[pos] = (byte)(value >> 24);
+        data[pos + 1] = (byte)(value >> 16);
+        data[pos + 2] = (byte)(value >> 8);
+        data[pos + 3] = (byte)value;
+    }
+}
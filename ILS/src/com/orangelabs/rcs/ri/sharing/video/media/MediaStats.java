@@ -0,0 +1,533 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+import com.orangelabs.rcs.ri.utils.LogUtils;
+
+/**
+ * Latency histograms and counters of the stages of the video pipeline, from
+ * the camera to the remote screen. The pipeline records into it from its
+ * own threads without lock; the report is shown by the diagnostics screen
+ * and may be appended periodically to a file.
+ */
+public class MediaStats {
+    /**
+     * Stages of the pipeline
+     */
+    public enum Stage {
+        /**
+         * Wait of a captured frame for the encoder
+         */
+        CAPTURE("capture"),
+
+        /**
+         * Encoding of a frame
+         */
+        ENCODE("encode"),
+
+        /**
+         * Wait of an encoded frame in the RTP send queue
+         */
+        SEND_QUEUE("send queue"),
+
+        /**
+         * Packetization and sending of a frame by the RTP stack
+         */
+        PACKETIZE("packetize"),
+
+        /**
+         * Wait of a datagram in the queue of the pacer
+         */
+        PACER("pacer"),
+
+        /**
+         * Sending of a datagram by the socket
+         */
+        SOCKET_SEND("socket send"),
+
+        /**
+         * Reassembly of a frame by the RTP stack, from its last datagram
+         */
+        DEPACKETIZE("depacketize"),
+
+        /**
+         * Wait of a received frame in the jitter buffer
+         */
+        JITTER_BUFFER("jitter buffer"),
+
+        /**
+         * Decoding and conversion of a frame
+         */
+        DECODE("decode"),
+
+        /**
+         * Wait of a decoded image for the screen, and its drawing
+         */
+        RENDER("render"),
+
+        /**
+         * From the capture of a frame on the sender to its reception
+         */
+        ONE_WAY("one-way"),
+
+        /**
+         * From the capture of a frame on the sender to its display
+         */
+        GLASS_TO_GLASS("glass-to-glass");
+
+        /**
+         * Label
+         */
+        private final String label;
+
+        /**
+         * Constructor
+         *
+         * @param label Label
+         */
+        private Stage(String label) {
+            this.label = label;
+        }
+
+        /**
+         * Returns the label
+         *
+         * @return Label
+         */
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * Counters of the pipeline
+     */
+    public enum Counter {
+        /**
+         * Frames captured by the camera
+         */
+        FRAMES_CAPTURED("frames captured"),
+
+        /**
+         * Frames encoded
+         */
+        FRAMES_ENCODED("frames encoded"),
+
+        /**
+         * Datagrams sent
+         */
+        PACKETS_SENT("packets sent"),
+
+        /**
+         * Bytes sent
+         */
+        BYTES_SENT("bytes sent"),
+
+        /**
+         * Datagrams received
+         */
+        PACKETS_RECEIVED("packets received"),
+
+        /**
+         * Bytes received
+         */
+        BYTES_RECEIVED("bytes received"),
+
+        /**
+         * Frames decoded
+         */
+        FRAMES_DECODED("frames decoded"),
+
+        /**
+         * Images drawn
+         */
+        FRAMES_RENDERED("frames rendered"),
+
+        /**
+         * Decoded frames dropped as the surface still held every image
+         */
+        FRAMES_NOT_RENDERED("frames not rendered"),
+
+        /**
+         * Lost packets requested again by a NACK
+         */
+        PACKETS_NACKED("packets nacked"),
+
+        /**
+         * Packets sent again on a NACK
+         */
+        PACKETS_RETRANSMITTED("packets retransmitted"),
+
+        /**
+         * Requested packets received in time
+         */
+        PACKETS_RECOVERED("packets recovered"),
+
+        /**
+         * Requested packets given up at their deadline
+         */
+        PACKETS_UNRECOVERED("packets unrecovered"),
+
+        /**
+         * Packets received again or after their deadline
+         */
+        RETRANSMITS_WASTED("retransmits wasted"),
+
+        /**
+         * FEC packets sent
+         */
+        FEC_PACKETS_SENT("fec packets sent"),
+
+        /**
+         * Lost packets rebuilt from the FEC packets
+         */
+        PACKETS_FEC_RECOVERED("packets fec recovered"),
+
+        /**
+         * Bursts of datagrams spread by the pacer
+         */
+        BURSTS_PACED("bursts paced"),
+
+        /**
+         * Video frames held to wait for the audio
+         */
+        FRAMES_SYNC_HELD("frames held for lip sync"),
+
+        /**
+         * Video frames not displayed to catch up with the audio
+         */
+        FRAMES_SYNC_DROPPED("frames dropped for lip sync");
+
+        /**
+         * Label
+         */
+        private final String label;
+
+        /**
+         * Constructor
+         *
+         * @param label Label
+         */
+        private Counter(String label) {
+            this.label = label;
+        }
+
+        /**
+         * Returns the label
+         *
+         * @return Label
+         */
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    /**
+     * The log tag for this class
+     */
+    private static final String LOGTAG = LogUtils.getTag(MediaStats.class.getSimpleName());
+
+    /**
+     * Histograms, by stage
+     */
+    private static final LatencyHistogram[] histograms = new LatencyHistogram[Stage.values().length];
+
+    /**
+     * Counters
+     */
+    private static final AtomicLong[] counters = new AtomicLong[Counter.values().length];
+
+    static {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new LatencyHistogram();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new AtomicLong(0);
+        }
+    }
+
+    /**
+     * Recording enabled
+     */
+    private static volatile boolean enabled = true;
+
+    /**
+     * Time of the last reset
+     */
+    private static volatile long resetTime = System.currentTimeMillis();
+
+    /**
+     * Periodic dump thread or null
+     */
+    private static DumpThread dumpThread = null;
+
+    /**
+     * Constructor
+     */
+    private MediaStats() {
+    }
+
+    /**
+     * Enable or disable the recording
+     *
+     * @param enable Enable flag
+     */
+    public static void setEnabled(boolean enable) {
+        enabled = enable;
+    }
+
+    /**
+     * Is recording enabled
+     *
+     * @return Boolean
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Record the latency of a stage
+     *
+     * @param stage Stage
+     * @param nanos Latency in nanoseconds
+     */
+    public static void record(Stage stage, long nanos) {
+        if (enabled) {
+            histograms[stage.ordinal()].record(nanos / 1000L);
+        }
+    }
+
+    /**
+     * Record the latency of a stage from its start time
+     *
+     * @param stage Stage
+     * @param start Start time on the monotonic clock, in nanoseconds
+     */
+    public static void recordSince(Stage stage, long start) {
+        if (enabled) {
+            histograms[stage.ordinal()].record((System.nanoTime() - start) / 1000L);
+        }
+    }
+
+    /**
+     * Increment a counter
+     *
+     * @param counter Counter
+     */
+    public static void count(Counter counter) {
+        if (enabled) {
+            counters[counter.ordinal()].incrementAndGet();
+        }
+    }
+
+    /**
+     * Add to a counter
+     *
+     * @param counter Counter
+     * @param delta Value to add
+     */
+    public static void count(Counter counter, long delta) {
+        if (enabled) {
+            counters[counter.ordinal()].addAndGet(delta);
+        }
+    }
+
+    /**
+     * Record a received datagram
+     *
+     * @param length Datagram length
+     */
+    public static void datagramReceived(int length) {
+        if (enabled) {
+            counters[Counter.PACKETS_RECEIVED.ordinal()].incrementAndGet();
+            counters[Counter.BYTES_RECEIVED.ordinal()].addAndGet(length);
+        }
+    }
+
+    /**
+     * Returns the histogram of a stage
+     *
+     * @param stage Stage
+     * @return Histogram
+     */
+    public static LatencyHistogram getHistogram(Stage stage) {
+        return histograms[stage.ordinal()];
+    }
+
+    /**
+     * Returns the value of a counter
+     *
+     * @param counter Counter
+     * @return Value
+     */
+    public static long getCount(Counter counter) {
+        return counters[counter.ordinal()].get();
+    }
+
+    /**
+     * Reset the histograms and the counters
+     */
+    public static void reset() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i].reset();
+        }
+        for (int i = 0; i < counters.length; i++) {
+            counters[i].set(0);
+        }
+        resetTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Returns a text report of the stages and the counters
+     *
+     * @return Report
+     */
+    public static String getReport() {
+        StringBuilder report = new StringBuilder();
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss", Locale.US);
+        report.append("Since ").append(format.format(new Date(resetTime))).append('\n');
+        report.append(String.format(Locale.US, "%-14s %7s %8s %8s %8s %8s %8s\n",
+                "stage (ms)", "count", "mean", "p50", "p90", "p99", "max"));
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram histogram = histograms[stage.ordinal()];
+            report.append(String.format(Locale.US, "%-14s %7d %8.1f %8.1f %8.1f %8.1f %8.1f\n",
+                    stage.getLabel(),
+                    histogram.getCount(),
+                    histogram.getMean() / 1000.0,
+                    histogram.getPercentile(50) / 1000.0,
+                    histogram.getPercentile(90) / 1000.0,
+                    histogram.getPercentile(99) / 1000.0,
+                    histogram.getMax() / 1000.0));
+        }
+        for (Counter counter : Counter.values()) {
+            report.append(String.format(Locale.US, "%-17s %d\n",
+                    counter.getLabel(), counters[counter.ordinal()].get()));
+        }
+        return report.toString();
+    }
+
+    /**
+     * Append the report to a file periodically, until stopDump is called
+     *
+     * @param file File
+     * @param period Period in milliseconds
+     */
+    public static synchronized void startDump(File file, long period) {
+        stopDump();
+        dumpThread = new DumpThread(file, period);
+        dumpThread.start();
+    }
+
+    /**
+     * Stop the periodic dump, the report is appended a last time
+     */
+    public static synchronized void stopDump() {
+        if (dumpThread != null) {
+            dumpThread.terminate();
+            dumpThread = null;
+        }
+    }
+
+    /**
+     * Append the report to a file
+     *
+     * @param file File
+     * @throws IOException
+     */
+    public static void dump(File file) throws IOException {
+        FileWriter writer = new FileWriter(file, true);
+        try {
+            writer.write(getReport());
+            writer.write('\n');
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Periodic dump thread
+     */
+    private static class DumpThread extends Thread {
+        /**
+         * File
+         */
+        private final File file;
+
+        /**
+         * Period in milliseconds
+         */
+        private final long period;
+
+        /**
+         * Running flag
+         */
+        private volatile boolean running = true;
+
+        /**
+         * Constructor
+         *
+         * @param file File
+         * @param period Period in milliseconds
+         */
+        public DumpThread(File file, long period) {
+            super("MediaStatsDump");
+            this.file = file;
+            this.period = period;
+        }
+
+        /**
+         * Stop the thread
+         */
+        public void terminate() {
+            running = false;
+            interrupt();
+        }
+
+        /**
+         * Background processing
+         */
+        public void run() {
+            while (running) {
+                try {
+                    Thread.sleep(period);
+                } catch (InterruptedException e) {
+                    // Dump a last time
+                }
+                try {
+                    dump(file);
+                } catch (IOException e) {
+                    if (LogUtils.isActive) {
+                        Log.w(LOGTAG, "Can't dump the media stats", e);
+                    }
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+/**
+ * Multiple-producer single-consumer ring buffer. Producers race for the
+ * tail with a compare-and-set, the loser simply retries on the next slot.
+ *
+ * @param <E> Element type
+ */
+public class MpscRingBuffer<E> extends RingBuffer<E> {
+    /**
+     * Constructor
+     *
+     * @param capacity Requested capacity, rounded up to a power of two
+     * @param policy Overflow policy
+     */
+    public MpscRingBuffer(int capacity, OverflowPolicy policy) {
+        super(capacity, policy);
+    }
+
+    /**
+     * Claim the write position for the slot at the given tail value
+     *
+     * @param pos Current tail value
+     * @return True if the position has been claimed by the caller
+     */
+    protected boolean claim(long pos) {
+        return tail.compareAndSet(pos, pos + 1);
+    }
+}
@@ -0,0 +1,555 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+
+/**
+ * Multicast capable datagram connection, used on the ports of the registered
+ * multicast groups. A connection opened on the port of a registered
+ * multicast group joins the group, the TTL, outgoing interface and loopback
+ * options of a group are applied when sending to it. Other destinations are
+ * reached in unicast as with a plain datagram connection.
+ */
+public class MulticastDatagramConnection implements DatagramConnection {
+	/**
+	 * Datagram connection
+	 */
+	private MulticastSocket connection = null;
+
+    /**
+     * Joined multicast group
+     */
+    private MulticastGroup joinedGroup = null;
+
+    /**
+     * Datagram Packet
+     */
+    private DatagramPacket packet = null;
+
+    /**
+     * Datagram Packet used to receive into caller buffers
+     */
+    private DatagramPacket userPacket = null;
+
+    /**
+     * Datagram Packet reused to send data
+     */
+    private DatagramPacket sendPacket = null;
+
+    /**
+     * Last remote host used to send data
+     */
+    private String remoteHost = null;
+
+    /**
+     * Resolved address of the last remote host
+     */
+    private InetAddress remoteAddress = null;
+
+    /**
+     * Connected flag
+     */
+    private boolean connected = false;
+
+    /**
+     * Port lease the socket has been taken from
+     */
+    private PortLease lease = null;
+
+    /**
+     * Port taken from the lease
+     */
+    private int leasePort = 0;
+
+    /**
+     * Connection timeout
+     */
+    private int timeout = 0;
+
+	/**
+	 * Constructor
+	 */
+	public MulticastDatagramConnection() {
+        packet = new DatagramPacket(new byte[DatagramConnection.DEFAULT_DATAGRAM_SIZE],
+                DatagramConnection.DEFAULT_DATAGRAM_SIZE);
+        userPacket = new DatagramPacket(new byte[0], 0);
+        sendPacket = new DatagramPacket(new byte[0], 0);
+	}
+
+    /**
+     * Constructor
+     *
+     * @param timeout SO Timeout
+     */
+    public MulticastDatagramConnection(int timeout) {
+        this();
+        this.timeout = timeout;
+    }
+
+	/**
+	 * Open the datagram connection
+	 *
+	 * @throws IOException
+	 */
+	public void open() throws IOException {
+		connection = new MulticastSocket();
+        connection.setSoTimeout(timeout);
+	}
+
+	/**
+	 * Open the datagram connection
+	 * 
+	 * @param port Local port
+	 * @throws IOException
+	 */
+	public void open(int port) throws IOException {
+		// A multicast socket can't be taken over from the port lease: close
+		// the leased socket, the multicast socket reuses its address
+		lease = NetworkRessourceManager.getPortLease(port);
+		if (lease != null) {
+			DatagramSocket socket = lease.takeSocket(port);
+			if (socket != null) {
+				socket.close();
+			}
+			leasePort = port;
+		}
+		try {
+			connection = new MulticastSocket(port);
+			connection.setSoTimeout(timeout);
+
+			// Join the group received on this port, if any
+			MulticastGroup group = NetworkRessourceManager.getMulticastGroup(port);
+			if (group != null) {
+				joinGroup(group);
+			}
+		} catch (IOException e) {
+			if (connection != null) {
+				connection.close();
+				connection = null;
+			}
+			if (lease != null) {
+				lease.closed(port);
+				lease = null;
+			}
+			throw e;
+		}
+		if (lease != null) {
+			lease.opened(port, this);
+		}
+	}
+
+	/**
+	 * Close the datagram connection
+	 * 
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (connection != null) {
+			int port = connection.getLocalPort();
+			if (joinedGroup != null) {
+				try {
+					connection.leaveGroup(new InetSocketAddress(joinedGroup.getAddress(),
+							joinedGroup.getPort()), joinedGroup.getNetworkInterface());
+				} catch (IOException e) {
+					// Nothing to do
+				}
+				joinedGroup = null;
+			}
+			connection.close();
+			connection = null;
+			connected = false;
+			if (lease != null) {
+				lease.closed(port);
+				lease = null;
+			}
+		}
+	}
+
+	/**
+	 * Bind the connection to a peer
+	 *
+	 * @param remoteAddr Remote address
+	 * @param remotePort Remote port
+	 * @throws IOException
+	 */
+	public void connect(String remoteAddr, int remotePort) throws IOException {
+		if (connection != null) {
+			synchronized(sendPacket) {
+				InetAddress address = resolve(remoteAddr);
+				connection.connect(address, remotePort);
+				sendPacket.setAddress(address);
+				sendPacket.setPort(remotePort);
+				connected = true;
+			}
+		} else {
+			throw new IOException("Connection not openned");
+		}
+	}
+
+	/**
+	 * Unbind the connection from its peer
+	 */
+	public void disconnect() {
+		if (connection != null) {
+			synchronized(sendPacket) {
+				connection.disconnect();
+				connected = false;
+			}
+		}
+	}
+
+	/**
+	 * Is the connection bound to a peer
+	 *
+	 * @return Boolean
+	 */
+	public boolean isConnected() {
+		return connected;
+	}
+	
+	/**
+	 * Receive data with a specific buffer size
+	 *
+	 * @return Byte array
+	 * @throws IOException
+	 */
+	public byte[] receive() throws IOException {
+		if (connection != null) {
+            PortLease l = lease;
+            MulticastGroup group = joinedGroup;
+            int packetLength;
+            byte[] injected = pollInjected(l, group);
+            if (injected != null) {
+                // Handed back by a receive filter, not a network datagram
+                packetLength = Math.min(injected.length, packet.getData().length);
+                System.arraycopy(injected, 0, packet.getData(), 0, packetLength);
+            } else {
+                packet.setLength(DatagramConnection.DEFAULT_DATAGRAM_SIZE);
+                connection.receive(packet);
+                packetLength = packet.getLength();
+                MediaStats.datagramReceived(packetLength);
+                if (l != null) {
+                    l.arrived(leasePort);
+                }
+                if (group != null) {
+                    group.arrived();
+                }
+            }
+            if (l != null) {
+                packetLength = l.filtered(leasePort, packet.getData(), 0, packetLength);
+            }
+            if (group != null) {
+                packetLength = group.filtered(packet.getData(), 0, packetLength);
+            }
+            byte[] data = new byte[packetLength];
+            System.arraycopy(packet.getData(), 0, data, 0, packetLength);
+            if (l != null) {
+                l.received(leasePort, data, 0, packetLength);
+            }
+			return data;
+		} else {
+			throw new IOException("Connection not openned");
+		}
+	}
+
+	/**
+	 * Receive data into a caller buffer
+	 *
+	 * @param buffer Destination buffer
+	 * @param offset Offset in the buffer
+	 * @param length Maximum number of bytes to receive
+	 * @return Number of bytes received
+	 * @throws IOException
+	 */
+	public int receive(byte[] buffer, int offset, int length) throws IOException {
+		if (connection != null) {
+			PortLease l = lease;
+			MulticastGroup group = joinedGroup;
+			int received;
+			byte[] injected = pollInjected(l, group);
+			if (injected != null) {
+				// Handed back by a receive filter, not a network datagram
+				received = Math.min(injected.length, length);
+				System.arraycopy(injected, 0, buffer, offset, received);
+			} else {
+				userPacket.setData(buffer, offset, length);
+				connection.receive(userPacket);
+				received = userPacket.getLength();
+				MediaStats.datagramReceived(received);
+				if (l != null) {
+					l.arrived(leasePort);
+				}
+				if (group != null) {
+					group.arrived();
+				}
+			}
+			if (l != null) {
+				received = l.filtered(leasePort, buffer, offset, received);
+			}
+			if (group != null) {
+				received = group.filtered(buffer, offset, received);
+			}
+			if (l != null) {
+				l.received(leasePort, buffer, offset, received);
+			}
+			return received;
+		} else {
+			throw new IOException("Connection not openned");
+		}
+	}
+
+	/**
+	 * Receive data into a buffer taken from a pool
+	 *
+	 * @param pool Packet buffer pool
+	 * @return Packet buffer
+	 * @throws IOException
+	 */
+	public PacketBuffer receive(PacketBufferPool pool) throws IOException {
+		PacketBuffer buffer = pool.acquire();
+		try {
+			buffer.setLength(receive(buffer.getData(), 0, buffer.getCapacity()));
+			return buffer;
+		} catch (IOException e) {
+			buffer.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Send data
+	 * 
+	 * @param remoteAddr Remote address
+	 * @param remotePort Remote port
+	 * @param data Data as byte array
+	 * @throws IOException
+	 */
+	public void send(String remoteAddr, int remotePort, byte[] data) throws IOException {
+		if (data == null) {
+			return;
+		}
+		
+		PortLease l = lease;
+		if (l != null) {
+			data = l.filterOutgoing(leasePort, data);
+			if (data == null) {
+				// Taken over by a send filter
+				return;
+			}
+		}
+		sendDirect(remoteAddr, remotePort, data, 0, data.length);
+	}
+
+	/**
+	 * Send data without applying the send filters
+	 *
+	 * @param remoteAddr Remote address
+	 * @param remotePort Remote port
+	 * @param data Data as byte array
+	 * @param offset Offset of the data
+	 * @param length Length of the data
+	 * @throws IOException
+	 */
+	public void sendDirect(String remoteAddr, int remotePort, byte[] data, int offset, int length) throws IOException {
+		if (connection != null) {
+			synchronized(sendPacket) {
+				if (connected) {
+					checkPeer(remoteAddr, remotePort);
+				} else {
+					sendPacket.setAddress(resolve(remoteAddr));
+					sendPacket.setPort(remotePort);
+				}
+				sendPacket.setData(data, offset, length);
+				transmit();
+			}
+		} else {
+			throw new IOException("Connection not openned");
+		}
+	}
+
+	/**
+	 * Check that a destination is the connected peer. Called with the send
+	 * packet locked.
+	 *
+	 * @param remoteAddr Remote address
+	 * @param remotePort Remote port
+	 * @throws IOException if the destination is not the peer
+	 */
+	private void checkPeer(String remoteAddr, int remotePort) throws IOException {
+		if ((remotePort != sendPacket.getPort()) || !resolve(remoteAddr).equals(sendPacket.getAddress())) {
+			throw new IOException("Destination " + remoteAddr + ":" + remotePort + " is not the connected peer");
+		}
+	}
+
+	/**
+	 * Send data to the connected peer
+	 *
+	 * @param data Data as byte array
+	 * @param offset Offset of the data
+	 * @param length Length of the data
+	 * @throws IOException
+	 */
+	public void send(byte[] data, int offset, int length) throws IOException {
+		if (connected) {
+			synchronized(sendPacket) {
+				sendPacket.setData(data, offset, length);
+				transmit();
+			}
+		} else {
+			throw new IOException("Connection not connected");
+		}
+	}
+
+	/**
+	 * Send several datagrams to the connected peer in one call
+	 *
+	 * @param packets Datagrams, each one starting at offset 0
+	 * @param lengths Length of each datagram
+	 * @param count Number of datagrams to send
+	 * @throws IOException
+	 */
+	public void send(byte[][] packets, int[] lengths, int count) throws IOException {
+		if (connected) {
+			synchronized(sendPacket) {
+				for (int i = 0; i < count; i++) {
+					sendPacket.setData(packets[i], 0, lengths[i]);
+					transmit();
+				}
+			}
+		} else {
+			throw new IOException("Connection not connected");
+		}
+	}
+
+	/**
+	 * Take the next packet injected on the port lease or in the joined group
+	 *
+	 * @param l Port lease or null
+	 * @param group Joined group or null
+	 * @return Packet or null if none
+	 */
+	private byte[] pollInjected(PortLease l, MulticastGroup group) {
+		byte[] injected = null;
+		if (l != null) {
+			injected = l.pollInjected(leasePort);
+		}
+		if ((injected == null) && (group != null)) {
+			injected = group.pollInjected();
+		}
+		return injected;
+	}
+
+	/**
+	 * Send the send packet, timing the socket call. Called with the send
+	 * packet locked.
+	 *
+	 * @throws IOException
+	 */
+	private void transmit() throws IOException {
+		long start = System.nanoTime();
+		connection.send(sendPacket);
+		MediaStats.recordSince(MediaStats.Stage.SOCKET_SEND, start);
+		MediaStats.count(MediaStats.Counter.PACKETS_SENT);
+		MediaStats.count(MediaStats.Counter.BYTES_SENT, sendPacket.getLength());
+	}
+
+	/**
+	 * Resolve a remote host, the last result is cached. The sending options of
+	 * a registered multicast group are applied when it becomes the
+	 * destination.
+	 *
+	 * @param remoteAddr Remote address
+	 * @return Address
+	 * @throws IOException
+	 */
+	private InetAddress resolve(String remoteAddr) throws IOException {
+		if ((remoteAddress == null) || !remoteAddr.equals(remoteHost)) {
+			remoteAddress = InetAddress.getByName(remoteAddr);
+			remoteHost = remoteAddr;
+			if (remoteAddress.isMulticastAddress()) {
+				MulticastGroup group = NetworkRessourceManager.getMulticastGroup(remoteAddr);
+				if (group != null) {
+					applySendOptions(group);
+				}
+			}
+		}
+		return remoteAddress;
+	}
+
+	/**
+	 * Join a multicast group
+	 *
+	 * @param group Multicast group
+	 * @throws IOException
+	 */
+	private void joinGroup(MulticastGroup group) throws IOException {
+		InetSocketAddress address = new InetSocketAddress(group.getAddress(), group.getPort());
+		connection.joinGroup(address, group.getNetworkInterface());
+		joinedGroup = group;
+	}
+
+	/**
+	 * Apply the sending options of a multicast group
+	 *
+	 * @param group Multicast group
+	 * @throws IOException
+	 */
+	private void applySendOptions(MulticastGroup group) throws IOException {
+		connection.setTimeToLive(group.getTimeToLive());
+		if (group.getNetworkInterface() != null) {
+			connection.setNetworkInterface(group.getNetworkInterface());
+		}
+		// The option disables the loopback when set
+		connection.setLoopbackMode(!group.isLoopback());
+	}
+	
+	/**
+	 * Returns the local address
+	 * 
+	 * @return Address
+	 * @throws IOException
+	 */
+	public String getLocalAddress() throws IOException {
+		if ((connection != null) && (connection.getLocalAddress() != null)) {
+			return connection.getLocalAddress().getHostAddress();
+		} else {
+			throw new IOException("Connection not openned");
+		}
+	}
+
+	/**
+	 * Returns the local port
+	 * 
+	 * @return Port
+	 * @throws IOException
+	 */
+	public int getLocalPort() throws IOException {
+		if (connection != null) {
+			return connection.getLocalPort();
+		} else {
+			throw new IOException("Connection not openned");
+		}
+	}
+}
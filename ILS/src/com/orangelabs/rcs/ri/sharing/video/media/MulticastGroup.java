@@ -0,0 +1,347 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.UnknownHostException;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * IP multicast group of a lecture. The group is announced to the
+ * participants with its descriptor "multicast:&lt;address&gt;:&lt;port&gt;;ttl=&lt;ttl&gt;".
+ */
+public class MulticastGroup {
+    /**
+     * Descriptor scheme
+     */
+    public static final String SCHEME = "multicast:";
+
+    /**
+     * Default TTL: the packets stay on the local network
+     */
+    public static final int DEFAULT_TTL = 1;
+
+    /**
+     * First address of the organization-local scope 239.255.0.0/16
+     */
+    private static final int LOCAL_SCOPE_BASE = (239 << 24) | (255 << 16);
+
+    /**
+     * Random generator of the group addresses
+     */
+    private static final Random random = new Random();
+
+    /**
+     * Group address
+     */
+    private final String address;
+
+    /**
+     * RTP port, the RTCP port is the next one
+     */
+    private final int port;
+
+    /**
+     * Time to live of the sent packets
+     */
+    private final int ttl;
+
+    /**
+     * Outgoing network interface or null for the default one
+     */
+    private NetworkInterface networkInterface = null;
+
+    /**
+     * Loop the sent packets back to the local host
+     */
+    private boolean loopback = false;
+
+    /**
+     * Filter of the datagrams received from the group
+     */
+    private volatile PortLease.ReceiveFilter receiveFilter = null;
+
+    /**
+     * Local RTP port the group is sent from, or -1
+     */
+    private volatile int sourcePort = -1;
+
+    /**
+     * Arrival time of the last datagram received from the group, on the
+     * monotonic clock in nanoseconds
+     */
+    private volatile long lastArrival = 0L;
+
+    /**
+     * Packets injected in the group, waiting for the next receive
+     */
+    private final ConcurrentLinkedQueue<byte[]> injected = new ConcurrentLinkedQueue<byte[]>();
+
+    /**
+     * Constructor
+     *
+     * @param address Group address
+     * @param port RTP port
+     * @param ttl Time to live
+     */
+    public MulticastGroup(String address, int port, int ttl) {
+        this.address = address;
+        this.port = port;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Create a group with a random organization-local address
+     *
+     * @param port RTP port
+     * @return Group
+     */
+    public static MulticastGroup create(int port) {
+        int host;
+        synchronized(random) {
+            // Skip the .0 and .255 addresses
+            host = 1 + random.nextInt(0xFFFE);
+        }
+        int addr = LOCAL_SCOPE_BASE | host;
+        String address = ((addr >>> 24) & 0xFF) + "." + ((addr >>> 16) & 0xFF) + "."
+                + ((addr >>> 8) & 0xFF) + "." + (addr & 0xFF);
+        return new MulticastGroup(address, port, DEFAULT_TTL);
+    }
+
+    /**
+     * Parse a group descriptor
+     *
+     * @param descriptor Descriptor
+     * @return Group or null if the descriptor is not valid
+     */
+    public static MulticastGroup parse(String descriptor) {
+        if ((descriptor == null) || !descriptor.startsWith(SCHEME)) {
+            return null;
+        }
+        try {
+            String value = descriptor.substring(SCHEME.length()).trim();
+            int ttl = DEFAULT_TTL;
+            int params = value.indexOf(';');
+            if (params != -1) {
+                String param = value.substring(params + 1).trim();
+                if (param.startsWith("ttl=")) {
+                    ttl = Integer.parseInt(param.substring(4));
+                }
+                value = value.substring(0, params);
+            }
+            int sep = value.lastIndexOf(':');
+            if (sep == -1) {
+                return null;
+            }
+            String address = value.substring(0, sep);
+            int port = Integer.parseInt(value.substring(sep + 1));
+            if (!InetAddress.getByName(address).isMulticastAddress()
+                    || (port <= 0) || (port > 65534) || (ttl < 0) || (ttl > 255)) {
+                return null;
+            }
+            return new MulticastGroup(address, port, ttl);
+        } catch (NumberFormatException e) {
+            return null;
+        } catch (UnknownHostException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the group address
+     *
+     * @return Address
+     */
+    public String getAddress() {
+        return address;
+    }
+
+    /**
+     * Returns the RTP port
+     *
+     * @return Port
+     */
+    public int getPort() {
+        return port;
+    }
+
+    /**
+     * Returns the time to live of the sent packets
+     *
+     * @return TTL
+     */
+    public int getTimeToLive() {
+        return ttl;
+    }
+
+    /**
+     * Returns the outgoing network interface
+     *
+     * @return Interface or null for the default one
+     */
+    public NetworkInterface getNetworkInterface() {
+        return networkInterface;
+    }
+
+    /**
+     * Set the outgoing network interface, e.g. the Wi-Fi one
+     *
+     * @param networkInterface Interface or null for the default one
+     */
+    public void setNetworkInterface(NetworkInterface networkInterface) {
+        this.networkInterface = networkInterface;
+    }
+
+    /**
+     * Are the sent packets looped back to the local host
+     *
+     * @return Boolean
+     */
+    public boolean isLoopback() {
+        return loopback;
+    }
+
+    /**
+     * Loop the sent packets back to the local host
+     *
+     * @param loopback Loopback flag
+     */
+    public void setLoopback(boolean loopback) {
+        this.loopback = loopback;
+    }
+
+    /**
+     * Returns the local RTP port the group is sent from
+     *
+     * @return Port or -1 if the group is only received
+     */
+    public int getSourcePort() {
+        return sourcePort;
+    }
+
+    /**
+     * Set the local RTP port the group is sent from. The connections opened
+     * on this port and on the next one (RTCP) apply the sending options of
+     * the group. Must be set before the group is registered.
+     *
+     * @param port Local RTP port or -1
+     */
+    public void setSourcePort(int port) {
+        this.sourcePort = port;
+    }
+
+    /**
+     * Is a local port used by the group, to receive it or to send to it
+     *
+     * @param localPort Local port
+     * @return Boolean
+     */
+    boolean usesPort(int localPort) {
+        int source = sourcePort;
+        return (localPort == port) || ((source > 0) && ((localPort == source) || (localPort == source + 1)));
+    }
+
+    /**
+     * Set a filter of the datagrams received by the connections which have
+     * joined the group, applied before the datagram is handed to the RTP
+     * stack
+     *
+     * @param filter Filter or null
+     */
+    public void setReceiveFilter(PortLease.ReceiveFilter filter) {
+        this.receiveFilter = filter;
+    }
+
+    /**
+     * A datagram has arrived from the group, before it is filtered
+     */
+    void arrived() {
+        lastArrival = System.nanoTime();
+    }
+
+    /**
+     * Returns the arrival time of the last datagram received from the group
+     *
+     * @return Time on the monotonic clock in nanoseconds, 0 if none
+     */
+    public long getLastArrival() {
+        return lastArrival;
+    }
+
+    /**
+     * Hand a packet to the connection which has joined the group as if it
+     * had been received from the group, e.g. a packet rebuilt by the receive
+     * filter. It is returned by the next receive call, through the filter,
+     * but is not counted as a received datagram.
+     *
+     * @param packet RTP packet
+     */
+    public void inject(byte[] packet) {
+        injected.offer(packet);
+    }
+
+    /**
+     * Take the next injected packet
+     *
+     * @return Packet or null if none
+     */
+    byte[] pollInjected() {
+        if (injected.isEmpty()) {
+            return null;
+        }
+        return injected.poll();
+    }
+
+    /**
+     * Apply the filter to a received datagram
+     *
+     * @param data Buffer
+     * @param offset Offset of the datagram in the buffer
+     * @param length Length of the datagram
+     * @return New length of the datagram
+     */
+    int filtered(byte[] data, int offset, int length) {
+        PortLease.ReceiveFilter filter = receiveFilter;
+        if (filter == null) {
+            return length;
+        }
+        return filter.filter(data, offset, length);
+    }
+
+    /**
+     * Is an address the group address
+     *
+     * @param addr Address
+     * @return Boolean
+     */
+    public boolean isGroupAddress(String addr) {
+        return address.equals(addr);
+    }
+
+    /**
+     * Returns the group descriptor
+     *
+     * @return Descriptor
+     */
+    public String toString() {
+        return SCHEME + address + ":" + port + ";ttl=" + ttl;
+    }
+}
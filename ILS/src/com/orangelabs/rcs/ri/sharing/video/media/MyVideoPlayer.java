@@ -20,10 +20,13 @@ package com.orangelabs.rcs.ri.sharing.video.media;
 
 import java.io.IOException;
 import java.util.Iterator;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+import android.graphics.ImageFormat;
 import android.hardware.Camera;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.util.Log;
 
 import com.gsma.services.rcs.JoynServiceException;
 import com.gsma.services.rcs.vsh.IVideoPlayerListener;
@@ -43,11 +46,33 @@ import com.orangelabs.rcs.core.ims.protocol.rtp.media.MediaException;
 import com.orangelabs.rcs.core.ims.protocol.rtp.media.MediaInput;
 import com.orangelabs.rcs.core.ims.protocol.rtp.media.VideoSample;
 import com.orangelabs.rcs.core.ims.protocol.rtp.stream.RtpStreamListener;
+import com.orangelabs.rcs.ri.utils.LogUtils;
 
 /**
  * Live RTP video player based on H264 QCIF format
  */
 public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback, RtpStreamListener {
+    /**
+     * Consumer of the encoded frames, called from the encoding thread. It
+     * must never block.
+     */
+    public interface FrameSink {
+        /**
+         * Add an encoded NAL unit
+         *
+         * @param layer Simulcast layer, 0 for the base layer
+         * @param data NAL unit
+         * @param timestamp RTP timestamp
+         * @param orientation Video orientation or null
+         */
+        public void addFrame(int layer, byte[] data, long timestamp, VideoOrientation orientation);
+    }
+
+    /**
+     * The log tag for this class
+     */
+    private static final String LOGTAG = LogUtils.getTag(MyVideoPlayer.class.getSimpleName());
+
     /**
      * Default video codec
      */
@@ -84,9 +109,9 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
     private long videoStartTime = 0L;
 
     /**
-     * Temporary connection to reserve the port
+     * Lease of the local RTP/RTCP ports
      */
-    private DatagramConnection temporaryConnection = null;
+    private PortLease portLease = null;
 
     /**
      * NAL SPS
@@ -99,14 +124,60 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
     private byte[] pps = new byte[0];
 
     /**
-     * Timestamp increment
+     * Multicast group the video is sent to, or null
      */
-    private int timestampInc;
-    
-    /***
-     * Current time stamp
+    private MulticastGroup multicastGroup = null;
+
+    /**
+     * Encode the simulcast layers
+     */
+    private boolean simulcastEnabled = false;
+
+    /**
+     * Encoder of the upper simulcast layers or null
+     */
+    private SimulcastEncoder simulcast = null;
+
+    /**
+     * Listener of the upper simulcast layers
+     */
+    private final SimulcastEncoder.Listener simulcastListener = new SimulcastEncoder.Listener() {
+        public void onEncodedNal(int layer, byte[] nal, long timestamp) {
+            VideoOrientation orientation = getVideoOrientation();
+            long sequence = gopCache.add(layer, nal, timestamp, orientation);
+            deliverFrame(sequence, layer, nal, timestamp, orientation);
+        }
+    };
+
+    /**
+     * Sinks of the encoded frames
+     */
+    private final CopyOnWriteArrayList<SinkEntry> frameSinks = new CopyOnWriteArrayList<SinkEntry>();
+
+    /**
+     * Current group of pictures of each layer, replayed to the late joiners
      */
-    private long timeStamp = 0;
+    private final GopCache gopCache = new GopCache();
+
+    /**
+     * RTCP feedback receiver
+     */
+    private RtcpFeedbackReceiver rtcpFeedback = null;
+
+    /**
+     * Congestion controller
+     */
+    private BitrateController bitrateController = null;
+
+    /**
+     * Operating point of the encoder
+     */
+    private BitrateController.OperatingPoint encoderPoint = null;
+
+    /**
+     * Frame scheduler
+     */
+    private FrameScheduler frameScheduler = null;
     
     /**
 	 * NAL initialization
@@ -114,14 +185,140 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
 	private boolean nalInit = false;
 
     /**
-     * NAL repeat
+     * Default interval between two periodic SPS/PPS sendings, in milliseconds
+     */
+    public static final long DEFAULT_PARAMETER_SET_INTERVAL = 5000L;
+
+    /**
+     * Minimum interval between two keyframes forced on request, in
+     * milliseconds
+     */
+    private static final long MIN_KEYFRAME_INTERVAL = 500L;
+
+    /**
+     * Retransmissions are limited to this fraction of the encoder bit rate
+     */
+    private static final int RETRANSMIT_RATE_DIVISOR = 4;
+
+    /**
+     * NAL type of an IDR slice
+     */
+    static final int AVC_NALTYPE_IDR = 5;
+
+    /**
+     * Interval between two periodic SPS/PPS sendings
+     */
+    private long parameterSetInterval = DEFAULT_PARAMETER_SET_INTERVAL;
+
+    /**
+     * Time of the last SPS/PPS sending
+     */
+    private long lastParameterSetTime = 0L;
+
+    /**
+     * Time of the last keyframe
+     */
+    private long lastKeyFrameTime = 0L;
+
+    /**
+     * Minimum interval between two keyframes forced for the frame sinks. A
+     * forced keyframe is sent to every recipient of a broadcast, the
+     * requests of the lagging recipients are aggregated over this interval.
+     */
+    private static final long SINK_KEYFRAME_INTERVAL = 2000L;
+
+    /**
+     * Keyframe requested
+     */
+    private volatile boolean keyFrameRequested = false;
+
+    /**
+     * Keyframe requested by a frame sink
+     */
+    private volatile boolean sinkKeyFrameRequested = false;
+
+    /**
+     * Number of keyframe requests of the frame sinks
+     */
+    private volatile int sinkKeyFrameRequests = 0;
+
+    /**
+     * Number of keyframes forced on request
+     */
+    private volatile int forcedKeyFrames = 0;
+
+    /**
+     * RTCP feedback listener
+     */
+    private final RtcpFeedbackReceiver.Listener rtcpListener = new RtcpFeedbackReceiver.Listener() {
+        public void onReceptionReport(long ssrc, int fractionLost, int cumulativeLost, long jitter, long rtt) {
+            // Handled by the congestion controller
+            PacketHistory history = packetHistory;
+            if (history != null) {
+                history.setRoundTripTime(rtt);
+            }
+            UlpFec.Encoder fec = fecEncoder;
+            if (fec != null) {
+                fec.onReceptionReport(fractionLost);
+            }
+        }
+
+        public void onKeyFrameRequest(long ssrc) {
+            requestKeyFrame();
+        }
+
+        public void onNack(long ssrc, int[] sequenceNumbers) {
+            PacketHistory history = packetHistory;
+            if (history != null) {
+                history.retransmit(sequenceNumbers);
+            }
+        }
+
+        public void onGroupJoined(long ssrc) {
+            // Reported to the broadcast players of the recipients
+        }
+    };
+
+    /**
+     * Retransmission of the packets reported lost by the receiver
+     */
+    private boolean retransmissionEnabled = true;
+
+    /**
+     * History of the sent packets, null if the packets are not retransmitted
+     */
+    private volatile PacketHistory packetHistory = null;
+
+    /**
+     * Relay of the packets sent to the multicast group to the recipients
+     * which have not joined it, null if the video is not sent to a group
+     */
+    private volatile GroupRelay groupRelay = null;
+
+    /**
+     * Pacing of the sent packets
+     */
+    private boolean pacingEnabled = true;
+
+    /**
+     * Pacer of the sent packets, null if the packets are not paced
+     */
+    private volatile PacketPacer packetPacer = null;
+
+    /**
+     * Initial FEC protection level, null if FEC is disabled
      */
-    private int nalRepeat = 0;
+    private UlpFec.Protection fecProtection = null;
 
     /**
-     * NAL repeat MAX value
+     * Adapt the FEC protection level to the reported loss
      */
-    private static final int NALREPEATMAX = 20;
+    private boolean fecAdaptive = false;
+
+    /**
+     * FEC encoder, null if FEC is disabled
+     */
+    private volatile UlpFec.Encoder fecEncoder = null;
 
     /**
      * Scaling factor for encoding
@@ -153,6 +350,16 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
      */
     private int orientationHeaderId = -1;
 
+    /**
+     * Capture time header id
+     */
+    private int captureTimeHeaderId = -1;
+
+    /**
+     * Stamper of the capture time of the sent frames
+     */
+    private volatile CaptureTimeExtension.Stamper captureTimeStamper = null;
+
     /**
      * Camera ID
      */
@@ -168,13 +375,29 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
      */
     private FrameBuffer frameBuffer = new FrameBuffer();
 
+    /**
+     * Number of preview buffers in buffer pool mode: one filled by the
+     * camera, one waiting for the encoder and one being encoded
+     */
+    private static final int PREVIEW_BUFFERS = 3;
+
+    /**
+     * Camera delivering frames into preview buffers, null if the camera
+     * allocates its frames
+     */
+    private Camera bufferCamera = null;
+
+    /**
+     * Cached orientation header
+     */
+    private VideoOrientation videoOrientation = null;
+
     /**
      * Constructor
      */
     public MyVideoPlayer() {
     	// Set the local RTP port
-        localRtpPort = NetworkRessourceManager.generateLocalRtpPort();
-        reservePort(localRtpPort);
+        reservePort();
 
         // Set the default media codec
     	defaultVideoCodec = new VideoCodec(H264Config.CODEC_NAME,
@@ -197,13 +420,14 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
     }
     
 	/**
-	 * Returns the list of codecs supported by the player
+	 * Returns the list of codecs supported by the player, offering the FEC
+	 * packets if enabled
 	 * 
 	 * @return List of codecs
 	 */
 	public VideoCodec[] getSupportedCodecs() {
 		VideoCodec[] list = new VideoCodec[1];
-		list[0] = defaultVideoCodec;
+		list[0] = (fecProtection != null) ? CodecParameters.withFec(defaultVideoCodec) : defaultVideoCodec;
 		return list;
 	}
     
@@ -229,47 +453,71 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
             return;
         }
         
-        // Set the video codec
-        defaultVideoCodec = codec;
-
         // Init video encoder
-        try {
-            timestampInc = (int)(90000 / defaultVideoCodec.getFrameRate());
-            NativeH264EncoderParams nativeH264EncoderParams = new NativeH264EncoderParams();
-
-            // Codec dimensions
-            nativeH264EncoderParams.setFrameWidth(defaultVideoCodec.getVideoWidth());
-            nativeH264EncoderParams.setFrameHeight(defaultVideoCodec.getVideoHeight());
-            nativeH264EncoderParams.setFrameRate(defaultVideoCodec.getFrameRate());
-            nativeH264EncoderParams.setBitRate(defaultVideoCodec.getBitRate());
-
-            // Codec profile and level
-            nativeH264EncoderParams.setProfilesAndLevel(defaultVideoCodec.getParameters());
-
-            // Codec settings optimization
-            nativeH264EncoderParams.setEncMode(NativeH264EncoderParams.ENCODING_MODE_STREAMING);
-            nativeH264EncoderParams.setSceneDetection(false);
-            nativeH264EncoderParams.setIFrameInterval(15);
-
-            int result = NativeH264Encoder.InitEncoder(nativeH264EncoderParams);
-            if (result != 0) {
-               notifyPlayerEventError(VideoPlayer.Error.INTERNAL_ERROR);
-               return;
-            }
-        } catch (UnsatisfiedLinkError e) {
+        if (!openEncoderSession(codec)) {
             notifyPlayerEventError(VideoPlayer.Error.INTERNAL_ERROR);
             return;
         }
 
         // Init the RTP layer
         try {
-            releasePort();
             rtpSender = new VideoRtpSender(new H264VideoFormat(), localRtpPort);
             rtpInput = new MediaRtpInput();
             rtpInput.open();
             rtpSender.prepareSession(rtpInput, remoteHost, remotePort, this);
+            if ((multicastGroup == null) && (portLease != null)) {
+                // The RTP and RTCP packets of the stack leave from connected
+                // sockets
+                portLease.connect(remoteHost, remotePort);
+            }
+            if (pacingEnabled && (portLease != null)) {
+                // First filter: the next ones see the packets as paced
+                packetPacer = new PacketPacer();
+                packetPacer.setTargetBitRate(encoderPoint.getBitRate());
+                packetPacer.attach(portLease, remoteHost, remotePort);
+                packetPacer.addBypass(portLease.getRtcpPort());
+            }
+            if ((captureTimeHeaderId > 0) && (portLease != null)) {
+                captureTimeStamper = new CaptureTimeExtension.Stamper(captureTimeHeaderId, frameScheduler);
+                captureTimeStamper.attach(portLease);
+            }
+            if (retransmissionEnabled && (portLease != null)) {
+                // Remembered after being stamped, retransmitted from the
+                // RTP port of the session, or over the unicast sessions of
+                // the recipients of a multicast group
+                packetHistory = new PacketHistory();
+                packetHistory.setMaxRate(encoderPoint.getBitRate() / RETRANSMIT_RATE_DIVISOR);
+                packetHistory.setPacer(packetPacer);
+                packetHistory.attach(portLease, remoteHost, remotePort);
+            }
+            if ((fecProtection != null) && (portLease != null)
+                    && ((multicastGroup != null) || CodecParameters.isFecNegotiated(codec))) {
+                // Protects the stamped packets, sent from the RTP port of
+                // the session. A unicast receiver must have accepted them,
+                // the receivers of a group learn them from the invitation
+                fecEncoder = new UlpFec.Encoder(fecProtection, fecAdaptive);
+                fecEncoder.setPacer(packetPacer);
+                fecEncoder.attach(portLease, remoteHost, remotePort);
+            }
+            if ((multicastGroup != null) && (portLease != null)) {
+                // Last filter: the packets are relayed as they leave for
+                // the group
+                groupRelay = new GroupRelay();
+                groupRelay.attach(portLease);
+            }
         } catch (Exception e) {
         	e.printStackTrace();
+            detachFilters();
+            if (rtpInput != null) {
+                rtpInput.close();
+                rtpInput = null;
+            }
+            if (rtpSender != null) {
+                rtpSender.stopSession();
+                rtpSender = null;
+            }
+            closeEncoderSession();
+            releasePort();
             notifyPlayerEventError(VideoPlayer.Error.INTERNAL_ERROR);
             return;
         }
@@ -280,18 +528,134 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
     }
 
 	/**
-	 * Closes the player and deallocates resources
+	 * Opens the player as a shared encoder without RTP session. The encoded
+	 * frames are only delivered to the frame sinks, e.g. the players of a
+	 * broadcast.
 	 * 
-	 * @throws JoynServiceException
+	 * @param codec Video codec
 	 */
-	public synchronized void close() {
-        if (!opened) {
-            // Already closed
+	public synchronized void openEncoder(VideoCodec codec) {
+        if (opened) {
+            // Already opened
+            return;
+        }
+
+        // No RTP session: the reserved ports are not needed
+        releasePort();
+
+        if (!openEncoderSession(codec)) {
+            notifyPlayerEventError(VideoPlayer.Error.INTERNAL_ERROR);
             return;
         }
-        // Close the RTP layer
-        rtpInput.close();
-        rtpSender.stopSession();
+
+        // Player is opened
+        opened = true;
+        notifyPlayerEventOpened();
+    }
+
+	/**
+	 * Opens the player and sends the video to a multicast group: one send
+	 * per packet reaches all the participants of the local network
+	 * 
+	 * @param codec Video codec
+	 * @param group Multicast group
+	 */
+	public synchronized void openMulticast(VideoCodec codec, MulticastGroup group) {
+        if (opened) {
+            // Already opened
+            return;
+        }
+
+        // The group options apply to the connections of the leased ports
+        group.setSourcePort(localRtpPort);
+        NetworkRessourceManager.registerMulticastGroup(group);
+        multicastGroup = group;
+        open(codec, group.getAddress(), group.getPort());
+        if (!opened) {
+            NetworkRessourceManager.unregisterMulticastGroup(group);
+            multicastGroup = null;
+        }
+    }
+
+    /**
+     * Stop pacing, stamping, remembering, protecting and relaying the sent
+     * packets
+     */
+    private void detachFilters() {
+        if (packetPacer != null) {
+            // Sends the queued packets through the other filters
+            packetPacer.detach();
+            packetPacer = null;
+        }
+        if (captureTimeStamper != null) {
+            captureTimeStamper.detach();
+            captureTimeStamper = null;
+        }
+        if (packetHistory != null) {
+            packetHistory.detach();
+            packetHistory = null;
+        }
+        if (fecEncoder != null) {
+            fecEncoder.detach();
+            fecEncoder = null;
+        }
+        if (groupRelay != null) {
+            groupRelay.detach();
+            groupRelay = null;
+        }
+    }
+
+    /**
+     * Init the congestion controller and the video encoder
+     *
+     * @param codec Video codec
+     * @return true if done
+     */
+    private boolean openEncoderSession(VideoCodec codec) {
+        // Set the video codec
+        defaultVideoCodec = codec;
+
+        // Init the congestion controller, starting from the negotiated codec
+        bitrateController = new BitrateController(BitrateController.createLadder(
+                defaultVideoCodec.getBitRate(), (int)defaultVideoCodec.getFrameRate(),
+                defaultVideoCodec.getVideoWidth(), defaultVideoCodec.getVideoHeight()),
+                H264Config.CLOCK_RATE);
+        rtcpFeedback = new RtcpFeedbackReceiver();
+        rtcpFeedback.addListener(bitrateController);
+        rtcpFeedback.addListener(rtcpListener);
+        if (portLease != null) {
+            portLease.setReceiveObserver(portLease.getRtcpPort(), rtcpFeedback);
+        }
+
+        // Init video encoder
+        encoderPoint = bitrateController.getOperatingPoint();
+        frameScheduler = new FrameScheduler(encoderPoint.getFrameRate(), H264Config.CLOCK_RATE);
+        if (!initEncoder(encoderPoint)) {
+            return false;
+        }
+
+        // Start the upper simulcast layers, the base layer alone if not possible
+        if (simulcastEnabled && SimulcastEncoder.isSupported()) {
+            simulcast = new SimulcastEncoder(defaultVideoCodec, simulcastListener);
+            if (!simulcast.start()) {
+                simulcast = null;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Stop the RTCP feedback and the upper simulcast layers, and close the
+     * video encoder
+     */
+    private void closeEncoderSession() {
+        if (simulcast != null) {
+            simulcast.stop();
+            simulcast = null;
+        }
+        if (portLease != null) {
+            portLease.setReceiveObserver(portLease.getRtcpPort(), null);
+        }
 
         try {
             // Close the video encoder
@@ -299,6 +663,67 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
         } catch (UnsatisfiedLinkError e) {
         	e.printStackTrace();
         }
+    }
+
+    /**
+     * Enable the simulcast layers above the codec of the player. Must be
+     * called before opening the player, the camera frames must then be
+     * captured at the size of the largest layer.
+     *
+     * @param enabled Simulcast flag
+     */
+    public void setSimulcast(boolean enabled) {
+        this.simulcastEnabled = enabled;
+    }
+
+    /**
+     * Returns the codecs of the encoded layers, from the base layer to the
+     * largest one
+     *
+     * @return Codecs
+     */
+    public VideoCodec[] getLayerCodecs() {
+        SimulcastEncoder layers = simulcast;
+        if (layers == null) {
+            return new VideoCodec[] { defaultVideoCodec };
+        }
+        VideoCodec[] codecs = new VideoCodec[layers.getLayers().length];
+        for (int i = 0; i < codecs.length; i++) {
+            codecs[i] = layers.getLayers()[i].getCodec();
+        }
+        return codecs;
+    }
+
+	/**
+	 * Closes the player and deallocates resources
+	 * 
+	 * @throws JoynServiceException
+	 */
+	public synchronized void close() {
+        if (!opened) {
+            // Already closed
+            return;
+        }
+        // Close the RTP layer
+        if (portLease != null) {
+            portLease.setReceiveObserver(portLease.getRtcpPort(), null);
+        }
+        detachFilters();
+        if (rtpInput != null) {
+            rtpInput.close();
+            rtpInput = null;
+        }
+        if (rtpSender != null) {
+            rtpSender.stopSession();
+            rtpSender = null;
+        }
+        releasePort();
+        if (multicastGroup != null) {
+            NetworkRessourceManager.unregisterMulticastGroup(multicastGroup);
+            multicastGroup = null;
+        }
+
+        closeEncoderSession();
 
         // Player is closed
         opened = false;
@@ -321,82 +746,246 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
             // Already started
             return;
         }
-
-        // Init NAL
-        if (!initNAL()) {
-            return;
+
+        // Init NAL
+        if (!initNAL()) {
+            return;
+        }
+        nalInit = false;
+
+        frameScheduler.start();
+        keyFrameRequested = false;
+        sinkKeyFrameRequested = false;
+        lastKeyFrameTime = 0L;
+        gopCache.clear();
+
+        // Start RTP layer
+        if (rtpSender != null) {
+            rtpSender.startSession();
+        }
+
+        // Player is started
+        videoStartTime = SystemClock.uptimeMillis();
+        started = true;
+        frameProcess = new FrameProcess();
+        frameProcess.start();
+        notifyPlayerEventStarted();
+    }
+
+	/**
+	 * Stops the player
+	 */
+	public synchronized void stop() {
+        if (!opened) {
+            // Player not opened
+            return;
+        }
+
+        if (!started) {
+            // Already stopped
+            return;
+        }
+
+        // Player is stopped
+        videoStartTime = 0L;
+        started = false;
+        try {
+            frameProcess.interrupt();
+        } catch (Exception e) {
+            // Nothing to do
+        }
+        frameBuffer.clear();
+        notifyPlayerEventStopped();
+    }
+
+    /*---------------------------------------------------------------------*/
+
+    /**
+     * Reserve the local RTP/RTCP ports. The ports stay bound until the RTP
+     * stack opens them.
+     */
+    private void reservePort() {
+        if (portLease == null) {
+            try {
+                portLease = NetworkRessourceManager.allocateRtpPorts();
+                localRtpPort = portLease.getRtpPort();
+            } catch (IOException e) {
+                localRtpPort = -1;
+            }
+        }
+    }
+
+    /**
+     * Release the reserved ports which have not been opened by the RTP stack
+     */
+    private void releasePort() {
+        if (portLease != null) {
+            portLease.release();
+            portLease = null;
+        }
+    }
+
+    /**
+     * Init the video encoder
+     *
+     * @param point Operating point
+     * @return true if done
+     */
+    private boolean initEncoder(BitrateController.OperatingPoint point) {
+        try {
+            NativeH264EncoderParams nativeH264EncoderParams = new NativeH264EncoderParams();
+
+            // Codec dimensions
+            nativeH264EncoderParams.setFrameWidth(point.getWidth());
+            nativeH264EncoderParams.setFrameHeight(point.getHeight());
+            nativeH264EncoderParams.setFrameRate(point.getFrameRate());
+            nativeH264EncoderParams.setBitRate(point.getBitRate());
+
+            // Codec profile and level
+            nativeH264EncoderParams.setProfilesAndLevel(defaultVideoCodec.getParameters());
+
+            // Codec settings optimization
+            nativeH264EncoderParams.setEncMode(NativeH264EncoderParams.ENCODING_MODE_STREAMING);
+            nativeH264EncoderParams.setSceneDetection(false);
+            nativeH264EncoderParams.setIFrameInterval(15);
+
+            return (NativeH264Encoder.InitEncoder(nativeH264EncoderParams) == 0);
+        } catch (UnsatisfiedLinkError e) {
+            return false;
+        }
+    }
+
+    /**
+     * Re-init the encoder if the congestion controller has moved to another
+     * operating point or if a keyframe has been requested, a new encoder
+     * session always starting with an IDR frame. Called from the encoding
+     * thread, between two frames.
+     */
+    private void updateEncoder() {
+        BitrateController.OperatingPoint point = bitrateController.getOperatingPoint();
+        long sinceKeyFrame = SystemClock.elapsedRealtime() - lastKeyFrameTime;
+        boolean keyFrame = (keyFrameRequested && (sinceKeyFrame >= MIN_KEYFRAME_INTERVAL))
+                || (sinkKeyFrameRequested && (sinceKeyFrame >= SINK_KEYFRAME_INTERVAL));
+        if ((point == encoderPoint) && !keyFrame) {
+            return;
+        }
+        if (keyFrame) {
+            keyFrameRequested = false;
+            sinkKeyFrameRequested = false;
+            lastKeyFrameTime = SystemClock.elapsedRealtime();
+            forcedKeyFrames++;
+        }
+        try {
+            NativeH264Encoder.DeinitEncoder();
+        } catch (UnsatisfiedLinkError e) {
+            // Nothing to do
+        }
+        if (!initEncoder(point) || !initNAL()) {
+            if (LogUtils.isActive) {
+                Log.w(LOGTAG, "Can't switch the encoder to " + point);
+            }
+            // Go back to the previous operating point
+            point = encoderPoint;
+            if (!initEncoder(point) || !initNAL()) {
+                notifyPlayerEventError(VideoPlayer.Error.INTERNAL_ERROR);
+                return;
+            }
+        }
+        if (point != encoderPoint) {
+            encoderPoint = point;
+            frameScheduler.setFrameRate(point.getFrameRate());
+            PacketHistory history = packetHistory;
+            if (history != null) {
+                history.setMaxRate(point.getBitRate() / RETRANSMIT_RATE_DIVISOR);
+            }
+            PacketPacer pacer = packetPacer;
+            if (pacer != null) {
+                pacer.setTargetBitRate(point.getBitRate());
+            }
         }
-        nalInit = false;
 
-        timeStamp = 0;
+        // New parameter sets must precede the next frame
         nalInit = false;
-        nalRepeat = 0;
+    }
 
-        // Start RTP layer
-        rtpSender.startSession();
-        
-        // Player is started
-        videoStartTime = SystemClock.uptimeMillis();
-        started = true;
-        frameProcess = new FrameProcess((int)defaultVideoCodec.getFrameRate());
-        frameProcess.start();
-        notifyPlayerEventStarted();
+    /**
+     * Request a keyframe, e.g. when a receiver has lost the decoder sync. The
+     * keyframe is sent with the next encoded frame, requests are coalesced
+     * within a short interval.
+     */
+    public void requestKeyFrame() {
+        keyFrameRequested = true;
     }
 
-	/**
-	 * Stops the player
-	 */
-	public synchronized void stop() {
-        if (!opened) {
-            // Player not opened
-            return;
+    /**
+     * Request a keyframe on a simulcast layer
+     *
+     * @param layer Layer index, 0 for the base layer
+     */
+    public void requestKeyFrame(int layer) {
+        SimulcastEncoder layers = simulcast;
+        if ((layer == 0) || (layers == null)) {
+            requestKeyFrame();
+        } else {
+            layers.requestKeyFrame(layer);
         }
+    }
 
-        if (!started) {
-            // Already stopped
-            return;
+    /**
+     * Request a keyframe for a frame sink which has lost frames, e.g. a
+     * lagging recipient of a broadcast. The keyframe is sent to every sink,
+     * so the requests of all the sinks are served by at most one keyframe
+     * per aggregation interval, or by the next periodic IDR frame.
+     *
+     * @param layer Layer index, 0 for the base layer
+     */
+    public void requestSinkKeyFrame(int layer) {
+        sinkKeyFrameRequests++;
+        SimulcastEncoder layers = simulcast;
+        if ((layer == 0) || (layers == null)) {
+            sinkKeyFrameRequested = true;
+        } else {
+            // A sync frame request, no re-init of the platform encoder
+            layers.requestKeyFrame(layer);
         }
+    }
 
-        // Player is stopped
-        videoStartTime = 0L;
-        started = false;
-        try {
-            frameProcess.interrupt();
-        } catch (Exception e) {
-            // Nothing to do
-        }
-        notifyPlayerEventStopped();
+    /**
+     * Returns the number of keyframe requests of the frame sinks, served
+     * by fewer forced keyframes
+     *
+     * @return Count
+     */
+    public int getSinkKeyFrameRequestCount() {
+        return sinkKeyFrameRequests;
     }
 
-    /*---------------------------------------------------------------------*/
+    /**
+     * Returns the number of keyframes forced on request
+     *
+     * @return Count
+     */
+    public int getForcedKeyFrameCount() {
+        return forcedKeyFrames;
+    }
 
     /**
-     * Reserve a port.
+     * Set the interval between two periodic SPS/PPS sendings. SPS/PPS are
+     * always sent with each IDR frame.
      *
-     * @param port Port to reserve
+     * @param interval Interval in milliseconds
      */
-    private void reservePort(int port) {
-        if (temporaryConnection == null) {
-            try {
-                temporaryConnection = NetworkRessourceManager.createDatagramConnection();
-                temporaryConnection.open(port);
-            } catch (IOException e) {
-                temporaryConnection = null;
-            }
-        }
+    public void setParameterSetInterval(long interval) {
+        this.parameterSetInterval = interval;
     }
 
     /**
-     * Release the reserved port.
+     * Returns the congestion controller of the encoder
+     *
+     * @return Controller or null if the player is not opened
      */
-    private void releasePort() {
-        if (temporaryConnection != null) {
-            try {
-                temporaryConnection.close();
-            } catch (IOException e) {
-                temporaryConnection = null;
-            }
-        }
+    public BitrateController getBitrateController() {
+        return bitrateController;
     }
 
     /**
@@ -476,6 +1065,136 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
         this.orientationHeaderId = headerId;
     }
 
+    /**
+     * Set extension header capture time id. The capture time of each frame
+     * is then sent to the renderer, which measures the latency. Must be set
+     * before the player is opened.
+     *
+     * @param headerId extension header capture time id, -1 to disable
+     */
+    public void setCaptureTimeHeaderId(int headerId) {
+        this.captureTimeHeaderId = headerId;
+    }
+
+    /**
+     * Enable or disable the retransmission of the packets reported lost by
+     * the receiver, enabled by default. The packets lost by the recipients of
+     * a multicast group are retransmitted over their unicast sessions by
+     * their broadcast players. Must be set before the player is opened.
+     *
+     * @param enabled Enabled flag
+     */
+    public void setRetransmission(boolean enabled) {
+        this.retransmissionEnabled = enabled;
+    }
+
+    /**
+     * Returns the history of the sent packets, which holds the
+     * retransmission statistics
+     *
+     * @return History or null if the packets are not retransmitted
+     */
+    public PacketHistory getPacketHistory() {
+        return packetHistory;
+    }
+
+    /**
+     * Returns the relay of the packets sent to the multicast group to the
+     * recipients which have not joined it
+     *
+     * @return Relay or null if the video is not sent to a multicast group
+     */
+    public GroupRelay getGroupRelay() {
+        return groupRelay;
+    }
+
+    /**
+     * Returns the multicast group the video is sent to
+     *
+     * @return Group or null
+     */
+    public MulticastGroup getMulticastGroup() {
+        return multicastGroup;
+    }
+
+    /**
+     * Enable or disable the pacing of the sent packets, enabled by default.
+     * Must be set before the player is opened.
+     *
+     * @param enabled Enabled flag
+     */
+    public void setPacing(boolean enabled) {
+        this.pacingEnabled = enabled;
+    }
+
+    /**
+     * Returns the pacer of the sent packets, which holds the queue delay and
+     * burst statistics
+     *
+     * @return Pacer or null if the packets are not paced
+     */
+    public PacketPacer getPacketPacer() {
+        return packetPacer;
+    }
+
+    /**
+     * Enable the FEC protection of the sent packets, disabled by default.
+     * The FEC packets are offered in the codec parameters and only sent to
+     * a receiver which has accepted them. Must be set before the player is
+     * opened.
+     *
+     * @param protection Initial protection level, null to disable FEC
+     * @param adaptive Adapt the protection level to the reported loss
+     */
+    public void setFec(UlpFec.Protection protection, boolean adaptive) {
+        this.fecProtection = protection;
+        this.fecAdaptive = adaptive;
+    }
+
+    /**
+     * Returns the FEC encoder, which holds the FEC statistics
+     *
+     * @return Encoder or null if FEC is disabled
+     */
+    public UlpFec.Encoder getFecEncoder() {
+        return fecEncoder;
+    }
+
+    /**
+     * Attach the camera in buffer pool mode. The preview frames are written
+     * into preallocated buffers which are given back to the camera once
+     * encoded, so capturing and encoding don't allocate per frame. Must be
+     * called once the preview size and format have been set.
+     *
+     * @param camera Camera
+     */
+    public void attachCamera(Camera camera) {
+        Camera.Parameters p = camera.getParameters();
+        Camera.Size size = p.getPreviewSize();
+        int frameSize = size.width * size.height * ImageFormat.getBitsPerPixel(p.getPreviewFormat()) / 8;
+        synchronized (frameBuffer) {
+            frameBuffer.clear();
+            bufferCamera = camera;
+        }
+        for (int i = 0; i < PREVIEW_BUFFERS; i++) {
+            camera.addCallbackBuffer(new byte[frameSize]);
+        }
+        camera.setPreviewCallbackWithBuffer(this);
+    }
+
+    /**
+     * Detach the camera attached in buffer pool mode
+     */
+    public void detachCamera() {
+        synchronized (frameBuffer) {
+            if (bufferCamera != null) {
+                bufferCamera.setPreviewCallbackWithBuffer(null);
+                frameBuffer.clear();
+                bufferCamera = null;
+            }
+        }
+    }
+
     /**
      * Set camera ID
      *
@@ -610,95 +1329,256 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
      * @param camera Camera
      */
     public void onPreviewFrame(byte[] data, Camera camera) {
+        if (data == null) {
+            return;
+        }
     	if (!started) {
+    		frameBuffer.recycle(data);
 			return;
 		}
 		
+		MediaStats.count(MediaStats.Counter.FRAMES_CAPTURED);
 		frameBuffer.setData(data);
     };
 
+    /**
+     * Returns the frame scheduler of the encoder, which holds the captured,
+     * encoded, skipped and late frame counters
+     *
+     * @return Frame scheduler or null if the player is not opened
+     */
+    public FrameScheduler getFrameScheduler() {
+        return frameScheduler;
+    }
+
     /**
      * encode a buffer and add in RTP input
      *
      * @param data
+     * @param captureTime Capture time on the monotonic clock
      */
-    private void encode(byte[] data) {
-        // Send SPS/PPS if necessary
-        nalRepeat++;
-        if (nalRepeat > NALREPEATMAX) {
-            nalInit = false;
-            nalRepeat = 0;
+    private void encode(byte[] data, long captureTime) {
+        // The RTP timestamp follows the capture time, not the encode time
+        long timeStamp = frameScheduler.toRtpTimestamp(captureTime);
+        CaptureTimeExtension.Stamper stamper = captureTimeStamper;
+        if (stamper != null) {
+            stamper.frameCaptured(timeStamp, captureTime);
+        }
+        long encodeStart = FrameScheduler.now();
+        MediaStats.record(MediaStats.Stage.CAPTURE, encodeStart - captureTime);
+
+        // Encode the upper simulcast layers, the base layer is then resized
+        // from the smallest scaled frame
+        int srcWidth = frameBuffer.dataSrcWidth;
+        int srcHeight = frameBuffer.dataSrcHeight;
+        SimulcastEncoder layers = simulcast;
+        if ((layers != null) && (srcWidth != 0) && (srcHeight != 0)) {
+            layers.encode(data, srcWidth, srcHeight, timeStamp, mirroring);
+            data = layers.getBaseSource();
+            srcWidth = layers.getBaseSourceWidth();
+            srcHeight = layers.getBaseSourceHeight();
         }
-        if (!nalInit) {
-            rtpInput.addFrame(sps, timeStamp);
-            timeStamp += timestampInc;
-
-            rtpInput.addFrame(pps, timeStamp);
-            timeStamp += timestampInc;
-            
-            nalInit = true;
-        } 
 
         // Encode frame
         byte[] encoded;
-        if (frameBuffer.dataSrcWidth != 0 && frameBuffer.dataSrcHeight != 0) {
-            encoded = NativeH264Encoder.ResizeAndEncodeFrame(data, timeStamp, mirroring, frameBuffer.dataSrcWidth, frameBuffer.dataSrcHeight);
+        if (srcWidth != 0 && srcHeight != 0) {
+            encoded = NativeH264Encoder.ResizeAndEncodeFrame(data, timeStamp, mirroring, srcWidth, srcHeight);
         } else {
             encoded = NativeH264Encoder.EncodeFrame(data, timeStamp, mirroring, frameBuffer.dataScaleFactor);
         }
         int encodeResult = NativeH264Encoder.getLastEncodeStatus();
+        MediaStats.recordSince(MediaStats.Stage.ENCODE, encodeStart);
         if ((encodeResult == 0) && (encoded.length > 0)) {
-            VideoOrientation videoOrientation = null;
-            if (orientationHeaderId > 0 ) {
-                videoOrientation = new VideoOrientation(
-                        orientationHeaderId,
-                        CameraOptions.convert(cameraId),
-                        mOrientation);
+            MediaStats.count(MediaStats.Counter.FRAMES_ENCODED);
+            long now = SystemClock.elapsedRealtime();
+            boolean idr = (getNalType(encoded) == AVC_NALTYPE_IDR);
+            if (idr) {
+                lastKeyFrameTime = now;
+                keyFrameRequested = false;
+                sinkKeyFrameRequested = false;
             }
-            rtpInput.addFrame(encoded, timeStamp, videoOrientation);
-            timeStamp += timestampInc;
+
+            // Send SPS/PPS with each IDR frame and periodically
+            if (!nalInit || idr || (now - lastParameterSetTime >= parameterSetInterval)) {
+                sendFrame(sps, timeStamp, null);
+                sendFrame(pps, timeStamp, null);
+                lastParameterSetTime = now;
+                nalInit = true;
+            }
+
+            sendFrame(encoded, timeStamp, getVideoOrientation());
+            frameScheduler.frameEncoded();
         }
     }
 
     /**
-     * Frame process
+     * Send an encoded NAL unit to the RTP session and to the frame sinks
+     *
+     * @param data NAL unit
+     * @param timestamp RTP timestamp
+     * @param orientation Video orientation or null
      */
-    private class FrameProcess extends Thread {
-        
+    private void sendFrame(byte[] data, long timestamp, VideoOrientation orientation) {
+        MediaRtpInput input = rtpInput;
+        if (input != null) {
+            input.addFrame(data, timestamp, orientation);
+        }
+        long sequence = gopCache.add(0, data, timestamp, orientation);
+        deliverFrame(sequence, 0, data, timestamp, orientation);
+    }
+
+    /**
+     * Deliver an encoded NAL unit to the sinks which joined before it was
+     * added to the cache. Called without the cache lock, a slow sink never
+     * delays the other encoding thread nor a joining sink.
+     *
+     * @param sequence Sequence number of the NAL unit in the cache
+     * @param layer Simulcast layer
+     * @param data NAL unit
+     * @param timestamp RTP timestamp
+     * @param orientation Video orientation or null
+     */
+    private void deliverFrame(long sequence, int layer, byte[] data, long timestamp, VideoOrientation orientation) {
+        for (SinkEntry entry : frameSinks) {
+            if (sequence > entry.joinSequence) {
+                entry.sink.addFrame(layer, data, timestamp, orientation);
+            }
+        }
+    }
+
+    /**
+     * Add a sink of the encoded frames. The sink gets the frames added to
+     * the cache after this call.
+     *
+     * @param sink Frame sink
+     */
+    public void addFrameSink(FrameSink sink) {
+        synchronized (gopCache) {
+            for (SinkEntry entry : frameSinks) {
+                if (entry.sink == sink) {
+                    return;
+                }
+            }
+            frameSinks.add(new SinkEntry(sink, gopCache.getSequence()));
+        }
+    }
+
+    /**
+     * Returns the cache of the current group of pictures. A sink added
+     * under its lock replays a snapshot of the cache with no gap and no
+     * duplicate.
+     *
+     * @return Cache
+     */
+    public GopCache getGopCache() {
+        return gopCache;
+    }
+
+    /**
+     * Remove a sink of the encoded frames
+     *
+     * @param sink Frame sink
+     */
+    public void removeFrameSink(FrameSink sink) {
+        synchronized (gopCache) {
+            for (SinkEntry entry : frameSinks) {
+                if (entry.sink == sink) {
+                    frameSinks.remove(entry);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Frame sink and the cache sequence number at which it joined
+     */
+    private static class SinkEntry {
         /**
-         * Time between two frame
+         * Sink
          */
-        private int interframe = 1000 / 15;
+        private final FrameSink sink;
+
+        /**
+         * Sequence number of the last NAL unit added before the join
+         */
+        private final long joinSequence;
 
         /**
          * Constructor
          *
-         * @param framerate
+         * @param sink Sink
+         * @param joinSequence Sequence number of the last cached NAL unit
+         */
+        public SinkEntry(FrameSink sink, long joinSequence) {
+            this.sink = sink;
+            this.joinSequence = joinSequence;
+        }
+    }
+
+    /**
+     * Returns the type of an encoded NAL unit, skipping a start code if any
+     *
+     * @param nal NAL unit
+     * @return NAL type
+     */
+    static int getNalType(byte[] nal) {
+        int pos = 0;
+        if ((nal.length > 4) && (nal[0] == 0) && (nal[1] == 0)) {
+            pos = (nal[2] == 1) ? 3 : 4;
+        }
+        return nal[pos] & 0x1f;
+    }
+
+    /**
+     * Returns the orientation header, rebuilt only when the camera or the
+     * orientation has changed
+     *
+     * @return Orientation header or null
+     */
+    private VideoOrientation getVideoOrientation() {
+        if (orientationHeaderId <= 0) {
+            return null;
+        }
+        CameraOptions camera = CameraOptions.convert(cameraId);
+        if ((videoOrientation == null) || (videoOrientation.getHeaderId() != orientationHeaderId)
+                || (videoOrientation.getCamera() != camera)
+                || (videoOrientation.getOrientation() != mOrientation)) {
+            videoOrientation = new VideoOrientation(orientationHeaderId, camera, mOrientation);
+        }
+        return videoOrientation;
+    }
+
+    /**
+     * Frame process
+     */
+    private class FrameProcess extends Thread {
+        /**
+         * Constructor
          */
-        public FrameProcess(int framerate) {
+        public FrameProcess() {
             super();
-            interframe = 1000 / framerate;
         }
 
         @Override
         public void run() {
             byte[] frameData = null;
             while (started) {
-                long time = System.currentTimeMillis();
+                // Wait for the next frame slot
+                try {
+                    frameScheduler.awaitNextFrame();
+                } catch (InterruptedException e) {
+                    continue;
+                }
+
+                // Follow the congestion controller and the keyframe requests
+                updateEncoder();
 
-                // Encode
+                // Encode the latest frame, if a new one has been captured
                 frameData = frameBuffer.getData();
                 if (frameData != null) {
-                    encode(frameData);
-                }
-
-                // Sleep between frames if necessary
-                long delta = System.currentTimeMillis() - time;
-                if (delta < interframe) {
-                    try {
-                        Thread.sleep((interframe - delta) - (((interframe - delta) * 10) / 100));
-                    } catch (InterruptedException e) {
-                    }
+                    encode(frameData, frameBuffer.dataCaptureTime);
+                    frameBuffer.release(frameData);
                 }
             }
         }
@@ -713,6 +1593,21 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
          */
         private byte[] data = null;
 
+        /**
+         * True if the data has not yet been returned by getData
+         */
+        private boolean fresh = false;
+
+        /**
+         * Capture time of the data
+         */
+        private long captureTime = 0L;
+
+        /**
+         * Capture time of the frame last returned by getData
+         */
+        public long dataCaptureTime = 0L;
+
         /**
          * Scaling factor for encoding
          */
@@ -729,12 +1624,55 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
         public int dataSrcHeight = 0;
 
         /**
-         * Get the data
+         * Get the data. In buffer pool mode the frame is handed over to the
+         * caller, which must release it once encoded.
          *
-         * @return data
+         * @return data or null if no new frame has been captured
          */
         public synchronized byte[] getData() {
-            return data;
+            if (!fresh) {
+                return null;
+            }
+            byte[] frame = data;
+            fresh = false;
+            dataCaptureTime = captureTime;
+            if (bufferCamera != null) {
+                data = null;
+            }
+            return frame;
+        }
+
+        /**
+         * Release a frame returned by getData
+         *
+         * @param frame Frame
+         */
+        public synchronized void release(byte[] frame) {
+            if ((bufferCamera != null) && (frame != data)) {
+                bufferCamera.addCallbackBuffer(frame);
+            }
+        }
+
+        /**
+         * Give a preview buffer back to the camera in buffer pool mode
+         *
+         * @param frame Frame
+         */
+        public synchronized void recycle(byte[] frame) {
+            if (bufferCamera != null) {
+                bufferCamera.addCallbackBuffer(frame);
+            }
+        }
+
+        /**
+         * Drop the pending frame
+         */
+        public synchronized void clear() {
+            if (data != null) {
+                recycle(data);
+                data = null;
+            }
+            fresh = false;
         }
 
         /**
@@ -743,12 +1681,24 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
          * @param data
          */
         public synchronized void setData(byte[] data) {
+            // A frame not yet encoded is stale, give its buffer back
+            if ((this.data != null) && (this.data != data)) {
+                recycle(this.data);
+            }
             this.data = data;
+            this.fresh = true;
+            this.captureTime = FrameScheduler.now();
+            frameScheduler.frameCaptured();
 
             // Update resizing / scaling values
             this.dataScaleFactor = scaleFactor;
-            this.dataSrcWidth = defaultVideoCodec.getVideoWidth();
-            this.dataSrcHeight = defaultVideoCodec.getVideoHeight();
+            if ((srcWidth != 0) && (srcHeight != 0)) {
+                this.dataSrcWidth = srcWidth;
+                this.dataSrcHeight = srcHeight;
+            } else {
+                this.dataSrcWidth = defaultVideoCodec.getVideoWidth();
+                this.dataSrcHeight = defaultVideoCodec.getVideoHeight();
+            }
         }
     }
 
@@ -761,6 +1711,11 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
          */
         private FifoBuffer fifo = null;
 
+        /**
+         * Time the last sample has been handed to the RTP stack
+         */
+        private long lastReadTime = 0L;
+
         /**
          * Constructor
          */
@@ -776,7 +1731,7 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
          */
         public void addFrame(byte[] data, long timestamp, VideoOrientation videoOrientation) {
             if (fifo != null) {
-                VideoSample sample = new VideoSample(data, timestamp, videoOrientation);
+                VideoSample sample = new QueuedVideoSample(data, timestamp, videoOrientation);
                 fifo.addObject(sample);
             }
         }
@@ -796,7 +1751,9 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
          * Open the player
          */
         public void open() {
-            fifo = new FifoBuffer();
+            // Frames are only produced by the encoding thread
+            fifo = new FifoBuffer(FifoBuffer.DEFAULT_CAPACITY,
+                    RingBuffer.OverflowPolicy.DROP_OLDEST, true);
         }
 
         /**
@@ -818,7 +1775,18 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
         public VideoSample readSample() throws MediaException {
             try {
                 if (fifo != null) {
-                    return (VideoSample)fifo.getObject();
+                    // The RTP stack comes back once the last sample is sent
+                    long now = FrameScheduler.now();
+                    if (lastReadTime != 0L) {
+                        MediaStats.record(MediaStats.Stage.PACKETIZE, now - lastReadTime);
+                    }
+                    VideoSample sample = (VideoSample)fifo.getObject();
+                    lastReadTime = FrameScheduler.now();
+                    if (sample instanceof QueuedVideoSample) {
+                        MediaStats.record(MediaStats.Stage.SEND_QUEUE,
+                                lastReadTime - ((QueuedVideoSample)sample).queuedTime);
+                    }
+                    return sample;
                 } else {
                     throw new MediaException("Media input not opened");
                 }
@@ -827,4 +1795,25 @@ public class MyVideoPlayer extends VideoPlayer implements Camera.PreviewCallback
             }
         }
     }
+
+    /**
+     * Video sample stamped with the time it has been queued for sending
+     */
+    private static class QueuedVideoSample extends VideoSample {
+        /**
+         * Queuing time on the monotonic clock
+         */
+        private final long queuedTime = FrameScheduler.now();
+
+        /**
+         * Constructor
+         *
+         * @param data Data
+         * @param timestamp Timestamp
+         * @param videoOrientation Video orientation
+         */
+        public QueuedVideoSample(byte[] data, long timestamp, VideoOrientation videoOrientation) {
+            super(data, timestamp, videoOrientation);
+        }
+    }
 }
@@ -95,15 +95,98 @@ public class MyVideoRenderer extends VideoRenderer implements RtpStreamListener
     private VideoSurface surface = null;
 
     /**
-     * Temporary connection to reserve the port
+     * Lease of the local RTP/RTCP ports
      */
-    private DatagramConnection temporaryConnection = null;
+    private PortLease portLease = null;
+
+    /**
+     * Joined multicast group or null
+     */
+    private MulticastGroup multicastGroup = null;
 
     /**
      * Orientation header id.
      */
     private int orientationHeaderId = -1;
 
+    /**
+     * Capture time header id
+     */
+    private int captureTimeHeaderId = -1;
+
+    /**
+     * Reader of the capture time of the received frames
+     */
+    private volatile CaptureTimeExtension.Reader captureTimeReader = null;
+
+    /**
+     * Decoding of the FEC packets
+     */
+    private boolean fecEnabled = true;
+
+    /**
+     * FEC decoder, null if the FEC packets are not decoded
+     */
+    private volatile UlpFec.Decoder fecDecoder = null;
+
+    /**
+     * Filter of the received RTP packets: the second copies of the packets
+     * are dropped, the FEC packets are decoded from the packets as sent,
+     * then the capture time is read and removed
+     */
+    private final PortLease.ReceiveFilter rtpFilter = new PortLease.ReceiveFilter() {
+        public int filter(byte[] data, int offset, int length) {
+            NackGenerator generator = nackGenerator;
+            if ((generator != null) && generator.isDuplicate(data, offset, length)) {
+                return 0;
+            }
+            UlpFec.Decoder decoder = fecDecoder;
+            if (decoder != null) {
+                length = decoder.filter(data, offset, length);
+                if (length == 0) {
+                    return 0;
+                }
+            }
+            CaptureTimeExtension.Reader reader = captureTimeReader;
+            if (reader != null) {
+                length = reader.filter(data, offset, length);
+            }
+            return length;
+        }
+    };
+
+    /**
+     * Synchronization on the audio, null if the video is not synchronized
+     */
+    private volatile LipSync lipSync = null;
+
+    /**
+     * Observer of the received RTCP packets: the sender reports are read
+     * by the capture time probe and by the audio synchronization
+     */
+    private final PortLease.ReceiveObserver rtcpObserver = new PortLease.ReceiveObserver() {
+        public void onReceived(byte[] data, int offset, int length) {
+            CaptureTimeExtension.Reader reader = captureTimeReader;
+            if (reader != null) {
+                reader.onReceived(data, offset, length);
+            }
+            LipSync sync = lipSync;
+            if (sync != null) {
+                sync.getVideoClock().onReceived(data, offset, length);
+            }
+        }
+    };
+
+    /**
+     * Retransmission of the lost packets
+     */
+    private boolean retransmissionEnabled = true;
+
+    /**
+     * NACK and PLI generator, null if no feedback is sent to the sender
+     */
+    private volatile NackGenerator nackGenerator = null;
+
     /**
      * Constructor
      * 
@@ -114,8 +197,7 @@ public class MyVideoRenderer extends VideoRenderer implements RtpStreamListener
     	this.surface = surface;
     	
         // Set the local RTP port
-        localRtpPort = NetworkRessourceManager.generateLocalRtpPort();
-        reservePort(localRtpPort);
+        reservePort();
         
         // Set the default media codec
     	defaultVideoCodec = new VideoCodec(H264Config.CODEC_NAME,
@@ -129,13 +211,14 @@ public class MyVideoRenderer extends VideoRenderer implements RtpStreamListener
     }
     
 	/**
-	 * Returns the list of codecs supported by the player
+	 * Returns the list of codecs supported by the player, accepting the FEC
+	 * packets if enabled
 	 * 
 	 * @return List of codecs
 	 */
 	public VideoCodec[] getSupportedCodecs() {
 		VideoCodec[] list = new VideoCodec[1];
-		list[0] = defaultVideoCodec;
+		list[0] = fecEnabled ? CodecParameters.withFec(defaultVideoCodec) : defaultVideoCodec;
 		return list;
 	}    
     
@@ -172,8 +255,25 @@ public class MyVideoRenderer extends VideoRenderer implements RtpStreamListener
                 return;
             }
 
+            // Init the capture time probe
+            if (captureTimeHeaderId > 0) {
+                captureTimeReader = new CaptureTimeExtension.Reader(captureTimeHeaderId, codec.getClockRate());
+            }
+            if (portLease != null) {
+                portLease.setReceiveObserver(portLease.getRtcpPort(), rtcpObserver);
+            }
+
+            // Init the FEC decoder, which injects the rebuilt packets in the
+            // local RTP port, if the sender offers the FEC packets
+            if (fecEnabled && CodecParameters.isFecNegotiated(codec) && (portLease != null)) {
+                fecDecoder = new UlpFec.Decoder();
+                fecDecoder.attach(localRtpPort);
+            }
+            if (portLease != null) {
+                portLease.setReceiveFilter(portLease.getRtpPort(), rtpFilter);
+            }
+
             // Init the RTP layer
-            releasePort();
             rtpReceiver = new VideoRtpReceiver(localRtpPort);
             rtpDummySender = new DummyPacketGenerator();
             rtpOutput = new MediaRtpOutput();
@@ -181,7 +281,20 @@ public class MyVideoRenderer extends VideoRenderer implements RtpStreamListener
             rtpReceiver.prepareSession(remoteHost, remotePort, orientationHeaderId, rtpOutput, new H264VideoFormat(), this);
             rtpDummySender.prepareSession(remoteHost, remotePort, rtpReceiver.getInputStream());
             rtpDummySender.startSession();
+
+            // Request the lost packets and the keyframes to the RTCP port of
+            // the sender, which also serves the receivers of a multicast
+            // group over their unicast session
+            if (portLease != null) {
+                nackGenerator = new NackGenerator(rtpOutput.getJitterBuffer(), retransmissionEnabled);
+                nackGenerator.setGroupMember(multicastGroup != null);
+                nackGenerator.attach(portLease, remoteHost, remotePort + 1);
+                portLease.setReceiveObserver(portLease.getRtpPort(), nackGenerator);
+            }
         } catch (Exception e) {
+            detachFilters();
+            releasePort();
+            leaveMulticastGroup();
             notifyRendererEventError(VideoRenderer.Error.INTERNAL_ERROR);
             return;
         }
@@ -201,22 +314,42 @@ public class MyVideoRenderer extends VideoRenderer implements RtpStreamListener
         }
 
         // Close the RTP layer
+        detachFilters();
         rtpOutput.close();
         rtpReceiver.stopSession();
         rtpDummySender.stopSession();
+        releasePort();
+        leaveMulticastGroup();
 
-        try {
-            // Close the video decoder
-            NativeH264Decoder.DeinitDecoder();
-        } catch (UnsatisfiedLinkError e) {
-        	e.printStackTrace();
-        }
+        // Close the video decoder, or let the decoding thread close it if
+        // it is still busy with a frame
+        rtpOutput.releaseDecoder();
 
         // Player is closed
         opened = false;
         notifyRendererEventClosed();
     }
 
+    /**
+     * Remove the filters and observers of the received packets
+     */
+    private void detachFilters() {
+        if (portLease != null) {
+            portLease.setReceiveFilter(portLease.getRtpPort(), null);
+            portLease.setReceiveObserver(portLease.getRtpPort(), null);
+            portLease.setReceiveObserver(portLease.getRtcpPort(), null);
+        }
+        captureTimeReader = null;
+        if (fecDecoder != null) {
+            fecDecoder.detach();
+            fecDecoder = null;
+        }
+        if (nackGenerator != null) {
+            nackGenerator.detach();
+            nackGenerator = null;
+        }
+    }
+
 	/**
 	 * Starts the renderer
 	 */
@@ -289,31 +422,69 @@ public class MyVideoRenderer extends VideoRenderer implements RtpStreamListener
     }
 
     /**
-     * Reserve a port
+     * Receive the video from a multicast group. The group ports are leased
+     * and become the local ports of the session, so it must be called before
+     * the local port is given to the session. The unicast packets sent to
+     * the ports, i.e. the packets relayed by the sender until the group
+     * reaches the renderer, the retransmissions and the RTCP packets, are
+     * still received.
      *
-     * @param port Port to reserve
+     * @param group Multicast group
+     * @return False if the group ports are not available, the video is then
+     *         only received over the unicast session
+     */
+    public synchronized boolean joinMulticastGroup(MulticastGroup group) {
+        if (opened) {
+            // Too late
+            return false;
+        }
+        leaveMulticastGroup();
+        releasePort();
+        try {
+            portLease = NetworkRessourceManager.allocateRtpPorts(group.getPort());
+        } catch (IOException e) {
+            // The sender keeps relaying the packets of the group
+            reservePort();
+            return false;
+        }
+        NetworkRessourceManager.registerMulticastGroup(group);
+        multicastGroup = group;
+        localRtpPort = group.getPort();
+        return true;
+    }
+
+    /**
+     * Leave the joined multicast group
      */
-    private void reservePort(int port) {
-        if (temporaryConnection == null) {
+    private void leaveMulticastGroup() {
+        if (multicastGroup != null) {
+            NetworkRessourceManager.unregisterMulticastGroup(multicastGroup);
+            multicastGroup = null;
+        }
+    }
+
+    /**
+     * Reserve the local RTP/RTCP ports. The ports stay bound until the RTP
+     * stack opens them.
+     */
+    private void reservePort() {
+        if (portLease == null) {
             try {
-                temporaryConnection = NetworkRessourceManager.createDatagramConnection();
-                temporaryConnection.open(port);
+                portLease = NetworkRessourceManager.allocateRtpPorts();
+                localRtpPort = portLease.getRtpPort();
             } catch (IOException e) {
-                temporaryConnection = null;
+                localRtpPort = -1;
             }
         }
     }
 
     /**
-     * Release the reserved port.
+     * Release the reserved ports which have not been opened by the RTP stack
      */
     private void releasePort() {
-        if (temporaryConnection != null) {
-            try {
-                temporaryConnection.close();
-            } catch (IOException e) {
-                temporaryConnection = null;
-            }
+        if (portLease != null) {
+            portLease.release();
+            portLease = null;
         }
     }
 
@@ -342,6 +513,24 @@ public class MyVideoRenderer extends VideoRenderer implements RtpStreamListener
         notifyRendererEventError(VideoRenderer.Error.NETWORK_FAILURE);
     }
 
+    /**
+     * Returns the jitter buffer of the renderer
+     *
+     * @return Jitter buffer or null if the renderer is not opened
+     */
+    public JitterBuffer getJitterBuffer() {
+        return (rtpOutput != null) ? rtpOutput.getJitterBuffer() : null;
+    }
+
+    /**
+     * Returns the average decoding and rendering time of a frame
+     *
+     * @return Microseconds
+     */
+    public long getDecodeTime() {
+        return (rtpOutput != null) ? rtpOutput.getDecodeTime() : 0L;
+    }
+
     /**
      * Set extension header orientation id
      *
@@ -351,6 +540,86 @@ public class MyVideoRenderer extends VideoRenderer implements RtpStreamListener
         this.orientationHeaderId = headerId;
     }
 
+    /**
+     * Set extension header capture time id. The latency of each frame is
+     * then measured from the capture time sent by the player, and shown on
+     * the surface. Must be set before the renderer is opened.
+     *
+     * @param headerId extension header capture time id, -1 to disable
+     */
+    public void setCaptureTimeHeaderId(int headerId) {
+        this.captureTimeHeaderId = headerId;
+    }
+
+    /**
+     * Enable or disable the decoding of the FEC packets, enabled by default.
+     * The FEC packets are accepted in the codec parameters and decoded if
+     * the sender offers them. Must be set before the renderer is opened.
+     *
+     * @param enabled Enabled flag
+     */
+    public void setFec(boolean enabled) {
+        this.fecEnabled = enabled;
+    }
+
+    /**
+     * Returns the FEC decoder, which holds the repair statistics
+     *
+     * @return Decoder or null if the FEC packets are not decoded
+     */
+    public UlpFec.Decoder getFecDecoder() {
+        return fecDecoder;
+    }
+
+    /**
+     * Set the synchronization of the video on the audio of the same
+     * sender, e.g. the one of an IP call renderer. The video sender reports
+     * are read from the RTCP port, so the video is not synchronized on a
+     * multicast group.
+     *
+     * @param lipSync Synchronization or null to display the frames at
+     *        their playout time
+     */
+    public synchronized void setLipSync(LipSync lipSync) {
+        this.lipSync = lipSync;
+        MediaRtpOutput output = rtpOutput;
+        if (output != null) {
+            JitterBuffer buffer = output.getJitterBuffer();
+            if (buffer != null) {
+                buffer.setLipSync(lipSync);
+            }
+        }
+    }
+
+    /**
+     * Returns the synchronization on the audio, which holds the A/V offset
+     *
+     * @return Synchronization or null
+     */
+    public LipSync getLipSync() {
+        return lipSync;
+    }
+
+    /**
+     * Enable or disable the NACKs of the lost packets, enabled by default.
+     * A keyframe is still requested after a loss when disabled. Must be set
+     * before the renderer is opened.
+     *
+     * @param enabled Enabled flag
+     */
+    public void setRetransmission(boolean enabled) {
+        this.retransmissionEnabled = enabled;
+    }
+
+    /**
+     * Returns the NACK generator, which holds the recovery statistics
+     *
+     * @return Generator or null if no feedback is sent to the sender
+     */
+    public NackGenerator getNackGenerator() {
+        return nackGenerator;
+    }
+
     /**
      * Notify renderer event started
      */
@@ -379,6 +648,17 @@ public class MyVideoRenderer extends VideoRenderer implements RtpStreamListener
 		}
 	}
 
+    /**
+     * Release the native decoder
+     */
+    private static void deinitDecoder() {
+        try {
+            NativeH264Decoder.DeinitDecoder();
+        } catch (UnsatisfiedLinkError e) {
+            e.printStackTrace();
+        }
+    }
+
     /**
      * Notify renderer event opened
      */
@@ -440,9 +720,9 @@ public class MyVideoRenderer extends VideoRenderer implements RtpStreamListener
      */
     private class MediaRtpOutput implements MediaOutput {
         /**
-         * Bitmap frame
+         * Bitmap frames
          */
-        private Bitmap rgbFrame = null;
+        private RgbFramePool framePool = new RgbFramePool();
 
         /**
          * Video orientation
@@ -455,56 +735,288 @@ public class MyVideoRenderer extends VideoRenderer implements RtpStreamListener
          */
         private int decodedFrameDimensions[] = new int[2];
 
+        /**
+         * Maximum wait for the decoding thread to exit, in milliseconds
+         */
+        private static final long DECODE_JOIN_TIMEOUT = 1000L;
+
+        /**
+         * Jitter buffer
+         */
+        private JitterBuffer jitterBuffer = null;
+
+        /**
+         * Decoding thread
+         */
+        private DecodeProcess decodeProcess = null;
+
+        /**
+         * Number of jitter buffer resyncs already handled by the decoding thread
+         */
+        private long resyncCount = 0L;
+
+        /**
+         * Decoding thread which has been closed but did not exit in time
+         */
+        private DecodeProcess exitingProcess = null;
+
+        /**
+         * Average decoding and rendering time in microseconds, scaled by 16
+         */
+        private volatile long decodeTime16 = 0L;
+
+        /**
+         * Number of decoded frames
+         */
+        private volatile long decodedFrames = 0L;
+
         /**
          * Constructor
          */
         public MediaRtpOutput() {
-            // Init rgbFrame with a default size
-            rgbFrame = Bitmap.createBitmap(1, 1, Bitmap.Config.RGB_565);
         }
 
         /**
          * Open the renderer
          */
-        public void open() {
-            // Nothing to do
+        public synchronized void open() {
+            if (decodeProcess != null) {
+                return;
+            }
+            jitterBuffer = new JitterBuffer(H264Config.CLOCK_RATE);
+            jitterBuffer.setLipSync(lipSync);
+            if (surface != null) {
+                surface.setImageListener(framePool);
+            }
+            decodeProcess = new DecodeProcess(jitterBuffer);
+            decodeProcess.start();
         }
 
         /**
          * Close the renderer
          */
-        public void close() {
+        public synchronized void close() {
+            if (decodeProcess == null) {
+                return;
+            }
+            jitterBuffer.close();
+            decodeProcess.interrupt();
+            try {
+                // The decoder must be idle before it is released
+                decodeProcess.join(DECODE_JOIN_TIMEOUT);
+            } catch (InterruptedException e) {
+                // Nothing to do
+            }
+            if (decodeProcess.isAlive()) {
+                exitingProcess = decodeProcess;
+            }
+            decodeProcess = null;
         }
 
         /**
-         * Write a media sample
+         * Release the native decoder. If the decoding thread is still in a
+         * frame, the decoder is released by that thread when it exits.
+         */
+        public synchronized void releaseDecoder() {
+            DecodeProcess process = (decodeProcess != null) ? decodeProcess : exitingProcess;
+            exitingProcess = null;
+            if ((process != null) && process.releaseDecoderOnExit()) {
+                return;
+            }
+            deinitDecoder();
+        }
+
+        /**
+         * Write a media sample. Called from the RTP receive thread, the
+         * sample is only queued.
          *
          * @param sample Sample
          */
         public void writeSample(MediaSample sample) {
             rtpDummySender.incomingStarted();
+            // Arrival of the last datagram on the video port, not on the
+            // other sockets of the process
+            long lastDatagram = 0L;
+            if (portLease != null) {
+                lastDatagram = portLease.getLastRtpArrival();
+            }
+            if (lastDatagram != 0L) {
+                MediaStats.recordSince(MediaStats.Stage.DEPACKETIZE, lastDatagram);
+            }
+
+            JitterBuffer buffer = jitterBuffer;
+            if (buffer != null) {
+                buffer.put(sample.getData(), sample.getTimeStamp(), sample.getSequenceNumber(),
+                        ((VideoSample)sample).getVideoOrientation());
+            }
+        }
+
+        /**
+         * Returns the jitter buffer
+         *
+         * @return Jitter buffer or null if not opened
+         */
+        public JitterBuffer getJitterBuffer() {
+            return jitterBuffer;
+        }
+
+        /**
+         * Returns the average decoding and rendering time of a frame
+         *
+         * @return Microseconds
+         */
+        public long getDecodeTime() {
+            return decodeTime16 / 16;
+        }
+
+        /**
+         * Returns the number of decoded frames
+         *
+         * @return Count
+         */
+        public long getDecodedFrames() {
+            return decodedFrames;
+        }
+
+        /**
+         * Decode and render a sample. Called from the decoding thread.
+         *
+         * @param entry Jitter buffer entry
+         */
+        private void decode(JitterBuffer.Entry entry) {
+            long start = FrameScheduler.now();
+            MediaStats.record(MediaStats.Stage.JITTER_BUFFER, start - entry.getArrivalTime() * 1000000L);
+
+            // Latency from the capture on the sender to the reception
+            long captureTime = -1L;
+            long oneWayLatency = -1L;
+            CaptureTimeExtension.Reader reader = captureTimeReader;
+            if (reader != null) {
+                captureTime = reader.getCaptureTime(entry.getTimestamp());
+                if (captureTime >= 0) {
+                    long arrival = System.currentTimeMillis() - (start / 1000000L - entry.getArrivalTime());
+                    oneWayLatency = Math.max(0L, arrival - captureTime);
+                    MediaStats.record(MediaStats.Stage.ONE_WAY, oneWayLatency * 1000000L);
+                }
+            }
 
             // Init orientation
-            VideoOrientation orientation = ((VideoSample)sample).getVideoOrientation();
+            VideoOrientation orientation = entry.getOrientation();
             if (orientation != null) {
                 this.videoOrientation = orientation;
             }
 
-            int[] decodedFrame = NativeH264Decoder.DecodeAndConvert(sample.getData(), videoOrientation.getOrientation().getValue(), decodedFrameDimensions);
-            if (NativeH264Decoder.getLastDecodeStatus() == 0) {
+            // Every frame is decoded as it may be a reference. The frames
+            // ahead of the audio have been held by the jitter buffer, the
+            // ones behind it are not displayed
+            int[] decodedFrame = NativeH264Decoder.DecodeAndConvert(entry.getData(), videoOrientation.getOrientation().getValue(), decodedFrameDimensions);
+
+            // A sample which could not be decoded or the samples lost in a
+            // reception gap break the reference chain until the next keyframe
+            JitterBuffer buffer = jitterBuffer;
+            long resyncs = (buffer != null) ? buffer.getResyncCount() : resyncCount;
+            if ((NativeH264Decoder.getLastDecodeStatus() != 0) || (resyncs != resyncCount)) {
+                resyncCount = resyncs;
+                NackGenerator generator = nackGenerator;
+                if (generator != null) {
+                    generator.requestKeyFrame();
+                }
+            }
+            boolean display = true;
+            LipSync sync = lipSync;
+            if ((sync != null) && (NativeH264Decoder.getLastDecodeStatus() == 0)) {
+                display = sync.synchronize(entry.getTimestamp());
+            }
+            if ((NativeH264Decoder.getLastDecodeStatus() == 0) && display) {
                 if ((surface != null) && (decodedFrame.length > 0)) {
-                    // Init RGB frame with the decoder dimensions
-                	if ((rgbFrame.getWidth() != decodedFrameDimensions[0]) || (rgbFrame.getHeight() != decodedFrameDimensions[1])) {
-                        rgbFrame = Bitmap.createBitmap(decodedFrameDimensions[0], decodedFrameDimensions[1], Bitmap.Config.RGB_565);
+                    boolean resized = (framePool.getWidth() != decodedFrameDimensions[0])
+                            || (framePool.getHeight() != decodedFrameDimensions[1]);
+
+                	// Set data in a free pooled image, or drop the frame if the
+                    // surface still holds all of them
+                    Bitmap rgbFrame = framePool.fill(decodedFrame, decodedFrameDimensions[0], decodedFrameDimensions[1]);
+                    if (resized) {
                         notifyRendererEventResized(decodedFrameDimensions[0], decodedFrameDimensions[1]);
                     }
-
-                	// Set data in image
-                    rgbFrame.setPixels(decodedFrame, 0, decodedFrameDimensions[0], 0, 0,
-                            decodedFrameDimensions[0], decodedFrameDimensions[1]);
-                    surface.setImage(rgbFrame);
+                    if (rgbFrame == null) {
+                        MediaStats.count(MediaStats.Counter.FRAMES_NOT_RENDERED);
+                    } else if (captureTime >= 0) {
+                        surface.setImage(rgbFrame, captureTime, oneWayLatency);
+                    } else {
+                        surface.setImage(rgbFrame);
+                    }
             	}
             }
+
+            long time = (FrameScheduler.now() - start) / 1000L;
+            decodeTime16 += time - (decodeTime16 / 16);
+            decodedFrames++;
+            MediaStats.record(MediaStats.Stage.DECODE, time * 1000L);
+            MediaStats.count(MediaStats.Counter.FRAMES_DECODED);
+        }
+
+        /**
+         * Decoding thread, between the jitter buffer and the surface
+         */
+        private class DecodeProcess extends Thread {
+            /**
+             * Jitter buffer
+             */
+            private final JitterBuffer buffer;
+
+            /**
+             * Thread has exited its loop
+             */
+            private boolean exited = false;
+
+            /**
+             * Native decoder to be released on exit
+             */
+            private boolean releaseDecoder = false;
+
+            /**
+             * Constructor
+             *
+             * @param buffer Jitter buffer
+             */
+            public DecodeProcess(JitterBuffer buffer) {
+                super("VideoDecoder");
+                this.buffer = buffer;
+            }
+
+            /**
+             * Ask the thread to release the native decoder when it exits
+             *
+             * @return False if the thread has already exited
+             */
+            public synchronized boolean releaseDecoderOnExit() {
+                if (exited) {
+                    return false;
+                }
+                releaseDecoder = true;
+                return true;
+            }
+
+            @Override
+            public void run() {
+                try {
+                    JitterBuffer.Entry entry;
+                    while ((entry = buffer.take()) != null) {
+                        decode(entry);
+                    }
+                } catch (InterruptedException e) {
+                    // Renderer closed
+                } finally {
+                    boolean release;
+                    synchronized(this) {
+                        exited = true;
+                        release = releaseDecoder;
+                    }
+                    if (release) {
+                        deinitDecoder();
+                    }
+                }
+            }
         }
     }
 }
@@ -0,0 +1,777 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * Generic NACK generator of a media receiver (RFC 4585). It observes the RTP
+ * datagrams received on the RTP port of the session, detects the gaps in the
+ * sequence numbers and asks the sender to retransmit the lost packets, until
+ * they arrive or could no longer be played out.
+ * <p>
+ * A lost packet is given up once its frame would miss the playout delay of
+ * the jitter buffer, after a few NACKs, or once it falls out of the reorder
+ * window of the RTP stack which drops older packets. The decoder can then
+ * only resume from a keyframe, which is requested with a PLI rather than
+ * waiting for the next periodic one.
+ * <p>
+ * A receiver of a multicast group gets the packets of the group and, until
+ * the sender knows that the group reaches it, the same packets relayed over
+ * its unicast session: the second copy of a packet is dropped before the
+ * RTP stack, which would play it twice, and these copies tell that the group
+ * is received, which is reported to the sender so that it stops relaying.
+ */
+public class NackGenerator implements PortLease.ReceiveObserver {
+    /**
+     * RTCP transport layer feedback
+     */
+    private static final int RTCP_RTPFB = 205;
+
+    /**
+     * Feedback message type of a generic NACK
+     */
+    private static final int FMT_NACK = 1;
+
+    /**
+     * RTCP payload specific feedback
+     */
+    private static final int RTCP_PSFB = 206;
+
+    /**
+     * Feedback message type of a picture loss indication
+     */
+    private static final int FMT_PLI = 1;
+
+    /**
+     * Minimum interval between two PLIs, in milliseconds, the keyframe of the
+     * previous one may still be on its way
+     */
+    private static final long MIN_PLI_INTERVAL = 500L;
+
+    /**
+     * Payload type of the RTP dummy packets, not part of the media sequence
+     */
+    private static final int DUMMY_PAYLOAD_TYPE = 20;
+
+    /**
+     * Packets further than this behind the last received one are dropped by
+     * the RTP stack
+     */
+    private static final int STACK_REORDER_WINDOW = 10;
+
+    /**
+     * Maximum number of tracked lost packets, a larger gap needs a keyframe
+     */
+    private static final int MAX_MISSING = 64;
+
+    /**
+     * Maximum number of NACKs per lost packet
+     */
+    private static final int MAX_RETRIES = 3;
+
+    /**
+     * Interval between two NACKs of a packet until the round trip time has
+     * been measured, in milliseconds
+     */
+    private static final long DEFAULT_RETRY_INTERVAL = 100L;
+
+    /**
+     * Minimum interval between two NACKs of a packet, in milliseconds
+     */
+    private static final long MIN_RETRY_INTERVAL = 20L;
+
+    /**
+     * Minimum deadline of a lost packet, in milliseconds
+     */
+    private static final long MIN_DEADLINE = 50L;
+
+    /**
+     * Number of remembered given up packets
+     */
+    private static final int ABANDONED_HISTORY = 32;
+
+    /**
+     * Half range of the sequence numbers
+     */
+    private static final int SEQ_HALF_RANGE = 0x8000;
+
+    /**
+     * Number of packets behind the last one checked for a second copy
+     */
+    private static final int DUPLICATE_WINDOW = 64;
+
+    /**
+     * Number of second copies telling that the multicast group is received
+     */
+    private static final int JOIN_DUPLICATES = 8;
+
+    /**
+     * Minimum interval between two reports of the group reception, in
+     * milliseconds, the sender may still be relaying the packets sent before
+     * the previous one
+     */
+    private static final long JOIN_REPORT_INTERVAL = 1000L;
+
+    /**
+     * Lost packet
+     */
+    private static class Missing {
+        /**
+         * Detection time
+         */
+        private final long detectTime;
+
+        /**
+         * Last NACK time, 0 if not requested yet
+         */
+        private long nackTime = 0L;
+
+        /**
+         * Number of NACKs
+         */
+        private int retries = 0;
+
+        /**
+         * Constructor
+         *
+         * @param detectTime Detection time
+         */
+        public Missing(long detectTime) {
+            this.detectTime = detectTime;
+        }
+    }
+
+    /**
+     * Jitter buffer giving the playout delay
+     */
+    private final JitterBuffer jitterBuffer;
+
+    /**
+     * Lost packets are requested, otherwise they are given up at once
+     */
+    private final boolean nackEnabled;
+
+    /**
+     * A keyframe is needed since a packet has been given up
+     */
+    private boolean keyFrameNeeded = false;
+
+    /**
+     * Last PLI time, 0 if none sent
+     */
+    private long pliTime = 0L;
+
+    /**
+     * Lost packets by sequence number
+     */
+    private final TreeMap<Integer, Missing> missing = new TreeMap<Integer, Missing>();
+
+    /**
+     * Recently given up packets
+     */
+    private final int[] abandoned = new int[ABANDONED_HISTORY];
+
+    /**
+     * Number of given up packets
+     */
+    private int abandonedCount = 0;
+
+    /**
+     * Highest received sequence number, -1 before the first packet
+     */
+    private int highestSeq = -1;
+
+    /**
+     * SSRC of the media source
+     */
+    private long mediaSsrc = 0L;
+
+    /**
+     * SSRC of the NACK packets
+     */
+    private final int senderSsrc = new Random().nextInt();
+
+    /**
+     * Smoothed round trip time, from a NACK to the retransmission, -1 until
+     * a retransmission has been received
+     */
+    private long rtt = -1L;
+
+    /**
+     * Port lease of the media session, whose RTCP connection sends the NACKs
+     */
+    private volatile PortLease lease = null;
+
+    /**
+     * Remote host
+     */
+    private String remoteHost = null;
+
+    /**
+     * Remote RTCP port
+     */
+    private int remoteRtcpPort = -1;
+
+    /**
+     * Number of lost packets requested
+     */
+    private volatile long nacked = 0L;
+
+    /**
+     * Number of requested packets received in time
+     */
+    private volatile long recovered = 0L;
+
+    /**
+     * Number of lost packets given up
+     */
+    private volatile long unrecovered = 0L;
+
+    /**
+     * Number of packets received twice or after being given up
+     */
+    private volatile long wasted = 0L;
+
+    /**
+     * The video is also received from a multicast group
+     */
+    private volatile boolean groupMember = false;
+
+    /**
+     * Highest sequence number checked for a second copy, -1 before the
+     * first packet
+     */
+    private int checkedSeq = -1;
+
+    /**
+     * Packets received among the last ones checked, bit n for the packet n
+     * behind the highest one
+     */
+    private long receivedMask = 0L;
+
+    /**
+     * Number of second copies since the last report of the group reception
+     */
+    private int groupDuplicates = 0;
+
+    /**
+     * Last report time of the group reception, 0 if none sent
+     */
+    private long joinReportTime = 0L;
+
+    /**
+     * Number of sent reports of the group reception
+     */
+    private volatile long joinReports = 0L;
+
+    /**
+     * Number of sent NACK packets
+     */
+    private volatile long nackPackets = 0L;
+
+    /**
+     * Number of sent PLI packets
+     */
+    private volatile long pliPackets = 0L;
+
+    /**
+     * Constructor
+     *
+     * @param jitterBuffer Jitter buffer giving the playout delay
+     */
+    public NackGenerator(JitterBuffer jitterBuffer) {
+        this(jitterBuffer, true);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param jitterBuffer Jitter buffer giving the playout delay
+     * @param nackEnabled Request the lost packets, otherwise only a keyframe
+     *            is requested after a loss
+     */
+    public NackGenerator(JitterBuffer jitterBuffer, boolean nackEnabled) {
+        this.jitterBuffer = jitterBuffer;
+        this.nackEnabled = nackEnabled;
+    }
+
+    /**
+     * Send the NACKs to a remote, from the RTCP connection of the session
+     *
+     * @param lease Port lease of the media session, whose RTCP port must be
+     *            opened
+     * @param remoteHost Remote host
+     * @param remoteRtcpPort Remote RTCP port
+     * @throws IOException if the RTCP port of the session is not opened
+     */
+    public void attach(PortLease lease, String remoteHost, int remoteRtcpPort) throws IOException {
+        if (lease.getConnection(lease.getRtcpPort()) == null) {
+            throw new IOException("RTCP port not opened");
+        }
+        this.remoteHost = remoteHost;
+        this.remoteRtcpPort = remoteRtcpPort;
+        this.lease = lease;
+    }
+
+    /**
+     * Stop sending the NACKs and the PLIs
+     */
+    public void detach() {
+        lease = null;
+    }
+
+    /**
+     * Report the reception of the multicast group to the sender, from the
+     * second copies of the packets
+     *
+     * @param member True if the video is also received from a multicast group
+     */
+    public void setGroupMember(boolean member) {
+        this.groupMember = member;
+    }
+
+    /**
+     * Is a received RTP datagram the second copy of a packet, e.g. the same
+     * packet received from the multicast group and relayed over the unicast
+     * session. To be called from the receive filter of the RTP port, before
+     * the RTP stack and this generator see the datagram.
+     *
+     * @param data Buffer
+     * @param offset Offset of the datagram in the buffer
+     * @param length Length of the datagram
+     * @return True if the packet has already been received
+     */
+    public boolean isDuplicate(byte[] data, int offset, int length) {
+        if ((length < 12) || ((data[offset] & 0xc0) != 0x80)) {
+            return false;
+        }
+        int type = data[offset + 1] & 0x7f;
+        if ((type == DUMMY_PAYLOAD_TYPE) || (type == UlpFec.PAYLOAD_TYPE)) {
+            return false;
+        }
+        int seq = ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        byte[] report;
+        synchronized (this) {
+            if (checkedSeq < 0) {
+                checkedSeq = seq;
+                receivedMask = 1L;
+                return false;
+            }
+            int diff = (seq - checkedSeq) & 0xffff;
+            if ((diff != 0) && (diff < SEQ_HALF_RANGE)) {
+                receivedMask = (diff >= DUPLICATE_WINDOW) ? 1L : ((receivedMask << diff) | 1L);
+                checkedSeq = seq;
+                return false;
+            }
+            int behind = (checkedSeq - seq) & 0xffff;
+            if (behind >= DUPLICATE_WINDOW) {
+                // Left to the RTP stack which drops the old packets
+                return false;
+            }
+            long bit = 1L << behind;
+            if ((receivedMask & bit) == 0L) {
+                receivedMask |= bit;
+                return false;
+            }
+            wasted++;
+            MediaStats.count(MediaStats.Counter.RETRANSMITS_WASTED);
+            report = groupMember ? buildJoinReport(System.currentTimeMillis()) : null;
+        }
+        if ((report != null) && send(report)) {
+            joinReports++;
+        }
+        return true;
+    }
+
+    /**
+     * A RTP datagram has been received
+     *
+     * @param data Buffer
+     * @param offset Offset of the datagram in the buffer
+     * @param length Length of the datagram
+     */
+    public void onReceived(byte[] data, int offset, int length) {
+        if ((length < 12) || ((data[offset] & 0xc0) != 0x80)
+                || ((data[offset + 1] & 0x7f) == DUMMY_PAYLOAD_TYPE)) {
+            return;
+        }
+        int seq = ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+        long now = System.currentTimeMillis();
+        byte[] nack;
+        byte[] pli;
+        synchronized (this) {
+            mediaSsrc = RtcpFeedbackReceiver.readInt(data, offset + 8);
+            received(seq, now);
+            expire(now);
+            nack = buildNack(now);
+            pli = buildPli(now);
+        }
+        if ((nack != null) && send(nack)) {
+            nackPackets++;
+        }
+        if ((pli != null) && send(pli)) {
+            pliPackets++;
+        }
+    }
+
+    /**
+     * Request a keyframe to the sender, when the decoder can no longer
+     * resume from the received samples. The PLIs are rate limited, a
+     * request within the interval is sent with the next received packet.
+     */
+    public void requestKeyFrame() {
+        byte[] pli;
+        synchronized (this) {
+            keyFrameNeeded = true;
+            pli = buildPli(System.currentTimeMillis());
+        }
+        if ((pli != null) && send(pli)) {
+            pliPackets++;
+        }
+    }
+
+    /**
+     * Send a RTCP feedback packet to the sender
+     *
+     * @param packet RTCP packet
+     * @return False if not sent
+     */
+    private boolean send(byte[] packet) {
+        PortLease l = lease;
+        DatagramConnection conn = (l != null) ? l.getConnection(l.getRtcpPort()) : null;
+        if (conn == null) {
+            return false;
+        }
+        try {
+            conn.sendDirect(remoteHost, remoteRtcpPort, packet, 0, packet.length);
+            return true;
+        } catch (IOException e) {
+            // The lost packets or the keyframe are requested again
+            return false;
+        }
+    }
+
+    /**
+     * Track a received sequence number
+     *
+     * @param seq Sequence number
+     * @param now Current time
+     */
+    private void received(int seq, long now) {
+        if (highestSeq < 0) {
+            highestSeq = seq;
+            return;
+        }
+        int diff = (seq - highestSeq) & 0xffff;
+        if (diff == 0) {
+            // Received twice
+            wasted++;
+            MediaStats.count(MediaStats.Counter.RETRANSMITS_WASTED);
+        } else if (diff < SEQ_HALF_RANGE) {
+            // New packet, the ones in between are lost
+            if (!nackEnabled) {
+                for (int i = 1; i < diff; i++) {
+                    abandon((highestSeq + i) & 0xffff);
+                }
+            } else if (diff - 1 > MAX_MISSING) {
+                abandonAll();
+                keyFrameNeeded = true;
+            } else {
+                for (int i = 1; i < diff; i++) {
+                    missing.put((highestSeq + i) & 0xffff, new Missing(now));
+                }
+            }
+            highestSeq = seq;
+        } else {
+            // Late packet: retransmitted or reordered
+            Missing m = missing.remove(seq);
+            if (m != null) {
+                if (m.nackTime != 0L) {
+                    recovered++;
+                    MediaStats.count(MediaStats.Counter.PACKETS_RECOVERED);
+                    long sample = now - m.nackTime;
+                    rtt = (rtt < 0) ? sample : rtt + (sample - rtt) / 8;
+                }
+            } else if (isAbandoned(seq)) {
+                wasted++;
+                MediaStats.count(MediaStats.Counter.RETRANSMITS_WASTED);
+            }
+        }
+    }
+
+    /**
+     * Give up the lost packets which can no longer be played out
+     *
+     * @param now Current time
+     */
+    private void expire(long now) {
+        long deadline = Math.max(jitterBuffer.getPlayoutDelay(), MIN_DEADLINE);
+        Iterator<Map.Entry<Integer, Missing>> it = missing.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Missing> entry = it.next();
+            int seq = entry.getKey();
+            Missing m = entry.getValue();
+            boolean late = ((highestSeq - seq) & 0xffff) >= STACK_REORDER_WINDOW;
+            long wait = ((m.nackTime == 0L) && (rtt > 0)) ? rtt : 0L;
+            boolean expired = (now - m.detectTime) + wait > deadline;
+            boolean exhausted = (m.retries >= MAX_RETRIES) && (now - m.nackTime >= retryInterval());
+            if (late || expired || exhausted) {
+                it.remove();
+                abandon(seq);
+            }
+        }
+    }
+
+    /**
+     * Build a NACK of the lost packets due to be requested
+     *
+     * @param now Current time
+     * @return RTCP packet or null if nothing to request
+     */
+    private byte[] buildNack(long now) {
+        if (missing.isEmpty()) {
+            return null;
+        }
+        long interval = retryInterval();
+        int[] fci = new int[missing.size()];
+        int n = 0;
+        int pid = -1;
+        for (Map.Entry<Integer, Missing> entry : missing.entrySet()) {
+            Missing m = entry.getValue();
+            if ((m.nackTime != 0L) && (now - m.nackTime < interval)) {
+                continue;
+            }
+            if (m.retries == 0) {
+                nacked++;
+                MediaStats.count(MediaStats.Counter.PACKETS_NACKED);
+            }
+            m.nackTime = now;
+            m.retries++;
+
+            // One FCI entry per lost packet and the bitmask of the 16 following
+            int seq = entry.getKey();
+            int bit = (seq - pid - 1) & 0xffff;
+            if ((pid >= 0) && (bit < 16)) {
+                fci[n - 1] |= 1 << bit;
+            } else {
+                pid = seq;
+                fci[n++] = pid << 16;
+            }
+        }
+        if (n == 0) {
+            return null;
+        }
+        byte[] packet = new byte[12 + n * 4];
+        packet[0] = (byte)(0x80 | FMT_NACK);
+        packet[1] = (byte)RTCP_RTPFB;
+        packet[2] = (byte)((2 + n) >> 8);
+        packet[3] = (byte)(2 + n);
+        writeInt(packet, 4, senderSsrc);
+        writeInt(packet, 8, (int)mediaSsrc);
+        for (int i = 0; i < n; i++) {
+            writeInt(packet, 12 + i * 4, fci[i]);
+        }
+        return packet;
+    }
+
+    /**
+     * Build a PLI if a keyframe is needed and the previous one is not recent
+     *
+     * @param now Current time
+     * @return RTCP packet or null if nothing to request
+     */
+    private byte[] buildPli(long now) {
+        if (!keyFrameNeeded || (highestSeq < 0) || (now - pliTime < Math.max(rtt, MIN_PLI_INTERVAL))) {
+            return null;
+        }
+        keyFrameNeeded = false;
+        pliTime = now;
+        byte[] packet = new byte[12];
+        packet[0] = (byte)(0x80 | FMT_PLI);
+        packet[1] = (byte)RTCP_PSFB;
+        packet[3] = 2;
+        writeInt(packet, 4, senderSsrc);
+        writeInt(packet, 8, (int)mediaSsrc);
+        return packet;
+    }
+
+    /**
+     * Build a report of the group reception once enough second copies of
+     * the packets have been received
+     *
+     * @param now Current time
+     * @return RTCP packet or null if nothing to report
+     */
+    private byte[] buildJoinReport(long now) {
+        groupDuplicates++;
+        if ((groupDuplicates < JOIN_DUPLICATES) || (now - joinReportTime < JOIN_REPORT_INTERVAL)) {
+            return null;
+        }
+        groupDuplicates = 0;
+        joinReportTime = now;
+        byte[] packet = new byte[12];
+        packet[0] = (byte)0x80;
+        packet[1] = (byte)RtcpFeedbackReceiver.RTCP_APP;
+        packet[3] = 2;
+        writeInt(packet, 4, senderSsrc);
+        writeInt(packet, 8, RtcpFeedbackReceiver.APP_GROUP_JOINED);
+        return packet;
+    }
+
+    /**
+     * Returns the interval between two NACKs of a packet
+     *
+     * @return Milliseconds
+     */
+    private long retryInterval() {
+        if (rtt < 0) {
+            return DEFAULT_RETRY_INTERVAL;
+        }
+        return Math.max(rtt, MIN_RETRY_INTERVAL);
+    }
+
+    /**
+     * Give up all the lost packets
+     */
+    private void abandonAll() {
+        for (Integer seq : missing.keySet()) {
+            abandon(seq);
+        }
+        missing.clear();
+    }
+
+    /**
+     * Give up a lost packet
+     *
+     * @param seq Sequence number
+     */
+    private void abandon(int seq) {
+        keyFrameNeeded = true;
+        unrecovered++;
+        MediaStats.count(MediaStats.Counter.PACKETS_UNRECOVERED);
+        abandoned[abandonedCount % ABANDONED_HISTORY] = seq;
+        abandonedCount++;
+    }
+
+    /**
+     * Is a packet recently given up
+     *
+     * @param seq Sequence number
+     * @return Boolean
+     */
+    private boolean isAbandoned(int seq) {
+        for (int i = 0; i < Math.min(abandonedCount, ABANDONED_HISTORY); i++) {
+            if (abandoned[i] == seq) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Write a 32-bit value
+     *
+     * @param data Buffer
+     * @param pos Offset
+     * @param value Value
+     */
+    private static void writeInt(byte[] data, int pos, int value) {
+        data[pos] = (byte)(value >> 24);
+        data[pos + 1] = (byte)(value >> 16);
+        data[pos + 2] = (byte)(value >> 8);
+        data[pos + 3] = (byte)value;
+    }
+
+    /**
+     * Returns the number of lost packets requested
+     *
+     * @return Count
+     */
+    public long getNackedCount() {
+        return nacked;
+    }
+
+    /**
+     * Returns the number of requested packets received in time
+     *
+     * @return Count
+     */
+    public long getRecoveredCount() {
+        return recovered;
+    }
+
+    /**
+     * Returns the number of lost packets given up
+     *
+     * @return Count
+     */
+    public long getUnrecoveredCount() {
+        return unrecovered;
+    }
+
+    /**
+     * Returns the number of packets received twice or after being given up
+     *
+     * @return Count
+     */
+    public long getWastedCount() {
+        return wasted;
+    }
+
+    /**
+     * Returns the number of sent NACK packets
+     *
+     * @return Count
+     */
+    public long getNackPacketCount() {
+        return nackPackets;
+    }
+
+    /**
+     * Returns the number of sent PLI packets
+     *
+     * @return Count
+     */
+    public long getPliPacketCount() {
+        return pliPackets;
+    }
+
+    /**
+     * Returns the number of sent reports of the multicast group reception
+     *
+     * @return Count
+     */
+    public long getJoinReportCount() {
+        return joinReports;
+    }
+
+    /**
+     * Returns the round trip time measured from the retransmissions
+     *
+     * @return Milliseconds or -1 if not measured yet
+     */
+    public synchronized long getRoundTripTime() {
+        return rtt;
+    }
+}
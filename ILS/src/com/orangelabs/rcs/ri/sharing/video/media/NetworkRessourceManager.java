@@ -19,6 +19,7 @@
 package com.orangelabs.rcs.ri.sharing.video.media;
 
 import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 /**
  * Network ressource manager
@@ -32,71 +33,214 @@ public class NetworkRessourceManager {
     public static final int DEFAULT_LOCAL_RTP_PORT_BASE = 5000;
 
     /**
-     * Generate a default free RTP port number
+     * Registered multicast groups
+     */
+    private static final CopyOnWriteArrayList<MulticastGroup> multicastGroups = new CopyOnWriteArrayList<MulticastGroup>();
+
+    /**
+     * Register a multicast group. While a group is registered, the datagram
+     * connections opened on its ports are multicast capable: a connection
+     * opened on the group port joins the group, the group options apply when
+     * a connection opened on its source ports sends to it. The connections
+     * opened on other ports are not affected.
      *
-     * @return Local RTP port
+     * @param group Multicast group
      */
-    public static synchronized int generateLocalRtpPort() {
-    	return generateLocalUdpPort(DEFAULT_LOCAL_RTP_PORT_BASE);
+    public static void registerMulticastGroup(MulticastGroup group) {
+        multicastGroups.addIfAbsent(group);
+    }
+
+    /**
+     * Unregister a multicast group
+     *
+     * @param group Multicast group
+     */
+    public static void unregisterMulticastGroup(MulticastGroup group) {
+        multicastGroups.remove(group);
     }
 
     /**
-     * Generate a free UDP port number from a specific port base
+     * Returns the registered multicast group received on a port
      *
-     * @param portBase UDP port base
-     * @return Local UDP port
-     */
-    private static int generateLocalUdpPort(int portBase) {
-    	int resp = -1;
-		int port = portBase;
-		while((resp == -1) && (port < Integer.MAX_VALUE)) {
-			if (isLocalUdpPortFree(port)) {
-				// Free UDP port found
-				resp = port;
-			} else {
-                // +2 needed for RTCP port
-                port += 2;
-			}
-		}
-    	return resp;
+     * @param port RTP port
+     * @return Group or null
+     */
+    static MulticastGroup getMulticastGroup(int port) {
+        for (MulticastGroup group : multicastGroups) {
+            if (group.getPort() == port) {
+                return group;
+            }
+        }
+        return null;
     }
 
-	/**
-     * Test if the given local UDP port is really free (not used by
-     * other applications)
+    /**
+     * Is a local port used by a registered multicast group
      *
-     * @param port Port to check
+     * @param port Local port
      * @return Boolean
      */
-    private static boolean isLocalUdpPortFree(int port) {
-    	boolean res = false;
-    	try {
-    		DatagramConnection conn = NetworkRessourceManager.createDatagramConnection();
-    		conn.open(port);
-            conn.close();
-    		res = true;
-    	} catch(IOException e) {
-    		res = false;
-    	}
-    	return res;
+    static boolean isMulticastPort(int port) {
+        for (MulticastGroup group : multicastGroups) {
+            if (group.usesPort(port)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the registered multicast group of an address
+     *
+     * @param address Group address
+     * @return Group or null
+     */
+    static MulticastGroup getMulticastGroup(String address) {
+        for (MulticastGroup group : multicastGroups) {
+            if (group.isGroupAddress(address)) {
+                return group;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Default RTP port max
+     */
+    public static final int DEFAULT_LOCAL_RTP_PORT_MAX = 65535;
+
+    /**
+     * RTP port allocator
+     */
+    private static RtpPortAllocator portAllocator = new RtpPortAllocator(DEFAULT_LOCAL_RTP_PORT_BASE,
+            DEFAULT_LOCAL_RTP_PORT_MAX);
+
+    /**
+     * Set the RTP port range. The range can't be changed while leases are
+     * outstanding: they are only known to the allocator of the current range.
+     *
+     * @param minPort First port
+     * @param maxPort Last port
+     * @return True if the range has been changed, false if leases are
+     *         outstanding
+     */
+    public static synchronized boolean setRtpPortRange(int minPort, int maxPort) {
+        if (portAllocator.getLeaseCount() > 0) {
+            return false;
+        }
+        portAllocator = new RtpPortAllocator(minPort, maxPort);
+        return true;
     }
-    
+
+    /**
+     * Lease a RTP/RTCP port pair. The ports stay bound until they are opened
+     * by a datagram connection or the lease is released.
+     *
+     * @return Lease
+     * @throws IOException if no port pair is available
+     */
+    public static synchronized PortLease allocateRtpPorts() throws IOException {
+        return portAllocator.allocate(false);
+    }
+
+    /**
+     * Lease a RTP/RTCP port pair for a session choosing its transport. The
+     * connections opened on NIO ports are read by the shared selector
+     * thread, the other sessions keep the blocking sockets.
+     *
+     * @param nio Use the NIO transport on the leased ports
+     * @return Lease
+     * @throws IOException if no port pair is available
+     */
+    public static synchronized PortLease allocateRtpPorts(boolean nio) throws IOException {
+        return portAllocator.allocate(nio);
+    }
+
+    /**
+     * Lease a given RTP/RTCP port pair, e.g. to receive a multicast group on
+     * the ports of a session
+     *
+     * @param rtpPort RTP port, the RTCP port is the next one
+     * @return Lease
+     * @throws IOException if the port pair is not available
+     */
+    public static synchronized PortLease allocateRtpPorts(int rtpPort) throws IOException {
+        return portAllocator.allocate(rtpPort, false);
+    }
+
+    /**
+     * Returns the lease owning a port
+     *
+     * @param port Local port
+     * @return Lease or null
+     */
+    static synchronized PortLease getPortLease(int port) {
+        return portAllocator.getLease(port);
+    }
+
+    /**
+     * Generate a default free RTP port number. The port is not reserved,
+     * prefer {@link #allocateRtpPorts()}.
+     *
+     * @return Local RTP port
+     */
+    public static synchronized int generateLocalRtpPort() {
+        try {
+            PortLease lease = portAllocator.allocate(false);
+            lease.release();
+            return lease.getRtpPort();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
     /**
      * Create a datagram connection
      * 
      * @return Datagram connection
      */
 	public static DatagramConnection createDatagramConnection() {
-		return new AndroidDatagramConnection();
+		return createDatagramConnection(0);
 	}
 
     /**
-     * Create a datagram connection with a specific SO timeout
+     * Create a datagram connection with a specific SO timeout. While a
+     * multicast group is registered or NIO ports are leased, the transport
+     * is chosen when the connection is opened, from its local port.
      *
      * @param timeout SO timeout
      * @return Datagram connection
      */
     public static DatagramConnection createDatagramConnection(int timeout) {
+        if (!multicastGroups.isEmpty() || hasNioLeases()) {
+            return new PortSelectedDatagramConnection(timeout);
+        }
         return new AndroidDatagramConnection(timeout);
-    }    
+    }
+
+    /**
+     * Are NIO ports leased
+     *
+     * @return Boolean
+     */
+    private static synchronized boolean hasNioLeases() {
+        return portAllocator.getNioLeaseCount() > 0;
+    }
+
+    /**
+     * Create a datagram connection of the unicast transport of a local port:
+     * NIO if the port has been leased for the NIO transport, blocking socket
+     * otherwise
+     *
+     * @param timeout SO timeout
+     * @param port Local port, 0 for an ephemeral port
+     * @return Datagram connection
+     */
+    static DatagramConnection createUnicastConnection(int timeout, int port) {
+        PortLease lease = (port != 0) ? getPortLease(port) : null;
+        if ((lease != null) && lease.isNio()) {
+            return new NioDatagramConnection(timeout);
+        }
+        return new AndroidDatagramConnection(timeout);
+    }
 }
@@ -0,0 +1,575 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * NIO datagram connection. The channel is read by the shared datagram
+ * selector thread, received packets are either handed to a listener on that
+ * thread or queued for the blocking receive methods. Queued packets are
+ * limited to the size of the pooled buffers, larger datagrams are dropped
+ * and counted.
+ */
+public class NioDatagramConnection implements DatagramConnection {
+    /**
+     * Listener called on the selector thread for each received datagram
+     */
+    public interface DatagramListener {
+        /**
+         * A datagram has been received. The buffer is only valid during the call.
+         *
+         * @param data Datagram data
+         */
+        public void onDatagram(ByteBuffer data);
+    }
+
+    /**
+     * Receive queue size
+     */
+    private static final int RECEIVE_QUEUE_SIZE = 128;
+
+    /**
+     * Datagram channel
+     */
+    private DatagramChannel channel = null;
+
+    /**
+     * Port lease the channel has been taken from
+     */
+    private PortLease lease = null;
+
+    /**
+     * Port taken from the lease
+     */
+    private int leasePort = 0;
+
+    /**
+     * Connection timeout
+     */
+    private int timeout = 0;
+
+    /**
+     * Received packets
+     */
+    private final RingBuffer<PacketBuffer> queue = new SpscRingBuffer<PacketBuffer>(RECEIVE_QUEUE_SIZE,
+            RingBuffer.OverflowPolicy.DROP_NEWEST);
+
+    /**
+     * Packet buffers filled by the selector thread
+     */
+    private final PacketBufferPool pool = new PacketBufferPool(RECEIVE_QUEUE_SIZE + 8,
+            PacketBufferPool.DEFAULT_BUFFER_SIZE);
+
+    /**
+     * Direct buffer used to send data
+     */
+    private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(DatagramConnection.DEFAULT_DATAGRAM_SIZE);
+
+    /**
+     * Listener or null
+     */
+    private volatile DatagramListener listener = null;
+
+    /**
+     * Last remote address used to send data
+     */
+    private InetSocketAddress lastRemote = null;
+
+    /**
+     * Last remote host used to send data
+     */
+    private String lastRemoteHost = null;
+
+    /**
+     * Number of datagrams dropped for being larger than a pooled buffer
+     */
+    private volatile long oversized = 0L;
+
+    /**
+     * Last error reported by the selector thread
+     */
+    private volatile IOException error = null;
+
+    /**
+     * Constructor
+     */
+    public NioDatagramConnection() {
+    }
+
+    /**
+     * Constructor
+     *
+     * @param timeout SO Timeout
+     */
+    public NioDatagramConnection(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Open the datagram connection
+     *
+     * @throws IOException
+     */
+    public void open() throws IOException {
+        open(0);
+    }
+
+    /**
+     * Open the datagram connection
+     *
+     * @param port Local port
+     * @throws IOException
+     */
+    public void open(int port) throws IOException {
+        // Use the channel already bound by the port lease, if any
+        if (port != 0) {
+            lease = NetworkRessourceManager.getPortLease(port);
+        }
+        if (lease != null) {
+            channel = lease.takeChannel(port);
+            leasePort = port;
+        }
+        if (channel == null) {
+            channel = DatagramChannel.open();
+        }
+        try {
+            if (!channel.socket().isBound()) {
+                channel.socket().bind(new InetSocketAddress(port));
+            }
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            channel = null;
+            if (lease != null) {
+                lease.closed(port);
+                lease = null;
+            }
+            throw e;
+        }
+        DatagramSelector.getInstance().register(this);
+        if (lease != null) {
+            lease.opened(port, this);
+        }
+    }
+
+    /**
+     * Close the datagram connection
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        if (channel != null) {
+            int port = channel.socket().getLocalPort();
+            DatagramSelector.getInstance().unregister(this);
+            channel.close();
+            channel = null;
+            if (lease != null) {
+                lease.closed(port);
+                lease = null;
+            }
+            queue.close();
+            PacketBuffer buffer;
+            while ((buffer = queue.poll()) != null) {
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Set a listener receiving the datagrams on the selector thread instead
+     * of queuing them
+     *
+     * @param listener Listener or null
+     */
+    public void setDatagramListener(DatagramListener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Bind the connection to a peer
+     *
+     * @param remoteAddr Remote address
+     * @param remotePort Remote port
+     * @throws IOException
+     */
+    public void connect(String remoteAddr, int remotePort) throws IOException {
+        if (channel != null) {
+            synchronized (sendBuffer) {
+                channel.connect(resolve(remoteAddr, remotePort));
+            }
+        } else {
+            throw new IOException("Connection not openned");
+        }
+    }
+
+    /**
+     * Unbind the connection from its peer
+     */
+    public void disconnect() {
+        if (channel != null) {
+            synchronized (sendBuffer) {
+                try {
+                    channel.disconnect();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Is the connection bound to a peer
+     *
+     * @return Boolean
+     */
+    public boolean isConnected() {
+        return (channel != null) && channel.isConnected();
+    }
+
+    /**
+     * Send data to the connected peer
+     *
+     * @param data Data as byte array
+     * @param offset Offset of the data
+     * @param length Length of the data
+     * @throws IOException
+     */
+    public void send(byte[] data, int offset, int length) throws IOException {
+        if (isConnected()) {
+            synchronized (sendBuffer) {
+                write(data, offset, length);
+            }
+        } else {
+            throw new IOException("Connection not connected");
+        }
+    }
+
+    /**
+     * Send several datagrams to the connected peer in one call. A channel
+     * gathering write would merge the buffers into one datagram, so the
+     * datagrams are written one by one under a single lock.
+     *
+     * @param packets Datagrams, each one starting at offset 0
+     * @param lengths Length of each datagram
+     * @param count Number of datagrams to send
+     * @throws IOException
+     */
+    public void send(byte[][] packets, int[] lengths, int count) throws IOException {
+        if (isConnected()) {
+            synchronized (sendBuffer) {
+                for (int i = 0; i < count; i++) {
+                    write(packets[i], 0, lengths[i]);
+                }
+            }
+        } else {
+            throw new IOException("Connection not connected");
+        }
+    }
+
+    /**
+     * Send data
+     *
+     * @param remoteAddr Remote address
+     * @param remotePort Remote port
+     * @param data Data as byte array
+     * @throws IOException
+     */
+    public void send(String remoteAddr, int remotePort, byte[] data) throws IOException {
+        if (data == null) {
+            return;
+        }
+
+        PortLease l = lease;
+        if (l != null) {
+            data = l.filterOutgoing(leasePort, data);
+            if (data == null) {
+                // Taken over by a send filter
+                return;
+            }
+        }
+        sendDirect(remoteAddr, remotePort, data, 0, data.length);
+    }
+
+    /**
+     * Send data without applying the send filters
+     *
+     * @param remoteAddr Remote address
+     * @param remotePort Remote port
+     * @param data Data as byte array
+     * @param offset Offset of the data
+     * @param length Length of the data
+     * @throws IOException
+     */
+    public void sendDirect(String remoteAddr, int remotePort, byte[] data, int offset, int length) throws IOException {
+        if (channel != null) {
+            synchronized (sendBuffer) {
+                if (channel.isConnected()) {
+                    if (!resolve(remoteAddr, remotePort).equals(channel.socket().getRemoteSocketAddress())) {
+                        throw new IOException("Destination " + remoteAddr + ":" + remotePort
+                                + " is not the connected peer");
+                    }
+                    write(data, offset, length);
+                } else {
+                    sendBuffer.clear();
+                    sendBuffer.put(data, offset, length);
+                    sendBuffer.flip();
+                    long start = System.nanoTime();
+                    channel.send(sendBuffer, resolve(remoteAddr, remotePort));
+                    sent(start, length);
+                }
+            }
+        } else {
+            throw new IOException("Connection not openned");
+        }
+    }
+
+    /**
+     * Receive data
+     *
+     * @return Byte array
+     * @throws IOException
+     */
+    public byte[] receive() throws IOException {
+        PacketBuffer buffer = take();
+        byte[] data = new byte[buffer.getLength()];
+        System.arraycopy(buffer.getData(), 0, data, 0, data.length);
+        buffer.release();
+        return data;
+    }
+
+    /**
+     * Receive data into a caller buffer
+     *
+     * @param buffer Destination buffer
+     * @param offset Offset in the buffer
+     * @param length Maximum number of bytes to receive
+     * @return Number of bytes received
+     * @throws IOException
+     */
+    public int receive(byte[] buffer, int offset, int length) throws IOException {
+        PacketBuffer packet = take();
+        int size = Math.min(length, packet.getLength());
+        System.arraycopy(packet.getData(), 0, buffer, offset, size);
+        packet.release();
+        return size;
+    }
+
+    /**
+     * Receive data into a buffer taken from a pool. The packet is copied
+     * from the buffer filled by the selector thread, which goes back to the
+     * pool of this connection at once.
+     *
+     * @param pool Packet buffer pool
+     * @return Packet buffer
+     * @throws IOException
+     */
+    public PacketBuffer receive(PacketBufferPool pool) throws IOException {
+        PacketBuffer packet = take();
+        PacketBuffer buffer = pool.acquire();
+        int size = Math.min(buffer.getCapacity(), packet.getLength());
+        System.arraycopy(packet.getData(), 0, buffer.getData(), 0, size);
+        buffer.setLength(size);
+        packet.release();
+        return buffer;
+    }
+
+    /**
+     * Returns the number of datagrams dropped for being larger than a
+     * pooled buffer
+     *
+     * @return Count
+     */
+    public long getOversizedCount() {
+        return oversized;
+    }
+
+    /**
+     * Returns the local address
+     *
+     * @return Address
+     * @throws IOException
+     */
+    public String getLocalAddress() throws IOException {
+        if ((channel != null) && (channel.socket().getLocalAddress() != null)) {
+            return channel.socket().getLocalAddress().getHostAddress();
+        } else {
+            throw new IOException("Connection not openned");
+        }
+    }
+
+    /**
+     * Returns the local port
+     *
+     * @return Port
+     * @throws IOException
+     */
+    public int getLocalPort() throws IOException {
+        if (channel != null) {
+            return channel.socket().getLocalPort();
+        } else {
+            throw new IOException("Connection not openned");
+        }
+    }
+
+    /**
+     * Returns the channel
+     *
+     * @return Channel
+     */
+    DatagramChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Write a datagram on the connected channel
+     *
+     * @param data Data as byte array
+     * @param offset Offset of the data
+     * @param length Length of the data
+     * @throws IOException
+     */
+    private void write(byte[] data, int offset, int length) throws IOException {
+        sendBuffer.clear();
+        sendBuffer.put(data, offset, length);
+        sendBuffer.flip();
+        long start = System.nanoTime();
+        channel.write(sendBuffer);
+        sent(start, length);
+    }
+
+    /**
+     * Record a sent datagram in the media statistics
+     *
+     * @param start Start time of the socket call in nanoseconds
+     * @param length Length of the datagram
+     */
+    private void sent(long start, int length) {
+        MediaStats.recordSince(MediaStats.Stage.SOCKET_SEND, start);
+        MediaStats.count(MediaStats.Counter.PACKETS_SENT);
+        MediaStats.count(MediaStats.Counter.BYTES_SENT, length);
+    }
+
+    /**
+     * Resolve a remote address, the last result is cached
+     *
+     * @param remoteAddr Remote address
+     * @param remotePort Remote port
+     * @return Socket address
+     */
+    private InetSocketAddress resolve(String remoteAddr, int remotePort) {
+        if ((lastRemote == null) || (lastRemote.getPort() != remotePort)
+                || !remoteAddr.equals(lastRemoteHost)) {
+            lastRemote = new InetSocketAddress(remoteAddr, remotePort);
+            lastRemoteHost = remoteAddr;
+        }
+        return lastRemote;
+    }
+
+    /**
+     * Datagram received by the selector thread
+     *
+     * @param data Datagram data
+     */
+    void onDatagram(ByteBuffer data) {
+        MediaStats.datagramReceived(data.remaining());
+        PortLease arrivalLease = lease;
+        if (arrivalLease != null) {
+            arrivalLease.arrived(leasePort);
+        }
+        DatagramListener l = listener;
+        if (l != null) {
+            l.onDatagram(data);
+            return;
+        }
+
+        int length = data.remaining();
+        if (length > pool.getBufferSize()) {
+            // Not a RTP packet under the MTU, truncating it would corrupt it
+            oversized++;
+            return;
+        }
+        PacketBuffer buffer = pool.acquire();
+        data.get(buffer.getData(), 0, length);
+        buffer.setLength(length);
+        if (!queue.offer(buffer)) {
+            // Make room by discarding the oldest packet
+            PacketBuffer oldest = queue.poll();
+            if (oldest != null) {
+                oldest.release();
+            }
+            if (!queue.offer(buffer)) {
+                buffer.release();
+            }
+        }
+    }
+
+    /**
+     * Error reported by the selector thread
+     *
+     * @param e Exception
+     */
+    void onError(IOException e) {
+        error = e;
+        queue.close();
+    }
+
+    /**
+     * Wait for the next received packet
+     *
+     * @return Packet buffer
+     * @throws IOException
+     */
+    private PacketBuffer take() throws IOException {
+        if (channel == null) {
+            throw new IOException("Connection not openned");
+        }
+        PortLease l = lease;
+        PacketBuffer buffer;
+        byte[] injected = (l != null) ? l.pollInjected(leasePort) : null;
+        if (injected != null) {
+            // Handed back by a receive filter, not a network datagram. The
+            // pool is only acquired from by the selector thread.
+            buffer = new PacketBuffer(injected.length, null);
+            buffer.acquired(false);
+            System.arraycopy(injected, 0, buffer.getData(), 0, injected.length);
+            buffer.setLength(injected.length);
+        } else {
+            buffer = queue.take(timeout);
+        }
+        if (buffer != null) {
+            if (l != null) {
+                buffer.setLength(l.filtered(leasePort, buffer.getData(), 0, buffer.getLength()));
+                l.received(leasePort, buffer.getData(), 0, buffer.getLength());
+            }
+            return buffer;
+        }
+        if (error != null) {
+            throw error;
+        }
+        if (queue.isClosed()) {
+            throw new IOException("Connection closed");
+        }
+        throw new SocketTimeoutException("Receive timed out");
+    }
+}
@@ -0,0 +1,166 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Packet buffer lent by a packet buffer pool
+ */
+public class PacketBuffer {
+    /**
+     * Data
+     */
+    private final byte[] data;
+
+    /**
+     * Length of valid data
+     */
+    private int length = 0;
+
+    /**
+     * Owner pool, null if the buffer is not pooled
+     */
+    private final PacketBufferPool pool;
+
+    /**
+     * In use flag
+     */
+    private final AtomicBoolean inUse = new AtomicBoolean(false);
+
+    /**
+     * Time of the last acquisition
+     */
+    private volatile long acquireTime = 0L;
+
+    /**
+     * Stack trace of the last acquisition, only kept when leak tracking is on
+     */
+    private volatile Throwable acquireSite = null;
+
+    /**
+     * Constructor
+     *
+     * @param size Buffer size
+     * @param pool Owner pool or null
+     */
+    PacketBuffer(int size, PacketBufferPool pool) {
+        this.data = new byte[size];
+        this.pool = pool;
+    }
+
+    /**
+     * Returns the data
+     *
+     * @return Byte array
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    /**
+     * Returns the length of valid data
+     *
+     * @return Length
+     */
+    public int getLength() {
+        return length;
+    }
+
+    /**
+     * Set the length of valid data
+     *
+     * @param length Length
+     */
+    public void setLength(int length) {
+        this.length = length;
+    }
+
+    /**
+     * Returns the buffer capacity
+     *
+     * @return Capacity
+     */
+    public int getCapacity() {
+        return data.length;
+    }
+
+    /**
+     * Is buffer pooled
+     *
+     * @return Boolean
+     */
+    public boolean isPooled() {
+        return pool != null;
+    }
+
+    /**
+     * Give the buffer back to its pool
+     */
+    public void release() {
+        if (!inUse.compareAndSet(true, false)) {
+            throw new IllegalStateException("Packet buffer released twice");
+        }
+        acquireSite = null;
+        if (pool != null) {
+            pool.recycle(this);
+        }
+    }
+
+    /**
+     * Mark the buffer as acquired
+     *
+     * @param track Keep the acquisition stack trace
+     */
+    void acquired(boolean track) {
+        inUse.set(true);
+        length = 0;
+        acquireTime = System.currentTimeMillis();
+        if (track) {
+            acquireSite = new Throwable("Packet buffer acquired here");
+        }
+    }
+
+    /**
+     * Is buffer in use
+     *
+     * @return Boolean
+     */
+    boolean isInUse() {
+        return inUse.get();
+    }
+
+    /**
+     * Returns the time of the last acquisition
+     *
+     * @return Milliseconds
+     */
+    long getAcquireTime() {
+        return acquireTime;
+    }
+
+    /**
+     * Returns the stack trace of the last acquisition
+     *
+     * @return Throwable or null
+     */
+    Throwable getAcquireSite() {
+        return acquireSite;
+    }
+}
@@ -0,0 +1,193 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+import com.orangelabs.rcs.ri.utils.LogUtils;
+
+/**
+ * Pool of preallocated packet buffers. Buffers are acquired by the receiving
+ * thread and may be released from any thread. When the pool is exhausted an
+ * unpooled buffer is returned and counted as a miss, so a leak degrades to
+ * allocation instead of blocking the network.
+ * <p>
+ * The pools serve the receive loops owned by this package, which keep the
+ * datagrams beyond the receive call. The RTP receivers of the media library
+ * are not among them, see {@link DatagramConnection#receive()}.
+ */
+public class PacketBufferPool {
+    /**
+     * Default buffer size, large enough for any RTP packet under a 1500 bytes MTU
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 2048;
+
+    /**
+     * Default number of buffers
+     */
+    public static final int DEFAULT_POOL_SIZE = 128;
+
+    /**
+     * Log tag
+     */
+    private static final String LOGTAG = LogUtils.getTag(PacketBufferPool.class.getSimpleName());
+
+    /**
+     * All the buffers owned by the pool
+     */
+    private final PacketBuffer[] buffers;
+
+    /**
+     * Free buffers
+     */
+    private final RingBuffer<PacketBuffer> free;
+
+    /**
+     * Buffer size
+     */
+    private final int bufferSize;
+
+    /**
+     * Keep acquisition stack traces for leak reports
+     */
+    private volatile boolean leakTracking = false;
+
+    /**
+     * Number of acquisitions served by an unpooled buffer
+     */
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * Constructor
+     */
+    public PacketBufferPool() {
+        this(DEFAULT_POOL_SIZE, DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param poolSize Number of buffers
+     * @param bufferSize Size of each buffer
+     */
+    public PacketBufferPool(int poolSize, int bufferSize) {
+        this.bufferSize = bufferSize;
+        this.buffers = new PacketBuffer[poolSize];
+        this.free = new MpscRingBuffer<PacketBuffer>(poolSize, RingBuffer.OverflowPolicy.DROP_NEWEST);
+        for (int i = 0; i < poolSize; i++) {
+            buffers[i] = new PacketBuffer(bufferSize, this);
+            free.offer(buffers[i]);
+        }
+    }
+
+    /**
+     * Acquire a buffer
+     *
+     * @return Buffer, never null
+     */
+    public PacketBuffer acquire() {
+        PacketBuffer buffer = free.poll();
+        if (buffer == null) {
+            misses.incrementAndGet();
+            buffer = new PacketBuffer(bufferSize, null);
+        }
+        buffer.acquired(leakTracking);
+        return buffer;
+    }
+
+    /**
+     * Put back a released buffer in the free list
+     *
+     * @param buffer Buffer
+     */
+    void recycle(PacketBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    /**
+     * Returns the buffer size
+     *
+     * @return Size in bytes
+     */
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns the number of pooled buffers currently lent
+     *
+     * @return Count
+     */
+    public int getOutstandingCount() {
+        int count = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i].isInUse()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of acquisitions served by an unpooled buffer
+     *
+     * @return Count
+     */
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * Keep the acquisition stack trace of each buffer. This is costly and
+     * should only be turned on while hunting a leak.
+     *
+     * @param leakTracking Tracking flag
+     */
+    public void setLeakTracking(boolean leakTracking) {
+        this.leakTracking = leakTracking;
+    }
+
+    /**
+     * Report the buffers which have been lent for longer than the given delay
+     *
+     * @param maxHoldTime Maximum hold time in milliseconds
+     * @return Number of leaked buffers
+     */
+    public int checkLeaks(long maxHoldTime) {
+        long now = System.currentTimeMillis();
+        int leaks = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            PacketBuffer buffer = buffers[i];
+            if (buffer.isInUse() && ((now - buffer.getAcquireTime()) > maxHoldTime)) {
+                leaks++;
+                if (LogUtils.isActive) {
+                    Throwable site = buffer.getAcquireSite();
+                    if (site != null) {
+                        Log.w(LOGTAG, "Packet buffer held for " + (now - buffer.getAcquireTime()) + "ms", site);
+                    } else {
+                        Log.w(LOGTAG, "Packet buffer held for " + (now - buffer.getAcquireTime()) + "ms");
+                    }
+                }
+            }
+        }
+        return leaks;
+    }
+}
@@ -0,0 +1,468 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.IOException;
+
+/**
+ * History of the RTP packets sent to a remote, indexed by sequence number,
+ * to retransmit the packets reported lost by a generic NACK (RFC 4585).
+ * <p>
+ * The packets are captured as they leave the RTP stack and retransmitted
+ * unchanged, with their original sequence number, so that the depacketizer
+ * of the receiver can complete the frame they belong to. Retransmissions are
+ * limited to a share of the media bit rate, and given up when the packet
+ * would reach the receiver after its jitter buffer deadline.
+ */
+public class PacketHistory implements PortLease.SendFilter {
+    /**
+     * Default number of remembered packets
+     */
+    public static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * Default maximum age of a retransmitted packet at the receiver, in
+     * milliseconds (maximum delay of the jitter buffer)
+     */
+    public static final long DEFAULT_MAX_AGE = 500L;
+
+    /**
+     * Round trip time used until a reception report gives it, in milliseconds
+     */
+    private static final long DEFAULT_RTT = 100L;
+
+    /**
+     * Maximum burst of the rate limiter, in milliseconds of the rate
+     */
+    private static final long MAX_BURST = 200L;
+
+    /**
+     * Packets, in slots reused once overwritten
+     */
+    private final byte[][] packets;
+
+    /**
+     * Lengths of the packets
+     */
+    private final int[] lengths;
+
+    /**
+     * Sequence numbers of the packets, -1 if the slot is empty
+     */
+    private final int[] seqs;
+
+    /**
+     * Send times of the packets
+     */
+    private final long[] sendTimes;
+
+    /**
+     * Last retransmit times of the packets, 0 if not retransmitted
+     */
+    private final long[] retransmitTimes;
+
+    /**
+     * Index mask
+     */
+    private final int mask;
+
+    /**
+     * Maximum age of a retransmitted packet at the receiver
+     */
+    private final long maxAge;
+
+    /**
+     * Round trip time in milliseconds
+     */
+    private volatile long rtt = DEFAULT_RTT;
+
+    /**
+     * Maximum retransmission rate in bits per second
+     */
+    private volatile int maxRate = 0;
+
+    /**
+     * Available retransmission budget in bytes
+     */
+    private long budget = 0L;
+
+    /**
+     * Last time the budget has been refilled
+     */
+    private long lastRefill = 0L;
+
+    /**
+     * Port lease of the media session, whose RTP connection sends the
+     * retransmissions
+     */
+    private volatile PortLease lease = null;
+
+    /**
+     * Remote host
+     */
+    private String remoteHost = null;
+
+    /**
+     * Remote RTP port
+     */
+    private int remotePort = -1;
+
+    /**
+     * Pacer of the media packets, charged with the retransmissions, or null
+     */
+    private volatile PacketPacer pacer = null;
+
+    /**
+     * Number of packets requested by NACKs
+     */
+    private volatile long requested = 0L;
+
+    /**
+     * Number of retransmitted packets
+     */
+    private volatile long retransmitted = 0L;
+
+    /**
+     * Number of retransmitted bytes
+     */
+    private volatile long retransmittedBytes = 0L;
+
+    /**
+     * Number of requested packets no more in the history
+     */
+    private volatile long missed = 0L;
+
+    /**
+     * Number of requested packets too old to be played out
+     */
+    private volatile long expired = 0L;
+
+    /**
+     * Number of requested packets already retransmitted within a round trip
+     */
+    private volatile long duplicates = 0L;
+
+    /**
+     * Number of requested packets dropped by the rate limiter
+     */
+    private volatile long rateLimited = 0L;
+
+    /**
+     * Constructor
+     */
+    public PacketHistory() {
+        this(DEFAULT_CAPACITY, DEFAULT_MAX_AGE);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param capacity Number of remembered packets, rounded up to a power of
+     *            two
+     * @param maxAge Maximum age of a retransmitted packet at the receiver in
+     *            milliseconds
+     */
+    public PacketHistory(int capacity, long maxAge) {
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.mask = size - 1;
+        this.maxAge = maxAge;
+        packets = new byte[size][];
+        lengths = new int[size];
+        seqs = new int[size];
+        sendTimes = new long[size];
+        retransmitTimes = new long[size];
+        for (int i = 0; i < size; i++) {
+            seqs[i] = -1;
+        }
+    }
+
+    /**
+     * Remember the RTP packets sent to a remote. The retransmissions leave
+     * from the RTP connection of the session, so that the receiver and the
+     * NATs in between see them coming from the media port.
+     *
+     * @param lease Port lease of the media session, whose RTP port must be
+     *            opened
+     * @param remoteHost Remote host
+     * @param remotePort Remote RTP port
+     * @throws IOException if the RTP port of the session is not opened
+     */
+    public void attach(PortLease lease, String remoteHost, int remotePort) throws IOException {
+        if (lease.getConnection(lease.getRtpPort()) == null) {
+            throw new IOException("RTP port not opened");
+        }
+        this.remoteHost = remoteHost;
+        this.remotePort = remotePort;
+        this.lease = lease;
+        lease.addSendFilter(lease.getRtpPort(), this);
+    }
+
+    /**
+     * Stop remembering and retransmitting the packets
+     */
+    public void detach() {
+        PortLease l = lease;
+        if (l != null) {
+            l.removeSendFilter(this);
+        }
+        lease = null;
+    }
+
+    /**
+     * Set the pacer of the media packets, which is charged with the
+     * retransmissions so that the paced packets yield to them
+     *
+     * @param pacer Pacer or null
+     */
+    public void setPacer(PacketPacer pacer) {
+        this.pacer = pacer;
+    }
+
+    /**
+     * Set the round trip time, from the reception reports
+     *
+     * @param rtt Round trip time in milliseconds
+     */
+    public void setRoundTripTime(long rtt) {
+        if (rtt >= 0) {
+            this.rtt = rtt;
+        }
+    }
+
+    /**
+     * Set the maximum retransmission rate
+     *
+     * @param bitsPerSecond Rate in bits per second
+     */
+    public void setMaxRate(int bitsPerSecond) {
+        this.maxRate = bitsPerSecond;
+    }
+
+    /**
+     * Remember a sent RTP packet
+     *
+     * @param data RTP packet
+     * @return The packet unchanged
+     */
+    public byte[] filter(byte[] data) {
+        if (data.length < 12) {
+            return data;
+        }
+        int seq = ((data[2] & 0xff) << 8) | (data[3] & 0xff);
+        int index = seq & mask;
+        synchronized (this) {
+            byte[] slot = packets[index];
+            if ((slot == null) || (slot.length < data.length)) {
+                slot = new byte[data.length];
+                packets[index] = slot;
+            }
+            System.arraycopy(data, 0, slot, 0, data.length);
+            lengths[index] = data.length;
+            seqs[index] = seq;
+            sendTimes[index] = System.currentTimeMillis();
+            retransmitTimes[index] = 0L;
+        }
+        return data;
+    }
+
+    /**
+     * Retransmit the packets reported lost by a NACK
+     *
+     * @param sequenceNumbers Sequence numbers of the lost packets
+     */
+    public void retransmit(int[] sequenceNumbers) {
+        PortLease l = lease;
+        if (l != null) {
+            retransmit(sequenceNumbers, l, remoteHost, remotePort, true);
+        }
+    }
+
+    /**
+     * Retransmit the packets reported lost by a NACK of a receiver of a
+     * multicast group, over the unicast session of this receiver. Several
+     * receivers may ask for the same packet within a round trip, so the
+     * retransmissions already made to the others are not checked.
+     *
+     * @param sequenceNumbers Sequence numbers of the lost packets
+     * @param lease Port lease of the unicast session of the receiver
+     * @param host Host of the receiver
+     * @param port RTP port of the receiver
+     */
+    public void retransmit(int[] sequenceNumbers, PortLease lease, String host, int port) {
+        retransmit(sequenceNumbers, lease, host, port, false);
+    }
+
+    /**
+     * Retransmit the packets reported lost by a NACK
+     *
+     * @param sequenceNumbers Sequence numbers of the lost packets
+     * @param l Port lease whose RTP connection sends the retransmissions
+     * @param host Remote host
+     * @param port Remote RTP port
+     * @param checkDuplicates True to skip the packets retransmitted within a
+     *            round trip
+     */
+    private void retransmit(int[] sequenceNumbers, PortLease l, String host, int port,
+            boolean checkDuplicates) {
+        DatagramConnection conn = l.getConnection(l.getRtpPort());
+        if (conn == null) {
+            return;
+        }
+        byte[] packet = null;
+        for (int i = 0; i < sequenceNumbers.length; i++) {
+            int seq = sequenceNumbers[i];
+            int length;
+            requested++;
+            synchronized (this) {
+                int index = seq & mask;
+                long now = System.currentTimeMillis();
+                if (seqs[index] != seq) {
+                    missed++;
+                    continue;
+                }
+                if (now - sendTimes[index] + rtt / 2 > maxAge) {
+                    // Would arrive after the playout of its frame
+                    expired++;
+                    continue;
+                }
+                if (checkDuplicates && (retransmitTimes[index] != 0L)
+                        && (now - retransmitTimes[index] < rtt)) {
+                    // The previous retransmission may still be on its way
+                    duplicates++;
+                    continue;
+                }
+                length = lengths[index];
+                if (!consume(length, now)) {
+                    rateLimited++;
+                    continue;
+                }
+                retransmitTimes[index] = now;
+                if ((packet == null) || (packet.length < length)) {
+                    packet = new byte[length];
+                }
+                System.arraycopy(packets[index], 0, packet, 0, length);
+            }
+            try {
+                conn.sendDirect(host, port, packet, 0, length);
+                PacketPacer p = pacer;
+                if (p != null) {
+                    p.charge(length);
+                }
+                retransmitted++;
+                retransmittedBytes += length;
+                MediaStats.count(MediaStats.Counter.PACKETS_RETRANSMITTED);
+            } catch (IOException e) {
+                // Packet lost again
+            }
+        }
+    }
+
+    /**
+     * Take a retransmission from the rate budget
+     *
+     * @param length Packet length
+     * @param now Current time
+     * @return True if the packet can be sent
+     */
+    private boolean consume(int length, long now) {
+        long bytesPerSecond = maxRate / 8;
+        if (bytesPerSecond <= 0) {
+            return true;
+        }
+        if (lastRefill != 0L) {
+            budget += (now - lastRefill) * bytesPerSecond / 1000L;
+        } else {
+            budget = bytesPerSecond * MAX_BURST / 1000L;
+        }
+        budget = Math.min(budget, bytesPerSecond * MAX_BURST / 1000L);
+        lastRefill = now;
+        if (budget < length) {
+            return false;
+        }
+        budget -= length;
+        return true;
+    }
+
+    /**
+     * Returns the number of packets requested by NACKs
+     *
+     * @return Count
+     */
+    public long getRequestedCount() {
+        return requested;
+    }
+
+    /**
+     * Returns the number of retransmitted packets
+     *
+     * @return Count
+     */
+    public long getRetransmittedCount() {
+        return retransmitted;
+    }
+
+    /**
+     * Returns the number of retransmitted bytes
+     *
+     * @return Count
+     */
+    public long getRetransmittedBytes() {
+        return retransmittedBytes;
+    }
+
+    /**
+     * Returns the number of requested packets no more in the history
+     *
+     * @return Count
+     */
+    public long getMissedCount() {
+        return missed;
+    }
+
+    /**
+     * Returns the number of requested packets too old to be played out
+     *
+     * @return Count
+     */
+    public long getExpiredCount() {
+        return expired;
+    }
+
+    /**
+     * Returns the number of requested packets already retransmitted within a
+     * round trip
+     *
+     * @return Count
+     */
+    public long getDuplicateCount() {
+        return duplicates;
+    }
+
+    /**
+     * Returns the number of requested packets dropped by the rate limiter
+     *
+     * @return Count
+     */
+    public long getRateLimitedCount() {
+        return rateLimited;
+    }
+}
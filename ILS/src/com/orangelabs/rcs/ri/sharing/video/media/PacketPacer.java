@@ -0,0 +1,601 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leaky bucket pacer of the RTP packets sent to a remote. The RTP stack
+ * hands all the packets of a frame to the socket back-to-back, so a keyframe
+ * leaves as a burst which overflows the queues of the access points. The
+ * pacer takes the packets over as they leave the stack and releases them
+ * from its own thread against a token bucket, at a multiple of the target
+ * bit rate so that a frame is spread over its interval.
+ * <p>
+ * The pacer must be the first send filter of the RTP port of the session:
+ * the packets are sent again through the filters of the port from the
+ * pacing thread, on the RTP connection of the session so that they keep
+ * leaving from the negotiated port, and the pacer lets them through, so the
+ * later filters see the packets at their actual send time. The packets sent
+ * from the RTCP port may bypass the queue: they are sent at once and only
+ * taken from the bucket, like the FEC packets and the retransmissions
+ * produced by the later filters.
+ * <p>
+ * The packets the bucket lets through together are sent as one batch, with
+ * a single call on the connected RTP connection of the session.
+ */
+public class PacketPacer implements PortLease.SendFilter {
+    /**
+     * Default ratio of the pacing rate to the target bit rate
+     */
+    public static final float DEFAULT_PACING_FACTOR = 2.5f;
+
+    /**
+     * Size of the bucket, in milliseconds of the pacing rate
+     */
+    private static final long BUCKET_DURATION = 5L;
+
+    /**
+     * Minimum size of the bucket in bytes, a full size packet
+     */
+    private static final long MIN_BUCKET_SIZE = 1500L;
+
+    /**
+     * Maximum wait of the queued packets in milliseconds: beyond it the
+     * queue is drained faster than the pacing rate
+     */
+    private static final long MAX_QUEUE_DELAY = 250L;
+
+    /**
+     * Capacity of the queue in packets
+     */
+    private static final int QUEUE_SIZE = 512;
+
+    /**
+     * Wait of the idle pacing thread in milliseconds
+     */
+    private static final long IDLE_WAIT = 100L;
+
+    /**
+     * Maximum number of packets sent in one batch
+     */
+    private static final int MAX_BATCH = 16;
+
+    /**
+     * Ratio of the pacing rate to the target bit rate
+     */
+    private final float pacingFactor;
+
+    /**
+     * Queued packets
+     */
+    private final RingBuffer<byte[]> queue = new SpscRingBuffer<byte[]>(QUEUE_SIZE,
+            RingBuffer.OverflowPolicy.DROP_NEWEST);
+
+    /**
+     * Enqueue times of the packets in nanoseconds, at the index of their
+     * position in the queue
+     */
+    private final long[] enqueueTimes = new long[queue.capacity()];
+
+    /**
+     * Index mask of the enqueue times
+     */
+    private final int mask = queue.capacity() - 1;
+
+    /**
+     * Number of dequeued packets
+     */
+    private long dequeued = 0L;
+
+    /**
+     * Target bit rate of the media in bits per second, 0 if the packets are
+     * not paced
+     */
+    private volatile int targetBitRate = 0;
+
+    /**
+     * Available tokens in bytes, negative when in debt
+     */
+    private long tokens = 0L;
+
+    /**
+     * Last refill of the bucket in nanoseconds
+     */
+    private long lastRefill = 0L;
+
+    /**
+     * Queued bytes
+     */
+    private final AtomicLong queuedBytes = new AtomicLong(0L);
+
+    /**
+     * Remote host
+     */
+    private String remoteHost = null;
+
+    /**
+     * Remote RTP port
+     */
+    private int remotePort = -1;
+
+    /**
+     * Port lease of the media session, whose RTP connection sends the paced
+     * packets
+     */
+    private volatile PortLease lease = null;
+
+    /**
+     * Pacing thread
+     */
+    private volatile PacingThread pacingThread = null;
+
+    /**
+     * Filter of the ports bypassing the queue
+     */
+    private final PortLease.SendFilter bypassFilter = new PortLease.SendFilter() {
+        public byte[] filter(byte[] data) {
+            charge(data.length);
+            return data;
+        }
+    };
+
+    /**
+     * Number of packets sent by the pacing thread
+     */
+    private volatile long pacedPackets = 0L;
+
+    /**
+     * Number of packets sent at once, the queue being full or closed
+     */
+    private volatile long overflows = 0L;
+
+    /**
+     * Number of bytes which bypassed the queue
+     */
+    private volatile long bypassedBytes = 0L;
+
+    /**
+     * Number of bursts delayed by the pacer
+     */
+    private volatile long bursts = 0L;
+
+    /**
+     * Size of the current burst in bytes, 0 if the last packet was not
+     * delayed
+     */
+    private long burstBytes = 0L;
+
+    /**
+     * Largest burst in bytes
+     */
+    private volatile long maxBurstBytes = 0L;
+
+    /**
+     * Queue delay of the last sent packet in milliseconds
+     */
+    private volatile long queueDelay = 0L;
+
+    /**
+     * Largest queue delay in milliseconds
+     */
+    private volatile long maxQueueDelay = 0L;
+
+    /**
+     * Constructor
+     */
+    public PacketPacer() {
+        this(DEFAULT_PACING_FACTOR);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param pacingFactor Ratio of the pacing rate to the target bit rate
+     */
+    public PacketPacer(float pacingFactor) {
+        this.pacingFactor = pacingFactor;
+    }
+
+    /**
+     * Pace the RTP packets sent to a remote. Must be called before the
+     * other send filters of the RTP port are attached.
+     *
+     * @param lease Port lease of the media session, whose RTP port must be
+     *            opened
+     * @param remoteHost Remote host
+     * @param remotePort Remote RTP port
+     * @throws IOException if the RTP port of the session is not opened
+     */
+    public void attach(PortLease lease, String remoteHost, int remotePort) throws IOException {
+        if (lease.getConnection(lease.getRtpPort()) == null) {
+            throw new IOException("RTP port not opened");
+        }
+        this.remoteHost = remoteHost;
+        this.remotePort = remotePort;
+        this.lease = lease;
+        lease.addSendFilter(lease.getRtpPort(), this);
+        pacingThread = new PacingThread();
+        pacingThread.start();
+    }
+
+    /**
+     * Let the packets sent from another port of the session, e.g. the RTCP
+     * port, bypass the queue. They are taken from the bucket, so that the
+     * paced packets yield to them. Must be called once attached.
+     *
+     * @param port Local port of the session
+     */
+    public void addBypass(int port) {
+        PortLease l = lease;
+        if (l != null) {
+            l.addSendFilter(port, bypassFilter);
+        }
+    }
+
+    /**
+     * Stop pacing: the queued packets are sent at once. Must be called
+     * before the RTP session is stopped, which closes the connection.
+     */
+    public void detach() {
+        PortLease l = lease;
+        if (l != null) {
+            l.removeSendFilter(this);
+            l.removeSendFilter(bypassFilter);
+        }
+        queue.close();
+        PacingThread thread = pacingThread;
+        pacingThread = null;
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        lease = null;
+    }
+
+    /**
+     * Set the target bit rate of the media, from which the pacing rate and
+     * the bucket size are derived
+     *
+     * @param bitsPerSecond Bit rate in bits per second, 0 to stop pacing
+     */
+    public void setTargetBitRate(int bitsPerSecond) {
+        this.targetBitRate = bitsPerSecond;
+    }
+
+    /**
+     * Take a packet sent outside of the pacer from the bucket, e.g. a FEC
+     * packet or a retransmission
+     *
+     * @param length Packet length in bytes
+     */
+    public synchronized void charge(int length) {
+        refill(System.nanoTime());
+        tokens -= length;
+        bypassedBytes += length;
+    }
+
+    /**
+     * Queue a RTP packet sent by the stack, or let it through when sent by
+     * the pacing thread
+     *
+     * @param data RTP packet
+     * @return The packet if it is sent at once, null if it is queued
+     */
+    public byte[] filter(byte[] data) {
+        if ((Thread.currentThread() == pacingThread) || (targetBitRate <= 0)) {
+            return data;
+        }
+        synchronized (queue) {
+            // Single producer: the time is stored before the packet is
+            // published to the pacing thread
+            long position = queue.getAddedCount();
+            enqueueTimes[(int)(position & mask)] = System.nanoTime();
+            if (!queue.offer(data)) {
+                overflows++;
+                return data;
+            }
+            queuedBytes.addAndGet(data.length);
+        }
+        return null;
+    }
+
+    /**
+     * Refill the bucket at the pacing rate. Called with the lock held.
+     *
+     * @param now Current time in nanoseconds
+     * @return Pacing rate in bytes per second
+     */
+    private long refill(long now) {
+        long rate = (long)(targetBitRate * pacingFactor) / 8;
+
+        // Drain a late queue faster than the pacing rate
+        rate = Math.max(rate, queuedBytes.get() * 1000L / MAX_QUEUE_DELAY);
+        long bucketSize = Math.max(rate * BUCKET_DURATION / 1000L, MIN_BUCKET_SIZE);
+        if (lastRefill == 0L) {
+            tokens = bucketSize;
+        } else {
+            long elapsed = Math.min(now - lastRefill, 1000000000L);
+            tokens = Math.min(tokens + elapsed * rate / 1000000000L, bucketSize);
+        }
+        lastRefill = now;
+        return rate;
+    }
+
+    /**
+     * Take a packet from the bucket if it is not empty
+     *
+     * @param length Packet length in bytes
+     * @return Wait in nanoseconds before the packet can be sent, 0 if it
+     *         has been taken from the bucket
+     */
+    private synchronized long reserve(int length) {
+        long rate = refill(System.nanoTime());
+        if ((tokens >= 0) || (rate <= 0)) {
+            tokens -= length;
+            return 0L;
+        }
+        return Math.max(-tokens * 1000000000L / rate, 1L);
+    }
+
+    /**
+     * Returns the enqueue time of the next dequeued packet. Called by the
+     * pacing thread.
+     *
+     * @return Time in nanoseconds
+     */
+    private long dequeued() {
+        long enqueueTime = enqueueTimes[(int)(dequeued & mask)];
+        dequeued++;
+        return enqueueTime;
+    }
+
+    /**
+     * Account a dequeued packet, which is sent with the current batch
+     *
+     * @param data RTP packet
+     * @param enqueueTime Enqueue time of the packet in nanoseconds
+     * @param delayed The packet had to wait for the bucket
+     */
+    private void dequeued(byte[] data, long enqueueTime, boolean delayed) {
+        queuedBytes.addAndGet(-data.length);
+        long delay = System.nanoTime() - enqueueTime;
+        MediaStats.record(MediaStats.Stage.PACER, delay);
+        queueDelay = delay / 1000000L;
+        if (queueDelay > maxQueueDelay) {
+            maxQueueDelay = queueDelay;
+        }
+        if (delayed) {
+            if (burstBytes == 0L) {
+                bursts++;
+                MediaStats.count(MediaStats.Counter.BURSTS_PACED);
+            }
+            burstBytes += data.length;
+            if (burstBytes > maxBurstBytes) {
+                maxBurstBytes = burstBytes;
+            }
+        } else {
+            burstBytes = 0L;
+        }
+    }
+
+    /**
+     * Send a batch of packets through the filters of the RTP port. Called
+     * by the pacing thread.
+     *
+     * @param packets Packets, the slots are cleared once sent
+     * @param count Number of packets
+     * @param lengths Buffer of the lengths of the filtered packets
+     */
+    private void send(byte[][] packets, int count, int[] lengths) {
+        PortLease l = lease;
+        DatagramConnection conn = (l != null) ? l.getConnection(l.getRtpPort()) : null;
+        int filtered = 0;
+        for (int i = 0; i < count; i++) {
+            byte[] data = packets[i];
+            packets[i] = null;
+            if (conn != null) {
+                data = l.filterOutgoing(l.getRtpPort(), data);
+                if (data != null) {
+                    packets[filtered] = data;
+                    lengths[filtered] = data.length;
+                    filtered++;
+                }
+            }
+        }
+        if (filtered == 0) {
+            // Session closed or packets taken over by the next filters
+            return;
+        }
+        try {
+            if (conn.isConnected()) {
+                conn.send(packets, lengths, filtered);
+            } else {
+                for (int i = 0; i < filtered; i++) {
+                    conn.sendDirect(remoteHost, remotePort, packets[i], 0, lengths[i]);
+                }
+            }
+            pacedPackets += filtered;
+        } catch (IOException e) {
+            // Packets lost
+        }
+        for (int i = 0; i < filtered; i++) {
+            packets[i] = null;
+        }
+    }
+
+    /**
+     * Returns the number of queued packets
+     *
+     * @return Count
+     */
+    public int getQueuedPackets() {
+        return queue.size();
+    }
+
+    /**
+     * Returns the number of queued bytes
+     *
+     * @return Count
+     */
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * Returns the queue delay of the last sent packet
+     *
+     * @return Delay in milliseconds
+     */
+    public long getQueueDelay() {
+        return queueDelay;
+    }
+
+    /**
+     * Returns the largest queue delay
+     *
+     * @return Delay in milliseconds
+     */
+    public long getMaxQueueDelay() {
+        return maxQueueDelay;
+    }
+
+    /**
+     * Returns the number of bursts delayed by the pacer
+     *
+     * @return Count
+     */
+    public long getBurstCount() {
+        return bursts;
+    }
+
+    /**
+     * Returns the largest burst delayed by the pacer
+     *
+     * @return Size in bytes
+     */
+    public long getMaxBurstBytes() {
+        return maxBurstBytes;
+    }
+
+    /**
+     * Returns the number of packets sent by the pacing thread
+     *
+     * @return Count
+     */
+    public long getPacedPacketCount() {
+        return pacedPackets;
+    }
+
+    /**
+     * Returns the number of packets sent at once, the queue being full or
+     * closed
+     *
+     * @return Count
+     */
+    public long getOverflowCount() {
+        return overflows;
+    }
+
+    /**
+     * Returns the number of bytes which bypassed the queue
+     *
+     * @return Count
+     */
+    public long getBypassedBytes() {
+        return bypassedBytes;
+    }
+
+    /**
+     * Thread releasing the queued packets against the bucket
+     */
+    private class PacingThread extends Thread {
+        /**
+         * Constructor
+         */
+        public PacingThread() {
+            super("PacketPacer");
+            setDaemon(true);
+            setPriority(Thread.MAX_PRIORITY);
+        }
+
+        /**
+         * Packets of the current batch
+         */
+        private final byte[][] batch = new byte[MAX_BATCH][];
+
+        /**
+         * Lengths of the packets of the current batch
+         */
+        private final int[] lengths = new int[MAX_BATCH];
+
+        /**
+         * Background processing
+         */
+        public void run() {
+            byte[] data = null;
+            long enqueueTime = 0L;
+            while ((data != null) || !queue.isClosed() || (queue.size() > 0)) {
+                if (data == null) {
+                    data = queue.take(IDLE_WAIT);
+                    if (data == null) {
+                        continue;
+                    }
+                    enqueueTime = dequeued();
+                }
+
+                // Wait for the bucket, unless closing
+                boolean delayed = false;
+                long wait = reserve(data.length);
+                while ((wait > 0) && !queue.isClosed()) {
+                    delayed = true;
+                    LockSupport.parkNanos(wait);
+                    wait = reserve(data.length);
+                }
+                dequeued(data, enqueueTime, delayed);
+                batch[0] = data;
+                int count = 1;
+                data = null;
+
+                // Add the next packets while the bucket lets them through
+                while (count < MAX_BATCH) {
+                    byte[] next = queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    long nextTime = dequeued();
+                    if ((reserve(next.length) > 0) && !queue.isClosed()) {
+                        // Waits for the bucket after this batch
+                        data = next;
+                        enqueueTime = nextTime;
+                        break;
+                    }
+                    dequeued(next, nextTime, false);
+                    batch[count++] = next;
+                }
+                send(batch, count, lengths);
+            }
+        }
+    }
+}
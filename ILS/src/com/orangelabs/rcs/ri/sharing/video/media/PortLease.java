@@ -0,0 +1,543 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * RTP/RTCP port pair leased from the RTP port allocator. The two ports are
+ * bound when the lease is created and the bound sockets are handed over to
+ * the first connection opening each port, so no other process can take the
+ * ports in between. The pair goes back to the allocator once both sockets
+ * have been closed.
+ */
+public class PortLease {
+    /**
+     * Observer of the datagrams received on a leased port
+     */
+    public interface ReceiveObserver {
+        /**
+         * A datagram has been received. The data is only valid during the
+         * call.
+         *
+         * @param data Buffer
+         * @param offset Offset of the datagram in the buffer
+         * @param length Length of the datagram
+         */
+        public void onReceived(byte[] data, int offset, int length);
+    }
+
+    /**
+     * Filter of the datagrams received on a leased port, applied before the
+     * datagram is handed to the RTP stack
+     */
+    public interface ReceiveFilter {
+        /**
+         * Rewrite a received datagram in place
+         *
+         * @param data Buffer
+         * @param offset Offset of the datagram in the buffer
+         * @param length Length of the datagram
+         * @return New length of the datagram
+         */
+        public int filter(byte[] data, int offset, int length);
+    }
+
+    /**
+     * Filter of the datagrams sent from a leased port, applied by the
+     * connection which has opened it
+     */
+    public interface SendFilter {
+        /**
+         * Rewrite a datagram before it is sent. A filter may also take the
+         * datagram over, e.g. to send it later: the next filters are then
+         * not applied and the connection doesn't send it.
+         *
+         * @param data Datagram
+         * @return Datagram to send, may be the given one, or null if the
+         *         filter took it over
+         */
+        public byte[] filter(byte[] data);
+    }
+
+    /**
+     * Socket held by the lease
+     */
+    private static final int STATE_HELD = 0;
+
+    /**
+     * Socket handed over to a connection
+     */
+    private static final int STATE_TAKEN = 1;
+
+    /**
+     * Socket closed
+     */
+    private static final int STATE_CLOSED = 2;
+
+    /**
+     * Owner allocator
+     */
+    private final RtpPortAllocator allocator;
+
+    /**
+     * Pair index in the allocator
+     */
+    private final int index;
+
+    /**
+     * RTP port
+     */
+    private final int rtpPort;
+
+    /**
+     * Ports opened by NIO connections
+     */
+    private final boolean nio;
+
+    /**
+     * Bound RTP and RTCP endpoints, either DatagramSocket or DatagramChannel
+     */
+    private final Object[] endpoints = new Object[2];
+
+    /**
+     * RTP and RTCP states
+     */
+    private final int[] states = { STATE_HELD, STATE_HELD };
+
+    /**
+     * Connections opened on the RTP and RTCP ports
+     */
+    private final DatagramConnection[] connections = new DatagramConnection[2];
+
+    /**
+     * Packets injected on the RTP port, waiting for the next receive
+     */
+    private final ConcurrentLinkedQueue<byte[]> injected = new ConcurrentLinkedQueue<byte[]>();
+
+    /**
+     * Observer of the RTP port
+     */
+    private volatile ReceiveObserver rtpObserver = null;
+
+    /**
+     * Observer of the RTCP port
+     */
+    private volatile ReceiveObserver rtcpObserver = null;
+
+    /**
+     * Filter of the RTP port
+     */
+    private volatile ReceiveFilter rtpFilter = null;
+
+    /**
+     * Filter of the RTCP port
+     */
+    private volatile ReceiveFilter rtcpFilter = null;
+
+    /**
+     * Send filters of the RTP port, in the order they are applied
+     */
+    private final CopyOnWriteArrayList<SendFilter> rtpSendFilters = new CopyOnWriteArrayList<SendFilter>();
+
+    /**
+     * Send filters of the RTCP port, in the order they are applied
+     */
+    private final CopyOnWriteArrayList<SendFilter> rtcpSendFilters = new CopyOnWriteArrayList<SendFilter>();
+
+    /**
+     * Arrival time of the last datagram on the RTP port, on the monotonic
+     * clock in nanoseconds
+     */
+    private volatile long lastRtpArrival = 0L;
+
+    /**
+     * Constructor, binds both ports
+     *
+     * @param allocator Owner allocator
+     * @param index Pair index
+     * @param rtpPort RTP port
+     * @param nio Bind NIO channels instead of sockets
+     * @throws IOException if one of the ports can't be bound
+     */
+    PortLease(RtpPortAllocator allocator, int index, int rtpPort, boolean nio) throws IOException {
+        this.allocator = allocator;
+        this.index = index;
+        this.rtpPort = rtpPort;
+        this.nio = nio;
+        try {
+            endpoints[0] = bind(rtpPort, nio);
+            endpoints[1] = bind(rtpPort + 1, nio);
+        } catch (IOException e) {
+            closeEndpoint(0);
+            closeEndpoint(1);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the RTP port
+     *
+     * @return Port
+     */
+    public int getRtpPort() {
+        return rtpPort;
+    }
+
+    /**
+     * Returns the RTCP port
+     *
+     * @return Port
+     */
+    public int getRtcpPort() {
+        return rtpPort + 1;
+    }
+
+    /**
+     * Are the ports opened by NIO connections
+     *
+     * @return Boolean
+     */
+    public boolean isNio() {
+        return nio;
+    }
+
+    /**
+     * Set an observer of the datagrams received on one of the ports, by the
+     * connection which has opened it
+     *
+     * @param port RTP or RTCP port
+     * @param observer Observer or null
+     */
+    public void setReceiveObserver(int port, ReceiveObserver observer) {
+        if (port == rtpPort) {
+            rtpObserver = observer;
+        } else {
+            rtcpObserver = observer;
+        }
+    }
+
+    /**
+     * Set a filter of the datagrams received on one of the ports
+     *
+     * @param port RTP or RTCP port
+     * @param filter Filter or null
+     */
+    public void setReceiveFilter(int port, ReceiveFilter filter) {
+        if (port == rtpPort) {
+            rtpFilter = filter;
+        } else {
+            rtcpFilter = filter;
+        }
+    }
+
+    /**
+     * Add a filter of the datagrams sent from one of the ports. The filters
+     * are applied in the order they have been added, and only to the
+     * datagrams of this session.
+     *
+     * @param port RTP or RTCP port
+     * @param filter Filter
+     */
+    public void addSendFilter(int port, SendFilter filter) {
+        if (port == rtpPort) {
+            rtpSendFilters.add(filter);
+        } else {
+            rtcpSendFilters.add(filter);
+        }
+    }
+
+    /**
+     * Remove a send filter from the ports
+     *
+     * @param filter Filter
+     */
+    public void removeSendFilter(SendFilter filter) {
+        rtpSendFilters.remove(filter);
+        rtcpSendFilters.remove(filter);
+    }
+
+    /**
+     * Apply the send filters of a port to a datagram
+     *
+     * @param port RTP or RTCP port
+     * @param data Datagram
+     * @return Datagram to send, null if taken over by a filter
+     */
+    byte[] filterOutgoing(int port, byte[] data) {
+        CopyOnWriteArrayList<SendFilter> filters = (port == rtpPort) ? rtpSendFilters : rtcpSendFilters;
+        if (filters.isEmpty()) {
+            return data;
+        }
+        for (SendFilter filter : filters) {
+            data = filter.filter(data);
+            if (data == null) {
+                return null;
+            }
+        }
+        return data;
+    }
+
+    /**
+     * A datagram has arrived on one of the ports, before it is filtered
+     *
+     * @param port RTP or RTCP port
+     */
+    void arrived(int port) {
+        if (port == rtpPort) {
+            lastRtpArrival = System.nanoTime();
+        }
+    }
+
+    /**
+     * Returns the arrival time of the last datagram on the RTP port
+     *
+     * @return Time on the monotonic clock in nanoseconds, 0 if none
+     */
+    public long getLastRtpArrival() {
+        return lastRtpArrival;
+    }
+
+    /**
+     * Apply the filter of a port to a received datagram
+     *
+     * @param port RTP or RTCP port
+     * @param data Buffer
+     * @param offset Offset of the datagram in the buffer
+     * @param length Length of the datagram
+     * @return New length of the datagram
+     */
+    int filtered(int port, byte[] data, int offset, int length) {
+        ReceiveFilter filter = (port == rtpPort) ? rtpFilter : rtcpFilter;
+        if (filter == null) {
+            return length;
+        }
+        return filter.filter(data, offset, length);
+    }
+
+    /**
+     * A datagram has been received on one of the ports
+     *
+     * @param port RTP or RTCP port
+     * @param data Buffer
+     * @param offset Offset of the datagram in the buffer
+     * @param length Length of the datagram
+     */
+    void received(int port, byte[] data, int offset, int length) {
+        ReceiveObserver observer = (port == rtpPort) ? rtpObserver : rtcpObserver;
+        if (observer != null) {
+            observer.onReceived(data, offset, length);
+        }
+    }
+
+    /**
+     * Hand a packet to the connection opened on the RTP port as if it had
+     * been received, e.g. a packet rebuilt by a receive filter. It is
+     * returned by the next receive call, through the filter and the
+     * observer of the port, but is not counted as a received datagram.
+     *
+     * @param packet RTP packet
+     */
+    public void inject(byte[] packet) {
+        injected.offer(packet);
+    }
+
+    /**
+     * Take the next packet injected on a port
+     *
+     * @param port RTP or RTCP port
+     * @return Packet or null if none
+     */
+    byte[] pollInjected(int port) {
+        if ((port != rtpPort) || injected.isEmpty()) {
+            return null;
+        }
+        return injected.poll();
+    }
+
+    /**
+     * Take the bound socket of a port
+     *
+     * @param port RTP or RTCP port
+     * @return Socket or null if the port is no more held as a socket
+     */
+    public synchronized DatagramSocket takeSocket(int port) {
+        int i = port - rtpPort;
+        if ((states[i] == STATE_HELD) && (endpoints[i] instanceof DatagramSocket)) {
+            states[i] = STATE_TAKEN;
+            return (DatagramSocket)endpoints[i];
+        }
+        releaseHeld(i);
+        return null;
+    }
+
+    /**
+     * Take the bound channel of a port
+     *
+     * @param port RTP or RTCP port
+     * @return Channel or null if the port is no more held as a channel
+     */
+    public synchronized DatagramChannel takeChannel(int port) {
+        int i = port - rtpPort;
+        if ((states[i] == STATE_HELD) && (endpoints[i] instanceof DatagramChannel)) {
+            states[i] = STATE_TAKEN;
+            return (DatagramChannel)endpoints[i];
+        }
+        releaseHeld(i);
+        return null;
+    }
+
+    /**
+     * A connection has been opened on one of the ports
+     *
+     * @param port RTP or RTCP port
+     * @param connection Connection
+     */
+    synchronized void opened(int port, DatagramConnection connection) {
+        connections[port - rtpPort] = connection;
+    }
+
+    /**
+     * Returns the connection opened on a port by the media session, through
+     * which the datagrams produced outside of the RTP stack are sent so that
+     * they leave from the negotiated port
+     *
+     * @param port RTP or RTCP port
+     * @return Connection or null if the port is not opened
+     */
+    public synchronized DatagramConnection getConnection(int port) {
+        return connections[port - rtpPort];
+    }
+
+    /**
+     * Bind the connections opened on the RTP and RTCP ports to the remote
+     * RTP and RTCP ports, so that the datagrams of the session are sent with
+     * no route lookup and only the datagrams of the remote are received
+     *
+     * @param remoteHost Remote host
+     * @param remotePort Remote RTP port
+     * @throws IOException if the RTP port is not opened
+     */
+    public void connect(String remoteHost, int remotePort) throws IOException {
+        DatagramConnection rtp = getConnection(rtpPort);
+        if (rtp == null) {
+            throw new IOException("RTP port not opened");
+        }
+        rtp.connect(remoteHost, remotePort);
+        DatagramConnection rtcp = getConnection(rtpPort + 1);
+        if (rtcp != null) {
+            rtcp.connect(remoteHost, remotePort + 1);
+        }
+    }
+
+    /**
+     * A connection opened on one of the ports has been closed
+     *
+     * @param port RTP or RTCP port
+     */
+    public synchronized void closed(int port) {
+        int i = port - rtpPort;
+        connections[i] = null;
+        if (i == 0) {
+            injected.clear();
+        }
+        if (states[i] != STATE_CLOSED) {
+            closeEndpoint(i);
+            states[i] = STATE_CLOSED;
+            checkReleased();
+        }
+    }
+
+    /**
+     * Release the ports which have not been handed over. The pair is freed
+     * as soon as the connections owning the other ports are closed.
+     */
+    public synchronized void release() {
+        releaseHeld(0);
+        releaseHeld(1);
+    }
+
+    /**
+     * Close a held endpoint so that the port can be bound by someone else
+     *
+     * @param i Endpoint index
+     */
+    private void releaseHeld(int i) {
+        if (states[i] == STATE_HELD) {
+            closeEndpoint(i);
+            states[i] = STATE_CLOSED;
+            checkReleased();
+        }
+    }
+
+    /**
+     * Give the pair back to the allocator once both ports are closed
+     */
+    private void checkReleased() {
+        if ((states[0] == STATE_CLOSED) && (states[1] == STATE_CLOSED)) {
+            allocator.free(index, this);
+        }
+    }
+
+    /**
+     * Close an endpoint
+     *
+     * @param i Endpoint index
+     */
+    private void closeEndpoint(int i) {
+        Object endpoint = endpoints[i];
+        endpoints[i] = null;
+        try {
+            if (endpoint instanceof DatagramSocket) {
+                ((DatagramSocket)endpoint).close();
+            } else if (endpoint instanceof DatagramChannel) {
+                ((DatagramChannel)endpoint).close();
+            }
+        } catch (IOException e) {
+            // Nothing to do
+        }
+    }
+
+    /**
+     * Bind a port
+     *
+     * @param port Port
+     * @param nio Bind a NIO channel instead of a socket
+     * @return Bound endpoint
+     * @throws IOException
+     */
+    private static Object bind(int port, boolean nio) throws IOException {
+        if (nio) {
+            DatagramChannel channel = DatagramChannel.open();
+            try {
+                channel.socket().bind(new InetSocketAddress(port));
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+            return channel;
+        }
+        return new DatagramSocket(port);
+    }
+}
@@ -0,0 +1,239 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.IOException;
+
+/**
+ * Datagram connection created while multicast groups are registered or NIO
+ * ports are leased. The transport is chosen when the connection is opened:
+ * a multicast connection on a port used by a registered group, the transport
+ * of the port lease otherwise, so that the connections of other sessions are
+ * not affected by the groups or the NIO sessions.
+ */
+class PortSelectedDatagramConnection implements DatagramConnection {
+    /**
+     * Connection timeout
+     */
+    private final int timeout;
+
+    /**
+     * Opened connection
+     */
+    private DatagramConnection connection = null;
+
+    /**
+     * Constructor
+     *
+     * @param timeout SO Timeout
+     */
+    public PortSelectedDatagramConnection(int timeout) {
+        this.timeout = timeout;
+    }
+
+    /**
+     * Open the datagram connection on an ephemeral port, with the blocking
+     * unicast transport
+     *
+     * @throws IOException
+     */
+    public void open() throws IOException {
+        DatagramConnection c = NetworkRessourceManager.createUnicastConnection(timeout, 0);
+        c.open();
+        connection = c;
+    }
+
+    /**
+     * Open the datagram connection
+     *
+     * @param port Local port
+     * @throws IOException
+     */
+    public void open(int port) throws IOException {
+        DatagramConnection c;
+        if (NetworkRessourceManager.isMulticastPort(port)) {
+            c = new MulticastDatagramConnection(timeout);
+        } else {
+            c = NetworkRessourceManager.createUnicastConnection(timeout, port);
+        }
+        c.open(port);
+        connection = c;
+    }
+
+    /**
+     * Close the datagram connection
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        DatagramConnection c = connection;
+        if (c != null) {
+            c.close();
+        }
+    }
+
+    /**
+     * Send data
+     *
+     * @param remoteAddr Remote address
+     * @param remotePort Remote port
+     * @param data Data as byte array
+     * @throws IOException
+     */
+    public void send(String remoteAddr, int remotePort, byte[] data) throws IOException {
+        opened().send(remoteAddr, remotePort, data);
+    }
+
+    /**
+     * Send data without applying the send filters
+     *
+     * @param remoteAddr Remote address
+     * @param remotePort Remote port
+     * @param data Data as byte array
+     * @param offset Offset of the data
+     * @param length Length of the data
+     * @throws IOException
+     */
+    public void sendDirect(String remoteAddr, int remotePort, byte[] data, int offset, int length) throws IOException {
+        opened().sendDirect(remoteAddr, remotePort, data, offset, length);
+    }
+
+    /**
+     * Bind the connection to a peer
+     *
+     * @param remoteAddr Remote address
+     * @param remotePort Remote port
+     * @throws IOException
+     */
+    public void connect(String remoteAddr, int remotePort) throws IOException {
+        opened().connect(remoteAddr, remotePort);
+    }
+
+    /**
+     * Unbind the connection from its peer
+     */
+    public void disconnect() {
+        DatagramConnection c = connection;
+        if (c != null) {
+            c.disconnect();
+        }
+    }
+
+    /**
+     * Is the connection bound to a peer
+     *
+     * @return Boolean
+     */
+    public boolean isConnected() {
+        DatagramConnection c = connection;
+        return (c != null) && c.isConnected();
+    }
+
+    /**
+     * Send data to the connected peer
+     *
+     * @param data Data as byte array
+     * @param offset Offset of the data
+     * @param length Length of the data
+     * @throws IOException
+     */
+    public void send(byte[] data, int offset, int length) throws IOException {
+        opened().send(data, offset, length);
+    }
+
+    /**
+     * Send several datagrams to the connected peer in one call
+     *
+     * @param packets Datagrams, each one starting at offset 0
+     * @param lengths Length of each datagram
+     * @param count Number of datagrams to send
+     * @throws IOException
+     */
+    public void send(byte[][] packets, int[] lengths, int count) throws IOException {
+        opened().send(packets, lengths, count);
+    }
+
+    /**
+     * Receive data
+     *
+     * @return Byte array
+     * @throws IOException
+     */
+    public byte[] receive() throws IOException {
+        return opened().receive();
+    }
+
+    /**
+     * Receive data into a caller buffer
+     *
+     * @param buffer Destination buffer
+     * @param offset Offset in the buffer
+     * @param length Maximum number of bytes to receive
+     * @return Number of bytes received
+     * @throws IOException
+     */
+    public int receive(byte[] buffer, int offset, int length) throws IOException {
+        return opened().receive(buffer, offset, length);
+    }
+
+    /**
+     * Receive data into a buffer taken from a pool
+     *
+     * @param pool Packet buffer pool
+     * @return Packet buffer
+     * @throws IOException
+     */
+    public PacketBuffer receive(PacketBufferPool pool) throws IOException {
+        return opened().receive(pool);
+    }
+
+    /**
+     * Returns the local address
+     *
+     * @return Address
+     * @throws IOException
+     */
+    public String getLocalAddress() throws IOException {
+        return opened().getLocalAddress();
+    }
+
+    /**
+     * Returns the local port
+     *
+     * @return Port
+     * @throws IOException
+     */
+    public int getLocalPort() throws IOException {
+        return opened().getLocalPort();
+    }
+
+    /**
+     * Returns the opened connection
+     *
+     * @return Connection
+     * @throws IOException if the connection is not opened
+     */
+    private DatagramConnection opened() throws IOException {
+        DatagramConnection c = connection;
+        if (c == null) {
+            throw new IOException("Connection not openned");
+        }
+        return c;
+    }
+}
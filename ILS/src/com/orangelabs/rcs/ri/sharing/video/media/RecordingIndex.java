@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Access unit index of a recorded Annex B stream. The index file starts with
+ * a header followed by one fixed size record per access unit: RTP timestamp,
+ * offset of the access unit in the stream file, flags and a CRC of the
+ * record. Records are only appended once the data they point to has been
+ * written, so after a crash the index is cut at the first torn or dangling
+ * record and all the remaining entries are valid.
+ */
+public class RecordingIndex {
+    /**
+     * Index file magic
+     */
+    public static final int MAGIC = 0x52494458; // "RIDX"
+
+    /**
+     * Index file version
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * Header size in bytes: magic, version and clock rate
+     */
+    public static final int HEADER_SIZE = 12;
+
+    /**
+     * Record size in bytes
+     */
+    public static final int RECORD_SIZE = 24;
+
+    /**
+     * Record flag of an access unit starting with an IDR frame
+     */
+    public static final int FLAG_KEYFRAME = 1;
+
+    /**
+     * RTP timestamps
+     */
+    private final long[] timestamps;
+
+    /**
+     * Offsets in the stream file
+     */
+    private final long[] offsets;
+
+    /**
+     * Flags
+     */
+    private final int[] flags;
+
+    /**
+     * Number of valid records
+     */
+    private final int count;
+
+    /**
+     * RTP clock rate
+     */
+    private final int clockRate;
+
+    /**
+     * Constructor
+     *
+     * @param timestamps RTP timestamps
+     * @param offsets Offsets
+     * @param flags Flags
+     * @param count Number of valid records
+     * @param clockRate RTP clock rate
+     */
+    private RecordingIndex(long[] timestamps, long[] offsets, int[] flags, int count, int clockRate) {
+        this.timestamps = timestamps;
+        this.offsets = offsets;
+        this.flags = flags;
+        this.count = count;
+        this.clockRate = clockRate;
+    }
+
+    /**
+     * Write the index header
+     *
+     * @param buffer Destination buffer
+     * @param clockRate RTP clock rate
+     */
+    public static void putHeader(ByteBuffer buffer, int clockRate) {
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(clockRate);
+    }
+
+    /**
+     * Write an index record
+     *
+     * @param buffer Destination buffer
+     * @param crc CRC calculator
+     * @param timestamp RTP timestamp
+     * @param offset Offset of the access unit
+     * @param flags Flags
+     */
+    public static void putRecord(ByteBuffer buffer, CRC32 crc, long timestamp, long offset, int flags) {
+        int start = buffer.position();
+        buffer.putLong(timestamp);
+        buffer.putLong(offset);
+        buffer.putInt(flags);
+        crc.reset();
+        if (buffer.hasArray()) {
+            crc.update(buffer.array(), buffer.arrayOffset() + start, RECORD_SIZE - 4);
+        } else {
+            for (int i = start; i < start + RECORD_SIZE - 4; i++) {
+                crc.update(buffer.get(i));
+            }
+        }
+        buffer.putInt((int)crc.getValue());
+    }
+
+    /**
+     * Load the index of a stream file
+     *
+     * @param indexFile Index file
+     * @param streamLength Length of the stream file
+     * @return Index
+     * @throws IOException if the index can't be read or is not an index
+     */
+    public static RecordingIndex load(File indexFile, long streamLength) throws IOException {
+        FileInputStream in = new FileInputStream(indexFile);
+        try {
+            FileChannel channel = in.getChannel();
+            long size = channel.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException("Truncated index");
+            }
+            ByteBuffer data = ByteBuffer.allocate((int)Math.min(size, Integer.MAX_VALUE));
+            while (data.hasRemaining() && (channel.read(data) >= 0)) {
+                // Read all
+            }
+            data.flip();
+            if ((data.getInt() != MAGIC) || (data.getInt() != VERSION)) {
+                throw new IOException("Not an index");
+            }
+            int clockRate = data.getInt();
+
+            int max = data.remaining() / RECORD_SIZE;
+            long[] timestamps = new long[max];
+            long[] offsets = new long[max];
+            int[] flags = new int[max];
+            CRC32 crc = new CRC32();
+            byte[] record = new byte[RECORD_SIZE];
+            int count = 0;
+            long lastOffset = -1L;
+            while (count < max) {
+                data.get(record);
+                crc.reset();
+                crc.update(record, 0, RECORD_SIZE - 4);
+                ByteBuffer r = ByteBuffer.wrap(record);
+                long timestamp = r.getLong();
+                long offset = r.getLong();
+                int flag = r.getInt();
+                if ((r.getInt() != (int)crc.getValue()) || (offset <= lastOffset) || (offset >= streamLength)) {
+                    // Torn or dangling record: the recording stopped here
+                    break;
+                }
+                timestamps[count] = timestamp;
+                offsets[count] = offset;
+                flags[count] = flag;
+                lastOffset = offset;
+                count++;
+            }
+            return new RecordingIndex(timestamps, offsets, flags, count, clockRate);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Returns the number of access units
+     *
+     * @return Count
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Returns the RTP clock rate of the timestamps
+     *
+     * @return Clock rate
+     */
+    public int getClockRate() {
+        return clockRate;
+    }
+
+    /**
+     * Returns the RTP timestamp of an access unit
+     *
+     * @param index Access unit index
+     * @return Timestamp
+     */
+    public long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    /**
+     * Returns the offset of an access unit in the stream file
+     *
+     * @param index Access unit index
+     * @return Offset
+     */
+    public long getOffset(int index) {
+        return offsets[index];
+    }
+
+    /**
+     * Returns the end offset of an access unit in the stream file
+     *
+     * @param index Access unit index
+     * @param streamLength Length of the stream file
+     * @return Offset following the access unit
+     */
+    public long getEndOffset(int index, long streamLength) {
+        return (index + 1 < count) ? offsets[index + 1] : streamLength;
+    }
+
+    /**
+     * Is an access unit a keyframe
+     *
+     * @param index Access unit index
+     * @return Boolean
+     */
+    public boolean isKeyFrame(int index) {
+        return (flags[index] & FLAG_KEYFRAME) != 0;
+    }
+
+    /**
+     * Returns the position of an access unit from the start of the recording
+     *
+     * @param index Access unit index
+     * @return Position in milliseconds
+     */
+    public long getPosition(int index) {
+        return (timestamps[index] - timestamps[0]) * 1000L / clockRate;
+    }
+
+    /**
+     * Returns the duration of the recording
+     *
+     * @return Duration in milliseconds
+     */
+    public long getDuration() {
+        return (count == 0) ? 0L : getPosition(count - 1);
+    }
+
+    /**
+     * Find the keyframe to start from to play at a position
+     *
+     * @param position Position in milliseconds
+     * @return Access unit index of the last keyframe at or before the
+     *         position, or -1 if there is none
+     */
+    public int findKeyFrame(long position) {
+        // Last access unit at or before the position
+        int low = 0;
+        int high = count - 1;
+        int found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (getPosition(mid) <= position) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        while ((found >= 0) && !isKeyFrame(found)) {
+            found--;
+        }
+        return found;
+    }
+}
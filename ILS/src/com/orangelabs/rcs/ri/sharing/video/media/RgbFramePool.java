@@ -0,0 +1,217 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import android.graphics.Bitmap;
+
+/**
+ * Pool of the RGB565 Bitmaps of the video renderer. Decoded frames are
+ * converted to RGB565 row by row, each row copied in bulk into a direct
+ * buffer, and loaded in a free
+ * Bitmap of a small ring. A Bitmap handed to the surface stays in use until
+ * the surface releases it, once drawn or replaced, so that the Bitmap being
+ * drawn is never the one being filled. Nothing is allocated per frame as
+ * long as the frame dimensions don't change.
+ */
+public class RgbFramePool implements VideoSurface.ImageListener {
+    /**
+     * Default number of Bitmaps: one drawn, one waiting to be drawn, one
+     * filled
+     */
+    public static final int DEFAULT_BITMAPS = 3;
+
+    /**
+     * Bitmaps
+     */
+    private final Bitmap[] bitmaps;
+
+    /**
+     * Bitmaps handed to the surface and not released yet
+     */
+    private final boolean[] inUse;
+
+    /**
+     * Index of the next Bitmap to fill
+     */
+    private int next = 0;
+
+    /**
+     * Frame width
+     */
+    private int width = 0;
+
+    /**
+     * Frame height
+     */
+    private int height = 0;
+
+    /**
+     * Direct buffer loaded into the Bitmaps
+     */
+    private ByteBuffer buffer = null;
+
+    /**
+     * Short view of the direct buffer
+     */
+    private ShortBuffer shortBuffer = null;
+
+    /**
+     * Converted row, copied in bulk into the direct buffer
+     */
+    private short[] row = null;
+
+    /**
+     * Number of (re)allocations
+     */
+    private int allocations = 0;
+
+    /**
+     * Constructor
+     */
+    public RgbFramePool() {
+        this(DEFAULT_BITMAPS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param count Number of Bitmaps
+     */
+    public RgbFramePool(int count) {
+        bitmaps = new Bitmap[Math.max(1, count)];
+        inUse = new boolean[bitmaps.length];
+    }
+
+    /**
+     * Load an ARGB frame into a free Bitmap, which is in use until released
+     *
+     * @param argb ARGB pixels
+     * @param width Frame width
+     * @param height Frame height
+     * @return Bitmap or null if all the Bitmaps are still in use by the
+     *         surface, the frame is then dropped
+     */
+    public synchronized Bitmap fill(int[] argb, int width, int height) {
+        ensureSize(width, height);
+        int index = -1;
+        for (int i = 0; i < bitmaps.length; i++) {
+            int candidate = (next + i) % bitmaps.length;
+            if (!inUse[candidate]) {
+                index = candidate;
+                break;
+            }
+        }
+        if (index < 0) {
+            return null;
+        }
+
+        // A put per pixel into the direct buffer is far slower than a bulk
+        // put of each converted row
+        ShortBuffer rgb = shortBuffer;
+        short[] line = row;
+        rgb.clear();
+        int i = 0;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int p = argb[i++];
+                line[x] = (short)(((p >> 8) & 0xf800) | ((p >> 5) & 0x07e0) | ((p >> 3) & 0x001f));
+            }
+            rgb.put(line, 0, width);
+        }
+        buffer.rewind();
+
+        Bitmap bitmap = bitmaps[index];
+        bitmap.copyPixelsFromBuffer(buffer);
+        inUse[index] = true;
+        next = (index + 1) % bitmaps.length;
+        return bitmap;
+    }
+
+    /**
+     * Release a Bitmap drawn or discarded by the surface. Bitmaps of
+     * previous dimensions are ignored.
+     *
+     * @param bmp Bitmap
+     */
+    public synchronized void imageReleased(Bitmap bmp) {
+        for (int i = 0; i < bitmaps.length; i++) {
+            if (bitmaps[i] == bmp) {
+                inUse[i] = false;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the frame width
+     *
+     * @return Width
+     */
+    public synchronized int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the frame height
+     *
+     * @return Height
+     */
+    public synchronized int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of times the buffers have been allocated
+     *
+     * @return Count
+     */
+    public int getAllocationCount() {
+        return allocations;
+    }
+
+    /**
+     * Allocate the buffers for the given dimensions if needed. Bitmaps of
+     * the previous dimensions are left to the garbage collector, as one of
+     * them may still be on screen.
+     *
+     * @param width Frame width
+     * @param height Frame height
+     */
+    private void ensureSize(int width, int height) {
+        if ((width == this.width) && (height == this.height) && (buffer != null)) {
+            return;
+        }
+        int size = width * height;
+        buffer = ByteBuffer.allocateDirect(size * 2).order(ByteOrder.nativeOrder());
+        shortBuffer = buffer.asShortBuffer();
+        row = new short[width];
+        for (int i = 0; i < bitmaps.length; i++) {
+            bitmaps[i] = Bitmap.createBitmap(width, height, Bitmap.Config.RGB_565);
+            inUse[i] = false;
+        }
+        next = 0;
+        this.width = width;
+        this.height = height;
+        allocations++;
+    }
+}
@@ -0,0 +1,375 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free ring buffer. Slots are preallocated and published with a
+ * per-slot sequence number, so readers and writers never take a monitor. The
+ * way a producer claims a slot is left to subclasses (single or multiple
+ * producers), there is always a single consumer.
+ *
+ * @param <E> Element type
+ */
+public abstract class RingBuffer<E> {
+    /**
+     * Overflow policy applied when the buffer is full
+     */
+    public enum OverflowPolicy {
+        /**
+         * Discard the oldest element to make room for the new one
+         */
+        DROP_OLDEST,
+
+        /**
+         * Discard the new element
+         */
+        DROP_NEWEST,
+
+        /**
+         * Wait for a free slot, then discard the new element on timeout
+         */
+        BLOCK
+    }
+
+    /**
+     * Maximum park duration of a blocked producer in nanoseconds
+     */
+    private static final long PRODUCER_PARK_NANOS = 1000000L;
+
+    /**
+     * Slots
+     */
+    private final AtomicReferenceArray<E> slots;
+
+    /**
+     * Slot sequences: seq == pos means free for the producer at pos,
+     * seq == pos + 1 means published for the consumer at pos
+     */
+    private final AtomicLongArray sequences;
+
+    /**
+     * Index mask
+     */
+    private final int mask;
+
+    /**
+     * Capacity
+     */
+    private final int capacity;
+
+    /**
+     * Overflow policy
+     */
+    private final OverflowPolicy policy;
+
+    /**
+     * Next position to read
+     */
+    private final AtomicLong head = new AtomicLong(0);
+
+    /**
+     * Next position to write
+     */
+    protected final AtomicLong tail = new AtomicLong(0);
+
+    /**
+     * Number of dropped elements
+     */
+    private final AtomicLong dropped = new AtomicLong(0);
+
+    /**
+     * Highest observed occupancy
+     */
+    private volatile int highWaterMark = 0;
+
+    /**
+     * Consumer thread currently parked on an empty buffer
+     */
+    private volatile Thread waitingConsumer = null;
+
+    /**
+     * Closed flag
+     */
+    private volatile boolean closed = false;
+
+    /**
+     * Constructor
+     *
+     * @param capacity Requested capacity, rounded up to a power of two
+     * @param policy Overflow policy
+     */
+    protected RingBuffer(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        int size = 1;
+        while (size < capacity) {
+            size <<= 1;
+        }
+        this.capacity = size;
+        this.mask = size - 1;
+        this.policy = policy;
+        this.slots = new AtomicReferenceArray<E>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    /**
+     * Claim the write position for the slot at the given tail value
+     *
+     * @param pos Current tail value
+     * @return True if the position has been claimed by the caller
+     */
+    protected abstract boolean claim(long pos);
+
+    /**
+     * Add an element, applying the overflow policy with no wait
+     *
+     * @param e Element
+     * @return True if the element has been added
+     */
+    public boolean offer(E e) {
+        return offer(e, 0);
+    }
+
+    /**
+     * Add an element, applying the overflow policy
+     *
+     * @param e Element
+     * @param timeout Maximum wait in milliseconds for the BLOCK policy
+     * @return True if the element has been added
+     */
+    public boolean offer(E e, long timeout) {
+        if (e == null) {
+            throw new NullPointerException();
+        }
+        long deadline = 0;
+        while (!closed) {
+            long pos = tail.get();
+            int index = (int)(pos & mask);
+            long dif = sequences.get(index) - pos;
+            if (dif == 0) {
+                if (claim(pos)) {
+                    slots.set(index, e);
+                    sequences.set(index, pos + 1);
+                    updateHighWaterMark(pos + 1);
+                    Thread consumer = waitingConsumer;
+                    if (consumer != null) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+            } else if (dif < 0) {
+                // Buffer is full
+                if (policy == OverflowPolicy.DROP_OLDEST) {
+                    if (poll() != null) {
+                        dropped.incrementAndGet();
+                    }
+                } else if (policy == OverflowPolicy.BLOCK && timeout > 0) {
+                    long now = System.nanoTime();
+                    if (deadline == 0) {
+                        deadline = now + timeout * 1000000L;
+                    } else if (now - deadline >= 0) {
+                        break;
+                    }
+                    LockSupport.parkNanos(Math.min(PRODUCER_PARK_NANOS, deadline - now));
+                } else {
+                    break;
+                }
+            }
+        }
+        dropped.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Remove the oldest element with no wait
+     *
+     * @return Element or null if the buffer is empty
+     */
+    public E poll() {
+        while (true) {
+            long pos = head.get();
+            int index = (int)(pos & mask);
+            long dif = sequences.get(index) - (pos + 1);
+            if (dif == 0) {
+                E e = slots.get(index);
+                if (head.compareAndSet(pos, pos + 1)) {
+                    slots.set(index, null);
+                    sequences.set(index, pos + capacity);
+                    return e;
+                }
+            } else if (dif < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest element, waiting until one is available, the buffer
+     * is closed or the timeout expires
+     *
+     * @param timeout Timeout in milliseconds, 0 to wait forever
+     * @return Element or null
+     */
+    public E take(long timeout) {
+        E e = poll();
+        if (e != null) {
+            return e;
+        }
+        long deadline = (timeout > 0) ? System.nanoTime() + timeout * 1000000L : 0;
+        Thread current = Thread.currentThread();
+        waitingConsumer = current;
+        try {
+            while (!closed) {
+                e = poll();
+                if (e != null) {
+                    return e;
+                }
+                if (timeout > 0) {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                } else {
+                    LockSupport.park(this);
+                }
+                if (current.isInterrupted()) {
+                    return poll();
+                }
+            }
+            return poll();
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+
+    /**
+     * Remove up to the given number of the oldest elements
+     *
+     * @param count Number of elements to discard
+     * @return Number of discarded elements
+     */
+    public int discard(int count) {
+        int n = 0;
+        while ((n < count) && (poll() != null)) {
+            n++;
+        }
+        dropped.addAndGet(n);
+        return n;
+    }
+
+    /**
+     * Close the buffer and release a waiting consumer
+     */
+    public void close() {
+        closed = true;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * Is buffer closed
+     *
+     * @return Boolean
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Returns the current number of elements
+     *
+     * @return Size
+     */
+    public int size() {
+        long size = tail.get() - head.get();
+        if (size < 0) {
+            return 0;
+        }
+        return (int)Math.min(size, capacity);
+    }
+
+    /**
+     * Returns the capacity
+     *
+     * @return Capacity
+     */
+    public int capacity() {
+        return capacity;
+    }
+
+    /**
+     * Returns the overflow policy
+     *
+     * @return Policy
+     */
+    public OverflowPolicy getOverflowPolicy() {
+        return policy;
+    }
+
+    /**
+     * Returns the total number of added elements
+     *
+     * @return Count
+     */
+    public long getAddedCount() {
+        return tail.get();
+    }
+
+    /**
+     * Returns the total number of dropped elements
+     *
+     * @return Count
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the highest observed occupancy
+     *
+     * @return Number of elements
+     */
+    public int getHighWaterMark() {
+        return highWaterMark;
+    }
+
+    /**
+     * Update the highest observed occupancy
+     *
+     * @param written Tail value after the last write
+     */
+    private void updateHighWaterMark(long written) {
+        int size = (int)Math.min(written - head.get(), capacity);
+        if (size > highWaterMark) {
+            highWaterMark = size;
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * RTCP feedback receiver of a media sender. It observes the RTCP datagrams
+ * received on the RTCP port of the session and parses the report blocks, the
+ * generic NACKs and the payload specific feedback (RFC 4585, RFC 5104) sent
+ * back by the remote receiver, independently of the RTP stack which keeps
+ * processing the same packets. An application defined packet tells that the
+ * receiver has joined the multicast group the video is sent to.
+ */
+public class RtcpFeedbackReceiver implements PortLease.ReceiveObserver {
+    /**
+     * RTCP feedback listener
+     */
+    public interface Listener {
+        /**
+         * A reception report has been received
+         *
+         * @param ssrc SSRC of the reported source
+         * @param fractionLost Fraction of packets lost since the previous
+         *            report, in 1/256
+         * @param cumulativeLost Cumulative number of packets lost
+         * @param jitter Interarrival jitter in RTP timestamp units
+         * @param rtt Round trip time in milliseconds, -1 if unknown
+         */
+        public void onReceptionReport(long ssrc, int fractionLost, int cumulativeLost, long jitter, long rtt);
+
+        /**
+         * A keyframe has been requested by a PLI or a FIR
+         *
+         * @param ssrc SSRC of the media source
+         */
+        public void onKeyFrameRequest(long ssrc);
+
+        /**
+         * Lost packets have been reported by a generic NACK
+         *
+         * @param ssrc SSRC of the media source
+         * @param sequenceNumbers Sequence numbers of the lost packets
+         */
+        public void onNack(long ssrc, int[] sequenceNumbers);
+
+        /**
+         * The receiver has joined the multicast group of the video
+         *
+         * @param ssrc SSRC of the receiver
+         */
+        public void onGroupJoined(long ssrc);
+    }
+
+    /**
+     * RTCP sender report
+     */
+    private static final int RTCP_SR = 200;
+
+    /**
+     * RTCP receiver report
+     */
+    private static final int RTCP_RR = 201;
+
+    /**
+     * RTCP transport layer feedback
+     */
+    private static final int RTCP_RTPFB = 205;
+
+    /**
+     * RTCP payload specific feedback
+     */
+    private static final int RTCP_PSFB = 206;
+
+    /**
+     * RTCP application defined packet
+     */
+    static final int RTCP_APP = 204;
+
+    /**
+     * Name of the application defined packet of a receiver which has joined
+     * the multicast group of the video
+     */
+    static final int APP_GROUP_JOINED = ('I' << 24) | ('L' << 16) | ('S' << 8) | 'J';
+
+    /**
+     * Feedback message type of a generic NACK
+     */
+    private static final int FMT_NACK = 1;
+
+    /**
+     * Feedback message type of a Picture Loss Indication
+     */
+    private static final int FMT_PLI = 1;
+
+    /**
+     * Feedback message type of a Full Intra Request
+     */
+    private static final int FMT_FIR = 4;
+
+    /**
+     * Size of a report block
+     */
+    private static final int REPORT_BLOCK_SIZE = 24;
+
+    /**
+     * Seconds between the NTP epoch (1900) and the Unix epoch (1970)
+     */
+    private static final long NTP_EPOCH_OFFSET = 2208988800L;
+
+    /**
+     * Listeners
+     */
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    /**
+     * Sequence number of the last FIR, -1 if none
+     */
+    private int lastFirSeq = -1;
+
+    /**
+     * Number of received RTCP packets
+     */
+    private volatile long packets = 0L;
+
+    /**
+     * Number of malformed RTCP packets
+     */
+    private volatile long malformed = 0L;
+
+    /**
+     * Number of received keyframe requests
+     */
+    private volatile long keyFrameRequests = 0L;
+
+    /**
+     * Number of packets reported lost by NACKs
+     */
+    private volatile long nackedPackets = 0L;
+
+    /**
+     * Constructor
+     */
+    public RtcpFeedbackReceiver() {
+    }
+
+    /**
+     * Add a listener
+     *
+     * @param listener Listener
+     */
+    public void addListener(Listener listener) {
+        listeners.addIfAbsent(listener);
+    }
+
+    /**
+     * Remove a listener
+     *
+     * @param listener Listener
+     */
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * A datagram has been received on the RTCP port
+     *
+     * @param data Buffer
+     * @param offset Offset of the datagram in the buffer
+     * @param length Length of the datagram
+     */
+    public void onReceived(byte[] data, int offset, int length) {
+        packets++;
+        int end = offset + length;
+        int pos = offset;
+        // Walk through the packets of the compound packet
+        while (pos + 4 <= end) {
+            int version = (data[pos] & 0xc0) >> 6;
+            int count = data[pos] & 0x1f;
+            int type = data[pos + 1] & 0xff;
+            int size = (((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff)) * 4 + 4;
+            if ((version != 2) || (pos + size > end)) {
+                malformed++;
+                return;
+            }
+            if (type == RTCP_SR) {
+                parseReportBlocks(data, pos + 28, pos + size, count);
+            } else if (type == RTCP_RR) {
+                parseReportBlocks(data, pos + 8, pos + size, count);
+            } else if ((type == RTCP_RTPFB) && (count == FMT_NACK) && (size >= 16)) {
+                parseNack(data, pos, pos + size);
+            } else if ((type == RTCP_PSFB) && (size >= 12)) {
+                parsePayloadFeedback(data, pos, pos + size, count);
+            } else if ((type == RTCP_APP) && (size >= 12) && (readInt(data, pos + 8) == APP_GROUP_JOINED)) {
+                long ssrc = readInt(data, pos + 4);
+                for (Listener listener : listeners) {
+                    listener.onGroupJoined(ssrc);
+                }
+            }
+            pos += size;
+        }
+    }
+
+    /**
+     * Returns the number of received RTCP packets
+     *
+     * @return Count
+     */
+    public long getPacketCount() {
+        return packets;
+    }
+
+    /**
+     * Returns the number of malformed RTCP packets
+     *
+     * @return Count
+     */
+    public long getMalformedCount() {
+        return malformed;
+    }
+
+    /**
+     * Returns the number of received keyframe requests
+     *
+     * @return Count
+     */
+    public long getKeyFrameRequestCount() {
+        return keyFrameRequests;
+    }
+
+    /**
+     * Returns the number of packets reported lost by NACKs
+     *
+     * @return Count
+     */
+    public long getNackedPacketCount() {
+        return nackedPackets;
+    }
+
+    /**
+     * Parse a generic NACK packet
+     *
+     * @param data Buffer
+     * @param pos Offset of the packet
+     * @param end End of the packet
+     */
+    private void parseNack(byte[] data, int pos, int end) {
+        // One FCI entry per lost packet and the bitmask of the 16 following
+        int[] seqs = new int[((end - pos - 12) / 4) * 17];
+        int n = 0;
+        for (int fci = pos + 12; fci + 4 <= end; fci += 4) {
+            int pid = ((data[fci] & 0xff) << 8) | (data[fci + 1] & 0xff);
+            int blp = ((data[fci + 2] & 0xff) << 8) | (data[fci + 3] & 0xff);
+            seqs[n++] = pid;
+            for (int i = 0; i < 16; i++) {
+                if ((blp & (1 << i)) != 0) {
+                    seqs[n++] = (pid + i + 1) & 0xffff;
+                }
+            }
+        }
+        if (n == 0) {
+            return;
+        }
+        int[] lost = new int[n];
+        System.arraycopy(seqs, 0, lost, 0, n);
+        nackedPackets += n;
+        long ssrc = readInt(data, pos + 8);
+        for (Listener listener : listeners) {
+            listener.onNack(ssrc, lost);
+        }
+    }
+
+    /**
+     * Parse a payload specific feedback packet
+     *
+     * @param data Buffer
+     * @param pos Offset of the packet
+     * @param end End of the packet
+     * @param fmt Feedback message type
+     */
+    private void parsePayloadFeedback(byte[] data, int pos, int end, int fmt) {
+        if (fmt == FMT_PLI) {
+            notifyKeyFrameRequest(readInt(data, pos + 8));
+        } else if (fmt == FMT_FIR) {
+            // One FCI entry per media source: SSRC, sequence number, reserved
+            for (int fci = pos + 12; fci + 8 <= end; fci += 8) {
+                int seq = data[fci + 4] & 0xff;
+                if (seq != lastFirSeq) {
+                    // A repeated FIR with the same sequence number is ignored
+                    lastFirSeq = seq;
+                    notifyKeyFrameRequest(readInt(data, fci));
+                }
+            }
+        }
+    }
+
+    /**
+     * Notify a keyframe request
+     *
+     * @param ssrc SSRC of the media source
+     */
+    private void notifyKeyFrameRequest(long ssrc) {
+        keyFrameRequests++;
+        for (Listener listener : listeners) {
+            listener.onKeyFrameRequest(ssrc);
+        }
+    }
+
+    /**
+     * Parse the report blocks of a SR or RR packet
+     *
+     * @param data Buffer
+     * @param pos Offset of the first block
+     * @param end End of the packet
+     * @param count Number of blocks
+     */
+    private void parseReportBlocks(byte[] data, int pos, int end, int count) {
+        for (int i = 0; (i < count) && (pos + REPORT_BLOCK_SIZE <= end); i++) {
+            long ssrc = readInt(data, pos);
+            int fractionLost = data[pos + 4] & 0xff;
+            // Cumulative number of packets lost is a signed 24 bits value
+            int cumulativeLost = ((data[pos + 5] << 16) | ((data[pos + 6] & 0xff) << 8) | (data[pos + 7] & 0xff));
+            long jitter = readInt(data, pos + 12);
+            long lsr = readInt(data, pos + 16);
+            long dlsr = readInt(data, pos + 20);
+            long rtt = -1;
+            if (lsr != 0) {
+                // RTT = arrival - LSR - DLSR, in 1/65536 seconds
+                long delay = (ntpMiddle(System.currentTimeMillis()) - lsr - dlsr) & 0xffffffffL;
+                if (delay < 0x80000000L) {
+                    rtt = delay * 1000 / 65536;
+                }
+            }
+            for (Listener listener : listeners) {
+                listener.onReceptionReport(ssrc, fractionLost, cumulativeLost, jitter, rtt);
+            }
+            pos += REPORT_BLOCK_SIZE;
+        }
+    }
+
+    /**
+     * Returns the middle 32 bits of the NTP timestamp of a wall clock time
+     *
+     * @param time Milliseconds since the Unix epoch
+     * @return NTP timestamp middle bits
+     */
+    private static long ntpMiddle(long time) {
+        long seconds = time / 1000 + NTP_EPOCH_OFFSET;
+        long fraction = ((time % 1000) << 16) / 1000;
+        return ((seconds & 0xffffL) << 16) | fraction;
+    }
+
+    /**
+     * Read an unsigned 32 bits value
+     *
+     * @param data Buffer
+     * @param pos Offset
+     * @return Value
+     */
+    static long readInt(byte[] data, int pos) {
+        return ((long)(data[pos] & 0xff) << 24) | ((data[pos + 1] & 0xff) << 16)
+                | ((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff);
+    }
+}
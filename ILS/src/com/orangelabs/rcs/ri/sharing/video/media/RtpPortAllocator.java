@@ -0,0 +1,235 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.IOException;
+
+/**
+ * RTP/RTCP port pair allocator. Pairs (even RTP port, odd RTCP port) of a
+ * port range are tracked in a bitmap, so finding a free pair is a word scan
+ * instead of a bind attempt per port. Allocation starts after the last
+ * allocated pair to avoid reusing a port which may still receive stale
+ * packets.
+ */
+public class RtpPortAllocator {
+    /**
+     * Number of pairs per bitmap word
+     */
+    private static final int WORD_BITS = 64;
+
+    /**
+     * First RTP port of the range
+     */
+    private final int minPort;
+
+    /**
+     * Number of pairs in the range
+     */
+    private final int pairs;
+
+    /**
+     * Used pairs bitmap
+     */
+    private final long[] used;
+
+    /**
+     * Leases indexed by pair
+     */
+    private final PortLease[] leases;
+
+    /**
+     * Number of leases not yet freed
+     */
+    private int leaseCount = 0;
+
+    /**
+     * Number of NIO leases not yet freed
+     */
+    private int nioLeaseCount = 0;
+
+    /**
+     * Next pair to look at
+     */
+    private int hint = 0;
+
+    /**
+     * Constructor
+     *
+     * @param minPort First port of the range, rounded up to an even port
+     * @param maxPort Last port of the range
+     */
+    public RtpPortAllocator(int minPort, int maxPort) {
+        this.minPort = minPort + (minPort & 1);
+        this.pairs = Math.max(0, (maxPort - this.minPort + 1) / 2);
+        this.used = new long[(pairs + WORD_BITS - 1) / WORD_BITS];
+        this.leases = new PortLease[pairs];
+    }
+
+    /**
+     * Lease a free port pair
+     *
+     * @param nio Bind NIO channels instead of sockets
+     * @return Lease
+     * @throws IOException if no pair can be bound in the range
+     */
+    public synchronized PortLease allocate(boolean nio) throws IOException {
+        int tried = 0;
+        int index = nextFree(hint);
+        while ((index >= 0) && (tried < pairs)) {
+            tried++;
+            setUsed(index, true);
+            hint = (index + 1) % pairs;
+            try {
+                PortLease lease = new PortLease(this, index, minPort + 2 * index, nio);
+                leases[index] = lease;
+                leaseCount++;
+                if (nio) {
+                    nioLeaseCount++;
+                }
+                return lease;
+            } catch (IOException e) {
+                // Port used by another process, try the next pair
+                setUsed(index, false);
+                index = nextFree(hint);
+            }
+        }
+        throw new IOException("No free RTP port");
+    }
+
+    /**
+     * Lease a given port pair, e.g. the ports of a multicast group
+     *
+     * @param rtpPort RTP port, the RTCP port is the next one
+     * @param nio Bind NIO channels instead of sockets
+     * @return Lease
+     * @throws IOException if the pair is outside the range, already leased
+     *             or used by another process
+     */
+    public synchronized PortLease allocate(int rtpPort, boolean nio) throws IOException {
+        int index = (rtpPort - minPort) / 2;
+        if ((rtpPort < minPort) || (index >= pairs) || (((rtpPort - minPort) & 1) != 0)) {
+            throw new IOException("RTP port " + rtpPort + " out of range");
+        }
+        if ((used[index / WORD_BITS] & (1L << (index % WORD_BITS))) != 0) {
+            throw new IOException("RTP port " + rtpPort + " already leased");
+        }
+        setUsed(index, true);
+        try {
+            PortLease lease = new PortLease(this, index, rtpPort, nio);
+            leases[index] = lease;
+            leaseCount++;
+            if (nio) {
+                nioLeaseCount++;
+            }
+            return lease;
+        } catch (IOException e) {
+            setUsed(index, false);
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the lease owning a port
+     *
+     * @param port RTP or RTCP port
+     * @return Lease or null
+     */
+    public synchronized PortLease getLease(int port) {
+        int index = (port - minPort) / 2;
+        if ((port < minPort) || (index >= pairs)) {
+            return null;
+        }
+        return leases[index];
+    }
+
+    /**
+     * Free a pair
+     *
+     * @param index Pair index
+     * @param lease Lease releasing the pair
+     */
+    synchronized void free(int index, PortLease lease) {
+        if (leases[index] == lease) {
+            leases[index] = null;
+            setUsed(index, false);
+            leaseCount--;
+            if (lease.isNio()) {
+                nioLeaseCount--;
+            }
+        }
+    }
+
+    /**
+     * Returns the number of leases not yet freed
+     *
+     * @return Count
+     */
+    public synchronized int getLeaseCount() {
+        return leaseCount;
+    }
+
+    /**
+     * Returns the number of NIO leases not yet freed
+     *
+     * @return Count
+     */
+    public synchronized int getNioLeaseCount() {
+        return nioLeaseCount;
+    }
+
+    /**
+     * Find the next free pair, wrapping at the end of the range
+     *
+     * @param from First pair to look at
+     * @return Pair index or -1 if the range is full
+     */
+    private int nextFree(int from) {
+        if (pairs == 0) {
+            return -1;
+        }
+        int words = used.length;
+        int word = from / WORD_BITS;
+        long bits = ~used[word] & (-1L << (from % WORD_BITS));
+        for (int n = 0; n <= words; n++) {
+            if (bits != 0) {
+                int index = word * WORD_BITS + Long.numberOfTrailingZeros(bits);
+                if (index < pairs) {
+                    return index;
+                }
+            }
+            word = (word + 1) % words;
+            bits = ~used[word];
+        }
+        return -1;
+    }
+
+    /**
+     * Mark a pair
+     *
+     * @param index Pair index
+     * @param value Used flag
+     */
+    private void setUsed(int index, boolean value) {
+        if (value) {
+            used[index / WORD_BITS] |= 1L << (index % WORD_BITS);
+        } else {
+            used[index / WORD_BITS] &= ~(1L << (index % WORD_BITS));
+        }
+    }
+}
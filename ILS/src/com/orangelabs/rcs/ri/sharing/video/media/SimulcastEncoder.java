@@ -0,0 +1,636 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.nio.ByteBuffer;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Bundle;
+import android.util.Log;
+
+import com.gsma.services.rcs.vsh.VideoCodec;
+import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.H264Config;
+import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.JavaPacketizer;
+import com.orangelabs.rcs.core.ims.protocol.rtp.format.video.H264VideoFormat;
+import com.orangelabs.rcs.ri.utils.LogUtils;
+
+/**
+ * Simulcast encoder. Layer 0 is the base layer, encoded by the native
+ * encoder of the player, the upper spatial layers are encoded from the same
+ * camera frame by platform encoders. The camera frame is downscaled once per
+ * layer, each layer being scaled from the next larger one, and the smallest
+ * scaled frame is the source of the base layer. The platform encoders need
+ * Android 4.1.
+ */
+public class SimulcastEncoder {
+    /**
+     * Consumer of the encoded NAL units, called from the encoding thread
+     */
+    public interface Listener {
+        /**
+         * A NAL unit of an upper layer has been encoded
+         *
+         * @param layer Layer index
+         * @param nal NAL unit without start code
+         * @param timestamp RTP timestamp
+         */
+        public void onEncodedNal(int layer, byte[] nal, long timestamp);
+    }
+
+    /**
+     * Spatial layer
+     */
+    public static class Layer {
+        /**
+         * Layer index, 0 for the base layer
+         */
+        private final int index;
+
+        /**
+         * Codec of the layer
+         */
+        private final VideoCodec codec;
+
+        /**
+         * Platform encoder, null for the base layer
+         */
+        private MediaCodec encoder = null;
+
+        /**
+         * Scaled frame in the camera format
+         */
+        private byte[] frame = null;
+
+        /**
+         * Horizontal luma sampling map from the source frame
+         */
+        private int[] xMap = null;
+
+        /**
+         * Vertical luma sampling map from the source frame
+         */
+        private int[] yMap = null;
+
+        /**
+         * Width of the source frame of the sampling maps
+         */
+        private int mapWidth = 0;
+
+        /**
+         * Height of the source frame of the sampling maps
+         */
+        private int mapHeight = 0;
+
+        /**
+         * Last SPS of the layer
+         */
+        private byte[] sps = null;
+
+        /**
+         * Last PPS of the layer
+         */
+        private byte[] pps = null;
+
+        /**
+         * Keyframe requested
+         */
+        private volatile boolean keyFrameRequested = false;
+
+        /**
+         * Constructor
+         *
+         * @param index Layer index
+         * @param codec Layer codec
+         */
+        Layer(int index, VideoCodec codec) {
+            this.index = index;
+            this.codec = codec;
+        }
+
+        /**
+         * Returns the layer index
+         *
+         * @return Index
+         */
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * Returns the codec of the layer
+         *
+         * @return Codec
+         */
+        public VideoCodec getCodec() {
+            return codec;
+        }
+
+        /**
+         * Returns the width
+         *
+         * @return Width
+         */
+        public int getWidth() {
+            return codec.getVideoWidth();
+        }
+
+        /**
+         * Returns the height
+         *
+         * @return Height
+         */
+        public int getHeight() {
+            return codec.getVideoHeight();
+        }
+    }
+
+    /**
+     * The log tag for this class
+     */
+    private static final String LOGTAG = LogUtils.getTag(SimulcastEncoder.class.getSimpleName());
+
+    /**
+     * H264 MIME type
+     */
+    private static final String MIME_TYPE = "video/avc";
+
+    /**
+     * Interval between two IDR frames of an upper layer in seconds
+     */
+    private static final int IFRAME_INTERVAL = 2;
+
+    /**
+     * Input buffer wait in microseconds: a busy platform encoder skips the
+     * frame instead of stalling the base layer
+     */
+    private static final long INPUT_TIMEOUT_US = 5000L;
+
+    /**
+     * Codec parameters of a QVGA layer: baseline profile, level 1.3
+     */
+    private static final String QVGA_CODEC_PARAMS = "profile-level-id=42800d;packetization-mode=1";
+
+    /**
+     * Codec parameters of a VGA layer: baseline profile, level 3
+     */
+    private static final String VGA_CODEC_PARAMS = "profile-level-id=42801e;packetization-mode=1";
+
+    /**
+     * Layers, from the base layer to the largest one
+     */
+    private final Layer[] layers;
+
+    /**
+     * Listener
+     */
+    private final Listener listener;
+
+    /**
+     * Output buffer info
+     */
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+    /**
+     * Source frame of the base layer
+     */
+    private byte[] baseSource = null;
+
+    /**
+     * Width of the source frame of the base layer
+     */
+    private int baseSourceWidth = 0;
+
+    /**
+     * Height of the source frame of the base layer
+     */
+    private int baseSourceHeight = 0;
+
+    /**
+     * Constructor
+     *
+     * @param baseCodec Codec of the base layer
+     * @param listener Listener of the upper layers
+     */
+    public SimulcastEncoder(VideoCodec baseCodec, Listener listener) {
+        this.layers = createLayers(baseCodec);
+        this.listener = listener;
+    }
+
+    /**
+     * Is simulcast supported by the platform
+     *
+     * @return Boolean
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    /**
+     * Build the layers above a base codec: QVGA and VGA, the frame rate of
+     * the base layer and a bit rate growing with the picture size
+     *
+     * @param baseCodec Codec of the base layer
+     * @return Layers
+     */
+    private static Layer[] createLayers(VideoCodec baseCodec) {
+        int baseArea = baseCodec.getVideoWidth() * baseCodec.getVideoHeight();
+        int[][] sizes = {
+                { H264Config.QVGA_WIDTH, H264Config.QVGA_HEIGHT },
+                { H264Config.VGA_WIDTH, H264Config.VGA_HEIGHT }
+        };
+        String[] params = { QVGA_CODEC_PARAMS, VGA_CODEC_PARAMS };
+        int count = 1;
+        for (int i = 0; i < sizes.length; i++) {
+            if (sizes[i][0] * sizes[i][1] > baseArea) {
+                count++;
+            }
+        }
+        Layer[] result = new Layer[count];
+        result[0] = new Layer(0, baseCodec);
+        int index = 1;
+        for (int i = 0; i < sizes.length; i++) {
+            int area = sizes[i][0] * sizes[i][1];
+            if (area > baseArea) {
+                // The bit rate grows as the square root of the area ratio
+                int bitRate = (int)(baseCodec.getBitRate() * Math.sqrt((double)area / baseArea));
+                result[index] = new Layer(index, new VideoCodec(H264Config.CODEC_NAME,
+                        H264VideoFormat.PAYLOAD, H264Config.CLOCK_RATE, baseCodec.getFrameRate(),
+                        bitRate, sizes[i][0], sizes[i][1], params[i]));
+                index++;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Start the platform encoders of the upper layers
+     *
+     * @return true if all the upper layers have been started
+     */
+    public boolean start() {
+        try {
+            for (int i = 1; i < layers.length; i++) {
+                VideoCodec codec = layers[i].codec;
+                MediaFormat format = MediaFormat.createVideoFormat(MIME_TYPE,
+                        codec.getVideoWidth(), codec.getVideoHeight());
+                format.setInteger(MediaFormat.KEY_BIT_RATE, codec.getBitRate());
+                format.setInteger(MediaFormat.KEY_FRAME_RATE, codec.getFrameRate());
+                format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                        MediaCodecInfo.CodecCapabilities.COLOR_FormatYUV420SemiPlanar);
+                format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, IFRAME_INTERVAL);
+                MediaCodec encoder = MediaCodec.createEncoderByType(MIME_TYPE);
+                encoder.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+                encoder.start();
+                layers[i].encoder = encoder;
+            }
+            return true;
+        } catch (Exception e) {
+            if (LogUtils.isActive) {
+                Log.w(LOGTAG, "Can't start the simulcast layers", e);
+            }
+            stop();
+            return false;
+        }
+    }
+
+    /**
+     * Stop the platform encoders
+     */
+    public void stop() {
+        for (int i = 1; i < layers.length; i++) {
+            MediaCodec encoder = layers[i].encoder;
+            if (encoder != null) {
+                try {
+                    encoder.stop();
+                } catch (Exception e) {
+                    // Nothing to do
+                }
+                encoder.release();
+                layers[i].encoder = null;
+            }
+        }
+    }
+
+    /**
+     * Returns the layers, from the base layer to the largest one
+     *
+     * @return Layers
+     */
+    public Layer[] getLayers() {
+        return layers;
+    }
+
+    /**
+     * Request an IDR frame on an upper layer. The request is ignored before
+     * Android 4.4, the layer then starts a new GOP within the IDR interval.
+     *
+     * @param layer Layer index
+     */
+    public void requestKeyFrame(int layer) {
+        if ((layer > 0) && (layer < layers.length)) {
+            layers[layer].keyFrameRequested = true;
+        }
+    }
+
+    /**
+     * Encode the upper layers of a camera frame and prepare the source of the
+     * base layer. Layers larger than the camera frame are not encoded. The
+     * scaled frames are not mirrored: the base layer is mirrored by the
+     * native encoder, the upper layers when fed to their encoders.
+     *
+     * @param data Camera frame (NV21)
+     * @param width Frame width
+     * @param height Frame height
+     * @param timestamp RTP timestamp
+     * @param mirroring Mirror the frame horizontally, as the base layer
+     */
+    public void encode(byte[] data, int width, int height, long timestamp, boolean mirroring) {
+        byte[] src = data;
+        int srcWidth = width;
+        int srcHeight = height;
+        for (int i = layers.length - 1; i >= 1; i--) {
+            Layer layer = layers[i];
+            if ((layer.encoder == null) || (layer.getWidth() > width) || (layer.getHeight() > height)) {
+                continue;
+            }
+
+            // Scale from the next larger frame
+            byte[] scaled = src;
+            if ((layer.getWidth() != srcWidth) || (layer.getHeight() != srcHeight)) {
+                scaled = scale(layer, src, srcWidth, srcHeight);
+            }
+            encodeLayer(layer, scaled, timestamp, mirroring);
+            src = scaled;
+            srcWidth = layer.getWidth();
+            srcHeight = layer.getHeight();
+        }
+        baseSource = src;
+        baseSourceWidth = srcWidth;
+        baseSourceHeight = srcHeight;
+    }
+
+    /**
+     * Returns the smallest scaled frame of the last encoded camera frame,
+     * source of the base layer
+     *
+     * @return Frame (NV21)
+     */
+    public byte[] getBaseSource() {
+        return baseSource;
+    }
+
+    /**
+     * Returns the width of the source frame of the base layer
+     *
+     * @return Width
+     */
+    public int getBaseSourceWidth() {
+        return baseSourceWidth;
+    }
+
+    /**
+     * Returns the height of the source frame of the base layer
+     *
+     * @return Height
+     */
+    public int getBaseSourceHeight() {
+        return baseSourceHeight;
+    }
+
+    /**
+     * Downscale a NV21 frame into the frame of a layer, by nearest sampling
+     * through maps computed once per source size
+     *
+     * @param layer Layer
+     * @param src Source frame
+     * @param srcWidth Source width
+     * @param srcHeight Source height
+     * @return Scaled frame
+     */
+    private static byte[] scale(Layer layer, byte[] src, int srcWidth, int srcHeight) {
+        int width = layer.getWidth();
+        int height = layer.getHeight();
+        if ((layer.frame == null) || (layer.mapWidth != srcWidth) || (layer.mapHeight != srcHeight)) {
+            layer.frame = new byte[width * height * 3 / 2];
+            layer.xMap = new int[width];
+            layer.yMap = new int[height];
+            for (int x = 0; x < width; x++) {
+                layer.xMap[x] = x * srcWidth / width;
+            }
+            for (int y = 0; y < height; y++) {
+                layer.yMap[y] = y * srcHeight / height;
+            }
+            layer.mapWidth = srcWidth;
+            layer.mapHeight = srcHeight;
+        }
+        byte[] dst = layer.frame;
+        int[] xMap = layer.xMap;
+        int[] yMap = layer.yMap;
+
+        // Luma plane
+        int pos = 0;
+        for (int y = 0; y < height; y++) {
+            int row = yMap[y] * srcWidth;
+            for (int x = 0; x < width; x++) {
+                dst[pos++] = src[row + xMap[x]];
+            }
+        }
+
+        // Interleaved chroma plane at half resolution
+        int srcChroma = srcWidth * srcHeight;
+        for (int y = 0; y < height / 2; y++) {
+            int row = srcChroma + (yMap[y * 2] >> 1) * srcWidth;
+            for (int x = 0; x < width / 2; x++) {
+                int s = row + (xMap[x * 2] & ~1);
+                dst[pos++] = src[s];
+                dst[pos++] = src[s + 1];
+            }
+        }
+        return dst;
+    }
+
+    /**
+     * Encode a frame of an upper layer and deliver the available NAL units
+     *
+     * @param layer Layer
+     * @param frame Frame (NV21)
+     * @param timestamp RTP timestamp
+     * @param mirroring Mirror the frame horizontally
+     */
+    private void encodeLayer(Layer layer, byte[] frame, long timestamp, boolean mirroring) {
+        MediaCodec encoder = layer.encoder;
+        try {
+            if (layer.keyFrameRequested && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT)) {
+                Bundle params = new Bundle();
+                params.putInt(MediaCodec.PARAMETER_KEY_REQUEST_SYNC_FRAME, 0);
+                encoder.setParameters(params);
+            }
+            layer.keyFrameRequested = false;
+
+            int index = encoder.dequeueInputBuffer(INPUT_TIMEOUT_US);
+            if (index >= 0) {
+                ByteBuffer input = encoder.getInputBuffers()[index];
+                input.clear();
+                int length = layer.getWidth() * layer.getHeight();
+                int size = length * 3 / 2;
+
+                // NV21 to NV12: swap the chroma samples
+                if (mirroring) {
+                    putMirrored(input, frame, layer.getWidth(), layer.getHeight());
+                } else {
+                    input.put(frame, 0, length);
+                    for (int i = length; i < size; i += 2) {
+                        input.put(frame[i + 1]);
+                        input.put(frame[i]);
+                    }
+                }
+                // The RTP timestamp is carried as presentation time
+                encoder.queueInputBuffer(index, 0, size, timestamp * 100 / 9, 0);
+            }
+            drain(layer);
+        } catch (IllegalStateException e) {
+            if (LogUtils.isActive) {
+                Log.w(LOGTAG, "Layer " + layer.index + " encoding failed", e);
+            }
+        }
+    }
+
+    /**
+     * Copy a NV21 frame mirrored horizontally into a NV12 input buffer
+     *
+     * @param input Input buffer
+     * @param frame Frame (NV21)
+     * @param width Frame width
+     * @param height Frame height
+     */
+    private static void putMirrored(ByteBuffer input, byte[] frame, int width, int height) {
+        // Luma plane
+        for (int y = 0; y < height; y++) {
+            int row = y * width;
+            for (int x = width - 1; x >= 0; x--) {
+                input.put(frame[row + x]);
+            }
+        }
+
+        // Interleaved chroma plane, the V/U pairs keep their order
+        int chroma = width * height;
+        for (int y = 0; y < height / 2; y++) {
+            int row = chroma + y * width;
+            for (int x = width - 2; x >= 0; x -= 2) {
+                input.put(frame[row + x + 1]);
+                input.put(frame[row + x]);
+            }
+        }
+    }
+
+    /**
+     * Deliver the NAL units available at the output of a platform encoder
+     *
+     * @param layer Layer
+     */
+    private void drain(Layer layer) {
+        MediaCodec encoder = layer.encoder;
+        ByteBuffer[] outputs = encoder.getOutputBuffers();
+        while (true) {
+            int index = encoder.dequeueOutputBuffer(info, 0);
+            if (index == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+                outputs = encoder.getOutputBuffers();
+                continue;
+            } else if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                continue;
+            } else if (index < 0) {
+                break;
+            }
+            ByteBuffer output = outputs[index];
+            byte[] data = new byte[info.size];
+            output.position(info.offset);
+            output.limit(info.offset + info.size);
+            output.get(data);
+            encoder.releaseOutputBuffer(index, false);
+
+            long timestamp = (info.presentationTimeUs * 9 + 99) / 100;
+            boolean config = (info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0;
+            deliver(layer, data, timestamp, config);
+        }
+    }
+
+    /**
+     * Split an Annex B access unit into NAL units and deliver them. The
+     * parameter sets are kept and sent again before each IDR frame.
+     *
+     * @param layer Layer
+     * @param data Access unit
+     * @param timestamp RTP timestamp
+     * @param config Codec config buffer
+     */
+    private void deliver(Layer layer, byte[] data, long timestamp, boolean config) {
+        int start = nextNal(data, 0);
+        if (start == data.length) {
+            // No start code: a single NAL unit
+            start = 0;
+        }
+        while (start < data.length) {
+            int next = nextNal(data, start);
+            int end = next;
+            if (next < data.length) {
+                // Remove the start code of the next NAL unit
+                end -= 3;
+                if ((end > start) && (data[end - 1] == 0)) {
+                    end--;
+                }
+            }
+            if (end > start) {
+                byte[] nal = new byte[end - start];
+                System.arraycopy(data, start, nal, 0, nal.length);
+                int type = nal[0] & 0x1f;
+                if (type == JavaPacketizer.AVC_NALTYPE_SPS) {
+                    layer.sps = nal;
+                } else if (type == JavaPacketizer.AVC_NALTYPE_PPS) {
+                    layer.pps = nal;
+                } else if (!config) {
+                    if ((type == MyVideoPlayer.AVC_NALTYPE_IDR) && (layer.sps != null) && (layer.pps != null)) {
+                        listener.onEncodedNal(layer.index, layer.sps, timestamp);
+                        listener.onEncodedNal(layer.index, layer.pps, timestamp);
+                    }
+                    listener.onEncodedNal(layer.index, nal, timestamp);
+                }
+            }
+            start = next;
+        }
+    }
+
+    /**
+     * Returns the position following the next start code
+     *
+     * @param data Data
+     * @param from Search start
+     * @return Position of the next NAL unit or the data length
+     */
+    private static int nextNal(byte[] data, int from) {
+        for (int i = from; i + 2 < data.length; i++) {
+            if ((data[i] == 0) && (data[i + 1] == 0) && (data[i + 2] == 1)) {
+                return i + 3;
+            }
+        }
+        return data.length;
+    }
+}
@@ -0,0 +1,48 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+/**
+ * Single-producer single-consumer ring buffer. The producer owns the tail,
+ * so claiming a slot is a plain ordered write.
+ *
+ * @param <E> Element type
+ */
+public class SpscRingBuffer<E> extends RingBuffer<E> {
+    /**
+     * Constructor
+     *
+     * @param capacity Requested capacity, rounded up to a power of two
+     * @param policy Overflow policy
+     */
+    public SpscRingBuffer(int capacity, OverflowPolicy policy) {
+        super(capacity, policy);
+    }
+
+    /**
+     * Claim the write position for the slot at the given tail value
+     *
+     * @param pos Current tail value
+     * @return Always true, there is no concurrent producer
+     */
+    protected boolean claim(long pos) {
+        tail.lazySet(pos + 1);
+        return true;
+    }
+}
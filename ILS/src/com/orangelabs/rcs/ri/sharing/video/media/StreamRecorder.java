@@ -0,0 +1,520 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.H264Config;
+import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.JavaPacketizer;
+import com.orangelabs.rcs.core.ims.protocol.rtp.format.video.VideoOrientation;
+import com.orangelabs.rcs.core.ims.protocol.rtp.media.VideoSample;
+import com.orangelabs.rcs.ri.utils.LogUtils;
+
+/**
+ * Recorder of the encoded video. It taps the NAL units of a player, nothing
+ * is re-encoded, and appends them to an Annex B stream file through a
+ * FileChannel in large sequential writes. The access unit index is written
+ * next to the stream file as the recording goes (see {@link RecordingIndex}).
+ * The file I/O runs on a dedicated thread: the encoder never waits for the
+ * disk, if the recorder lags behind the stream resumes at the next IDR frame.
+ */
+public class StreamRecorder implements MyVideoPlayer.FrameSink {
+    /**
+     * Stream file extension
+     */
+    public static final String STREAM_EXTENSION = ".h264";
+
+    /**
+     * Index file extension
+     */
+    public static final String INDEX_EXTENSION = ".idx";
+
+    /**
+     * The log tag for this class
+     */
+    private static final String LOGTAG = LogUtils.getTag(StreamRecorder.class.getSimpleName());
+
+    /**
+     * Write queue size in NAL units
+     */
+    private static final int QUEUE_SIZE = 256;
+
+    /**
+     * Stream write buffer size
+     */
+    private static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+    /**
+     * Index write buffer size
+     */
+    private static final int INDEX_BUFFER_SIZE = 64 * RecordingIndex.RECORD_SIZE;
+
+    /**
+     * Maximum delay before the buffered data is written
+     */
+    private static final long FLUSH_INTERVAL = 2000L;
+
+    /**
+     * Annex B start code
+     */
+    private static final byte[] START_CODE = { 0, 0, 0, 1 };
+
+    /**
+     * Recorded simulcast layer
+     */
+    private final int layer;
+
+    /**
+     * Stream file
+     */
+    private final File streamFile;
+
+    /**
+     * Index file
+     */
+    private final File indexFile;
+
+    /**
+     * NAL units to write
+     */
+    private FifoBuffer queue = null;
+
+    /**
+     * Dropped count of the queue when last checked
+     */
+    private long lastDropped = 0L;
+
+    /**
+     * Waiting for an IDR frame
+     */
+    private boolean resync = true;
+
+    /**
+     * Writer thread
+     */
+    private WriterProcess writer = null;
+
+    /**
+     * Number of recorded access units
+     */
+    private volatile int recordedFrames = 0;
+
+    /**
+     * Number of recorded bytes
+     */
+    private volatile long recordedBytes = 0L;
+
+    /**
+     * Last I/O error
+     */
+    private volatile IOException error = null;
+
+    /**
+     * Constructor
+     *
+     * @param directory Directory of the recording
+     * @param name Recording name, without extension
+     * @param layer Recorded simulcast layer, 0 for the base layer
+     */
+    public StreamRecorder(File directory, String name, int layer) {
+        this.streamFile = new File(directory, name + STREAM_EXTENSION);
+        this.indexFile = new File(directory, name + INDEX_EXTENSION);
+        this.layer = layer;
+    }
+
+    /**
+     * Open the files and start the recording. Existing files are replaced.
+     *
+     * @throws IOException
+     */
+    public synchronized void start() throws IOException {
+        if (writer != null) {
+            // Already started
+            return;
+        }
+        RandomAccessFile stream = new RandomAccessFile(streamFile, "rw");
+        RandomAccessFile index = null;
+        try {
+            stream.setLength(0);
+            index = new RandomAccessFile(indexFile, "rw");
+            index.setLength(0);
+        } catch (IOException e) {
+            stream.close();
+            if (index != null) {
+                index.close();
+            }
+            throw e;
+        }
+        error = null;
+        lastDropped = 0L;
+        resync = true;
+        queue = new FifoBuffer(QUEUE_SIZE, RingBuffer.OverflowPolicy.DROP_OLDEST, true);
+        writer = new WriterProcess(stream, index, queue);
+        writer.start();
+    }
+
+    /**
+     * Stop the recording. The pending data is written and the files closed.
+     */
+    public synchronized void stop() {
+        if (writer == null) {
+            // Already stopped
+            return;
+        }
+        queue.close();
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer = null;
+        queue = null;
+    }
+
+    /**
+     * Add an encoded NAL unit. Called from the encoding thread, never blocks.
+     *
+     * @param frameLayer Simulcast layer
+     * @param data NAL unit
+     * @param timestamp RTP timestamp
+     * @param orientation Video orientation or null
+     */
+    public void addFrame(int frameLayer, byte[] data, long timestamp, VideoOrientation orientation) {
+        FifoBuffer fifo = queue;
+        if ((fifo == null) || (frameLayer != layer)) {
+            return;
+        }
+        long dropped = fifo.getDroppedCount();
+        if (dropped != lastDropped) {
+            // The stream can't be decoded until the next IDR frame
+            lastDropped = dropped;
+            resync = true;
+        }
+        if (resync) {
+            int type = MyVideoPlayer.getNalType(data);
+            if (type == MyVideoPlayer.AVC_NALTYPE_IDR) {
+                resync = false;
+            } else if ((type != JavaPacketizer.AVC_NALTYPE_SPS) && (type != JavaPacketizer.AVC_NALTYPE_PPS)) {
+                return;
+            }
+        }
+        fifo.addObject(new VideoSample(data, timestamp, orientation));
+    }
+
+    /**
+     * Returns the stream file
+     *
+     * @return File
+     */
+    public File getStreamFile() {
+        return streamFile;
+    }
+
+    /**
+     * Returns the index file
+     *
+     * @return File
+     */
+    public File getIndexFile() {
+        return indexFile;
+    }
+
+    /**
+     * Returns the number of recorded access units
+     *
+     * @return Count
+     */
+    public int getRecordedFrames() {
+        return recordedFrames;
+    }
+
+    /**
+     * Returns the number of recorded bytes
+     *
+     * @return Count
+     */
+    public long getRecordedBytes() {
+        return recordedBytes;
+    }
+
+    /**
+     * Returns the last I/O error, the recording stops on error
+     *
+     * @return Exception or null
+     */
+    public IOException getError() {
+        return error;
+    }
+
+    /**
+     * Writer thread
+     */
+    private class WriterProcess extends Thread {
+        /**
+         * Stream file
+         */
+        private final RandomAccessFile streamFile;
+
+        /**
+         * Index file
+         */
+        private final RandomAccessFile indexFile;
+
+        /**
+         * Stream channel
+         */
+        private final FileChannel stream;
+
+        /**
+         * Index channel
+         */
+        private final FileChannel index;
+
+        /**
+         * NAL units to write
+         */
+        private final FifoBuffer fifo;
+
+        /**
+         * Stream write buffer
+         */
+        private final ByteBuffer streamBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+
+        /**
+         * Index records waiting for their data to be written
+         */
+        private final ByteBuffer indexBuffer = ByteBuffer.allocate(INDEX_BUFFER_SIZE);
+
+        /**
+         * Index record calculator
+         */
+        private final CRC32 crc = new CRC32();
+
+        /**
+         * Stream offset of the first byte of the write buffer
+         */
+        private long written = 0L;
+
+        /**
+         * Timestamp of the current access unit
+         */
+        private long auTimestamp = -1L;
+
+        /**
+         * Offset of the current access unit
+         */
+        private long auOffset = -1L;
+
+        /**
+         * Flags of the current access unit
+         */
+        private int auFlags = 0;
+
+        /**
+         * Time of the last write
+         */
+        private long lastFlush = 0L;
+
+        /**
+         * Constructor
+         *
+         * @param streamFile Stream file
+         * @param indexFile Index file
+         * @param fifo NAL units to write
+         */
+        public WriterProcess(RandomAccessFile streamFile, RandomAccessFile indexFile, FifoBuffer fifo) {
+            super("VideoRecorder");
+            this.streamFile = streamFile;
+            this.indexFile = indexFile;
+            this.stream = streamFile.getChannel();
+            this.index = indexFile.getChannel();
+            this.fifo = fifo;
+        }
+
+        /**
+         * Background processing
+         */
+        public void run() {
+            try {
+                ByteBuffer header = ByteBuffer.allocate(RecordingIndex.HEADER_SIZE);
+                RecordingIndex.putHeader(header, H264Config.CLOCK_RATE);
+                header.flip();
+                writeFully(index, header);
+                index.force(false);
+
+                lastFlush = System.currentTimeMillis();
+                while (true) {
+                    VideoSample sample = (VideoSample)fifo.getObject((int)FLUSH_INTERVAL);
+                    if (sample != null) {
+                        append(sample);
+                    } else if (fifo.isClosed()) {
+                        // Stopped and all the queued data has been read
+                        break;
+                    }
+                    if (System.currentTimeMillis() - lastFlush >= FLUSH_INTERVAL) {
+                        flush();
+                    }
+                }
+
+                // Last access unit
+                endAccessUnit();
+                flush();
+            } catch (IOException e) {
+                error = e;
+                if (LogUtils.isActive) {
+                    Log.w(LOGTAG, "Recording failed", e);
+                }
+            } finally {
+                // Stop receiving frames
+                fifo.close();
+                try {
+                    streamFile.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+                try {
+                    indexFile.close();
+                } catch (IOException e) {
+                    // Nothing to do
+                }
+            }
+        }
+
+        /**
+         * Append a NAL unit
+         *
+         * @param sample NAL unit
+         * @throws IOException
+         */
+        private void append(VideoSample sample) throws IOException {
+            byte[] nal = sample.getData();
+            if (sample.getTimeStamp() != auTimestamp) {
+                endAccessUnit();
+                auTimestamp = sample.getTimeStamp();
+                auOffset = written + streamBuffer.position();
+                auFlags = 0;
+            }
+            if (MyVideoPlayer.getNalType(nal) == MyVideoPlayer.AVC_NALTYPE_IDR) {
+                auFlags |= RecordingIndex.FLAG_KEYFRAME;
+            }
+
+            // The NAL units are stored without start code
+            boolean startCode = (nal.length > 3) && (nal[0] == 0) && (nal[1] == 0)
+                    && ((nal[2] == 1) || ((nal[2] == 0) && (nal[3] == 1)));
+            if (!startCode) {
+                put(START_CODE, 0, START_CODE.length);
+            }
+            put(nal, 0, nal.length);
+        }
+
+        /**
+         * Add the index record of the current access unit
+         *
+         * @throws IOException
+         */
+        private void endAccessUnit() throws IOException {
+            if (auOffset < 0) {
+                return;
+            }
+            if (!indexBuffer.hasRemaining()) {
+                flush();
+            }
+            RecordingIndex.putRecord(indexBuffer, crc, auTimestamp, auOffset, auFlags);
+            recordedFrames++;
+            auOffset = -1L;
+            if ((auFlags & RecordingIndex.FLAG_KEYFRAME) != 0) {
+                // Make each keyframe reachable after a crash
+                flush();
+            }
+        }
+
+        /**
+         * Copy data into the write buffer, writing it when full
+         *
+         * @param data Data
+         * @param offset Offset
+         * @param length Length
+         * @throws IOException
+         */
+        private void put(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (!streamBuffer.hasRemaining()) {
+                    writeStream();
+                }
+                int n = Math.min(length, streamBuffer.remaining());
+                streamBuffer.put(data, offset, n);
+                offset += n;
+                length -= n;
+                recordedBytes += n;
+            }
+        }
+
+        /**
+         * Write the stream buffer
+         *
+         * @throws IOException
+         */
+        private void writeStream() throws IOException {
+            streamBuffer.flip();
+            written += streamBuffer.remaining();
+            writeFully(stream, streamBuffer);
+            streamBuffer.clear();
+        }
+
+        /**
+         * Write the buffered data, then the index records pointing to it. The
+         * data reaches the storage before the records.
+         *
+         * @throws IOException
+         */
+        private void flush() throws IOException {
+            lastFlush = System.currentTimeMillis();
+            if (streamBuffer.position() > 0) {
+                writeStream();
+            }
+            if (indexBuffer.position() > 0) {
+                stream.force(false);
+                indexBuffer.flip();
+                writeFully(index, indexBuffer);
+                indexBuffer.clear();
+                index.force(false);
+            }
+        }
+
+        /**
+         * Write a whole buffer
+         *
+         * @param channel File channel
+         * @param buffer Buffer
+         * @throws IOException
+         */
+        private void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+}
@@ -0,0 +1,885 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.IOException;
+
+/**
+ * XOR parity forward error correction of the RTP packets (RFC 5109, ULP
+ * level 0), for the video sent to many receivers which can't all ask for
+ * retransmissions.
+ * <p>
+ * The encoder protects groups of consecutive media packets with one FEC
+ * packet, sent on the media port with its own payload type, negotiated in
+ * the codec parameters (see {@link CodecParameters#FEC}) so that a receiver
+ * which doesn't know it never gets the FEC packets. Keyframe
+ * packets are protected by smaller groups. The decoder removes the FEC
+ * packets before the RTP stack, rebuilds a single lost packet of a group
+ * and injects it in the local RTP port, where it is received through the
+ * receive filter of the port like the other packets. Groups never span
+ * more packets than the reorder window of the RTP stack, so a rebuilt
+ * packet is still accepted.
+ */
+public class UlpFec {
+    /**
+     * Payload type of the FEC packets, offered and accepted in the codec
+     * parameters
+     */
+    public static final int PAYLOAD_TYPE = 127;
+
+    /**
+     * Size of the RTP fixed header
+     */
+    private static final int RTP_HEADER_SIZE = 12;
+
+    /**
+     * Size of the FEC header and of the level 0 header with a short mask
+     */
+    private static final int FEC_HEADER_SIZE = 14;
+
+    /**
+     * Maximum number of packets protected by a short mask
+     */
+    private static final int MAX_MASK_BITS = 16;
+
+    /**
+     * Packets further than this behind the last received one are dropped by
+     * the RTP stack
+     */
+    private static final int STACK_REORDER_WINDOW = 10;
+
+    /**
+     * NAL types of an IDR slice, a SPS and a PPS
+     */
+    private static final int NAL_IDR = 5;
+    private static final int NAL_SPS = 7;
+    private static final int NAL_PPS = 8;
+
+    /**
+     * NAL types of the STAP-A and FU-A packets
+     */
+    private static final int NAL_STAP_A = 24;
+    private static final int NAL_FU_A = 28;
+
+    /**
+     * Protection level: number of media packets per FEC packet
+     */
+    public enum Protection {
+        /**
+         * No FEC packet
+         */
+        OFF(0, 0),
+
+        /**
+         * One FEC packet per 8 packets, per 4 packets of a keyframe
+         */
+        LOW(8, 4),
+
+        /**
+         * One FEC packet per 4 packets, per 2 packets of a keyframe
+         */
+        MEDIUM(4, 2),
+
+        /**
+         * One FEC packet per 2 packets, and one per keyframe packet: a group
+         * of one packet makes its FEC packet a copy of it, so the keyframes
+         * are sent twice (100% overhead on the keyframes, 50% on the delta
+         * frames)
+         */
+        HIGH(2, 1);
+
+        /**
+         * Group size of the delta frames
+         */
+        private final int groupSize;
+
+        /**
+         * Group size of the keyframes
+         */
+        private final int keyFrameGroupSize;
+
+        /**
+         * Constructor
+         *
+         * @param groupSize Group size of the delta frames
+         * @param keyFrameGroupSize Group size of the keyframes
+         */
+        private Protection(int groupSize, int keyFrameGroupSize) {
+            this.groupSize = groupSize;
+            this.keyFrameGroupSize = keyFrameGroupSize;
+        }
+
+        /**
+         * Returns the number of media packets per FEC packet
+         *
+         * @param keyFrame Keyframe packets
+         * @return Group size, 0 if no FEC packet
+         */
+        public int getGroupSize(boolean keyFrame) {
+            return keyFrame ? keyFrameGroupSize : groupSize;
+        }
+    }
+
+    /**
+     * Constructor
+     */
+    private UlpFec() {
+    }
+
+    /**
+     * Returns the sequence number of a RTP packet
+     *
+     * @param data Buffer
+     * @param offset Offset of the packet
+     * @return Sequence number
+     */
+    private static int getSequenceNumber(byte[] data, int offset) {
+        return ((data[offset + 2] & 0xff) << 8) | (data[offset + 3] & 0xff);
+    }
+
+    /**
+     * Is a RTP packet part of a keyframe, i.e. an IDR slice or a parameter
+     * set
+     *
+     * @param data RTP packet
+     * @return Boolean
+     */
+    static boolean isKeyFramePacket(byte[] data) {
+        int pos = RTP_HEADER_SIZE + (data[0] & 0x0f) * 4;
+        if (((data[0] & 0x10) != 0) && (pos + 4 <= data.length)) {
+            pos += 4 + (((data[pos + 2] & 0xff) << 8) | (data[pos + 3] & 0xff)) * 4;
+        }
+        if (pos + 1 >= data.length) {
+            return false;
+        }
+        int type = data[pos] & 0x1f;
+        if (type == NAL_FU_A) {
+            type = data[pos + 1] & 0x1f;
+        } else if ((type == NAL_STAP_A) && (pos + 3 < data.length)) {
+            type = data[pos + 3] & 0x1f;
+        }
+        return (type == NAL_IDR) || (type == NAL_SPS) || (type == NAL_PPS);
+    }
+
+    /**
+     * Write a 16-bit value
+     *
+     * @param data Buffer
+     * @param pos Offset
+     * @param value Value
+     */
+    private static void writeShort(byte[] data, int pos, int value) {
+        data[pos] = (byte)(value >> 8);
+        data[pos + 1] = (byte)value;
+    }
+
+    /**
+     * Read an unsigned 16-bit value
+     *
+     * @param data Buffer
+     * @param pos Offset
+     * @return Value
+     */
+    private static int readShort(byte[] data, int pos) {
+        return ((data[pos] & 0xff) << 8) | (data[pos + 1] & 0xff);
+    }
+
+    /**
+     * Sender side: adds the FEC packets to the RTP packets sent to a remote
+     */
+    public static class Encoder implements PortLease.SendFilter {
+        /**
+         * Number of clean reception reports before the protection is lowered
+         */
+        private static final int CLEAN_REPORTS = 5;
+
+        /**
+         * Fraction lost from which the highest protection is used, in 1/256
+         */
+        private static final int HIGH_LOSS = 26;
+
+        /**
+         * Current protection level
+         */
+        private volatile Protection protection;
+
+        /**
+         * Lowest protection level of the adaptation
+         */
+        private final Protection minProtection;
+
+        /**
+         * Adaptation to the reception reports
+         */
+        private final boolean adaptive;
+
+        /**
+         * Consecutive reception reports without loss
+         */
+        private int cleanReports = 0;
+
+        /**
+         * XOR of the protected parts of the group packets
+         */
+        private byte[] parity = new byte[0];
+
+        /**
+         * XOR of the first two bytes of the group packets
+         */
+        private int headerRecovery = 0;
+
+        /**
+         * XOR of the timestamps of the group packets
+         */
+        private long timestampRecovery = 0L;
+
+        /**
+         * XOR of the protected lengths of the group packets
+         */
+        private int lengthRecovery = 0;
+
+        /**
+         * Largest protected length of the group packets
+         */
+        private int protectionLength = 0;
+
+        /**
+         * Protected sequence numbers, from the base
+         */
+        private int mask = 0;
+
+        /**
+         * Sequence number of the first packet of the group
+         */
+        private int baseSeq = 0;
+
+        /**
+         * Number of packets in the group
+         */
+        private int groupCount = 0;
+
+        /**
+         * Group of keyframe packets
+         */
+        private boolean keyFrameGroup = false;
+
+        /**
+         * Last packet of the group, giving the timestamp and SSRC of the FEC
+         * packet
+         */
+        private final byte[] lastHeader = new byte[RTP_HEADER_SIZE];
+
+        /**
+         * Sequence number of the next FEC packet
+         */
+        private int fecSeq = (int)(Math.random() * 0xffff);
+
+        /**
+         * Port lease of the media session, whose RTP connection sends the
+         * FEC packets
+         */
+        private volatile PortLease lease = null;
+
+        /**
+         * Remote host
+         */
+        private String remoteHost = null;
+
+        /**
+         * Remote RTP port
+         */
+        private int remotePort = -1;
+
+        /**
+         * Pacer of the media packets, charged with the FEC packets, or null
+         */
+        private volatile PacketPacer pacer = null;
+
+        /**
+         * Number of sent FEC packets
+         */
+        private volatile long fecPackets = 0L;
+
+        /**
+         * Constructor
+         *
+         * @param protection Initial protection level
+         * @param adaptive Adapt the protection to the reported loss, not
+         *            going below the initial level
+         */
+        public Encoder(Protection protection, boolean adaptive) {
+            this.protection = protection;
+            this.minProtection = protection;
+            this.adaptive = adaptive;
+        }
+
+        /**
+         * Protect the RTP packets sent to a remote. The FEC packets leave
+         * from the RTP connection of the session, like the media packets.
+         *
+         * @param lease Port lease of the media session, whose RTP port must
+         *            be opened
+         * @param remoteHost Remote host
+         * @param remotePort Remote RTP port
+         * @throws IOException if the RTP port of the session is not opened
+         */
+        public void attach(PortLease lease, String remoteHost, int remotePort) throws IOException {
+            if (lease.getConnection(lease.getRtpPort()) == null) {
+                throw new IOException("RTP port not opened");
+            }
+            this.remoteHost = remoteHost;
+            this.remotePort = remotePort;
+            this.lease = lease;
+            lease.addSendFilter(lease.getRtpPort(), this);
+        }
+
+        /**
+         * Stop protecting the packets
+         */
+        public void detach() {
+            PortLease l = lease;
+            if (l != null) {
+                l.removeSendFilter(this);
+            }
+            lease = null;
+        }
+
+        /**
+         * Set the pacer of the media packets, which is charged with the FEC
+         * packets so that the protection doesn't add to the bursts
+         *
+         * @param pacer Pacer or null
+         */
+        public void setPacer(PacketPacer pacer) {
+            this.pacer = pacer;
+        }
+
+        /**
+         * Returns the current protection level
+         *
+         * @return Protection
+         */
+        public Protection getProtection() {
+            return protection;
+        }
+
+        /**
+         * Returns the number of sent FEC packets
+         *
+         * @return Count
+         */
+        public long getFecPacketCount() {
+            return fecPackets;
+        }
+
+        /**
+         * Adapt the protection to a reception report. The report gives the
+         * loss left once repaired, so the protection goes up as long as
+         * packets are lost and one level down after a run of clean reports.
+         *
+         * @param fractionLost Fraction of packets lost since the previous
+         *            report, in 1/256
+         */
+        public synchronized void onReceptionReport(int fractionLost) {
+            if (!adaptive) {
+                return;
+            }
+            Protection[] levels = Protection.values();
+            int level = protection.ordinal();
+            if (fractionLost >= HIGH_LOSS) {
+                level = levels.length - 1;
+                cleanReports = 0;
+            } else if (fractionLost > 0) {
+                level = Math.min(level + 1, levels.length - 1);
+                cleanReports = 0;
+            } else if (++cleanReports >= CLEAN_REPORTS) {
+                level = Math.max(level - 1, minProtection.ordinal());
+                cleanReports = 0;
+            }
+            protection = levels[level];
+        }
+
+        /**
+         * Add a sent RTP packet to the current group, and send the FEC
+         * packet of the group once complete
+         *
+         * @param data RTP packet
+         * @return The packet unchanged
+         */
+        public byte[] filter(byte[] data) {
+            if ((data.length < RTP_HEADER_SIZE) || ((data[0] & 0xc0) != 0x80)) {
+                return data;
+            }
+            synchronized (this) {
+                boolean keyFrame = isKeyFramePacket(data);
+                int seq = getSequenceNumber(data, 0);
+                int groupSize = protection.getGroupSize(keyFrame);
+
+                // Close the current group if the packet can't be added to it
+                if ((groupCount > 0) && ((groupSize == 0) || (keyFrame != keyFrameGroup)
+                        || (((seq - baseSeq) & 0xffff) >= MAX_MASK_BITS))) {
+                    send(flush());
+                }
+                if (groupSize > 0) {
+                    add(data, seq, keyFrame);
+                    boolean marker = (data[1] & 0x80) != 0;
+                    if ((groupCount >= groupSize) || marker) {
+                        send(flush());
+                    }
+                }
+            }
+            return data;
+        }
+
+        /**
+         * Add a packet to the current group
+         *
+         * @param data RTP packet
+         * @param seq Sequence number
+         * @param keyFrame Keyframe packet
+         */
+        private void add(byte[] data, int seq, boolean keyFrame) {
+            if (groupCount == 0) {
+                baseSeq = seq;
+                keyFrameGroup = keyFrame;
+                headerRecovery = 0;
+                timestampRecovery = 0L;
+                lengthRecovery = 0;
+                protectionLength = 0;
+                mask = 0;
+            }
+            int length = data.length - RTP_HEADER_SIZE;
+            if (parity.length < length) {
+                byte[] larger = new byte[length];
+                System.arraycopy(parity, 0, larger, 0, parity.length);
+                parity = larger;
+            }
+            for (int i = 0; i < length; i++) {
+                parity[i] ^= data[RTP_HEADER_SIZE + i];
+            }
+            headerRecovery ^= ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+            timestampRecovery ^= ((long)(data[4] & 0xff) << 24) | ((data[5] & 0xff) << 16)
+                    | ((data[6] & 0xff) << 8) | (data[7] & 0xff);
+            lengthRecovery ^= length;
+            protectionLength = Math.max(protectionLength, length);
+            mask |= 1 << (MAX_MASK_BITS - 1 - ((seq - baseSeq) & 0xffff));
+            System.arraycopy(data, 0, lastHeader, 0, RTP_HEADER_SIZE);
+            groupCount++;
+        }
+
+        /**
+         * Build the FEC packet of the current group and start a new group
+         *
+         * @return FEC packet
+         */
+        private byte[] flush() {
+            byte[] fec = new byte[RTP_HEADER_SIZE + FEC_HEADER_SIZE + protectionLength];
+            fec[0] = (byte)0x80;
+            fec[1] = (byte)PAYLOAD_TYPE;
+            writeShort(fec, 2, fecSeq);
+            fecSeq = (fecSeq + 1) & 0xffff;
+            System.arraycopy(lastHeader, 4, fec, 4, 8);
+
+            // FEC header: E and L bits cleared, recovery fields
+            int pos = RTP_HEADER_SIZE;
+            fec[pos] = (byte)((headerRecovery >> 8) & 0x3f);
+            fec[pos + 1] = (byte)headerRecovery;
+            writeShort(fec, pos + 2, baseSeq);
+            fec[pos + 4] = (byte)(timestampRecovery >> 24);
+            fec[pos + 5] = (byte)(timestampRecovery >> 16);
+            fec[pos + 6] = (byte)(timestampRecovery >> 8);
+            fec[pos + 7] = (byte)timestampRecovery;
+            writeShort(fec, pos + 8, lengthRecovery);
+
+            // Level 0 header and payload
+            writeShort(fec, pos + 10, protectionLength);
+            writeShort(fec, pos + 12, mask);
+            System.arraycopy(parity, 0, fec, pos + FEC_HEADER_SIZE, protectionLength);
+            for (int i = 0; i < protectionLength; i++) {
+                parity[i] = 0;
+            }
+            groupCount = 0;
+            return fec;
+        }
+
+        /**
+         * Send a FEC packet. Called with the lock held, so that the FEC
+         * packets are sent in order.
+         *
+         * @param fec FEC packet
+         */
+        private void send(byte[] fec) {
+            PortLease l = lease;
+            DatagramConnection conn = (l != null) ? l.getConnection(l.getRtpPort()) : null;
+            if (conn == null) {
+                return;
+            }
+            try {
+                conn.sendDirect(remoteHost, remotePort, fec, 0, fec.length);
+                PacketPacer p = pacer;
+                if (p != null) {
+                    p.charge(fec.length);
+                }
+                fecPackets++;
+                MediaStats.count(MediaStats.Counter.FEC_PACKETS_SENT);
+            } catch (IOException e) {
+                // The group is not protected
+            }
+        }
+    }
+
+    /**
+     * Receiver side: removes the FEC packets before the RTP stack and
+     * rebuilds the lost media packets
+     */
+    public static class Decoder implements PortLease.ReceiveFilter {
+        /**
+         * Number of remembered media packets
+         */
+        private static final int MEDIA_HISTORY = 64;
+
+        /**
+         * Number of remembered FEC packets
+         */
+        private static final int FEC_HISTORY = 16;
+
+        /**
+         * Media packets, in slots reused once overwritten
+         */
+        private final byte[][] packets = new byte[MEDIA_HISTORY][];
+
+        /**
+         * Lengths of the media packets
+         */
+        private final int[] lengths = new int[MEDIA_HISTORY];
+
+        /**
+         * Sequence numbers of the media packets, -1 if the slot is empty
+         */
+        private final int[] seqs = new int[MEDIA_HISTORY];
+
+        /**
+         * FEC packets waiting for their group, null if the slot is empty
+         */
+        private final byte[][] fecs = new byte[FEC_HISTORY][];
+
+        /**
+         * Next FEC slot
+         */
+        private int nextFec = 0;
+
+        /**
+         * Highest received media sequence number, -1 before the first packet
+         */
+        private int highestSeq = -1;
+
+        /**
+         * Port lease the rebuilt packets are injected in, or null
+         */
+        private volatile PortLease lease = null;
+
+        /**
+         * Multicast group the rebuilt packets are injected in, or null
+         */
+        private volatile MulticastGroup group = null;
+
+        /**
+         * Number of received FEC packets
+         */
+        private volatile long fecPackets = 0L;
+
+        /**
+         * Number of rebuilt media packets
+         */
+        private volatile long recovered = 0L;
+
+        /**
+         * Number of groups with too many lost packets
+         */
+        private volatile long unrecoverable = 0L;
+
+        /**
+         * Constructor
+         */
+        public Decoder() {
+            for (int i = 0; i < MEDIA_HISTORY; i++) {
+                seqs[i] = -1;
+            }
+        }
+
+        /**
+         * Hand the rebuilt packets back to a local RTP port, leased or
+         * receiving a multicast group
+         *
+         * @param localRtpPort Local RTP port
+         * @throws IOException if the port is neither leased nor a group port
+         */
+        public void attach(int localRtpPort) throws IOException {
+            PortLease l = NetworkRessourceManager.getPortLease(localRtpPort);
+            if (l != null) {
+                lease = l;
+                return;
+            }
+            MulticastGroup g = NetworkRessourceManager.getMulticastGroup(localRtpPort);
+            if (g == null) {
+                throw new IOException("No port lease nor multicast group on port " + localRtpPort);
+            }
+            group = g;
+        }
+
+        /**
+         * Stop handing the rebuilt packets back
+         */
+        public void detach() {
+            lease = null;
+            group = null;
+        }
+
+        /**
+         * Returns the number of received FEC packets
+         *
+         * @return Count
+         */
+        public long getFecPacketCount() {
+            return fecPackets;
+        }
+
+        /**
+         * Returns the number of rebuilt media packets
+         *
+         * @return Count
+         */
+        public long getRecoveredCount() {
+            return recovered;
+        }
+
+        /**
+         * Returns the number of groups with too many lost packets
+         *
+         * @return Count
+         */
+        public long getUnrecoverableCount() {
+            return unrecoverable;
+        }
+
+        /**
+         * Filter a received RTP packet: a media packet is remembered, a FEC
+         * packet is removed
+         *
+         * @param data Buffer
+         * @param offset Offset of the packet
+         * @param length Length of the packet
+         * @return New length of the packet, 0 for a FEC packet
+         */
+        public int filter(byte[] data, int offset, int length) {
+            if ((length < RTP_HEADER_SIZE) || ((data[offset] & 0xc0) != 0x80)) {
+                return length;
+            }
+            byte[] rebuilt;
+            if ((data[offset + 1] & 0x7f) == PAYLOAD_TYPE) {
+                if (length < RTP_HEADER_SIZE + FEC_HEADER_SIZE) {
+                    return 0;
+                }
+                fecPackets++;
+                byte[] fec = new byte[length];
+                System.arraycopy(data, offset, fec, 0, length);
+                synchronized (this) {
+                    fecs[nextFec] = fec;
+                    nextFec = (nextFec + 1) % FEC_HISTORY;
+                    rebuilt = recover();
+                }
+                inject(rebuilt);
+                return 0;
+            }
+
+            synchronized (this) {
+                int seq = getSequenceNumber(data, offset);
+                store(data, offset, length, seq);
+                if ((highestSeq < 0) || ((short)(seq - highestSeq) > 0)) {
+                    highestSeq = seq;
+                }
+                rebuilt = recover();
+            }
+            inject(rebuilt);
+            return length;
+        }
+
+        /**
+         * Remember a media packet
+         *
+         * @param data Buffer
+         * @param offset Offset of the packet
+         * @param length Length of the packet
+         * @param seq Sequence number
+         */
+        private void store(byte[] data, int offset, int length, int seq) {
+            int index = seq % MEDIA_HISTORY;
+            byte[] slot = packets[index];
+            if ((slot == null) || (slot.length < length)) {
+                slot = new byte[length];
+                packets[index] = slot;
+            }
+            System.arraycopy(data, offset, slot, 0, length);
+            lengths[index] = length;
+            seqs[index] = seq;
+        }
+
+        /**
+         * Is a media packet received
+         *
+         * @param seq Sequence number
+         * @return Boolean
+         */
+        private boolean isReceived(int seq) {
+            return seqs[seq % MEDIA_HISTORY] == seq;
+        }
+
+        /**
+         * Rebuild a lost packet from the waiting FEC packets. A packet is only
+         * lost once a later one has been received. The FEC packets with no
+         * lost packet or too old are dropped.
+         *
+         * @return Rebuilt packet or null
+         */
+        private byte[] recover() {
+            if (highestSeq < 0) {
+                return null;
+            }
+            for (int i = 0; i < FEC_HISTORY; i++) {
+                byte[] fec = fecs[i];
+                if (fec == null) {
+                    continue;
+                }
+                int base = readShort(fec, RTP_HEADER_SIZE + 2);
+                int mask = readShort(fec, RTP_HEADER_SIZE + 12);
+                int lost = -1;
+                int lostCount = 0;
+                boolean waiting = false;
+                for (int bit = 0; bit < MAX_MASK_BITS; bit++) {
+                    if ((mask & (1 << (MAX_MASK_BITS - 1 - bit))) != 0) {
+                        int seq = (base + bit) & 0xffff;
+                        if (isReceived(seq)) {
+                            continue;
+                        }
+                        if ((short)(seq - highestSeq) > 0) {
+                            // Not yet due: the FEC packet may be sent ahead
+                            // of the last packets it protects
+                            waiting = true;
+                        } else {
+                            lost = seq;
+                            lostCount++;
+                        }
+                    }
+                }
+                if (waiting) {
+                    continue;
+                }
+                if (lostCount == 0) {
+                    // Nothing to repair
+                    fecs[i] = null;
+                } else if ((short)(highestSeq - lost) >= STACK_REORDER_WINDOW) {
+                    // Too late for the RTP stack
+                    fecs[i] = null;
+                    unrecoverable++;
+                } else if (lostCount == 1) {
+                    fecs[i] = null;
+                    return rebuild(fec, lost);
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Rebuild a lost packet
+         *
+         * @param fec FEC packet of the group
+         * @param lost Sequence number of the lost packet
+         * @return Rebuilt packet
+         */
+        private byte[] rebuild(byte[] fec, int lost) {
+            int pos = RTP_HEADER_SIZE;
+            int base = readShort(fec, pos + 2);
+            int mask = readShort(fec, pos + 12);
+            int header = readShort(fec, pos);
+            long timestamp = ((long)(fec[pos + 4] & 0xff) << 24) | ((fec[pos + 5] & 0xff) << 16)
+                    | ((fec[pos + 6] & 0xff) << 8) | (fec[pos + 7] & 0xff);
+            int length = readShort(fec, pos + 8);
+            int protectionLength = readShort(fec, pos + 10);
+            byte[] payload = new byte[protectionLength];
+            System.arraycopy(fec, pos + FEC_HEADER_SIZE, payload, 0,
+                    Math.min(protectionLength, fec.length - pos - FEC_HEADER_SIZE));
+
+            for (int bit = 0; bit < MAX_MASK_BITS; bit++) {
+                int seq = (base + bit) & 0xffff;
+                if (((mask & (1 << (MAX_MASK_BITS - 1 - bit))) == 0) || (seq == lost)) {
+                    continue;
+                }
+                int index = seq % MEDIA_HISTORY;
+                byte[] data = packets[index];
+                int size = lengths[index];
+                header ^= ((data[0] & 0xff) << 8) | (data[1] & 0xff);
+                timestamp ^= ((long)(data[4] & 0xff) << 24) | ((data[5] & 0xff) << 16)
+                        | ((data[6] & 0xff) << 8) | (data[7] & 0xff);
+                length ^= size - RTP_HEADER_SIZE;
+                for (int i = 0; i < Math.min(size - RTP_HEADER_SIZE, protectionLength); i++) {
+                    payload[i] ^= data[RTP_HEADER_SIZE + i];
+                }
+            }
+            length = Math.min(length, protectionLength);
+
+            byte[] packet = new byte[RTP_HEADER_SIZE + length];
+            packet[0] = (byte)(0x80 | ((header >> 8) & 0x3f));
+            packet[1] = (byte)header;
+            writeShort(packet, 2, lost);
+            packet[4] = (byte)(timestamp >> 24);
+            packet[5] = (byte)(timestamp >> 16);
+            packet[6] = (byte)(timestamp >> 8);
+            packet[7] = (byte)timestamp;
+            System.arraycopy(fec, 8, packet, 8, 4);
+            System.arraycopy(payload, 0, packet, RTP_HEADER_SIZE, length);
+
+            // Known from now on, the packet handed back is not rebuilt again
+            store(packet, 0, packet.length, lost);
+            recovered++;
+            MediaStats.count(MediaStats.Counter.PACKETS_FEC_RECOVERED);
+            return packet;
+        }
+
+        /**
+         * Hand a rebuilt packet back to the RTP stack: the connection of the
+         * port receives it next, through this filter which then knows it
+         *
+         * @param packet Rebuilt packet or null
+         */
+        private void inject(byte[] packet) {
+            if (packet == null) {
+                return;
+            }
+            PortLease l = lease;
+            if (l != null) {
+                l.inject(packet);
+                return;
+            }
+            MulticastGroup g = group;
+            if (g != null) {
+                g.inject(packet);
+            }
+        }
+    }
+}
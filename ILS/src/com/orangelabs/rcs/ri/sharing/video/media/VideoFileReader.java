@@ -0,0 +1,754 @@
+/*******************************************************************************
+ * Software Name : RCS IMS Stack
+ *
+ * Copyright (C) 2010 France Telecom S.A.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+
+package com.orangelabs.rcs.ri.sharing.video.media;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.H264Config;
+import com.orangelabs.rcs.core.ims.protocol.rtp.codec.video.h264.JavaPacketizer;
+
+/**
+ * Reader of the H264 samples of a video file, either an Annex B stream or
+ * the first video track of a MP4 file. The file is memory-mapped: a sample
+ * is located by its offset and size, only its NAL units are copied out.
+ * Timestamps are given on the 90 kHz RTP clock. A malformed file is
+ * rejected with an IOException when it is opened.
+ */
+public class VideoFileReader {
+    /**
+     * Frame rate assumed for an Annex B stream without index
+     */
+    public static final int DEFAULT_FRAME_RATE = 15;
+
+    /**
+     * NAL type of an access unit delimiter
+     */
+    private static final int NALTYPE_AUD = 9;
+
+    /**
+     * NAL type of a SEI
+     */
+    private static final int NALTYPE_SEI = 6;
+
+    /**
+     * Mapped file
+     */
+    private final MappedByteBuffer data;
+
+    /**
+     * Sample offsets
+     */
+    private long[] offsets;
+
+    /**
+     * Sample sizes
+     */
+    private int[] sizes;
+
+    /**
+     * Sample decoding timestamps
+     */
+    private long[] timestamps;
+
+    /**
+     * Composition offsets of the samples on the RTP clock, null if the
+     * samples are presented in decoding order
+     */
+    private int[] compositionOffsets = null;
+
+    /**
+     * Keyframe flags
+     */
+    private boolean[] keyFrames;
+
+    /**
+     * Number of samples
+     */
+    private int count = 0;
+
+    /**
+     * NAL length size of the MP4 samples, 0 for Annex B samples
+     */
+    private int nalLengthSize = 0;
+
+    /**
+     * Parameter sets of the MP4 track, sent before each keyframe
+     */
+    private List<byte[]> parameterSets = new ArrayList<byte[]>();
+
+    /**
+     * Constructor
+     *
+     * @param data Mapped file
+     */
+    private VideoFileReader(MappedByteBuffer data) {
+        this.data = data;
+    }
+
+    /**
+     * Open a video file. A MP4 file is recognized by its "ftyp" box. The
+     * index of an Annex B recording, if any, gives the timestamps and
+     * keyframes, otherwise the stream is scanned and assumed to be at the
+     * default frame rate.
+     *
+     * @param file Video file
+     * @return Reader
+     * @throws IOException if the file can't be read or holds no H264 video
+     */
+    public static VideoFileReader open(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        MappedByteBuffer map;
+        try {
+            FileChannel channel = in.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("File too large");
+            }
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            // The mapping stays valid once the channel is closed
+            in.close();
+        }
+
+        VideoFileReader reader = new VideoFileReader(map);
+        if ((map.limit() >= 8) && (map.getInt(4) == fourcc("ftyp"))) {
+            try {
+                reader.parseMp4();
+            } catch (IndexOutOfBoundsException e) {
+                // A box read which escaped the bounds checks
+                throw new IOException("Malformed MP4 file");
+            }
+        } else {
+            String path = file.getPath();
+            int dot = path.lastIndexOf('.');
+            File indexFile = new File(((dot > path.lastIndexOf(File.separatorChar)) ? path.substring(0, dot) : path)
+                    + StreamRecorder.INDEX_EXTENSION);
+            RecordingIndex index = null;
+            if (indexFile.exists()) {
+                try {
+                    index = RecordingIndex.load(indexFile, map.limit());
+                } catch (IOException e) {
+                    // Scan the stream
+                }
+            }
+            if ((index != null) && (index.size() > 0)) {
+                reader.loadIndex(index);
+            } else {
+                reader.scanAnnexB();
+            }
+        }
+        if (reader.count == 0) {
+            throw new IOException("No video sample");
+        }
+        return reader;
+    }
+
+    /**
+     * Returns the number of samples
+     *
+     * @return Count
+     */
+    public int getSampleCount() {
+        return count;
+    }
+
+    /**
+     * Returns the decoding timestamp of a sample, which gives the sending
+     * order and time
+     *
+     * @param sample Sample index
+     * @return RTP timestamp
+     */
+    public long getTimestamp(int sample) {
+        return timestamps[sample];
+    }
+
+    /**
+     * Returns the offset from the decoding to the presentation timestamp of
+     * a sample, which is not 0 when the track has B-frames. The RTP
+     * timestamp of a sample is its presentation timestamp.
+     *
+     * @param sample Sample index
+     * @return Offset on the RTP clock
+     */
+    public int getCompositionOffset(int sample) {
+        return (compositionOffsets != null) ? compositionOffsets[sample] : 0;
+    }
+
+    /**
+     * Is a sample a keyframe
+     *
+     * @param sample Sample index
+     * @return Boolean
+     */
+    public boolean isKeyFrame(int sample) {
+        return keyFrames[sample];
+    }
+
+    /**
+     * Returns the duration of the file
+     *
+     * @return Duration in milliseconds
+     */
+    public long getDuration() {
+        return (timestamps[count - 1] - timestamps[0]) / (H264Config.CLOCK_RATE / 1000);
+    }
+
+    /**
+     * Find the keyframe to start from to play at a position
+     *
+     * @param position Position in milliseconds
+     * @return Sample index
+     */
+    public int findKeyFrame(long position) {
+        long timestamp = timestamps[0] + position * (H264Config.CLOCK_RATE / 1000);
+        int low = 0;
+        int high = count - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] <= timestamp) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        while ((found > 0) && !keyFrames[found]) {
+            found--;
+        }
+        return found;
+    }
+
+    /**
+     * Returns the NAL units of a sample, without start code. The parameter
+     * sets of a MP4 track precede the NAL units of each keyframe.
+     *
+     * @param sample Sample index
+     * @return NAL units
+     */
+    public List<byte[]> getNalUnits(int sample) {
+        List<byte[]> nals = new ArrayList<byte[]>();
+        int start = (int)offsets[sample];
+        int end = start + sizes[sample];
+        if (nalLengthSize > 0) {
+            if (keyFrames[sample]) {
+                nals.addAll(parameterSets);
+            }
+            int pos = start;
+            while (pos + nalLengthSize <= end) {
+                int length = 0;
+                for (int i = 0; i < nalLengthSize; i++) {
+                    length = (length << 8) | (data.get(pos + i) & 0xff);
+                }
+                pos += nalLengthSize;
+                if ((length <= 0) || (pos + length > end)) {
+                    break;
+                }
+                nals.add(copy(pos, length));
+                pos += length;
+            }
+        } else {
+            int nal = nextNal(start, end);
+            while (nal < end) {
+                int next = nextNal(nal, end);
+                int nalEnd = trimStartCode(nal, next, end);
+                if (nalEnd > nal) {
+                    nals.add(copy(nal, nalEnd - nal));
+                }
+                nal = next;
+            }
+        }
+        return nals;
+    }
+
+    /**
+     * Copy a part of the file
+     *
+     * @param offset Offset
+     * @param length Length
+     * @return Data
+     */
+    private byte[] copy(int offset, int length) {
+        byte[] result = new byte[length];
+        ByteBuffer view = data.duplicate();
+        view.position(offset);
+        view.get(result);
+        return result;
+    }
+
+    /**
+     * Returns the position following the next start code
+     *
+     * @param from Search start
+     * @param end Search end
+     * @return Position of the next NAL unit or the end
+     */
+    private int nextNal(int from, int end) {
+        for (int i = from; i + 2 < end; i++) {
+            if ((data.get(i + 2) & 0xfe) != 0) {
+                // Fast skip: no start code can end before i + 3
+                i += 2;
+            } else if ((data.get(i) == 0) && (data.get(i + 1) == 0) && (data.get(i + 2) == 1)) {
+                return i + 3;
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Returns the end of a NAL unit, excluding the start code of the next one
+     *
+     * @param nal Start of the NAL unit
+     * @param next Start of the next NAL unit
+     * @param end End of the data
+     * @return End of the NAL unit
+     */
+    private int trimStartCode(int nal, int next, int end) {
+        if (next >= end) {
+            return end;
+        }
+        int nalEnd = next - 3;
+        if ((nalEnd > nal) && (data.get(nalEnd - 1) == 0)) {
+            nalEnd--;
+        }
+        return nalEnd;
+    }
+
+    /**
+     * Allocate the sample tables
+     *
+     * @param capacity Number of samples
+     */
+    private void allocate(int capacity) {
+        offsets = new long[capacity];
+        sizes = new int[capacity];
+        timestamps = new long[capacity];
+        keyFrames = new boolean[capacity];
+        count = 0;
+    }
+
+    /**
+     * Add a sample, growing the tables if needed
+     *
+     * @param offset Offset
+     * @param size Size
+     * @param timestamp RTP timestamp
+     * @param keyFrame Keyframe flag
+     */
+    private void addSample(long offset, int size, long timestamp, boolean keyFrame) {
+        if (count == offsets.length) {
+            int capacity = Math.max(16, count * 2);
+            long[] o = new long[capacity];
+            int[] s = new int[capacity];
+            long[] t = new long[capacity];
+            boolean[] k = new boolean[capacity];
+            System.arraycopy(offsets, 0, o, 0, count);
+            System.arraycopy(sizes, 0, s, 0, count);
+            System.arraycopy(timestamps, 0, t, 0, count);
+            System.arraycopy(keyFrames, 0, k, 0, count);
+            offsets = o;
+            sizes = s;
+            timestamps = t;
+            keyFrames = k;
+        }
+        offsets[count] = offset;
+        sizes[count] = size;
+        timestamps[count] = timestamp;
+        keyFrames[count] = keyFrame;
+        count++;
+    }
+
+    /**
+     * Load the samples from the index of a recording
+     *
+     * @param index Recording index
+     */
+    private void loadIndex(RecordingIndex index) {
+        allocate(index.size());
+        long length = data.limit();
+        for (int i = 0; i < index.size(); i++) {
+            long offset = index.getOffset(i);
+            long timestamp = (index.getTimestamp(i) - index.getTimestamp(0))
+                    * H264Config.CLOCK_RATE / index.getClockRate();
+            addSample(offset, (int)(index.getEndOffset(i, length) - offset), timestamp, index.isKeyFrame(i));
+        }
+    }
+
+    /**
+     * Split an Annex B stream into access units. An access unit starts with
+     * a parameter set, delimiter or SEI following a slice, or with the first
+     * slice of a picture.
+     */
+    private void scanAnnexB() {
+        allocate(256);
+        int end = data.limit();
+        int interval = H264Config.CLOCK_RATE / DEFAULT_FRAME_RATE;
+        int auStart = -1;
+        boolean auHasSlice = false;
+        boolean auKey = false;
+        int nal = nextNal(0, end);
+        while (nal < end) {
+            int startCode = ((nal >= 4) && (data.get(nal - 4) == 0)) ? nal - 4 : nal - 3;
+            int type = data.get(nal) & 0x1f;
+            boolean slice = (type >= 1) && (type <= 5);
+            boolean firstSlice = slice && (nal + 1 < end) && ((data.get(nal + 1) & 0x80) != 0);
+            boolean prefix = (type == JavaPacketizer.AVC_NALTYPE_SPS) || (type == JavaPacketizer.AVC_NALTYPE_PPS)
+                    || (type == NALTYPE_AUD) || (type == NALTYPE_SEI);
+            if ((auStart >= 0) && auHasSlice && (prefix || firstSlice)) {
+                addSample(auStart, startCode - auStart, (long)count * interval, auKey);
+                auStart = -1;
+            }
+            if (auStart < 0) {
+                auStart = startCode;
+                auHasSlice = false;
+                auKey = false;
+            }
+            if (slice) {
+                auHasSlice = true;
+                auKey |= (type == MyVideoPlayer.AVC_NALTYPE_IDR);
+            }
+            nal = nextNal(nal, end);
+        }
+        if ((auStart >= 0) && auHasSlice) {
+            addSample(auStart, end - auStart, (long)count * interval, auKey);
+        }
+    }
+
+    /**
+     * Returns the integer value of a four character code
+     *
+     * @param code Code
+     * @return Value
+     */
+    private static int fourcc(String code) {
+        return (code.charAt(0) << 24) | (code.charAt(1) << 16) | (code.charAt(2) << 8) | code.charAt(3);
+    }
+
+    /**
+     * Find a child box
+     *
+     * @param start Start of the children
+     * @param end End of the children
+     * @param type Box type
+     * @return Offset of the box or -1
+     */
+    private int findBox(int start, int end, int type) {
+        int pos = start;
+        while (pos + 8 <= end) {
+            long size = data.getInt(pos) & 0xffffffffL;
+            int header = 8;
+            if (size == 1) {
+                if (pos + 16 > end) {
+                    return -1;
+                }
+                size = data.getLong(pos + 8);
+                header = 16;
+            } else if (size == 0) {
+                size = end - pos;
+            }
+            if ((size < header) || (pos + size > end)) {
+                return -1;
+            }
+            if (data.getInt(pos + 4) == type) {
+                return pos;
+            }
+            pos += size;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the end of a box
+     *
+     * @param box Box offset
+     * @return End offset
+     */
+    private int boxEnd(int box) {
+        long size = data.getInt(box) & 0xffffffffL;
+        if (size == 1) {
+            size = data.getLong(box + 8);
+        } else if (size == 0) {
+            size = data.limit() - box;
+        }
+        return (int)(box + size);
+    }
+
+    /**
+     * Returns the start of the children of a box
+     *
+     * @param box Box offset
+     * @return Offset
+     */
+    private int boxData(int box) {
+        return ((data.getInt(box) == 1) ? box + 16 : box + 8);
+    }
+
+    /**
+     * Find a box by its path from a start box
+     *
+     * @param box Box offset
+     * @param path Child box types
+     * @return Offset of the box or -1
+     */
+    private int findPath(int box, String... path) {
+        for (int i = 0; (i < path.length) && (box >= 0); i++) {
+            box = findBox(boxData(box), boxEnd(box), fourcc(path[i]));
+        }
+        return box;
+    }
+
+    /**
+     * Read the sample tables of the first H264 video track of a MP4 file
+     *
+     * @throws IOException
+     */
+    private void parseMp4() throws IOException {
+        int moov = findBox(0, data.limit(), fourcc("moov"));
+        if (moov < 0) {
+            throw new IOException("No moov box");
+        }
+        int moovEnd = boxEnd(moov);
+        int pos = boxData(moov);
+        while (pos < moovEnd) {
+            int trak = findBox(pos, moovEnd, fourcc("trak"));
+            if (trak < 0) {
+                break;
+            }
+            pos = boxEnd(trak);
+            int stbl = findPath(trak, "mdia", "minf", "stbl");
+            int avcC = findPath(stbl, "stsd");
+            if (avcC >= 0) {
+                // stsd: version/flags, entry count, then the sample entries
+                int avc1 = findBox(boxData(avcC) + 8, boxEnd(avcC), fourcc("avc1"));
+                if ((avc1 >= 0) && (boxData(avc1) + 78 <= boxEnd(avc1))) {
+                    // Visual sample entry header is 78 bytes after the box header
+                    avcC = findBox(boxData(avc1) + 78, boxEnd(avc1), fourcc("avcC"));
+                } else {
+                    avcC = -1;
+                }
+            }
+            if (avcC < 0) {
+                // Not a H264 video track
+                continue;
+            }
+            int mdhd = findPath(trak, "mdia", "mdhd");
+            if (mdhd < 0) {
+                throw new IOException("No mdhd box");
+            }
+            int mdhdData = boxData(mdhd);
+            boolean version1 = (mdhdData < boxEnd(mdhd)) && (data.get(mdhdData) == 1);
+            int timescalePos = version1 ? mdhdData + 20 : mdhdData + 12;
+            if (timescalePos + 4 > boxEnd(mdhd)) {
+                throw new IOException("Malformed mdhd box");
+            }
+            long timescale = data.getInt(timescalePos) & 0xffffffffL;
+            if (timescale == 0) {
+                throw new IOException("Malformed mdhd box");
+            }
+            parseAvcC(boxData(avcC), boxEnd(avcC));
+            parseSampleTables(stbl, timescale);
+            return;
+        }
+        throw new IOException("No H264 track");
+    }
+
+    /**
+     * Read the NAL length size and the parameter sets of an avcC box
+     *
+     * @param pos Start of the box data
+     * @param end End of the box
+     * @throws IOException if the box is truncated
+     */
+    private void parseAvcC(int pos, int end) throws IOException {
+        if (pos + 6 > end) {
+            throw new IOException("Malformed avcC box");
+        }
+        nalLengthSize = (data.get(pos + 4) & 0x03) + 1;
+        pos += 5;
+        for (int set = 0; set < 2; set++) {
+            if (pos + 1 > end) {
+                throw new IOException("Malformed avcC box");
+            }
+            int number = data.get(pos) & ((set == 0) ? 0x1f : 0xff);
+            pos++;
+            for (int i = 0; i < number; i++) {
+                if (pos + 2 > end) {
+                    throw new IOException("Malformed avcC box");
+                }
+                int length = data.getShort(pos) & 0xffff;
+                if (pos + 2 + length > end) {
+                    throw new IOException("Malformed avcC box");
+                }
+                parameterSets.add(copy(pos + 2, length));
+                pos += 2 + length;
+            }
+        }
+    }
+
+    /**
+     * Read the entry count of a sample table and check that its entries lie
+     * within the box
+     *
+     * @param box Offset of the table box
+     * @param header Number of bytes before the entry count, after the
+     *            version and flags
+     * @param entrySize Size of an entry
+     * @return Entry count
+     * @throws IOException if the table overflows the box
+     */
+    private int readEntryCount(int box, int header, int entrySize) throws IOException {
+        int pos = boxData(box) + 4 + header;
+        int end = boxEnd(box);
+        if (pos + 4 > end) {
+            throw new IOException("Malformed sample table");
+        }
+        long entries = data.getInt(pos) & 0xffffffffL;
+        if (pos + 4 + entries * entrySize > end) {
+            throw new IOException("Malformed sample table");
+        }
+        return (int)entries;
+    }
+
+    /**
+     * Build the sample list from the stts, ctts, stss, stsz, stsc and
+     * stco/co64 tables
+     *
+     * @param stbl Offset of the stbl box
+     * @param timescale Track timescale
+     * @throws IOException
+     */
+    private void parseSampleTables(int stbl, long timescale) throws IOException {
+        int stsz = findPath(stbl, "stsz");
+        int stts = findPath(stbl, "stts");
+        int stsc = findPath(stbl, "stsc");
+        int stco = findPath(stbl, "stco");
+        boolean largeOffsets = false;
+        if (stco < 0) {
+            stco = findPath(stbl, "co64");
+            largeOffsets = true;
+        }
+        if ((stsz < 0) || (stts < 0) || (stsc < 0) || (stco < 0)) {
+            throw new IOException("Incomplete sample tables");
+        }
+
+        // Sizes, a table follows the sample count without fixed size
+        int p = boxData(stsz) + 4;
+        if (p + 8 > boxEnd(stsz)) {
+            throw new IOException("Malformed sample table");
+        }
+        int fixedSize = data.getInt(p);
+        int samples = (fixedSize != 0) ? data.getInt(p + 4) : readEntryCount(stsz, 4, 4);
+        if ((fixedSize < 0) || (samples < 0) || (samples > data.limit())) {
+            throw new IOException("Malformed sample table");
+        }
+        allocate(samples);
+        int[] sampleSizes = new int[samples];
+        for (int i = 0; i < samples; i++) {
+            sampleSizes[i] = (fixedSize != 0) ? fixedSize : data.getInt(p + 8 + i * 4);
+            if (sampleSizes[i] < 0) {
+                throw new IOException("Malformed sample size");
+            }
+        }
+
+        // Decoding times
+        long[] times = new long[samples];
+        int entries = readEntryCount(stts, 0, 8);
+        p = boxData(stts) + 4;
+        int n = 0;
+        long time = 0;
+        for (int e = 0; (e < entries) && (n < samples); e++) {
+            int sampleCount = data.getInt(p + 4 + e * 8);
+            long delta = data.getInt(p + 8 + e * 8) & 0xffffffffL;
+            for (int i = 0; (i < sampleCount) && (n < samples); i++) {
+                times[n++] = time * H264Config.CLOCK_RATE / timescale;
+                time += delta;
+            }
+        }
+
+        // Presentation times: the B-frames are decoded before the frames
+        // they refer to but presented after them
+        int ctts = findPath(stbl, "ctts");
+        if (ctts >= 0) {
+            compositionOffsets = new int[samples];
+            entries = readEntryCount(ctts, 0, 8);
+            p = boxData(ctts) + 4;
+            n = 0;
+            for (int e = 0; (e < entries) && (n < samples); e++) {
+                int sampleCount = data.getInt(p + 4 + e * 8);
+                long offset = (long)data.getInt(p + 8 + e * 8) * H264Config.CLOCK_RATE / timescale;
+                for (int i = 0; (i < sampleCount) && (n < samples); i++) {
+                    compositionOffsets[n++] = (int)offset;
+                }
+            }
+        }
+
+        // Keyframes, all samples are keyframes without stss
+        boolean[] sync = new boolean[samples];
+        int stss = findPath(stbl, "stss");
+        if (stss < 0) {
+            java.util.Arrays.fill(sync, true);
+        } else {
+            entries = readEntryCount(stss, 0, 4);
+            p = boxData(stss) + 4;
+            for (int e = 0; e < entries; e++) {
+                int sample = data.getInt(p + 4 + e * 4) - 1;
+                if ((sample >= 0) && (sample < samples)) {
+                    sync[sample] = true;
+                }
+            }
+        }
+
+        // Offsets: chunks of samples
+        int chunks = readEntryCount(stco, 0, largeOffsets ? 8 : 4);
+        p = boxData(stco) + 4;
+        int stscEntries = readEntryCount(stsc, 0, 12);
+        int q = boxData(stsc) + 4;
+        n = 0;
+        for (int e = 0; e < stscEntries; e++) {
+            int firstChunk = data.getInt(q + 4 + e * 12) - 1;
+            int perChunk = data.getInt(q + 8 + e * 12);
+            int lastChunk = (e + 1 < stscEntries) ? data.getInt(q + 4 + (e + 1) * 12) - 1 : chunks;
+            if (firstChunk < 0) {
+                throw new IOException("Malformed sample table");
+            }
+            for (int c = firstChunk; (c < lastChunk) && (c < chunks); c++) {
+                long offset = largeOffsets ? data.getLong(p + 4 + c * 8) : data.getInt(p + 4 + c * 4) & 0xffffffffL;
+                if (offset < 0) {
+                    throw new IOException("Malformed chunk offset");
+                }
+                for (int i = 0; (i < perChunk) && (n < samples); i++) {
+                    if (offset + sampleSizes[n] > data.limit()) {
+                        // Truncated file
+                        return;
+                    }
+                    addSample(offset, sampleSizes[n], times[n], sync[n]);
+                    offset += sampleSizes[n];
+                    n++;
+                }
+            }
+        }
+    }
+}
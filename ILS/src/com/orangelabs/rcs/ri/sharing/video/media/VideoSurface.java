@@ -26,6 +26,26 @@ import android.graphics.Bitmap;
  * @author Deutsche Telekom
  */
 public interface VideoSurface {
+    /**
+     * Listener of the images no longer used by the surface
+     */
+    public interface ImageListener {
+        /**
+         * An image has been drawn or discarded, its Bitmap may be refilled
+         *
+         * @param bmp Bitmap
+         */
+        public void imageReleased(Bitmap bmp);
+    }
+
+    /**
+     * Set the listener of the released images. Each Bitmap passed to
+     * setImage is released exactly once.
+     *
+     * @param listener Listener or null
+     */
+    public void setImageListener(ImageListener listener);
+
     /**
      * Set image from a bitmap
      *
@@ -33,6 +53,17 @@ public interface VideoSurface {
      */
     public void setImage(Bitmap bmp);
 
+    /**
+     * Set image from a bitmap with the latency of the frame
+     *
+     * @param bmp Bitmap
+     * @param captureTime Capture time of the frame on the local wall clock in
+     *            milliseconds, -1 if unknown
+     * @param oneWayLatency Latency from the capture to the reception of the
+     *            frame in milliseconds, -1 if unknown
+     */
+    public void setImage(Bitmap bmp, long captureTime, long oneWayLatency);
+
     /**
      * Clears the image
      */
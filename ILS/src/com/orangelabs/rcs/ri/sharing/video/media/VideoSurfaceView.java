@@ -21,12 +21,19 @@ package com.orangelabs.rcs.ri.sharing.video.media;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.os.SystemClock;
 import android.util.AttributeSet;
 import android.view.SurfaceHolder;
 import android.view.SurfaceView;
 
 /**
- * Video surface view
+ * Video surface view. Images are drawn by a render thread owned by the view,
+ * which always takes the latest image and draws at most once per display
+ * refresh.
  * 
  * @author Jean-Marc AUFFRET
  */
@@ -44,13 +51,158 @@ public class VideoSurfaceView extends SurfaceView implements VideoSurface {
 	/**
 	 * Surface has been created state
 	 */
-	private boolean surfaceCreated = false;
+	private volatile boolean surfaceCreated = false;
 	
 	/**
 	 * Surface holder
 	 */
 	private SurfaceHolder holder;
 
+	/**
+	 * Minimum interval between two draws in milliseconds (60 Hz display)
+	 */
+	private static final long MIN_DRAW_INTERVAL = 16L;
+
+	/**
+	 * Number of surface buffers to clear after a letterbox change
+	 */
+	private static final int SURFACE_BUFFERS = 3;
+
+	/**
+	 * Mailbox lock
+	 */
+	private final Object mailbox = new Object();
+
+	/**
+	 * Latest image not yet drawn
+	 */
+	private Bitmap pendingImage = null;
+
+	/**
+	 * Time the pending image has been set, on the monotonic clock
+	 */
+	private long pendingImageTime = 0L;
+
+	/**
+	 * Capture time of the pending image on the wall clock, -1 if unknown
+	 */
+	private long pendingCaptureTime = -1L;
+
+	/**
+	 * One-way latency of the pending image, -1 if unknown
+	 */
+	private long pendingOneWayLatency = -1L;
+
+	/**
+	 * One-way latency of the last drawn image in milliseconds
+	 */
+	private volatile long oneWayLatency = -1L;
+
+	/**
+	 * Glass-to-glass latency of the last drawn image in milliseconds
+	 */
+	private volatile long glassToGlassLatency = -1L;
+
+	/**
+	 * Paint of the latency overlay
+	 */
+	private final Paint latencyPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+
+	/**
+	 * Latency overlay text, rebuilt only when the latencies change
+	 */
+	private final StringBuilder latencyText = new StringBuilder(64);
+
+	/**
+	 * Characters of the latency overlay text
+	 */
+	private char[] latencyChars = new char[64];
+
+	/**
+	 * One-way latency of the overlay text, or -1
+	 */
+	private long textOneWay = -1L;
+
+	/**
+	 * Glass-to-glass latency of the overlay text, or -1
+	 */
+	private long textGlassToGlass = -1L;
+
+	/**
+	 * Clear requested
+	 */
+	private boolean clearRequested = false;
+
+	/**
+	 * Render thread
+	 */
+	private RenderThread renderThread = null;
+
+	/**
+	 * Listener of the released images
+	 */
+	private volatile ImageListener imageListener = null;
+
+	/**
+	 * Destination of the image, letterboxed in the surface
+	 */
+	private final Rect destRect = new Rect();
+
+	/**
+	 * Scaling matrix of the image
+	 */
+	private final Matrix matrix = new Matrix();
+
+	/**
+	 * Image width the destination has been computed for
+	 */
+	private int imageWidth = -1;
+
+	/**
+	 * Image height the destination has been computed for
+	 */
+	private int imageHeight = -1;
+
+	/**
+	 * Surface width the destination has been computed for
+	 */
+	private int canvasWidth = -1;
+
+	/**
+	 * Surface height the destination has been computed for
+	 */
+	private int canvasHeight = -1;
+
+	/**
+	 * Number of surface buffers still to be cleared
+	 */
+	private int buffersToClear = SURFACE_BUFFERS;
+
+	/**
+	 * Number of images drawn in the current second
+	 */
+	private int renderedCount = 0;
+
+	/**
+	 * Number of images replaced before being drawn in the current second
+	 */
+	private int droppedCount = 0;
+
+	/**
+	 * Start of the current second
+	 */
+	private long statsStart = 0L;
+
+	/**
+	 * Images drawn per second
+	 */
+	private volatile int renderedFps = 0;
+
+	/**
+	 * Images dropped per second
+	 */
+	private volatile int droppedFps = 0;
+
 	/**
 	 * Constructor
 	 * 
@@ -142,44 +294,337 @@ public class VideoSurfaceView extends SurfaceView implements VideoSurface {
     }
     
     /**
-	 * Set image from a bitmap
+	 * Set image from a bitmap. The image is drawn by the render thread, an
+	 * image not yet drawn is replaced and released.
 	 * 
 	 * @param bmp Bitmap
 	 */
 	public void setImage(Bitmap bmp) {	
-		if (surfaceCreated) {
-			Canvas canvas = null;
-			try {				
-				synchronized(holder) {
-					canvas = holder.lockCanvas();					
-				}							
-			} finally {
-				if (canvas != null) {
-					// First clear screen
-					canvas.drawARGB(255, 0, 0, 0);
-					
-					// Then draw bmp
-					canvas.drawBitmap(bmp, null, canvas.getClipBounds(), null);					
-					holder.unlockCanvasAndPost(canvas);
+		setImage(bmp, -1L, -1L);
+	}
+
+	/**
+	 * Set image from a bitmap with the latency of the frame. The latency is
+	 * shown over the image once it has been drawn.
+	 *
+	 * @param bmp Bitmap
+	 * @param captureTime Capture time of the frame on the local wall clock in
+	 *            milliseconds, -1 if unknown
+	 * @param oneWayLatency Latency from the capture to the reception of the
+	 *            frame in milliseconds, -1 if unknown
+	 */
+	public void setImage(Bitmap bmp, long captureTime, long oneWayLatency) {
+		Bitmap replaced;
+		synchronized(mailbox) {
+			if (!surfaceCreated) {
+				// Checked with the mailbox held, a destroyed surface has
+				// already discarded its pending image
+				replaced = bmp;
+			} else {
+				replaced = pendingImage;
+				if (replaced != null) {
+					droppedCount++;
 				}
+				pendingImage = bmp;
+				pendingImageTime = System.nanoTime();
+				pendingCaptureTime = captureTime;
+				pendingOneWayLatency = oneWayLatency;
+				mailbox.notify();
 			}
 		}
+		release(replaced);
 	}
 	
+	/**
+	 * Clears the image
+	 */
 	public void clearImage() {	
-		if (surfaceCreated) {
-			Canvas canvas = null;
-			try {				
-				synchronized(holder) {
-					canvas = holder.lockCanvas();					
-				}							
-			} finally {
-				if (canvas != null) {
-					// Clear screen
-					canvas.drawARGB(255, 0, 0, 0);
-					
-					holder.unlockCanvasAndPost(canvas);
+		Bitmap discarded;
+		synchronized(mailbox) {
+			discarded = pendingImage;
+			pendingImage = null;
+			clearRequested = true;
+			mailbox.notify();
+		}
+		release(discarded);
+	}
+
+	/**
+	 * Set the listener of the released images
+	 *
+	 * @param listener Listener or null
+	 */
+	public void setImageListener(ImageListener listener) {
+		imageListener = listener;
+	}
+
+	/**
+	 * Hand an image drawn or discarded back to its owner
+	 *
+	 * @param bmp Bitmap or null
+	 */
+	private void release(Bitmap bmp) {
+		ImageListener listener = imageListener;
+		if ((bmp != null) && (listener != null)) {
+			listener.imageReleased(bmp);
+		}
+	}
+
+	/**
+	 * Returns the number of images drawn during the last second
+	 *
+	 * @return Frames per second
+	 */
+	public int getRenderedFps() {
+		return renderedFps;
+	}
+
+	/**
+	 * Returns the number of images replaced before being drawn during the
+	 * last second
+	 *
+	 * @return Frames per second
+	 */
+	public int getDroppedFps() {
+		return droppedFps;
+	}
+
+	/**
+	 * Returns the one-way latency of the last drawn image, from the capture
+	 * to the reception of the frame
+	 *
+	 * @return Milliseconds or -1 if unknown
+	 */
+	public long getOneWayLatency() {
+		return oneWayLatency;
+	}
+
+	/**
+	 * Returns the glass-to-glass latency of the last drawn image, from the
+	 * capture to the display of the frame
+	 *
+	 * @return Milliseconds or -1 if unknown
+	 */
+	public long getGlassToGlassLatency() {
+		return glassToGlassLatency;
+	}
+
+	/**
+	 * Draw an image, or clear the surface if the image is null. Called from
+	 * the render thread.
+	 *
+	 * @param bmp Bitmap or null
+	 */
+	private void draw(Bitmap bmp) {
+		Canvas canvas = holder.lockCanvas();
+		if (canvas == null) {
+			return;
+		}
+		try {
+			if (bmp == null) {
+				canvas.drawARGB(255, 0, 0, 0);
+				buffersToClear = SURFACE_BUFFERS;
+				return;
+			}
+			updateDestination(bmp.getWidth(), bmp.getHeight(), canvas.getWidth(), canvas.getHeight());
+
+			// Clear the letterbox only until each surface buffer has been cleared
+			if (buffersToClear > 0) {
+				canvas.drawARGB(255, 0, 0, 0);
+				buffersToClear--;
+			}
+			canvas.drawBitmap(bmp, matrix, null);
+
+			// Latency of the previous image, the one of this image is only
+			// known once posted
+			long glassToGlass = glassToGlassLatency;
+			if (glassToGlass >= 0) {
+				updateLatencyText(oneWayLatency, glassToGlass);
+				float size = latencyPaint.getTextSize();
+				canvas.drawText(latencyChars, 0, latencyText.length(),
+						destRect.left + size / 2, destRect.top + size * 3 / 2, latencyPaint);
+			}
+		} finally {
+			holder.unlockCanvasAndPost(canvas);
+		}
+	}
+
+	/**
+	 * Rebuild the latency overlay text if the latencies have changed, without
+	 * allocating
+	 *
+	 * @param oneWay One-way latency
+	 * @param glassToGlass Glass-to-glass latency
+	 */
+	private void updateLatencyText(long oneWay, long glassToGlass) {
+		if ((oneWay == textOneWay) && (glassToGlass == textGlassToGlass)) {
+			return;
+		}
+		textOneWay = oneWay;
+		textGlassToGlass = glassToGlass;
+		StringBuilder text = latencyText;
+		text.setLength(0);
+		text.append("one-way ").append(oneWay).append(" ms, glass-to-glass ").append(glassToGlass).append(" ms");
+		if (text.length() > latencyChars.length) {
+			latencyChars = new char[text.length()];
+		}
+		text.getChars(0, text.length(), latencyChars, 0);
+	}
+
+	/**
+	 * Compute the letterboxed destination of the image if the image or the
+	 * surface dimensions have changed
+	 *
+	 * @param width Image width
+	 * @param height Image height
+	 * @param cWidth Surface width
+	 * @param cHeight Surface height
+	 */
+	private void updateDestination(int width, int height, int cWidth, int cHeight) {
+		if ((width == imageWidth) && (height == imageHeight)
+				&& (cWidth == canvasWidth) && (cHeight == canvasHeight)) {
+			return;
+		}
+		imageWidth = width;
+		imageHeight = height;
+		canvasWidth = cWidth;
+		canvasHeight = cHeight;
+
+		// Fit the image in the surface, keeping its aspect ratio
+		int w = cWidth;
+		int h = (int)((long)cWidth * height / Math.max(1, width));
+		if (h > cHeight) {
+			h = cHeight;
+			w = (int)((long)cHeight * width / Math.max(1, height));
+		}
+		int left = (cWidth - w) / 2;
+		int top = (cHeight - h) / 2;
+		if ((left != destRect.left) || (top != destRect.top)
+				|| (left + w != destRect.right) || (top + h != destRect.bottom)) {
+			destRect.set(left, top, left + w, top + h);
+			buffersToClear = SURFACE_BUFFERS;
+		}
+		matrix.setScale((float)w / Math.max(1, width), (float)h / Math.max(1, height));
+		matrix.postTranslate(left, top);
+	}
+
+	/**
+	 * Update the per second counters
+	 *
+	 * @param now Current time
+	 */
+	private void updateStats(long now) {
+		if (now - statsStart >= 1000L) {
+			synchronized(mailbox) {
+				renderedFps = renderedCount;
+				droppedFps = droppedCount;
+				renderedCount = 0;
+				droppedCount = 0;
+			}
+			statsStart = now;
+		}
+	}
+
+	/**
+	 * Render thread
+	 */
+	private class RenderThread extends Thread {
+		/**
+		 * Running flag
+		 */
+		private volatile boolean running = true;
+
+		/**
+		 * Constructor
+		 */
+		public RenderThread() {
+			super("VideoRender");
+		}
+
+		/**
+		 * Stop the thread and wait for the end of the current draw
+		 */
+		public void terminate() {
+			running = false;
+			interrupt();
+			try {
+				join();
+			} catch (InterruptedException e) {
+				// Nothing to do
+			}
+		}
+
+		@Override
+		public void run() {
+			long lastDraw = 0L;
+			try {
+				while (running) {
+					Bitmap bmp;
+					long imageTime;
+					long captureTime;
+					long oneWay;
+					synchronized(mailbox) {
+						while (running && (pendingImage == null) && !clearRequested) {
+							mailbox.wait(1000L);
+							updateStats(SystemClock.uptimeMillis());
+						}
+						bmp = pendingImage;
+						imageTime = pendingImageTime;
+						captureTime = pendingCaptureTime;
+						oneWay = pendingOneWayLatency;
+						pendingImage = null;
+						clearRequested = false;
+						if (bmp != null) {
+							renderedCount++;
+						}
+					}
+					if (!running) {
+						break;
+					}
+
+					// Pace the draws on the display refresh
+					long wait = lastDraw + MIN_DRAW_INTERVAL - SystemClock.uptimeMillis();
+					if ((bmp != null) && (wait > 0)) {
+						try {
+							Thread.sleep(wait);
+						} catch (InterruptedException e) {
+							release(bmp);
+							throw e;
+						}
+						synchronized(mailbox) {
+							// Take a newer image received meanwhile
+							if (pendingImage != null) {
+								release(bmp);
+								bmp = pendingImage;
+								imageTime = pendingImageTime;
+								captureTime = pendingCaptureTime;
+								oneWay = pendingOneWayLatency;
+								pendingImage = null;
+								droppedCount++;
+							}
+						}
+					}
+
+					try {
+						draw(bmp);
+					} finally {
+						release(bmp);
+					}
+					if (bmp != null) {
+						MediaStats.recordSince(MediaStats.Stage.RENDER, imageTime);
+						MediaStats.count(MediaStats.Counter.FRAMES_RENDERED);
+						if (captureTime >= 0) {
+							long glassToGlass = System.currentTimeMillis() - captureTime;
+							MediaStats.record(MediaStats.Stage.GLASS_TO_GLASS, glassToGlass * 1000000L);
+							oneWayLatency = oneWay;
+							glassToGlassLatency = glassToGlass;
+						}
+					}
+					lastDraw = SystemClock.uptimeMillis();
+					updateStats(lastDraw);
 				}
+			} catch (InterruptedException e) {
+				// Surface destroyed
 			}
 		}
 	}
@@ -191,6 +636,11 @@ public class VideoSurfaceView extends SurfaceView implements VideoSurface {
 		// Get a surface holder
 		holder = this.getHolder();
         holder.addCallback(surfaceCallback);
+
+        // Latency overlay
+        latencyPaint.setColor(Color.YELLOW);
+        latencyPaint.setShadowLayer(2.0f, 1.0f, 1.0f, Color.BLACK);
+        latencyPaint.setTextSize(14.0f * getResources().getDisplayMetrics().density);
 	}
 	
 	/**
@@ -202,10 +652,25 @@ public class VideoSurfaceView extends SurfaceView implements VideoSurface {
 
 		public void surfaceCreated(SurfaceHolder _holder) {
 			surfaceCreated = true;
+			imageWidth = -1;
+			buffersToClear = SURFACE_BUFFERS;
+			renderThread = new RenderThread();
+			renderThread.start();
 		}
 
 		public void surfaceDestroyed(SurfaceHolder _holder) {
 			surfaceCreated = false;
+			if (renderThread != null) {
+				// The surface must not be drawn once this call returns
+				renderThread.terminate();
+				renderThread = null;
+			}
+			Bitmap discarded;
+			synchronized(mailbox) {
+				discarded = pendingImage;
+				pendingImage = null;
+			}
+			release(discarded);
 		}
 	};
 }